@@ -25,6 +25,7 @@ import java.io.FileFilter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.nio.file.Files;
@@ -33,6 +34,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
@@ -248,6 +250,38 @@ public class BdbModule implements Lifecycle, Checkpointable, Closeable, Disposab
     public void setUseHardLinkCheckpoints(boolean useHardLinkCheckpoints) {
         this.useHardLinkCheckpoints = useHardLinkCheckpoints;
     }
+
+    /**
+     * Maximum number of objects each object cache (such as 'servers',
+     * 'hosts' or the frontier's 'allqueues') keeps in memory, beyond those
+     * still in use elsewhere, unless overridden by name in 
+     * objectCacheMaxInMemoryByName. Less-used objects beyond this are
+     * evicted, to be reread from BDB when next needed.
+     */
+    protected int objectCacheMaxInMemory = ObjectIdentityBdbManualCache.DEFAULT_MAX_IN_MEMORY;
+    public int getObjectCacheMaxInMemory() {
+        return objectCacheMaxInMemory;
+    }
+    public void setObjectCacheMaxInMemory(int objectCacheMaxInMemory) {
+        this.objectCacheMaxInMemory = objectCacheMaxInMemory;
+    }
+
+    /**
+     * Per-cache overrides of objectCacheMaxInMemory, by cache name.
+     */
+    protected Map<String,Integer> objectCacheMaxInMemoryByName = 
+        new HashMap<String,Integer>();
+    public Map<String,Integer> getObjectCacheMaxInMemoryByName() {
+        return objectCacheMaxInMemoryByName;
+    }
+    public void setObjectCacheMaxInMemoryByName(Map<String,Integer> objectCacheMaxInMemoryByName) {
+        this.objectCacheMaxInMemoryByName = objectCacheMaxInMemoryByName;
+    }
+
+    protected int objectCacheMaxInMemoryFor(String dbName) {
+        Integer max = objectCacheMaxInMemoryByName.get(dbName);
+        return (max != null) ? max : objectCacheMaxInMemory;
+    }
     
     private transient EnhancedEnvironment bdbEnvironment;
         
@@ -425,6 +459,18 @@ public class BdbModule implements Lifecycle, Checkpointable, Closeable, Disposab
         return dpc.database;
     }
 
+    /**
+     * @return whether this BdbModule's environment holds a Database of 
+     * the given name, as when recovered from a checkpoint that had one
+     */
+    public boolean hasDatabase(String name) throws DatabaseException {
+        if (bdbEnvironment == null) {
+            // proper initialization hasn't occurred
+            throw new IllegalStateException("BdbModule not started");
+        }
+        return bdbEnvironment.getDatabaseNames().contains(name);
+    }
+
     public StoredClassCatalog getClassCatalog() {
         return classCatalog;
     }
@@ -465,6 +511,7 @@ public class BdbModule implements Lifecycle, Checkpointable, Closeable, Disposab
             }
         }
         ObjectIdentityBdbManualCache<V> oic = new ObjectIdentityBdbManualCache<V>();
+        oic.setMaxInMemory(objectCacheMaxInMemoryFor(dbName));
         oic.initialize(bdbEnvironment, dbName, valueClass, classCatalog);
         oiCaches.put(dbName, oic);
         return oic;
@@ -500,6 +547,34 @@ public class BdbModule implements Lifecycle, Checkpointable, Closeable, Disposab
         return oic; 
     }
     
+    /**
+     * Write a line of usage metrics (hits, misses, evictions and more) for
+     * each object cache.
+     */
+    public void reportObjectCachesTo(PrintWriter writer) {
+        for (@SuppressWarnings("rawtypes") Map.Entry<String,ObjectIdentityCache> entry 
+                : new TreeMap<String,ObjectIdentityCache>(oiCaches).entrySet()) {
+            if (entry.getValue() instanceof ObjectIdentityBdbManualCache) {
+                @SuppressWarnings("rawtypes")
+                ObjectIdentityBdbManualCache cache = 
+                    (ObjectIdentityBdbManualCache) entry.getValue();
+                writer.print(entry.getKey());
+                writer.print(" hits=");
+                writer.print(cache.getHitCount());
+                writer.print(" misses=");
+                writer.print(cache.getMissCount());
+                writer.print(" evictions=");
+                writer.print(cache.getEvictionCount());
+                writer.print(" inMemory=");
+                writer.print(cache.getInMemoryCount());
+                writer.print("/");
+                writer.println(cache.getMaxInMemory());
+                writer.print("  ");
+                writer.println(cache.composeCacheSummary());
+            }
+        }
+    }
+    
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.defaultWriteObject();
     }
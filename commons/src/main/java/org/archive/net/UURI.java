@@ -52,6 +52,20 @@ public class UURI extends UsableURI implements CustomSerialization {
         super();
     }
 
+    /**
+     * Recreate a UURI from the toCustomString() of a previous instance,
+     * without re-canonicalizing, as Kryo and Java deserialization do.
+     * 
+     * @param customString previously-canonicalized URI string
+     * @return UURI
+     * @throws URIException
+     */
+    public static UURI fromCustomString(String customString) throws URIException {
+        UURI uuri = new UURI();
+        uuri.parseUriReference(customString, true);
+        return uuri;
+    }
+
     @Override
     public void writeObjectData(Kryo kryo, ByteBuffer buffer) {
         StringSerializer.put(buffer, toCustomString());
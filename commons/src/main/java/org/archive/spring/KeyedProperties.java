@@ -20,9 +20,11 @@
  package org.archive.spring;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Logger;
 
@@ -49,36 +51,177 @@ public class KeyedProperties extends ConcurrentSkipListMap<String,Object> {
      * @param path String path
      */
     public void addExternalPath(String path) {
-        externalPaths.add(path);
+        if (externalPaths.add(path)) {
+            overrideKeys = null;
+            resolutions = null;
+        }
     }
 
     /**
      * Get the given value, checking override maps if appropriate.
      * 
+     * The outcome of checking the override maps is remembered per 
+     * combination of applicable maps (by identity) and key, so that 
+     * repeat lookups under the same overlays need only a few hash 
+     * probes and no allocation; it is rechecked once the version of 
+     * the contexts' maps (see {@link OverlayContext#getOverlaysVersion()})
+     * changes. 
+     * 
      * @param key
      * @return discovered override, or local value
      */
     public Object get(String key) {
         ArrayList<OverlayContext> overlays = threadOverrides.get();
+        if (overlays.isEmpty()) {
+            return super.get(key);
+        }
+        Map<?,?>[] scratch = threadScratch.get();
+        int count = 0;
+        int hash = 1;
+        long version = 0;
         for(int i = overlays.size()-1; i>=0; i--) {
             OverlayContext ocontext = overlays.get(i); 
-            for(int j = ocontext.getOverlayNames().size()-1; j>=0; j--) {
-                String name = ocontext.getOverlayNames().get(j);
+            version = 31 * version + ocontext.getOverlaysVersion();
+            List<String> names = ocontext.getOverlayNames();
+            for(int j = names.size()-1; j>=0; j--) {
+                String name = names.get(j);
                 Map<String,Object> m = ocontext.getOverlayMap(name);
                 if (m != null) { 
-                    for(String ok : getOverrideKeys(key)) {
-                        Object val = m.get(ok);
-                        if(val!=null) {
-                            return val;
-                        }
+                    if (count == scratch.length) {
+                        scratch = Arrays.copyOf(scratch, count * 2);
+                        threadScratch.set(scratch);
                     }
+                    scratch[count++] = m;
+                    hash = 31 * hash + System.identityHashCode(m);
                 } else {
                     logger.warning("sheet '" + name + "' should apply but there is no such sheet!");
                 }
             }
         }
+        if (count == 0) {
+            return super.get(key);
+        }
+
+        Object val = getResolution(scratch, count, hash, version)
+            .resolve(key, this);
+        return (val == NO_OVERRIDE) ? super.get(key) : val;
+    }
+
+    /**
+     * Find (or create and remember) the Resolution for the given 
+     * applicable override maps, at the given version of their contents.
+     * 
+     * The table is set-associative: a combination may sit in any of the
+     * RESOLUTION_WAYS slots of the set its hash selects. A full set has 
+     * its stale entries replaced first; failing that, the table doubles, 
+     * up to MAX_RESOLUTION_SLOTS, so that it grows to the number of sheet 
+     * combinations in use rather than having them evict each other. 
+     * Threads may race to fill or grow it; a lost entry is simply 
+     * resolved again.
+     */
+    protected Resolution getResolution(Map<?,?>[] maps, int count, int hash,
+            long version) {
+        while (true) {
+            Resolution[] table = resolutions;
+            if (table == null) {
+                table = resolutions = new Resolution[MIN_RESOLUTION_SLOTS];
+            }
+            int set = setIndex(hash, table.length);
+            int replaceable = -1;
+            for (int i = set; i < set + RESOLUTION_WAYS; i++) {
+                Resolution r = table[i];
+                if (r == null) {
+                    if (replaceable < 0) {
+                        replaceable = i;
+                    }
+                } else if (r.sameMaps(maps, count, hash)) {
+                    if (r.version == version) {
+                        return r;
+                    }
+                    replaceable = i;
+                    break;
+                } else if (replaceable < 0 && r.version != version) {
+                    replaceable = i;
+                }
+            }
+            if (replaceable < 0 && table.length < MAX_RESOLUTION_SLOTS) {
+                resolutions = grow(table, version);
+                continue;
+            }
+            if (replaceable < 0) {
+                // at the size limit: evict a way picked by hash
+                replaceable = set + ((hash >>> 24) & (RESOLUTION_WAYS - 1));
+            }
+            Resolution r = new Resolution(version, Arrays.copyOf(maps, count), hash);
+            table[replaceable] = r;
+            return r;
+        }
+    }
+
+    /**
+     * @return first slot of the set for the given hash
+     */
+    protected static int setIndex(int hash, int slots) {
+        int h = hash ^ (hash >>> 16);
+        return (h & ((slots / RESOLUTION_WAYS) - 1)) * RESOLUTION_WAYS;
+    }
+
+    /**
+     * @return table of twice the size holding the current entries of the
+     * given one
+     */
+    protected static Resolution[] grow(Resolution[] table, long version) {
+        Resolution[] bigger = new Resolution[table.length * 2];
+        for (Resolution r : table) {
+            if (r == null || r.version != version) {
+                continue;
+            }
+            int set = setIndex(r.hash, bigger.length);
+            for (int i = set; i < set + RESOLUTION_WAYS; i++) {
+                if (bigger[i] == null) {
+                    bigger[i] = r;
+                    break;
+                }
+            }
+        }
+        return bigger;
+    }
+
+    /**
+     * Check the override maps, in order, for any value of the key 
+     * under any of this map's external paths.
+     * 
+     * @return override value or NO_OVERRIDE
+     */
+    protected Object findOverride(Map<?,?>[] maps, String key) {
+        String[] keys = getOverrideKeyArray(key);
+        for (Map<?,?> m : maps) {
+            for (String ok : keys) {
+                Object val = m.get(ok);
+                if (val != null) {
+                    return val;
+                }
+            }
+        }
+        return NO_OVERRIDE;
+    }
 
-        return super.get(key);
+    /**
+     * @return full override keys for the given local key, composed once
+     * and reused until external paths change
+     */
+    protected String[] getOverrideKeyArray(String key) {
+        ConcurrentHashMap<String,String[]> cache = overrideKeys;
+        if (cache == null) {
+            cache = overrideKeys = new ConcurrentHashMap<String,String[]>();
+        }
+        String[] keys = cache.get(key);
+        if (keys == null) {
+            List<String> list = getOverrideKeys(key);
+            keys = list.toArray(new String[list.size()]);
+            cache.put(key, keys);
+        }
+        return keys;
     }
 
     /**
@@ -96,11 +239,76 @@ public class KeyedProperties extends ConcurrentSkipListMap<String,Object> {
         return keys;
     }
 
+    /** full override keys by local key; reset when paths change */
+    protected transient volatile ConcurrentHashMap<String,String[]> overrideKeys;
+    
+    /** 
+     * Set-associative cache of Resolutions, by hash of the applicable 
+     * override maps; see {@link #getResolution(Map[], int, int, long)}. 
+     * Dropped when external paths change. 
+     */
+    protected transient volatile Resolution[] resolutions;
+    protected static final int RESOLUTION_WAYS = 4;
+    protected static final int MIN_RESOLUTION_SLOTS = 16;
+    protected static final int MAX_RESOLUTION_SLOTS = 4096;
+    
+    /** marker for 'no override applies; use local value' */
+    protected static final Object NO_OVERRIDE = new Object();
+
+    /**
+     * Remembered outcomes of checking one particular sequence of override
+     * maps, valid only at the version of their contents it was made for. 
+     */
+    protected static class Resolution {
+        final long version;
+        final Map<?,?>[] maps;
+        final int hash;
+        final ConcurrentHashMap<String,Object> values = 
+            new ConcurrentHashMap<String,Object>();
+
+        Resolution(long version, Map<?,?>[] maps, int hash) {
+            this.version = version;
+            this.maps = maps;
+            this.hash = hash;
+        }
+
+        boolean sameMaps(Map<?,?>[] candidate, int count, int hash) {
+            if (this.hash != hash || this.maps.length != count) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (maps[i] != candidate[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        Object resolve(String key, KeyedProperties kp) {
+            Object val = values.get(key);
+            if (val == null) {
+                val = kp.findOverride(maps, key);
+                values.put(key, val);
+            }
+            return val;
+        }
+    }
     
     //
     // CLASS SERVICES
     //
     
+    /**
+     * Per-thread scratch array for collecting the applicable override 
+     * maps without allocation
+     */
+    protected static ThreadLocal<Map<?,?>[]> threadScratch = 
+        new ThreadLocal<Map<?,?>[]>() {
+        protected Map<?,?>[] initialValue() {
+            return new Map<?,?>[8];
+        }
+    };
+    
     /**
      * ThreadLocal (contextual) collection of pushed override maps
      */
@@ -19,7 +19,7 @@
  
  package org.archive.spring;
 
-import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,7 +32,10 @@ public interface OverlayContext {
      * (even if in fact no overlays were added) */
     public boolean haveOverlayNamesBeenSet();
     /** return a list of the names of overlay maps to consider */ 
-    ArrayList<String> getOverlayNames();
+    List<String> getOverlayNames();
     /** get the map corresponding to the overlay name */ 
     Map<String,Object> getOverlayMap(String name);
+    /** version of the contents of the maps supplied, which must advance
+     * with any change of them */
+    long getOverlaysVersion();
 }
@@ -28,4 +28,7 @@ import java.util.Map;
  */
 public interface OverlayMapsSource {
     public Map<String,Object> getOverlayMap(String name); 
+    /** version of the contents of all maps supplied; advanced by any
+     * change of them */
+    public long getOverlaysVersion();
 }
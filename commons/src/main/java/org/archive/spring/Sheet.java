@@ -80,7 +80,10 @@ public class Sheet implements BeanFactoryAware, BeanNameAware {
 
     /**
      * Return map of full bean-path (starting with a target bean-name)
-     * to the alternate value for that targeted property
+     * to the alternate value for that targeted property. Overrides 
+     * already resolved from the map are remembered (see 
+     * {@link KeyedProperties#get(String)}); make changes through the 
+     * SheetOverlaysManager, or tell it of them.
      */
     public Map<String, Object> getMap() {
         return map;
@@ -0,0 +1,69 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A BloomFilter whose state lives in files, so that it can be 
+ * checkpointed and restored by copying those files rather than by
+ * serializing the filter.
+ */
+public interface FileBackedBloomFilter extends BloomFilter, Closeable {
+    /**
+     * @return number of add()s which reported a novel item; unlike
+     * {@link #size()}, not limited to int range
+     */
+    public long getPopulation();
+
+    /**
+     * Estimate the chance that contains() of a never-added item now 
+     * returns true, given the current population.
+     * 
+     * @return estimated false-positive probability
+     */
+    public double getEstimatedFalsePositiveRate();
+
+    /**
+     * Flush all state to the backing file(s).
+     * 
+     * @throws IOException
+     */
+    public void sync() throws IOException;
+
+    /**
+     * Sync, then copy all backing state to the given location. 
+     * 
+     * @param destination file or directory, as implementation requires
+     * @throws IOException
+     */
+    public void copyTo(File destination) throws IOException;
+
+    /**
+     * Replace current state with that previously saved by 
+     * {@link #copyTo(File)}.
+     * 
+     * @param source file or directory previously written by copyTo()
+     * @throws IOException
+     */
+    public void restoreFrom(File source) throws IOException;
+}
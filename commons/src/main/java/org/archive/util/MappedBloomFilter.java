@@ -0,0 +1,486 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import st.ata.util.FPGenerator;
+
+/**
+ * BloomFilter whose bitfield lives in a memory-mapped file rather than on
+ * the Java heap.
+ *
+ * Bits are set with compare-and-swap on whole 64-bit words, through a 
+ * VarHandle view of the mapped buffers where the runtime offers one (Java
+ * 9 and later), else under striped locks, so concurrent add()s never lose
+ * each other's bits. A read-write lock keeps add()s and lookups off the
+ * mapping while close() or restoreFrom() replaces it. The population
+ * (count of add()s reporting a novel item) is kept in an AtomicLong and
+ * written into the file header on each {@link #sync()}.
+ *
+ * Because the bitfield is an ordinary file, checkpointing is an msync
+ * followed by a kernel-side file copy, and resuming is a remap of that
+ * copy -- no Java serialization, and no heap proportional to filter size.
+ * (A hard link alone would not do: unlike BDB's append-only log files, the
+ * bit file keeps changing in place after the checkpoint.)
+ *
+ * Sized, like BloomFilter64bit, so that <var>n</var> inserts give a
+ * false-positive rate of 2<sup>-<var>d</var></sup>, using <var>d</var>
+ * hash functions.
+ */
+public class MappedBloomFilter implements FileBackedBloomFilter {
+    private static final Logger LOGGER =
+        Logger.getLogger(MappedBloomFilter.class.getName());
+
+    protected static final long MAGIC = 0x4833426c6f6f6d31L; // "H3Bloom1"
+    /** bytes reserved at start of file for header; keeps bits page-aligned */
+    protected static final int HEADER_BYTES = 4096;
+    /** bytes per mapped region; a single mapping is limited to 2GB */
+    protected static final long CHUNK_BYTES = 1L << 30;
+    protected static final int WORDS_PER_CHUNK = (int) (CHUNK_BYTES / 8);
+
+    protected static final int HEADER_MAGIC = 0;
+    protected static final int HEADER_BITSIZE = 8;
+    protected static final int HEADER_HASHCOUNT = 16;
+    protected static final int HEADER_EXPECTED = 24;
+    protected static final int HEADER_POPULATION = 32;
+
+    protected final File file;
+    protected final long expectedInserts;
+    protected final int hashCount;
+    protected final long bitSize;
+
+    protected RandomAccessFile raf;
+    protected MappedByteBuffer[] chunks;
+    protected WordSetter setter;
+
+    protected final AtomicLong population = new AtomicLong(0);
+
+    /** held for reading to use the mapping, for writing to replace it */
+    protected final ReentrantReadWriteLock mappingLock = 
+        new ReentrantReadWriteLock();
+
+    /**
+     * Open (or create) a filter backed by the given file. An existing file
+     * must have been created with the same parameters.
+     *
+     * @param file backing file
+     * @param n the expected number of elements.
+     * @param d the number of hash functions; if the filter add not more
+     * than <code>n</code> elements, false positives will happen with
+     * probability 2<sup>-<var>d</var></sup>.
+     * @throws IOException
+     */
+    public MappedBloomFilter(File file, long n, int d) throws IOException {
+        this.file = file;
+        this.expectedInserts = n;
+        this.hashCount = d;
+        // optimal m for p=2^-d is n*d/ln(2); round up to whole 64-bit words
+        long bits = (long) Math.ceil(n * (double) d / Math.log(2));
+        this.bitSize = ((bits + 63) / 64) * 64;
+        open();
+    }
+
+    protected void open() throws IOException {
+        boolean existing = file.exists() && file.length() > 0;
+        raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if (existing) {
+            channel.read(header, 0);
+            header.flip();
+            if (header.getLong(HEADER_MAGIC) != MAGIC
+                    || header.getLong(HEADER_BITSIZE) != bitSize
+                    || header.getLong(HEADER_HASHCOUNT) != hashCount) {
+                raf.close();
+                throw new IOException(file + " is not a bloom file with "
+                        + "bitSize=" + bitSize + " hashCount=" + hashCount);
+            }
+            population.set(header.getLong(HEADER_POPULATION));
+        } else {
+            header.putLong(HEADER_MAGIC, MAGIC);
+            header.putLong(HEADER_BITSIZE, bitSize);
+            header.putLong(HEADER_HASHCOUNT, hashCount);
+            header.putLong(HEADER_EXPECTED, expectedInserts);
+            header.putLong(HEADER_POPULATION, 0);
+            channel.write(header, 0);
+            // extend to full size; sparse on most filesystems
+            raf.setLength(HEADER_BYTES + bitSize / 8);
+        }
+        long dataBytes = bitSize / 8;
+        int chunkCount = (int) ((dataBytes + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        chunks = new MappedByteBuffer[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            long start = i * CHUNK_BYTES;
+            long length = Math.min(CHUNK_BYTES, dataBytes - start);
+            chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_BYTES + start, length);
+            chunks[i].order(ByteOrder.nativeOrder());
+        }
+        setter = VarHandleWordSetter.isAvailable()
+            ? new VarHandleWordSetter(chunks)
+            : new StripedWordSetter(chunks);
+    }
+
+    /**
+     * Spread a 64-bit fingerprint (splitmix64 finalizer), so that the
+     * linear structure of Rabin fingerprints doesn't bias bit positions.
+     */
+    protected static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Fill the given array with the bit indexes for the given item, using
+     * double hashing off a single 64-bit fingerprint.
+     */
+    protected void bitIndexes(CharSequence s, long[] indexes) {
+        long fp = FPGenerator.std64.fp(s);
+        long h1 = mix(fp);
+        long h2 = mix(fp ^ 0x9e3779b97f4a7c15L) | 1L;
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = ((h1 + i * h2) & Long.MAX_VALUE) % bitSize;
+        }
+    }
+
+    public boolean contains(final CharSequence s) {
+        long[] indexes = new long[hashCount];
+        bitIndexes(s, indexes);
+        mappingLock.readLock().lock();
+        try {
+            WordSetter current = mapped();
+            for (long index : indexes) {
+                if ((current.getWord(index >>> 6) & (1L << (index & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    public boolean add(final CharSequence s) {
+        long[] indexes = new long[hashCount];
+        bitIndexes(s, indexes);
+        boolean changed = false;
+        mappingLock.readLock().lock();
+        try {
+            WordSetter current = mapped();
+            for (long index : indexes) {
+                changed |= current.setBit(index >>> 6, 1L << (index & 63));
+            }
+            if (changed) {
+                population.incrementAndGet();
+            }
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+        return changed;
+    }
+
+    public boolean getBit(long bitIndex) {
+        mappingLock.readLock().lock();
+        try {
+            return (mapped().getWord(bitIndex >>> 6) & (1L << (bitIndex & 63))) != 0;
+        } finally {
+            mappingLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return setter over the current mapping; caller holds the read lock
+     */
+    protected WordSetter mapped() {
+        WordSetter current = setter;
+        if (current == null) {
+            throw new IllegalStateException(file + " is closed");
+        }
+        return current;
+    }
+
+    /**
+     * @return number of items added, saturated at Integer.MAX_VALUE; see
+     * {@link #getPopulation()} for the full count
+     */
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, population.get());
+    }
+
+    /**
+     * @return number of add()s which reported a novel item
+     */
+    public long getPopulation() {
+        return population.get();
+    }
+
+    public long getSizeBytes() {
+        return bitSize / 8;
+    }
+
+    /**
+     * Standard estimate (1 - e<sup>-kn/m</sup>)<sup>k</sup>.
+     */
+    public double getEstimatedFalsePositiveRate() {
+        double fill = 1.0d - Math.exp(-(double) hashCount * population.get() / bitSize);
+        return Math.pow(fill, hashCount);
+    }
+
+    public long getExpectedInserts() {
+        return expectedInserts;
+    }
+
+    public long getHashCount() {
+        return hashCount;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Write the current population into the header and msync all mapped
+     * bits to disk.
+     *
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        ByteBuffer pop = ByteBuffer.allocate(8);
+        pop.putLong(0, population.get());
+        raf.getChannel().write(pop, HEADER_POPULATION);
+        raf.getChannel().force(false);
+    }
+
+    /**
+     * Sync, then copy the backing file to the given destination file (for
+     * example, inside a checkpoint directory). The copy is made by the
+     * kernel via FileChannel transfer, not through the heap.
+     *
+     * Adds racing with the copy may or may not be included; callers
+     * wanting an exact point-in-time image should hold off adds, as
+     * checkpointing does.
+     *
+     * @param destination file to create or overwrite
+     * @throws IOException
+     */
+    public synchronized void copyTo(File destination) throws IOException {
+        sync();
+        FileUtils.ensureWriteableDirectory(destination.getParentFile());
+        RandomAccessFile out = new RandomAccessFile(destination, "rw");
+        try {
+            out.setLength(0);
+            FileChannel src = raf.getChannel();
+            FileChannel dst = out.getChannel();
+            long size = src.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += src.transferTo(pos, size - pos, dst);
+            }
+            dst.force(false);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replace this filter's contents with those of a file previously
+     * written by {@link #copyTo(File)}, as when resuming from a checkpoint.
+     *
+     * @param source prior copy of a compatible bloom file
+     * @throws IOException
+     */
+    public synchronized void restoreFrom(File source) throws IOException {
+        mappingLock.writeLock().lock();
+        try {
+            close();
+            Files.copy(source.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            open();
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        mappingLock.writeLock().lock();
+        try {
+            if (raf == null) {
+                return;
+            }
+            try {
+                sync();
+            } finally {
+                chunks = null;
+                setter = null;
+                raf.close();
+                raf = null;
+            }
+        } finally {
+            mappingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Strategy for atomically OR-ing bits into a word of the mapped
+     * bitfield.
+     */
+    protected static abstract class WordSetter {
+        protected final MappedByteBuffer[] chunks;
+        protected WordSetter(MappedByteBuffer[] chunks) {
+            this.chunks = chunks;
+        }
+        /** @return true if any bit of mask was newly set */
+        abstract boolean setBit(long wordIndex, long mask);
+        abstract long getWord(long wordIndex);
+    }
+
+    /**
+     * Lock-free setter doing CAS on the mapped buffers through a 
+     * byteBufferViewVarHandle. That API is Java 9+, and so is looked up 
+     * reflectively, its compareAndSet and getVolatile taken as 
+     * MethodHandles; if unavailable, StripedWordSetter is used instead.
+     */
+    protected static class VarHandleWordSetter extends WordSetter {
+        /** (ByteBuffer,int,long,long)boolean */
+        protected static final MethodHandle COMPARE_AND_SET;
+        /** (ByteBuffer,int)long */
+        protected static final MethodHandle GET_VOLATILE;
+        static {
+            MethodHandle cas = null;
+            MethodHandle get = null;
+            try {
+                Method view = MethodHandles.class.getMethod(
+                        "byteBufferViewVarHandle", Class.class, ByteOrder.class);
+                Object varHandle = view.invoke(null, long[].class,
+                        ByteOrder.nativeOrder());
+                Class<?> modeClass = 
+                    Class.forName("java.lang.invoke.VarHandle$AccessMode");
+                Method toMethodHandle = 
+                    Class.forName("java.lang.invoke.VarHandle").getMethod(
+                            "toMethodHandle", modeClass);
+                cas = (MethodHandle) toMethodHandle.invoke(varHandle,
+                        accessMode(modeClass, "COMPARE_AND_SET"));
+                get = (MethodHandle) toMethodHandle.invoke(varHandle,
+                        accessMode(modeClass, "GET_VOLATILE"));
+            } catch (Throwable t) {
+                LOGGER.log(Level.INFO, "VarHandles unavailable; using striped locks for bloom bits", t);
+                cas = null;
+                get = null;
+            }
+            COMPARE_AND_SET = cas;
+            GET_VOLATILE = get;
+        }
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        protected static Object accessMode(Class<?> modeClass, String name) {
+            return Enum.valueOf((Class) modeClass, name);
+        }
+        static boolean isAvailable() {
+            return COMPARE_AND_SET != null && GET_VOLATILE != null;
+        }
+
+        protected VarHandleWordSetter(MappedByteBuffer[] chunks) {
+            super(chunks);
+        }
+
+        boolean setBit(long wordIndex, long mask) {
+            ByteBuffer chunk = chunks[(int) (wordIndex / WORDS_PER_CHUNK)];
+            int pos = (int) (wordIndex % WORDS_PER_CHUNK) * 8;
+            try {
+                while (true) {
+                    long current = (long) GET_VOLATILE.invokeExact(chunk, pos);
+                    if ((current & mask) == mask) {
+                        return false;
+                    }
+                    if ((boolean) COMPARE_AND_SET.invokeExact(chunk, pos,
+                            current, current | mask)) {
+                        return true;
+                    }
+                }
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+
+        long getWord(long wordIndex) {
+            ByteBuffer chunk = chunks[(int) (wordIndex / WORDS_PER_CHUNK)];
+            int pos = (int) (wordIndex % WORDS_PER_CHUNK) * 8;
+            try {
+                return (long) GET_VOLATILE.invokeExact(chunk, pos);
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /**
+     * Fallback setter guarding each word's read-modify-write with one of
+     * a fixed set of lock stripes.
+     */
+    protected static class StripedWordSetter extends WordSetter {
+        protected static final int STRIPES = 1024;
+        protected final Object[] locks = new Object[STRIPES];
+
+        protected StripedWordSetter(MappedByteBuffer[] chunks) {
+            super(chunks);
+            for (int i = 0; i < STRIPES; i++) {
+                locks[i] = new Object();
+            }
+        }
+
+        boolean setBit(long wordIndex, long mask) {
+            MappedByteBuffer chunk = chunks[(int) (wordIndex / WORDS_PER_CHUNK)];
+            int pos = (int) (wordIndex % WORDS_PER_CHUNK) * 8;
+            synchronized (locks[(int) (wordIndex % STRIPES)]) {
+                long current = chunk.getLong(pos);
+                if ((current & mask) == mask) {
+                    return false;
+                }
+                chunk.putLong(pos, current | mask);
+                return true;
+            }
+        }
+
+        long getWord(long wordIndex) {
+            // bits are only ever set, so an unlocked read can at worst miss
+            // a bit being set concurrently
+            MappedByteBuffer chunk = chunks[(int) (wordIndex / WORDS_PER_CHUNK)];
+            return chunk.getLong((int) (wordIndex % WORDS_PER_CHUNK) * 8);
+        }
+    }
+}
@@ -16,25 +16,28 @@
  *  See the License for the specific language governing permissions and
  *  limitations under the License.
  */
-
 package org.archive.util;
 
 import java.io.Closeable;
 import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Iterator;
-import java.util.Map.Entry;
 import java.util.Set;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.archive.bdb.KryoBinding;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
 import com.sleepycat.bind.EntryBinding;
 import com.sleepycat.bind.serial.StoredClassCatalog;
 import com.sleepycat.bind.tuple.TupleBinding;
@@ -47,16 +50,20 @@ import com.sleepycat.je.Environment;
 /**
  * A BDB JE backed object cache. 
  * 
- * Soft references to previously-instantiated objects are held so that
- * unless/until an object is garbage collected, subsequent get()s will
- * return the exact same object (avoiding redundant creation or disagreement
- * about canonical object state). 
- * <p>
- * The backing disk is only guaranteed to be up-to-date after a flush 
- * of all dirty values to disk, as can be forced by sync().
- * <p>
- * 
+ * Up to maxInMemory recently- and frequently-used objects are held in 
+ * memory, chosen by W-TinyLFU (see WTinyLfuCache). Objects evicted from
+ * that budget are still tracked by weak reference, so that unless/until
+ * an object is garbage collected, subsequent get()s will return the exact
+ * same object (avoiding redundant creation or disagreement about
+ * canonical object state). Unlike the soft references formerly used, 
+ * this keeps the memory held predictable and independent of heap 
+ * pressure.
  * <p>
+ * Objects marked dirty are written back to disk in batches by a 
+ * background thread, every writeBackIntervalMs or whenever 
+ * writeBackThreshold are pending. The backing disk is only guaranteed
+ * to be up-to-date after a flush of all dirty values to disk, as can be
+ * forced by sync().
  * 
  * @author John Erik Halse
  * @author stack
@@ -71,18 +78,55 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
     private static final Logger logger =
         Logger.getLogger(ObjectIdentityBdbManualCache.class.getName());
 
+    /** default in-memory budget, in entries */
+    public static final int DEFAULT_MAX_IN_MEMORY = 100000;
+
+    /** shared by all instances for background write-back */
+    protected static final ScheduledExecutorService WRITE_BACK = 
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ObjectIdentityBdbManualCache-writeback");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /** weak reference remembering its key, for expunging */
+    protected static class KeyedWeakReference<V> extends WeakReference<V> {
+        final String key;
+        KeyedWeakReference(String key, V value, ReferenceQueue<? super V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+
     /** The BDB JE database used for this instance. */
     protected transient Database db;
 
-    /** in-memory map of new/recent/still-referenced-elsewhere instances */
-    protected transient ConcurrentMap<String,V> memMap;
+    /** in-memory budgeted cache of new/recent/frequent instances */
+    protected transient WTinyLfuCache<String,V> memMap;
+
+    /** instances evicted from memMap, perhaps still referenced elsewhere */
+    protected transient ConcurrentHashMap<String,KeyedWeakReference<V>> evicted;
+    protected transient ReferenceQueue<V> evictedQueue;
 
     /** The Collection view of the BDB JE database used for this instance. */
     protected transient StoredSortedMap<String, V> diskMap;
 
-    protected transient ConcurrentMap<String,V> dirtyItems;
+    /** instances that must be written back to diskMap */
+    protected transient ConcurrentHashMap<String,V> dirtyItems;
+
+    /** serialize creation/reload per key, preserving identity */
+    protected transient Object[] missLocks;
+
+    protected transient ScheduledFuture<?> writeBackTask;
+    protected transient AtomicBoolean writeBackPending;
     
     protected AtomicLong count;
+
+    protected int maxInMemory = DEFAULT_MAX_IN_MEMORY;
+    protected long writeBackIntervalMs = 5000;
+    protected int writeBackThreshold = 10000;
     
     //
     // USAGE STATS
@@ -97,8 +141,12 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
     private AtomicLong supplierUsed = new AtomicLong(0);
     /** count of {@link #sync()} use */
     transient private AtomicLong useStatsSyncUsed = new AtomicLong(0);
-    /** Count of times Supplier was used for new object */
+    /** Count of evictions from the in-memory budget */
     private AtomicLong evictions = new AtomicLong(0);
+    /** Count of evicted objects found still live, and readmitted */
+    private AtomicLong rescues = new AtomicLong(0);
+    /** Count of dirty objects written back to disk */
+    private AtomicLong writes = new AtomicLong(0);
 
     /**
      * Constructor. You must call
@@ -109,18 +157,39 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
      */
     public ObjectIdentityBdbManualCache() {
         super();
-        dirtyItems = CacheBuilder.newBuilder()
-                .maximumSize(10000)
-                .expireAfterWrite(5, TimeUnit.MINUTES)
-                .removalListener(new RemovalListener<String, V>() {
-                    @Override
-                    public void onRemoval(RemovalNotification<String, V> stringVRemovalNotification) {
-                        evictions.incrementAndGet();
-                        diskMap.put(stringVRemovalNotification.getKey(), stringVRemovalNotification.getValue());
-                    }
-                })
-                .<String, V>build()
-                .asMap();
+    }
+
+    public int getMaxInMemory() {
+        return maxInMemory;
+    }
+    /**
+     * Maximum number of objects held in memory (beyond those still 
+     * referenced elsewhere). Takes effect at initialize().
+     */
+    public void setMaxInMemory(int maxInMemory) {
+        this.maxInMemory = maxInMemory;
+    }
+
+    public long getWriteBackIntervalMs() {
+        return writeBackIntervalMs;
+    }
+    /**
+     * Interval between background write-backs of dirty objects. Takes
+     * effect at initialize().
+     */
+    public void setWriteBackIntervalMs(long writeBackIntervalMs) {
+        this.writeBackIntervalMs = writeBackIntervalMs;
+    }
+
+    public int getWriteBackThreshold() {
+        return writeBackThreshold;
+    }
+    /**
+     * Number of pending dirty objects that triggers an immediate 
+     * background write-back.
+     */
+    public void setWriteBackThreshold(int writeBackThreshold) {
+        this.writeBackThreshold = writeBackThreshold;
     }
     
     /**
@@ -136,19 +205,32 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
     public void initialize(final Environment env, String dbName,
             final Class valueClass, final StoredClassCatalog classCatalog)
     throws DatabaseException {
-        // TODO: tune capacity for actual threads, expected size of key caches?
-        this.memMap = CacheBuilder.newBuilder()
-                .concurrencyLevel(64)
-                .initialCapacity(8192)
-                .softValues()
-                .<String, V>build()
-                .asMap();
+        this.evicted = new ConcurrentHashMap<String,KeyedWeakReference<V>>();
+        this.evictedQueue = new ReferenceQueue<V>();
+        this.memMap = new WTinyLfuCache<String,V>(maxInMemory,
+                new WTinyLfuCache.EvictionListener<String,V>() {
+                    public void evicted(String key, V value) {
+                        evictions.incrementAndGet();
+                        evicted.put(key, new KeyedWeakReference<V>(
+                                key, value, evictedQueue));
+                    }
+                });
+        this.dirtyItems = new ConcurrentHashMap<String,V>();
+        this.missLocks = new Object[64];
+        for (int i = 0; i < missLocks.length; i++) {
+            missLocks[i] = new Object();
+        }
+        this.writeBackPending = new AtomicBoolean(false);
         this.db = openDatabase(env, dbName);
         this.diskMap = createDiskMap(this.db, classCatalog, valueClass);
-        // keep a record of items that must be persisted; auto-persist if 
-        // unchanged after 5 minutes, or more than 10K would collect
-
         this.count = new AtomicLong(diskMap.size());
+        this.writeBackTask = WRITE_BACK.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        writeBack();
+                    }
+                }, writeBackIntervalMs, writeBackIntervalMs, 
+                TimeUnit.MILLISECONDS);
     }
 
     @SuppressWarnings("unchecked")
@@ -184,6 +266,9 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
         // Close out my bdb db.
         if (this.db != null) {
             try {
+                if (writeBackTask != null) {
+                    writeBackTask.cancel(false);
+                }
                 sync(); 
                 this.db.sync();
                 this.db.close();
@@ -225,39 +310,68 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
             val.setIdentityCache(this); 
             return val;
         }
-        val = diskMap.get(key);
-        V prevVal; 
-        if(val == null) {
-            // never yet created, consider creating
-            if(supplierOrNull==null) {
-                return null;
+        expungeStaleEvicted();
+        synchronized (missLocks[(key.hashCode() & 0x7fffffff) % missLocks.length]) {
+            val = memMap.peek(key);
+            if (val == null) {
+                // evicted from memory, but perhaps still in use elsewhere
+                val = getEvicted(key);
+                if (val != null) {
+                    rescues.incrementAndGet();
+                }
             }
-            val = supplierOrNull.get();
-            supplierUsed.incrementAndGet();
-            // putting initial value directly into diskMap
-            // (rather than just the memMap until page-out)
-            // ensures diskMap.keySet() provides complete view
-            prevVal = diskMap.putIfAbsent(key, val); 
-            if(prevVal!=null) {
-                // we lost a race; discard our local creation in favor of disk version
-                diskHit.incrementAndGet();
+            if (val == null) {
+                val = diskMap.get(key);
+                if (val == null) {
+                    // never yet created, consider creating
+                    if (supplierOrNull == null) {
+                        return null;
+                    }
+                    val = supplierOrNull.get();
+                    supplierUsed.incrementAndGet();
+                    // putting initial value directly into diskMap
+                    // (rather than just the memMap until page-out)
+                    // ensures diskMap.keySet() provides complete view
+                    V prevVal = diskMap.putIfAbsent(key, val); 
+                    if (prevVal != null) {
+                        // we lost a race; discard our local creation in favor of disk version
+                        diskHit.incrementAndGet();
+                        val = prevVal;
+                    } else {
+                        // we uniquely added a new key
+                        count.incrementAndGet();
+                    }
+                } else {
+                    diskHit.incrementAndGet();
+                }
+            }
+            V prevVal = memMap.putIfAbsent(key, val);
+            if (prevVal != null) {
                 val = prevVal;
-            } else {
-                // we uniquely added a new key
-                count.incrementAndGet();
             }
-        } else {
-            diskHit.incrementAndGet();
-        }
-        
-        prevVal = memMap.putIfAbsent(key, val); // fill memMap or lose race gracefully
-        if(prevVal != null) {
-            val = prevVal; 
+            KeyedWeakReference<V> ref = evicted.get(key);
+            if (ref != null && ref.get() == val) {
+                evicted.remove(key, ref);
+            }
         }
         val.setIdentityCache(this); 
         return val; 
     }
 
+    protected V getEvicted(String key) {
+        KeyedWeakReference<V> ref = evicted.get(key);
+        return (ref == null) ? null : ref.get();
+    }
+
+    /** forget evicted objects since collected */
+    protected void expungeStaleEvicted() {
+        Reference<? extends V> ref;
+        while ((ref = evictedQueue.poll()) != null) {
+            KeyedWeakReference<V> keyed = (KeyedWeakReference<V>) ref;
+            evicted.remove(keyed.key, keyed);
+        }
+    }
+
     /* (non-Javadoc)
      * @see org.archive.util.ObjectIdentityCache#keySet()
      */
@@ -274,7 +388,7 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
         }
     }
     
-    protected String composeCacheSummary() {
+    public String composeCacheSummary() {
         long totalHits = cacheHit.get() + diskHit.get();
         if (totalHits < 1) {
             return "";
@@ -291,21 +405,45 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
           .append(countOfGets.get())
           .append(" memHits=")
           .append(cacheHit.get())
+          .append(" rescues=")
+          .append(rescues.get())
           .append(" diskHits=")
           .append(diskHit.get())
           .append(" supplieds=")
           .append(supplierUsed.get())
           .append(" inMemItems=")
           .append(memMap.size())
+          .append("/")
+          .append(memMap.getMaxSize())
+          .append(" evictedLive=")
+          .append(evicted.size())
           .append(" dirtyItems=")
           .append(dirtyItems.size())
           .append(" evictions=")
           .append(evictions.get())
+          .append(" writes=")
+          .append(writes.get())
           .append(" syncs=")
           .append(useStatsSyncUsed.get());
         return sb.toString();
     }
 
+    public long getHitCount() {
+        return cacheHit.get() + rescues.get();
+    }
+
+    public long getMissCount() {
+        return diskHit.get() + supplierUsed.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public int getInMemoryCount() {
+        return memMap.size();
+    }
+
     /* (non-Javadoc)
      * @see org.archive.util.ObjectIdentityCache#size()
      */
@@ -327,6 +465,45 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
         }
         return name;
     }
+
+    /**
+     * Write all currently dirty objects to the backing disk map. An object
+     * dirtied again while being written is written again next time.
+     * 
+     * @return number of objects written
+     */
+    protected int flushDirty() {
+        int written = 0;
+        Iterator<String> iter = dirtyItems.keySet().iterator();
+        while (iter.hasNext()) {
+            String key = iter.next();
+            V val = dirtyItems.remove(key);
+            if (val != null) {
+                diskMap.put(key, val);
+                written++;
+            }
+        }
+        writes.addAndGet(written);
+        return written;
+    }
+
+    /**
+     * Background write-back of dirty objects.
+     */
+    protected void writeBack() {
+        writeBackPending.set(false);
+        try {
+            synchronized (this) {
+                if (db == null) {
+                    return;
+                }
+                flushDirty();
+            }
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "problem writing back " 
+                    + getDatabaseName(), e);
+        }
+    }
     
     /**
      * Sync all in-memory map entries to backing disk store.
@@ -343,12 +520,7 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
                 ", mem " + this.memMap.size());
         }
         
-        Iterator<Entry<String, V>> iter = dirtyItems.entrySet().iterator();
-        while(iter.hasNext()) {
-            Entry<String, V> entry = iter.next(); 
-            iter.remove();
-            diskMap.put(entry.getKey(), entry.getValue());
-        }
+        flushDirty();
         
         try {
             this.db.sync();
@@ -367,16 +539,22 @@ implements ObjectIdentityCache<V>, Closeable, Serializable {
 
     @Override
     public void dirtyKey(String key) {
-       V val = memMap.get(key);
+       V val = memMap.peek(key);
+       if (val == null) {
+           val = getEvicted(key);
+       }
        if(val==null) {
            logger.severe("dirty key not in memory should be impossible");
+           return;
        }
        dirtyItems.put(key,val); 
+       if (dirtyItems.size() >= writeBackThreshold
+               && writeBackPending.compareAndSet(false, true)) {
+           WRITE_BACK.execute(new Runnable() {
+               public void run() {
+                   writeBack();
+               }
+           });
+       }
     }
-
-    /*@Override
-    public void onRemoval(RemovalNotification<String, V> stringVRemovalNotification) {
-        evictions.incrementAndGet();
-        diskMap.put(stringVRemovalNotification.getKey(), stringVRemovalNotification.getValue());
-    }*/
 }
@@ -0,0 +1,251 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Scalable Bloom filter (after Almeida et al., "Scalable Bloom Filters",
+ * 2007): a chain of {@link MappedBloomFilter} slices, each twice the
+ * capacity of the last and with one more hash function (so half the
+ * false-positive rate). When the newest slice reaches its expected
+ * inserts, a new slice is added rather than letting the false-positive
+ * rate climb.
+ *
+ * With an initial slice sized for 2<sup>-<var>d</var></sup>, the
+ * compound false-positive rate stays below 2<sup>-(<var>d</var>-1)</sup>
+ * however many slices are added, so crawl size needn't be guessed up
+ * front.
+ *
+ * Slices live as numbered files in a single directory; an existing
+ * directory's slices are reopened.
+ */
+public class ScalableBloomFilter implements FileBackedBloomFilter {
+    private static final Logger LOGGER =
+        Logger.getLogger(ScalableBloomFilter.class.getName());
+
+    /** capacity multiplier from each slice to the next */
+    protected static final int GROWTH = 2;
+
+    protected final File dir;
+    protected final long initialExpectedInserts;
+    protected final int initialHashCount;
+
+    /** all slices, oldest first; replaced wholesale when growing */
+    protected volatile MappedBloomFilter[] slices;
+
+    /**
+     * @param dir directory to hold slice files
+     * @param n expected inserts for the first slice
+     * @param d hash functions for the first slice; first slice has a
+     * false-positive rate of 2<sup>-<var>d</var></sup> when full
+     * @throws IOException
+     */
+    public ScalableBloomFilter(File dir, long n, int d) throws IOException {
+        this.dir = dir;
+        this.initialExpectedInserts = n;
+        this.initialHashCount = d;
+        open();
+    }
+
+    protected void open() throws IOException {
+        FileUtils.ensureWriteableDirectory(dir);
+        int count = 0;
+        while (sliceFile(count).exists()) {
+            count++;
+        }
+        MappedBloomFilter[] opened = new MappedBloomFilter[Math.max(count, 1)];
+        for (int i = 0; i < opened.length; i++) {
+            opened[i] = openSlice(i);
+        }
+        slices = opened;
+    }
+
+    protected File sliceFile(int index) {
+        return new File(dir, String.format("slice-%05d.bloom", index));
+    }
+
+    protected MappedBloomFilter openSlice(int index) throws IOException {
+        long n = initialExpectedInserts;
+        for (int i = 0; i < index; i++) {
+            n *= GROWTH;
+        }
+        return new MappedBloomFilter(sliceFile(index), n, initialHashCount + index);
+    }
+
+    public boolean contains(CharSequence s) {
+        MappedBloomFilter[] current = slices;
+        for (int i = current.length - 1; i >= 0; i--) {
+            if (current[i].contains(s)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean add(CharSequence s) {
+        MappedBloomFilter[] current = slices;
+        // check older slices; newest is checked by its own add()
+        for (int i = current.length - 2; i >= 0; i--) {
+            if (current[i].contains(s)) {
+                return false;
+            }
+        }
+        MappedBloomFilter newest = current[current.length - 1];
+        boolean added = newest.add(s);
+        if (added && newest.getPopulation() >= newest.getExpectedInserts()) {
+            grow(current);
+        }
+        return added;
+    }
+
+    /**
+     * Add a new slice, unless another thread already has.
+     */
+    protected synchronized void grow(MappedBloomFilter[] seen) {
+        if (slices != seen) {
+            return;
+        }
+        MappedBloomFilter[] grown = new MappedBloomFilter[seen.length + 1];
+        System.arraycopy(seen, 0, grown, 0, seen.length);
+        try {
+            grown[seen.length] = openSlice(seen.length);
+        } catch (IOException e) {
+            throw new RuntimeException("unable to add bloom slice", e);
+        }
+        slices = grown;
+        LOGGER.info("added bloom slice " + seen.length + " with capacity "
+                + grown[seen.length].getExpectedInserts()
+                + "; effective false-positive rate now "
+                + getEstimatedFalsePositiveRate());
+    }
+
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, getPopulation());
+    }
+
+    public long getPopulation() {
+        long total = 0;
+        for (MappedBloomFilter slice : slices) {
+            total += slice.getPopulation();
+        }
+        return total;
+    }
+
+    public int getSliceCount() {
+        return slices.length;
+    }
+
+    /**
+     * Compound rate: an absent item is a false positive if any slice
+     * reports it present.
+     */
+    public double getEstimatedFalsePositiveRate() {
+        double allNegative = 1.0d;
+        for (MappedBloomFilter slice : slices) {
+            allNegative *= 1.0d - slice.getEstimatedFalsePositiveRate();
+        }
+        return 1.0d - allNegative;
+    }
+
+    public long getSizeBytes() {
+        long total = 0;
+        for (MappedBloomFilter slice : slices) {
+            total += slice.getSizeBytes();
+        }
+        return total;
+    }
+
+    /**
+     * @return total capacity of all current slices
+     */
+    public long getExpectedInserts() {
+        long total = 0;
+        for (MappedBloomFilter slice : slices) {
+            total += slice.getExpectedInserts();
+        }
+        return total;
+    }
+
+    /**
+     * @return hash count of the newest slice
+     */
+    public long getHashCount() {
+        MappedBloomFilter[] current = slices;
+        return current[current.length - 1].getHashCount();
+    }
+
+    /**
+     * @param bitIndex index into the concatenation of all slices' bits
+     */
+    public boolean getBit(long bitIndex) {
+        for (MappedBloomFilter slice : slices) {
+            long sliceBits = slice.getSizeBytes() * 8;
+            if (bitIndex < sliceBits) {
+                return slice.getBit(bitIndex);
+            }
+            bitIndex -= sliceBits;
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    public synchronized void sync() throws IOException {
+        for (MappedBloomFilter slice : slices) {
+            slice.sync();
+        }
+    }
+
+    /**
+     * @param destination directory to receive a copy of each slice file
+     */
+    public synchronized void copyTo(File destination) throws IOException {
+        FileUtils.ensureWriteableDirectory(destination);
+        MappedBloomFilter[] current = slices;
+        for (int i = 0; i < current.length; i++) {
+            current[i].copyTo(new File(destination, sliceFile(i).getName()));
+        }
+    }
+
+    /**
+     * @param source directory previously written by copyTo()
+     */
+    public synchronized void restoreFrom(File source) throws IOException {
+        close();
+        for (int i = 0; sliceFile(i).exists(); i++) {
+            sliceFile(i).delete();
+        }
+        for (int i = 0; ; i++) {
+            File saved = new File(source, sliceFile(i).getName());
+            if (!saved.exists()) {
+                break;
+            }
+            java.nio.file.Files.copy(saved.toPath(), sliceFile(i).toPath());
+        }
+        open();
+    }
+
+    public synchronized void close() throws IOException {
+        for (MappedBloomFilter slice : slices) {
+            slice.close();
+        }
+    }
+}
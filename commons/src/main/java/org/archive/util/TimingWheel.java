@@ -0,0 +1,384 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+
+/**
+ * Hierarchical timing wheel: holds items until a scheduled time, with
+ * constant-time scheduling and expiry regardless of how many items are
+ * waiting.
+ *
+ * <p>Time is divided into ticks of tickMillis. Level 0 has one slot per
+ * tick for the next 2^slotBits ticks; each higher level has slots spanning
+ * a whole revolution of the level below, and its slots are redistributed
+ * ('cascaded') into lower levels as their time approaches. Items due
+ * beyond the horizon of the top level, or scheduled while maxInMemory items
+ * are already held, go to a far-future tier -- a (typically disk-backed)
+ * SortedMap permitting duplicate keys -- from which they are brought back
+ * in as they come within the horizon and room allows.
+ *
+ * <p>Items are never released before their scheduled time, but may be
+ * released up to one tick after it. Calls to {@link #advance} within a
+ * tick already processed return immediately without locking, so expiry
+ * work is naturally batched per tick.
+ *
+ * @param <T> item type
+ */
+public class TimingWheel<T> implements Iterable<T> {
+
+    /** a scheduled item; chained within a slot */
+    protected static class Entry<T> {
+        final long time;
+        final long tick;
+        final T item;
+        Entry<T> next;
+        Entry(long time, long tick, T item) {
+            this.time = time;
+            this.tick = tick;
+            this.item = item;
+        }
+    }
+
+    protected final long tickMillis;
+    protected final int slotBits;
+    protected final int levels;
+    protected final long slotMask;
+    /** ticks from now beyond which items go to far tier */
+    protected final long horizonTicks;
+    protected final int maxInMemory;
+
+    protected final Entry<T>[][] slots;
+    protected final int[] levelCounts;
+    protected int memoryCount = 0;
+
+    /** last tick whose items have been released */
+    protected volatile long currentTick;
+
+    protected final SortedMap<Long,T> farTier;
+    protected long farCount;
+    /** scheduled time of earliest far-tier item, or Long.MAX_VALUE */
+    protected volatile long farNextTime = Long.MAX_VALUE;
+
+    /**
+     * @param tickMillis duration of one tick (the release granularity)
+     * @param slotBits log2 of the number of slots per level
+     * @param levels number of levels; the in-memory horizon is
+     * tickMillis * 2^(slotBits*levels)
+     * @param maxInMemory maximum items held in memory
+     * @param farTier map (allowing duplicate keys) for items beyond the
+     * horizon or memory limit; may already hold items, as on resume
+     * @param now current time in ms
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, int slotBits, int levels,
+            int maxInMemory, SortedMap<Long,T> farTier, long now) {
+        if (slotBits * levels > 62) {
+            throw new IllegalArgumentException("slotBits*levels too large");
+        }
+        this.tickMillis = tickMillis;
+        this.slotBits = slotBits;
+        this.levels = levels;
+        this.slotMask = (1L << slotBits) - 1;
+        this.horizonTicks = 1L << (slotBits * levels);
+        this.maxInMemory = maxInMemory;
+        this.slots = new Entry[levels][1 << slotBits];
+        this.levelCounts = new int[levels];
+        this.currentTick = now / tickMillis;
+        this.farTier = farTier;
+        if (!farTier.isEmpty()) {
+            this.farCount = farTier.size();
+            this.farNextTime = farTier.firstKey();
+        }
+    }
+
+    /**
+     * Schedule the given item for release at the given time.
+     *
+     * @param time time in ms at or after which item should be released
+     * @param item item to schedule
+     */
+    public synchronized void schedule(long time, T item) {
+        // round up: never release early
+        long tick = (time + tickMillis - 1) / tickMillis;
+        if (tick <= currentTick) {
+            tick = currentTick + 1;
+        }
+        if (tick - currentTick >= horizonTicks || memoryCount >= maxInMemory) {
+            toFarTier(time, item);
+            return;
+        }
+        insert(new Entry<T>(time, tick, item));
+    }
+
+    protected void toFarTier(long time, T item) {
+        farTier.put(time, item);
+        farCount++;
+        if (time < farNextTime) {
+            farNextTime = time;
+        }
+    }
+
+    /**
+     * Place entry in the slot of the lowest level whose span covers its
+     * distance from the current tick.
+     */
+    protected void insert(Entry<T> e) {
+        long delta = e.tick - currentTick;
+        int level = 0;
+        while (level < levels - 1
+                && delta >= (1L << (slotBits * (level + 1)))) {
+            level++;
+        }
+        int index = (int) ((e.tick >>> (slotBits * level)) & slotMask);
+        e.next = slots[level][index];
+        slots[level][index] = e;
+        levelCounts[level]++;
+        memoryCount++;
+    }
+
+    /**
+     * Release all items whose time has come, in batch.
+     *
+     * @param now current time in ms
+     * @param released collection to receive released items
+     * @return number of items released
+     */
+    public int advance(long now, Collection<? super T> released) {
+        long target = now / tickMillis;
+        if (target <= currentTick && farNextTime > now) {
+            // nothing new since last call within this tick
+            return 0;
+        }
+        synchronized (this) {
+            int count = 0;
+            while (currentTick < target) {
+                if (memoryCount == 0) {
+                    currentTick = target;
+                    break;
+                }
+                int lowest = 0;
+                while (levelCounts[lowest] == 0) {
+                    lowest++;
+                }
+                if (lowest > 0) {
+                    // skip empty ticks up to the next cascade of lowest level
+                    long skipTo = currentTick
+                        | ((1L << (slotBits * lowest)) - 1);
+                    if (skipTo > currentTick) {
+                        currentTick = Math.min(skipTo, target);
+                        continue;
+                    }
+                }
+                long tick = ++currentTick;
+                for (int level = 1; level < levels; level++) {
+                    if ((tick & ((1L << (slotBits * level)) - 1)) != 0) {
+                        break;
+                    }
+                    cascade(level,
+                            (int) ((tick >>> (slotBits * level)) & slotMask));
+                }
+                count += expire((int) (tick & slotMask), released);
+            }
+            if (farNextTime <= now || (memoryCount < maxInMemory 
+                    && farNextTime < (currentTick + horizonTicks - 1) * tickMillis)) {
+                count += fromFarTier(now, released);
+            }
+            return count;
+        }
+    }
+
+    protected void cascade(int level, int index) {
+        Entry<T> e = slots[level][index];
+        slots[level][index] = null;
+        while (e != null) {
+            Entry<T> next = e.next;
+            levelCounts[level]--;
+            memoryCount--;
+            insert(e);
+            e = next;
+        }
+    }
+
+    protected int expire(int index, Collection<? super T> released) {
+        Entry<T> e = slots[0][index];
+        slots[0][index] = null;
+        int count = 0;
+        while (e != null) {
+            released.add(e.item);
+            count++;
+            e = e.next;
+        }
+        levelCounts[0] -= count;
+        memoryCount -= count;
+        return count;
+    }
+
+    /**
+     * Release due far-tier items, and bring in those now within the
+     * horizon as memory allows.
+     */
+    protected int fromFarTier(long now, Collection<? super T> released) {
+        int count = 0;
+        long limit = (currentTick + horizonTicks - 1) * tickMillis;
+        Iterator<java.util.Map.Entry<Long,T>> iter =
+            farTier.headMap(limit).entrySet().iterator();
+        while (iter.hasNext()) {
+            java.util.Map.Entry<Long,T> entry = iter.next();
+            long time = entry.getKey();
+            if (time <= now) {
+                released.add(entry.getValue());
+                count++;
+            } else if (memoryCount < maxInMemory) {
+                insert(new Entry<T>(time,
+                        Math.max((time + tickMillis - 1) / tickMillis,
+                                currentTick + 1),
+                        entry.getValue()));
+            } else {
+                // no room; rest remain on far tier
+                break;
+            }
+            iter.remove();
+            farCount--;
+        }
+        farNextTime = farTier.isEmpty() ? Long.MAX_VALUE : farTier.firstKey();
+        return count;
+    }
+
+    /**
+     * @return earliest time (in ms) at which an item may be released, or
+     * Long.MAX_VALUE if none are scheduled. Exact for items within the
+     * next revolution of level 0, otherwise a lower bound.
+     */
+    public synchronized long nextReleaseTime() {
+        long memoryNext = Long.MAX_VALUE;
+        if (memoryCount > 0) {
+            int lowest = 0;
+            while (levelCounts[lowest] == 0) {
+                lowest++;
+            }
+            if (lowest == 0) {
+                for (long tick = currentTick + 1; ; tick++) {
+                    if (slots[0][(int) (tick & slotMask)] != null) {
+                        memoryNext = tick * tickMillis;
+                        break;
+                    }
+                }
+            } else {
+                long span = 1L << (slotBits * lowest);
+                memoryNext = ((currentTick / span) + 1) * span * tickMillis;
+            }
+        }
+        return Math.min(memoryNext, farNextTime);
+    }
+
+    /**
+     * Move every in-memory item to the far tier, as before a checkpoint
+     * when the far tier is persistent. Items return to memory as usual.
+     */
+    public synchronized void spillAll() {
+        for (int level = 0; level < levels; level++) {
+            for (int index = 0; index < slots[level].length; index++) {
+                for (Entry<T> e = slots[level][index]; e != null; e = e.next) {
+                    toFarTier(e.time, e.item);
+                }
+                slots[level][index] = null;
+            }
+            levelCounts[level] = 0;
+        }
+        memoryCount = 0;
+    }
+
+    /**
+     * Remove all items, whatever their scheduled time, into the given
+     * collection.
+     *
+     * @return number of items removed
+     */
+    public synchronized int drainAll(Collection<? super T> released) {
+        int count = 0;
+        for (int level = 0; level < levels; level++) {
+            for (int index = 0; index < slots[level].length; index++) {
+                for (Entry<T> e = slots[level][index]; e != null; e = e.next) {
+                    released.add(e.item);
+                    count++;
+                }
+                slots[level][index] = null;
+            }
+            levelCounts[level] = 0;
+        }
+        memoryCount = 0;
+        Iterator<T> iter = farTier.values().iterator();
+        while (iter.hasNext()) {
+            released.add(iter.next());
+            iter.remove();
+            count++;
+        }
+        farCount = 0;
+        farNextTime = Long.MAX_VALUE;
+        return count;
+    }
+
+    /**
+     * @return total items scheduled, in memory and far tier
+     */
+    public synchronized long size() {
+        return memoryCount + farCount;
+    }
+
+    public synchronized int inMemoryCount() {
+        return memoryCount;
+    }
+
+    public synchronized long farTierCount() {
+        return farCount;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return list copy of the in-memory items, in no particular order
+     */
+    public synchronized List<T> snapshot() {
+        List<T> items = new ArrayList<T>(memoryCount);
+        for (Entry<T>[] level : slots) {
+            for (Entry<T> head : level) {
+                for (Entry<T> e = head; e != null; e = e.next) {
+                    items.add(e.item);
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Iterate over a snapshot of the in-memory items (not far-tier items),
+     * in no particular order.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.util;
+
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Access to virtual threads (Java 21+), when the running JVM offers them,
+ * by reflection -- so that callers still compile and run on Java 8,
+ * falling back to platform threads.
+ */
+public class VirtualThreads {
+    private static final Logger logger =
+        Logger.getLogger(VirtualThreads.class.getName());
+
+    /** Thread.Builder.OfVirtual methods, or null if unavailable */
+    protected static Method ofVirtual;
+    protected static Method name;
+    protected static Method unstarted;
+
+    static {
+        try {
+            Method of = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = of.getReturnType();
+            Method nm = builder.getMethod("name", String.class);
+            Method un = builder.getMethod("unstarted", Runnable.class);
+            // as a check: preview-feature JVMs throw here unless enabled
+            un.invoke(of.invoke(null), new Runnable() {
+                public void run() {
+                }
+            });
+            ofVirtual = of;
+            name = nm;
+            unstarted = un;
+        } catch (NoSuchMethodException e) {
+            // pre-Java-19 JVM
+        } catch (Exception e) {
+            logger.log(Level.FINE, "virtual threads unavailable", e);
+        }
+    }
+
+    /**
+     * @return whether virtual threads may be created in this JVM
+     */
+    public static boolean isSupported() {
+        return ofVirtual != null;
+    }
+
+    /**
+     * Create (but do not start) a virtual thread.
+     *
+     * @param threadName name for the new thread
+     * @param task what the thread is to run
+     * @return unstarted virtual thread
+     * @throws UnsupportedOperationException if not {@link #isSupported()}
+     */
+    public static Thread newThread(String threadName, Runnable task) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException(
+                    "virtual threads require Java 21 or later");
+        }
+        try {
+            Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+            return (Thread) unstarted.invoke(builder, task);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException(
+                    "unable to create virtual thread", e);
+        }
+    }
+}
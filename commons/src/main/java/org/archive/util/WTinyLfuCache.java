@@ -0,0 +1,386 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory map with W-TinyLFU eviction: new entries enter a
+ * small LRU 'window'; entries leaving the window compete for a place in
+ * the segmented-LRU 'main' area against its least-recently-used entry,
+ * the one estimated (by a count-min sketch of recent accesses) to be
+ * used more often being kept. One-hit wonders thus pass through without
+ * displacing frequently used entries.
+ *
+ * <p>Lookups are lock-free; the recording of accesses is buffered and
+ * applied in batches by whichever thread next takes the policy lock, and
+ * may be dropped under heavy contention. Insertions take the lock. The
+ * listener, if any, is told of each evicted entry while the lock is held
+ * and before the entry leaves the map, so that an entry is always
+ * findable either here or wherever the listener puts it.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class WTinyLfuCache<K,V> {
+
+    /** receives entries evicted to keep within the budget */
+    public interface EvictionListener<K,V> {
+        void evicted(K key, V value);
+    }
+
+    protected static final int WINDOW = 0;
+    protected static final int PROBATION = 1;
+    protected static final int PROTECTED = 2;
+
+    protected static class Node<K,V> {
+        final K key;
+        volatile V value;
+        int queue;
+        Node<K,V> prev;
+        Node<K,V> next;
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /** access-ordered list, most recent at head */
+    protected static class AccessList<K,V> {
+        Node<K,V> head;
+        Node<K,V> tail;
+        int size;
+
+        void addFirst(Node<K,V> node) {
+            node.prev = null;
+            node.next = head;
+            if (head != null) {
+                head.prev = node;
+            } else {
+                tail = node;
+            }
+            head = node;
+            size++;
+        }
+
+        void remove(Node<K,V> node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = node.next = null;
+            size--;
+        }
+
+        void moveToFirst(Node<K,V> node) {
+            if (head != node) {
+                remove(node);
+                addFirst(node);
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key, halved whenever
+     * the number of recorded accesses reaches ten times the capacity, so
+     * that estimates reflect recent popularity.
+     */
+    protected static class FrequencySketch {
+        static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+            0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        static final long RESET_MASK = 0x7777777777777777L;
+
+        final long[] table;
+        final int tableMask;
+        final int sampleSize;
+        int additions;
+
+        FrequencySketch(int capacity) {
+            int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = 10 * Math.max(16, capacity);
+        }
+
+        static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+
+        int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        /** nibble (0-15) within the long for counter i of the given hash */
+        int offsetOf(int hash, int i) {
+            return ((hash & 3) << 2) + i;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                int count = (int) ((table[indexOf(hash, i)]
+                        >>> (offsetOf(hash, i) << 2)) & 0xfL);
+                min = Math.min(min, count);
+            }
+            return min;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int shift = offsetOf(hash, i) << 2;
+                long mask = 0xfL << shift;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+    }
+
+    protected final int maxSize;
+    protected final int windowMax;
+    protected final int protectedMax;
+
+    protected final ConcurrentHashMap<K,Node<K,V>> data;
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final ArrayBlockingQueue<Node<K,V>> readBuffer =
+        new ArrayBlockingQueue<Node<K,V>>(1024);
+    protected final FrequencySketch sketch;
+    protected final AccessList<K,V> window = new AccessList<K,V>();
+    protected final AccessList<K,V> probation = new AccessList<K,V>();
+    protected final AccessList<K,V> protectedList = new AccessList<K,V>();
+    protected final EvictionListener<K,V> listener;
+
+    /**
+     * @param maxSize maximum number of entries held
+     * @param listener told of evicted entries; may be null
+     */
+    public WTinyLfuCache(int maxSize, EvictionListener<K,V> listener) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.windowMax = Math.max(1, maxSize / 100);
+        this.protectedMax = (maxSize - windowMax) * 8 / 10;
+        this.data = new ConcurrentHashMap<K,Node<K,V>>(
+                Math.min(maxSize, 1 << 16));
+        this.sketch = new FrequencySketch(maxSize);
+        this.listener = listener;
+    }
+
+    public V get(K key) {
+        Node<K,V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordAccess(node);
+        return node.value;
+    }
+
+    /**
+     * @return value held for key, without counting as an access
+     */
+    public V peek(K key) {
+        Node<K,V> node = data.get(key);
+        return (node == null) ? null : node.value;
+    }
+
+    /**
+     * Add the given entry unless the key is already present.
+     * 
+     * @return value already present, or null if the given one was added
+     */
+    public V putIfAbsent(K key, V value) {
+        lock.lock();
+        try {
+            drainReadBuffer();
+            Node<K,V> existing = data.get(key);
+            if (existing != null) {
+                onAccess(existing);
+                return existing.value;
+            }
+            Node<K,V> node = new Node<K,V>(key, value);
+            node.queue = WINDOW;
+            window.addFirst(node);
+            data.put(key, node);
+            sketch.increment(key);
+            evict();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    protected void recordAccess(Node<K,V> node) {
+        if (lock.tryLock()) {
+            try {
+                drainReadBuffer();
+                onAccess(node);
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            // lossy: a full buffer just drops the access
+            readBuffer.offer(node);
+        }
+    }
+
+    protected void drainReadBuffer() {
+        Node<K,V> node;
+        while ((node = readBuffer.poll()) != null) {
+            onAccess(node);
+        }
+    }
+
+    protected void onAccess(Node<K,V> node) {
+        sketch.increment(node.key);
+        if (data.get(node.key) != node) {
+            // evicted since access was buffered
+            return;
+        }
+        switch (node.queue) {
+        case WINDOW:
+            window.moveToFirst(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedList.addFirst(node);
+            if (protectedList.size > protectedMax) {
+                Node<K,V> demoted = protectedList.tail;
+                protectedList.remove(demoted);
+                demoted.queue = PROBATION;
+                probation.addFirst(demoted);
+            }
+            break;
+        default:
+            protectedList.moveToFirst(node);
+        }
+    }
+
+    /**
+     * Move any window overflow into main; then, while over capacity, have
+     * each newly moved candidate compete with main's oldest entry.
+     */
+    protected void evict() {
+        int candidates = 0;
+        while (window.size > windowMax) {
+            Node<K,V> node = window.tail;
+            window.remove(node);
+            node.queue = PROBATION;
+            probation.addFirst(node);
+            candidates++;
+        }
+        while (data.size() > maxSize) {
+            // candidates are the newest entries of probation; the victim
+            // is the oldest entry of main that is not one of them
+            Node<K,V> victim = null;
+            if (probation.size > candidates) {
+                victim = probation.tail;
+            } else if (protectedList.tail != null) {
+                victim = protectedList.tail;
+            } else if (candidates == 0) {
+                victim = window.tail;
+            }
+            Node<K,V> candidate = (candidates > 0) ? probation.head : null;
+            if (victim == null) {
+                // only candidates left in main; drop the oldest
+                remove(probation.tail);
+                candidates--;
+            } else if (candidate == null) {
+                remove(victim);
+            } else if (sketch.frequency(candidate.key)
+                    > sketch.frequency(victim.key)) {
+                remove(victim);
+            } else {
+                remove(candidate);
+                candidates--;
+            }
+        }
+    }
+
+    protected void remove(Node<K,V> node) {
+        if (listener != null) {
+            listener.evicted(node.key, node.value);
+        }
+        switch (node.queue) {
+        case WINDOW:
+            window.remove(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            break;
+        default:
+            protectedList.remove(node);
+        }
+        data.remove(node.key, node);
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return live view of the keys held; weakly consistent
+     */
+    public Set<K> keySet() {
+        return data.keySet();
+    }
+
+    /**
+     * @return snapshot of the values held
+     */
+    public List<V> values() {
+        List<V> values = new ArrayList<V>(data.size());
+        for (Node<K,V> node : data.values()) {
+            values.add(node.value);
+        }
+        return values;
+    }
+}
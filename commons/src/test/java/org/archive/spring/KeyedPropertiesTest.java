@@ -0,0 +1,176 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.spring;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for KeyedProperties override resolution.
+ */
+public class KeyedPropertiesTest extends TestCase {
+
+    /** simple OverlayContext over a fixed set of named maps */
+    protected static class TestContext implements OverlayContext {
+        ArrayList<String> names = new ArrayList<String>();
+        Map<String,Map<String,Object>> maps;
+        long version = 0;
+        TestContext(Map<String,Map<String,Object>> maps, String... names) {
+            this.maps = maps;
+            for (String name : names) {
+                this.names.add(name);
+            }
+        }
+        public boolean haveOverlayNamesBeenSet() {
+            return true;
+        }
+        public ArrayList<String> getOverlayNames() {
+            return names;
+        }
+        public Map<String,Object> getOverlayMap(String name) {
+            return maps.get(name);
+        }
+        public long getOverlaysVersion() {
+            return version;
+        }
+    }
+
+    protected KeyedProperties kp;
+    protected Map<String,Map<String,Object>> sheets;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        kp = new KeyedProperties();
+        kp.put("delay", 1);
+        kp.addExternalPath("bean");
+        sheets = new HashMap<String,Map<String,Object>>();
+        sheets.put("slow", new HashMap<String,Object>());
+        sheets.get("slow").put("bean.delay", 10);
+        sheets.put("slower", new HashMap<String,Object>());
+        sheets.get("slower").put("bean.delay", 100);
+        sheets.put("other", new HashMap<String,Object>());
+        KeyedProperties.clearAllOverrideContexts();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        KeyedProperties.clearAllOverrideContexts();
+        super.tearDown();
+    }
+
+    public void testNoOverlays() {
+        assertEquals(1, kp.get("delay"));
+    }
+
+    public void testLaterSheetWins() {
+        TestContext context = new TestContext(sheets, "slow", "slower");
+        KeyedProperties.loadOverridesFrom(context);
+        assertEquals(100, kp.get("delay"));
+        // repeat lookup served from resolution
+        assertEquals(100, kp.get("delay"));
+        KeyedProperties.clearOverridesFrom(context);
+        assertEquals(1, kp.get("delay"));
+    }
+
+    public void testNoApplicableOverride() {
+        TestContext context = new TestContext(sheets, "other", "missing");
+        KeyedProperties.loadOverridesFrom(context);
+        assertEquals(1, kp.get("delay"));
+        // local value changes still visible
+        kp.put("delay", 2);
+        assertEquals(2, kp.get("delay"));
+    }
+
+    public void testInvalidatedBySheetEdit() {
+        TestContext context = new TestContext(sheets, "slow");
+        KeyedProperties.loadOverridesFrom(context);
+        assertEquals(10, kp.get("delay"));
+        sheets.get("slow").put("bean.delay", 20);
+        context.version++;
+        assertEquals(20, kp.get("delay"));
+        sheets.get("slow").remove("bean.delay");
+        context.version++;
+        assertEquals(1, kp.get("delay"));
+    }
+
+    public void testInvalidatedByNewExternalPath() {
+        sheets.get("other").put("inner.delay", 5);
+        TestContext context = new TestContext(sheets, "other");
+        KeyedProperties.loadOverridesFrom(context);
+        assertEquals(1, kp.get("delay"));
+        kp.addExternalPath("inner");
+        assertEquals(5, kp.get("delay"));
+    }
+
+    public void testManySheetCombinations() {
+        // more combinations than the initial table holds
+        List<TestContext> contexts = new ArrayList<TestContext>();
+        for (int i = 0; i < 200; i++) {
+            String name = "sheet" + i;
+            sheets.put(name, new HashMap<String,Object>());
+            sheets.get(name).put("bean.delay", i);
+            contexts.add(new TestContext(sheets, "slow", name));
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < contexts.size(); i++) {
+                KeyedProperties.loadOverridesFrom(contexts.get(i));
+                assertEquals(i, kp.get("delay"));
+                KeyedProperties.clearOverridesFrom(contexts.get(i));
+            }
+        }
+        assertTrue(kp.resolutions.length > KeyedProperties.MIN_RESOLUTION_SLOTS);
+    }
+
+    public void testResolvedUntilVersionAdvances() {
+        TestContext context = new TestContext(sheets, "slow");
+        KeyedProperties.loadOverridesFrom(context);
+        assertEquals(10, kp.get("delay"));
+        // an unannounced edit is not seen...
+        sheets.get("slow").put("bean.delay", 20);
+        assertEquals(10, kp.get("delay"));
+        // ...until the source of the maps advances its version
+        context.version++;
+        assertEquals(20, kp.get("delay"));
+
+        // versions are the source's own: another context's maps are
+        // resolved afresh, whatever the first's version
+        TestContext other = new TestContext(sheets, "slower");
+        KeyedProperties.clearOverridesFrom(context);
+        KeyedProperties.loadOverridesFrom(other);
+        assertEquals(100, kp.get("delay"));
+    }
+
+    public void testDistinctSheetCombinations() {
+        TestContext slow = new TestContext(sheets, "slow");
+        TestContext slower = new TestContext(sheets, "slower");
+        for (int i = 0; i < 3; i++) {
+            KeyedProperties.loadOverridesFrom(slow);
+            assertEquals(10, kp.get("delay"));
+            KeyedProperties.clearOverridesFrom(slow);
+            KeyedProperties.loadOverridesFrom(slower);
+            assertEquals(100, kp.get("delay"));
+            KeyedProperties.clearOverridesFrom(slower);
+        }
+    }
+}
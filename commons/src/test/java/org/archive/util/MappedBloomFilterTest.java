@@ -0,0 +1,129 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * MappedBloomFilter tests
+ */
+public class MappedBloomFilterTest extends BloomFilterTest {
+    protected File tmpDir;
+    protected MappedBloomFilter last;
+
+    @Override
+    BloomFilter createBloom(long n, int d, Random random) {
+        try {
+            tmpDir = new File(TmpDirTestCase.tmpDir(), "MappedBloomFilterTest");
+            FileUtils.ensureWriteableDirectory(tmpDir);
+            File f = new File(tmpDir, "bloom-" + n + "-" + d);
+            f.delete();
+            last = new MappedBloomFilter(f, n, d);
+            return last;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        if (last != null) {
+            last.close();
+            last.getFile().delete();
+        }
+    }
+
+    @Test
+    public void testModestAdds() {
+        trialWithParameters(100000, 16, 100000, 100000);
+    }
+
+    @Test
+    public void testReopenAndRestore() throws IOException {
+        MappedBloomFilter bloom = (MappedBloomFilter) createBloom(10000, 20, null);
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(bloom.add("http://example.com/" + i));
+        }
+        File copy = new File(tmpDir, "bloom-copy");
+        bloom.copyTo(copy);
+        for (int i = 5000; i < 6000; i++) {
+            bloom.add("http://example.com/" + i);
+        }
+        bloom.close();
+
+        // reopening sees all adds, including those after the copy
+        bloom = new MappedBloomFilter(bloom.getFile(), 10000, 20);
+        last = bloom;
+        assertEquals(6000, bloom.getPopulation());
+        assertTrue(bloom.contains("http://example.com/5500"));
+
+        // restoring sees only the adds made before the copy
+        bloom.restoreFrom(copy);
+        assertEquals(5000, bloom.getPopulation());
+        assertTrue(bloom.contains("http://example.com/4999"));
+        assertFalse(bloom.contains("http://example.com/5500"));
+        copy.delete();
+    }
+
+    @Test(expected = IOException.class)
+    public void testMismatchedParameters() throws IOException {
+        MappedBloomFilter bloom = (MappedBloomFilter) createBloom(10000, 20, null);
+        bloom.close();
+        new MappedBloomFilter(bloom.getFile(), 20000, 20);
+    }
+
+    @Test
+    public void testConcurrentAdds() throws InterruptedException {
+        final MappedBloomFilter bloom = (MappedBloomFilter) createBloom(400000, 20, null);
+        final AtomicInteger falsePositives = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int base = t * 50000;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = base; i < base + 50000; i++) {
+                        if (!bloom.add("u" + i)) {
+                            falsePositives.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // no bits lost to races: every added item is present
+        for (int i = 0; i < 400000; i++) {
+            assertTrue(bloom.contains("u" + i));
+        }
+        assertEquals(400000 - falsePositives.get(), bloom.getPopulation());
+    }
+}
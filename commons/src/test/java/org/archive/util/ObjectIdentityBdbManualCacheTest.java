@@ -135,6 +135,45 @@ public class ObjectIdentityBdbManualCacheTest {
         }
     }
     
+    /**
+     * Test that the in-memory budget is kept, while objects still
+     * referenced elsewhere keep their identity and all values survive
+     * eviction.
+     */
+    @Test
+    public void testBudgetKeepsIdentityAndValues() {
+        ObjectIdentityBdbManualCache<IdentityCacheableWrapper<AtomicInteger>> budgeted = 
+            new ObjectIdentityBdbManualCache<>();
+        budgeted.setMaxInMemory(100);
+        budgeted.initialize(env, "budgetCache", IdentityCacheableWrapper.class,
+                env.getClassCatalog());
+        try {
+            IdentityCacheableWrapper<AtomicInteger> held = null;
+            for (int i = 0; i < 10000; i++) {
+                String key = "" + i;
+                IdentityCacheableWrapper<AtomicInteger> wrap = budgeted.getOrUse(
+                        key, 
+                        new Supplier<IdentityCacheableWrapper<AtomicInteger>>(
+                                new IdentityCacheableWrapper<AtomicInteger>(
+                                        key, new AtomicInteger(0))));
+                wrap.get().set(i);
+                wrap.makeDirty();
+                if (i == 0) {
+                    held = wrap;
+                }
+                assertTrue(budgeted.getInMemoryCount() <= 100);
+            }
+            assertSame("evicted but referenced object reused", held, budgeted.get("0"));
+            assertTrue(budgeted.getEvictionCount() >= 9900);
+            budgeted.sync();
+            for (int i = 0; i < 10000; i++) {
+                assertEquals(i, budgeted.get("" + i).get().get());
+            }
+        } finally {
+            budgeted.close();
+        }
+    }
+    
     /**
      * Test that in scarce memory conditions, the memory map is 
      * expunged of otherwise unreferenced entries as expected.
@@ -0,0 +1,131 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * ScalableBloomFilter tests
+ */
+public class ScalableBloomFilterTest extends BloomFilterTest {
+    protected File tmpDir;
+    protected ScalableBloomFilter last;
+
+    @Override
+    BloomFilter createBloom(long n, int d, Random random) {
+        try {
+            tmpDir = new File(TmpDirTestCase.tmpDir(), "ScalableBloomFilterTest");
+            File dir = new File(tmpDir, "bloom-" + n + "-" + d);
+            FileUtils.ensureWriteableDirectory(dir);
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            last = new ScalableBloomFilter(dir, n, d);
+            return last;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        if (last != null) {
+            last.close();
+        }
+    }
+
+    @Test
+    public void testModestAdds() {
+        trialWithParameters(100000, 16, 100000, 100000);
+    }
+
+    @Test
+    public void testGrowthHoldsFalsePositiveRate() {
+        ScalableBloomFilter bloom = (ScalableBloomFilter) createBloom(1000, 12, null);
+        assertEquals(1, bloom.getSliceCount());
+        // 31x the initial capacity: slices of 1000+2000+4000+8000+16000
+        for (int i = 0; i < 31000; i++) {
+            bloom.add("http://example.com/" + i);
+        }
+        assertTrue(bloom.getSliceCount() >= 5);
+        // no false negatives across slices
+        for (int i = 0; i < 31000; i++) {
+            assertTrue(bloom.contains("http://example.com/" + i));
+        }
+        // compound rate bounded by 2^-(d-1)
+        double bound = Math.pow(2, -11);
+        assertTrue(bloom.getEstimatedFalsePositiveRate() < bound);
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (bloom.contains("http://example.org/" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("too many false positives: " + falsePositives,
+                falsePositives < 100000 * bound * 2);
+    }
+
+    @Test
+    public void testReopenAndRestore() throws IOException {
+        ScalableBloomFilter bloom = (ScalableBloomFilter) createBloom(1000, 20, null);
+        for (int i = 0; i < 5000; i++) {
+            bloom.add("u" + i);
+        }
+        int slices = bloom.getSliceCount();
+        long population = bloom.getPopulation();
+        File copy = new File(tmpDir, "copy");
+        FileUtils.ensureWriteableDirectory(copy);
+        for (File f : copy.listFiles()) {
+            f.delete();
+        }
+        bloom.copyTo(copy);
+        for (int i = 5000; i < 20000; i++) {
+            bloom.add("u" + i);
+        }
+        assertTrue(bloom.getSliceCount() > slices);
+        bloom.close();
+
+        // reopening finds every slice
+        bloom = new ScalableBloomFilter(bloom.dir, 1000, 20);
+        last = bloom;
+        assertTrue(bloom.getSliceCount() > slices);
+        assertTrue(bloom.contains("u19999"));
+
+        // restoring drops slices added after the copy
+        bloom.restoreFrom(copy);
+        assertEquals(slices, bloom.getSliceCount());
+        assertEquals(population, bloom.getPopulation());
+        assertTrue(bloom.contains("u4999"));
+        assertFalse(bloom.contains("u19999"));
+        for (File f : copy.listFiles()) {
+            f.delete();
+        }
+        copy.delete();
+    }
+}
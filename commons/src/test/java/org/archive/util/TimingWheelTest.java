@@ -0,0 +1,121 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for TimingWheel.
+ */
+public class TimingWheelTest extends TestCase {
+
+    public void testNeverEarlyAtMostOneTickLate() {
+        long start = 1000000;
+        // 10ms ticks, 16 slots x 3 levels: horizon 40960ms
+        TimingWheel<Long> wheel = new TimingWheel<Long>(10, 4, 3, 100000,
+                new TreeMap<Long,Long>(), start);
+        Random random = new Random(1);
+        int scheduled = 0;
+        for (int i = 0; i < 5000; i++) {
+            // distinct times, so a plain TreeMap may serve as far tier
+            long time = start + random.nextInt(100000) * 1000L + i;
+            wheel.schedule(time, time);
+            scheduled++;
+        }
+        assertEquals(scheduled, wheel.size());
+        assertTrue(wheel.farTierCount() > 0);
+
+        int released = 0;
+        List<Long> out = new ArrayList<Long>();
+        for (long now = start; now <= start + 100000000L + 10000; now += 7) {
+            out.clear();
+            wheel.advance(now, out);
+            for (long time : out) {
+                assertTrue("early: " + time + " at " + now, time <= now);
+                assertTrue("late: " + time + " at " + now, now - time < 10 + 7);
+            }
+            released += out.size();
+            if (wheel.isEmpty()) {
+                break;
+            }
+        }
+        assertEquals(scheduled, released);
+    }
+
+    public void testMemoryLimitSpillsAndReturns() {
+        TreeMap<Long,String> far = new TreeMap<Long,String>();
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 2, 2,
+                far, 0);
+        wheel.schedule(100, "a");
+        wheel.schedule(200, "b");
+        wheel.schedule(300, "c");
+        assertEquals(2, wheel.inMemoryCount());
+        assertEquals(1, far.size());
+
+        List<String> out = new ArrayList<String>();
+        wheel.advance(150, out);
+        assertEquals("[a]", out.toString());
+        // room made; 'c' brought back into memory
+        assertEquals(0, far.size());
+        wheel.advance(1000, out);
+        assertEquals("[a, b, c]", out.toString());
+    }
+
+    public void testScheduleInPastReleasedNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 2, 100,
+                new TreeMap<Long,String>(), 1000);
+        wheel.schedule(500, "past");
+        List<String> out = new ArrayList<String>();
+        assertEquals(0, wheel.advance(1005, out));
+        assertEquals(1, wheel.advance(1010, out));
+        assertEquals("past", out.get(0));
+    }
+
+    public void testNextReleaseTime() {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 4, 3, 100,
+                new TreeMap<Long,String>(), 0);
+        assertEquals(Long.MAX_VALUE, wheel.nextReleaseTime());
+        wheel.schedule(5000, "x");
+        long next = wheel.nextReleaseTime();
+        assertTrue(next <= 5000);
+        wheel.schedule(55, "y");
+        assertEquals(60, wheel.nextReleaseTime());
+    }
+
+    public void testSpillAndDrain() {
+        TreeMap<Long,String> far = new TreeMap<Long,String>();
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8, 2, 100,
+                far, 0);
+        wheel.schedule(100, "a");
+        wheel.schedule(200, "b");
+        wheel.spillAll();
+        assertEquals(0, wheel.inMemoryCount());
+        assertEquals(2, far.size());
+        assertEquals(2, wheel.size());
+        List<String> out = new ArrayList<String>();
+        assertEquals(2, wheel.drainAll(out));
+        assertTrue(wheel.isEmpty());
+        assertTrue(far.isEmpty());
+    }
+}
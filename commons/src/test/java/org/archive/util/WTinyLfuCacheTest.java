@@ -0,0 +1,115 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for WTinyLfuCache.
+ */
+public class WTinyLfuCacheTest extends TestCase {
+
+    public void testBudgetEnforcedAndEvictionsReported() {
+        final List<Integer> evicted = new ArrayList<Integer>();
+        WTinyLfuCache<Integer,String> cache = new WTinyLfuCache<Integer,String>(100,
+                new WTinyLfuCache.EvictionListener<Integer,String>() {
+                    public void evicted(Integer key, String value) {
+                        evicted.add(key);
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            assertNull(cache.putIfAbsent(i, "v" + i));
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900, evicted.size());
+        for (int key : evicted) {
+            assertNull(cache.peek(key));
+        }
+    }
+
+    public void testPutIfAbsentKeepsExisting() {
+        WTinyLfuCache<String,String> cache = new WTinyLfuCache<String,String>(10, null);
+        assertNull(cache.putIfAbsent("a", "first"));
+        assertEquals("first", cache.putIfAbsent("a", "second"));
+        assertEquals("first", cache.get("a"));
+    }
+
+    public void testFrequentEntriesSurviveScan() {
+        WTinyLfuCache<Integer,Integer> cache = new WTinyLfuCache<Integer,Integer>(100, null);
+        // hot set, used repeatedly
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get(i) == null) {
+                    cache.putIfAbsent(i, i);
+                }
+            }
+        }
+        // long scan of one-hit wonders
+        for (int i = 1000; i < 11000; i++) {
+            cache.putIfAbsent(i, i);
+        }
+        int hotRetained = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.peek(i) != null) {
+                hotRetained++;
+            }
+        }
+        // the one hot entry still in the window at the scan's start must
+        // compete, and may lose a tie, against main's oldest hot entry
+        assertTrue("retained " + hotRetained, hotRetained >= 49);
+    }
+
+    public void testBetterThanLruOnSkewedLoad() {
+        // zipf-like: key k drawn with probability ~ 1/(k+1)
+        Random random = new Random(1);
+        WTinyLfuCache<Integer,Integer> cache = new WTinyLfuCache<Integer,Integer>(500, null);
+        int hits = 0;
+        int gets = 200000;
+        double[] cumulative = new double[50000];
+        double sum = 0;
+        for (int k = 0; k < cumulative.length; k++) {
+            sum += 1.0 / (k + 1);
+            cumulative[k] = sum;
+        }
+        for (int i = 0; i < gets; i++) {
+            double r = random.nextDouble() * sum;
+            int lo = 0, hi = cumulative.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cumulative[mid] < r) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (cache.get(lo) != null) {
+                hits++;
+            } else {
+                cache.putIfAbsent(lo, lo);
+            }
+        }
+        // an LRU of this size manages roughly 50%; ideal is about 60%
+        assertTrue("hit rate " + hits * 100 / gets + "%", hits * 100 / gets >= 52);
+    }
+}
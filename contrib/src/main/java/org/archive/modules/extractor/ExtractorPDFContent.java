@@ -68,6 +68,7 @@ public class ExtractorPDFContent extends ContentExtractor {
     
     {
         setMaxSizeToParse(10*1024*1024L); // 10MB
+        setHeavy(true);
     }
     public long getMaxSizeToParse() {
         return (Long) kp.get("maxSizeToParse");
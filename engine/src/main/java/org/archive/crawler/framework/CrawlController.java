@@ -233,6 +233,57 @@ implements Serializable,
         this.recorderInBufferBytes = recorderInBufferBytes;
     }
 
+    /**
+     * Whether to run ToeThreads on virtual threads, where the JVM supports
+     * them (Java 21 or later; otherwise platform threads are used). Many 
+     * more ToeThreads -- thousands or tens of thousands -- may then be 
+     * run, as each costs little while blocked on network I/O or waiting 
+     * on the frontier. Recorder buffers are then pooled, held by a 
+     * ToeThread only while it processes a URI, rather than reserved for 
+     * every ToeThread (see {@link #setRecorderBufferBudgetBytes(long)}). 
+     * Read when ToeThreads are started.
+     */
+    protected boolean useVirtualToeThreads = false;
+    public boolean getUseVirtualToeThreads() {
+        return useVirtualToeThreads;
+    }
+    public void setUseVirtualToeThreads(boolean useVirtualToeThreads) {
+        this.useVirtualToeThreads = useVirtualToeThreads;
+    }
+
+    /**
+     * Total bytes of in-memory Recorder buffers, of the sizes above, to
+     * keep for all ToeThreads. If nonzero, ToeThreads borrow Recorders
+     * from a shared pool only while processing a URI, rather than each
+     * reserving its own; once the budget is spent, a ToeThread waits for
+     * one to be returned (see {@link #setRecorderBudgetWaitMs(long)}), 
+     * and only then falls back to one with small buffers, spilling sooner
+     * to scratch files. Zero (the default)
+     * means no limit, and -- unless virtual ToeThreads are used -- a 
+     * Recorder per ToeThread as before. Read when ToeThreads are started.
+     */
+    protected long recorderBufferBudgetBytes = 0;
+    public long getRecorderBufferBudgetBytes() {
+        return recorderBufferBudgetBytes;
+    }
+    public void setRecorderBufferBudgetBytes(long recorderBufferBudgetBytes) {
+        this.recorderBufferBudgetBytes = recorderBufferBudgetBytes;
+    }
+
+    /**
+     * Longest time, in milliseconds, a ToeThread waits for a pooled 
+     * Recorder to be returned once the Recorder buffer budget is spent,
+     * before taking one with small buffers instead. Zero not to wait.
+     * Read when ToeThreads are started.
+     */
+    protected long recorderBudgetWaitMs = 2000;
+    public long getRecorderBudgetWaitMs() {
+        return recorderBudgetWaitMs;
+    }
+    public void setRecorderBudgetWaitMs(long recorderBudgetWaitMs) {
+        this.recorderBudgetWaitMs = recorderBudgetWaitMs;
+    }
+
     protected CrawlerLoggerModule loggerModule;
     public CrawlerLoggerModule getLoggerModule() {
         return this.loggerModule;
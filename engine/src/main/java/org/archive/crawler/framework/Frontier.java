@@ -30,6 +30,7 @@ import org.archive.crawler.frontier.FrontierJournal;
 import org.archive.crawler.reporting.StatisticsTracker;
 import org.archive.crawler.frontier.WorkQueue;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.ProcessorChain;
 import org.archive.modules.deciderules.DecideRule;
 import org.archive.modules.fetcher.FetchStats;
 import org.archive.util.IdentityCacheable;
@@ -95,7 +96,8 @@ import org.springframework.context.Lifecycle;
  * @see StatisticsTracker
  * @see org.archive.crawler.framework.ToeThread
  */
-public interface Frontier extends Lifecycle, Reporter {
+public interface Frontier extends Lifecycle, Reporter, 
+        ProcessorChain.ResumptionReceiver {
 
     /**
      * Get the next URI that should be processed. If no URI becomes available
@@ -146,6 +148,34 @@ public interface Frontier extends Lifecycle, Reporter {
      */
     public void finished(CrawlURI cURI);
 
+    /**
+     * Accept a URI, parked by a Processor since it was emitted, as ready
+     * to resume processing. It is still in process -- its queue remains
+     * busy -- and will be returned by a later next(), ahead of others.
+     * 
+     * <p>May be called from any thread.
+     *
+     * @param cURI The parked URI now ready to resume.
+     */
+    public void resume(CrawlURI cURI);
+
+    /**
+     * Note that a URI returned by next() has been parked by a Processor,
+     * and so is in process though no thread is working on it, until it is
+     * resumed and again returned by next().
+     *
+     * @param cURI The parked URI.
+     */
+    public void parked(CrawlURI cURI);
+
+    /**
+     * Number of URIs parked by a Processor and not yet taken up again
+     * after resumption. 
+     *
+     * @return number of parked URIs
+     */
+    public int parkedUriCount();
+
     /**
      * Number of <i>discovered</i> URIs.
      *
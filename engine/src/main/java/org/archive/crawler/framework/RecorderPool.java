@@ -0,0 +1,310 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.framework;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.archive.util.Recorder;
+
+/**
+ * Crawl-wide pool of Recorders, lent to ToeThreads for the processing
+ * of one URI at a time, so that Recorder buffer memory follows the
+ * number of URIs in process rather than the number of threads. 
+ *
+ * <p>The in-memory buffers of all pooled Recorders are held to a total
+ * budget (unless zero, for no limit). Once the budget is spent, a
+ * taker waits (up to a configured time) for a Recorder to be returned
+ * or for buffer bytes to be freed. Only if none turns up in time is a
+ * Recorder created with small buffers -- content beyond which goes
+ * to its scratch files, as usual -- and counted as a fallback in the
+ * report. Recorders returned while the pool is over budget are closed
+ * rather than kept.
+ */
+public class RecorderPool {
+    /** in-memory buffer sizes for Recorders created beyond the budget */
+    public static final int OVER_BUDGET_IN_BUFFER_BYTES = 16 * 1024;
+    public static final int OVER_BUDGET_OUT_BUFFER_BYTES = 4 * 1024;
+
+    protected final File scratchDir;
+    protected final int outBufferBytes;
+    protected final int inBufferBytes;
+    protected final long budgetBytes;
+    protected final long budgetWaitMs;
+
+    protected ConcurrentLinkedQueue<Recorder> idle = 
+        new ConcurrentLinkedQueue<Recorder>();
+    protected ConcurrentLinkedQueue<Recorder> idleSmall = 
+        new ConcurrentLinkedQueue<Recorder>();
+    /** Recorders (in use or idle) created with over-budget buffer sizes */
+    protected Set<Recorder> small = 
+        Collections.newSetFromMap(new ConcurrentHashMap<Recorder,Boolean>());
+
+    protected AtomicInteger serial = new AtomicInteger();
+    protected AtomicInteger inUse = new AtomicInteger();
+    protected AtomicLong bytesAllocated = new AtomicLong();
+    protected AtomicLong recordersCreated = new AtomicLong();
+    protected AtomicLong recordersCreatedOverBudget = new AtomicLong();
+    protected AtomicLong recordersDiscarded = new AtomicLong();
+    protected AtomicLong takes = new AtomicLong();
+    protected AtomicLong budgetWaits = new AtomicLong();
+    protected AtomicLong budgetWaitNanos = new AtomicLong();
+
+    /** signalled when a Recorder is returned or buffer bytes are freed;
+     * a lock rather than a monitor, so as not to pin virtual threads */
+    protected final ReentrantLock lock = new ReentrantLock();
+    protected final Condition returned = lock.newCondition();
+    protected final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @param scratchDir directory for Recorder backing files
+     * @param outBufferBytes in-memory outbound buffer of each Recorder
+     * @param inBufferBytes in-memory inbound buffer of each Recorder
+     * @param budgetBytes total in-memory buffer bytes of all Recorders,
+     * or 0 for no limit
+     */
+    public RecorderPool(File scratchDir, int outBufferBytes, int inBufferBytes,
+            long budgetBytes) {
+        this(scratchDir, outBufferBytes, inBufferBytes, budgetBytes, 0);
+    }
+
+    /**
+     * @param scratchDir directory for Recorder backing files
+     * @param outBufferBytes in-memory outbound buffer of each Recorder
+     * @param inBufferBytes in-memory inbound buffer of each Recorder
+     * @param budgetBytes total in-memory buffer bytes of all Recorders,
+     * or 0 for no limit
+     * @param budgetWaitMs longest a taker waits, once the budget is spent,
+     * for a Recorder to be returned before one with small buffers is 
+     * created; 0 not to wait
+     */
+    public RecorderPool(File scratchDir, int outBufferBytes, int inBufferBytes,
+            long budgetBytes, long budgetWaitMs) {
+        this.scratchDir = scratchDir;
+        this.outBufferBytes = outBufferBytes;
+        this.inBufferBytes = inBufferBytes;
+        this.budgetBytes = budgetBytes;
+        this.budgetWaitMs = budgetWaitMs;
+    }
+
+    /**
+     * Take an idle Recorder, or create one with full-size buffers if
+     * within budget. Otherwise wait up to the budget wait time for one
+     * to be returned, then fall back to creating one with small buffers.
+     */
+    public Recorder take() {
+        takes.incrementAndGet();
+        inUse.incrementAndGet();
+        Recorder recorder = takeWithinBudget();
+        if (recorder == null && budgetWaitMs > 0) {
+            recorder = awaitWithinBudget();
+        }
+        if (recorder == null) {
+            int smallOut = Math.min(outBufferBytes, OVER_BUDGET_OUT_BUFFER_BYTES);
+            int smallIn = Math.min(inBufferBytes, OVER_BUDGET_IN_BUFFER_BYTES);
+            bytesAllocated.addAndGet(smallOut + smallIn);
+            recordersCreatedOverBudget.incrementAndGet();
+            recorder = create(smallOut, smallIn);
+            small.add(recorder);
+        }
+        return recorder;
+    }
+
+    /**
+     * @return an idle Recorder, or a new full-size one if within budget,
+     * or null
+     */
+    protected Recorder takeWithinBudget() {
+        Recorder recorder = idle.poll();
+        if (recorder == null) {
+            recorder = idleSmall.poll();
+        }
+        if (recorder == null && reserve((long) inBufferBytes + outBufferBytes)) {
+            recorder = create(outBufferBytes, inBufferBytes);
+        }
+        return recorder;
+    }
+
+    /**
+     * Wait up to the budget wait time for a Recorder to be returned, or
+     * for enough buffer bytes to be freed to create a full-size one.
+     * 
+     * @return Recorder, or null if none came in time (or interrupted)
+     */
+    protected Recorder awaitWithinBudget() {
+        budgetWaits.incrementAndGet();
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(budgetWaitMs);
+        Recorder recorder = null;
+        waiting.incrementAndGet();
+        lock.lock();
+        try {
+            // retaken under the lock: a release signals under it too,
+            // after making its Recorder or bytes available
+            while ((recorder = takeWithinBudget()) == null && remaining > 0) {
+                remaining = returned.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+            waiting.decrementAndGet();
+            budgetWaitNanos.addAndGet(System.nanoTime() - start);
+        }
+        return recorder;
+    }
+
+    /**
+     * Wake one taker waiting on the budget, if any.
+     */
+    protected void signalReturned() {
+        if (waiting.get() > 0) {
+            lock.lock();
+            try {
+                returned.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    protected boolean reserve(long bytes) {
+        while (true) {
+            long allocated = bytesAllocated.get();
+            if (budgetBytes > 0 && allocated + bytes > budgetBytes) {
+                return false;
+            }
+            if (bytesAllocated.compareAndSet(allocated, allocated + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    protected Recorder create(int outBytes, int inBytes) {
+        recordersCreated.incrementAndGet();
+        return new Recorder(scratchDir, "tp" + serial.incrementAndGet() + "http",
+                outBytes, inBytes);
+    }
+
+    /**
+     * Return a Recorder taken by {@link #take()}.
+     */
+    public void release(Recorder recorder) {
+        inUse.decrementAndGet();
+        boolean isSmall = small.contains(recorder);
+        if (budgetBytes > 0 && bytesAllocated.get() > budgetBytes) {
+            // shrink back toward budget
+            discard(recorder, isSmall);
+        } else if (isSmall) {
+            idleSmall.add(recorder);
+        } else {
+            idle.add(recorder);
+        }
+        signalReturned();
+    }
+
+    protected void discard(Recorder recorder, boolean isSmall) {
+        long bytes;
+        if (isSmall) {
+            small.remove(recorder);
+            bytes = Math.min(outBufferBytes, OVER_BUDGET_OUT_BUFFER_BYTES)
+                + Math.min(inBufferBytes, OVER_BUDGET_IN_BUFFER_BYTES);
+        } else {
+            bytes = (long) inBufferBytes + outBufferBytes;
+        }
+        recorder.closeRecorders();
+        bytesAllocated.addAndGet(-bytes);
+        recordersDiscarded.incrementAndGet();
+    }
+
+    /**
+     * Close all idle Recorders.
+     */
+    public void cleanup() {
+        Recorder recorder;
+        while ((recorder = idle.poll()) != null) {
+            discard(recorder, false);
+        }
+        while ((recorder = idleSmall.poll()) != null) {
+            discard(recorder, true);
+        }
+    }
+
+    public int getInUseCount() {
+        return inUse.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size() + idleSmall.size();
+    }
+
+    public long getBytesAllocated() {
+        return bytesAllocated.get();
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public long getRecordersCreated() {
+        return recordersCreated.get();
+    }
+
+    /**
+     * @return Recorders created with small buffers, because the budget 
+     * was spent and none was returned within the budget wait time
+     */
+    public long getRecordersCreatedOverBudget() {
+        return recordersCreatedOverBudget.get();
+    }
+
+    /**
+     * @return takes that waited on the spent budget
+     */
+    public long getBudgetWaits() {
+        return budgetWaits.get();
+    }
+
+    public long getBudgetWaitMs() {
+        return budgetWaitMs;
+    }
+
+    public void reportTo(PrintWriter writer) {
+        writer.print(" Recorder pool: " + getInUseCount() + " in use, " 
+                + getIdleCount() + " idle; " + getBytesAllocated() 
+                + " buffer bytes of " 
+                + (budgetBytes > 0 ? Long.toString(budgetBytes) : "unlimited")
+                + " budget; " + getRecordersCreated() + " created ("
+                + getRecordersCreatedOverBudget() + " small, as fallback), "
+                + recordersDiscarded.get() + " discarded, " 
+                + takes.get() + " lent; " + getBudgetWaits() 
+                + " waited on budget ("
+                + TimeUnit.NANOSECONDS.toMillis(budgetWaitNanos.get()) 
+                + "ms total, " + budgetWaitMs + "ms max each)\n");
+    }
+}
@@ -20,17 +20,24 @@
 package org.archive.crawler.framework;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
 
 import org.apache.commons.lang.StringUtils;
 import org.archive.crawler.reporting.AlertThreadGroup;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.Histotable;
 import org.archive.util.Reporter;
+import org.archive.util.VirtualThreads;
 
 /**
  * A collection of ToeThreads. The class manages the ToeThreads currently
@@ -38,6 +45,14 @@ import org.archive.util.Reporter;
  * number, keeping track of their state and (not necessarily safely)
  * killing hung threads.
  *
+ * <p>If so configured (see {@link CrawlController#setUseVirtualToeThreads(boolean)}),
+ * and the JVM supports it, each ToeThread's loop is run on a virtual
+ * thread instead; such ToeThreads are not members of this ThreadGroup, 
+ * so are tracked separately. They, and all ToeThreads when a Recorder
+ * buffer budget is set (see 
+ * {@link CrawlController#setRecorderBufferBudgetBytes(long)}), borrow
+ * Recorders from a shared {@link RecorderPool} rather than each owning one.
+ *
  * @author Gordon Mohr
  * @author Kristinn Sigurdsson
  *
@@ -46,11 +61,23 @@ import org.archive.util.Reporter;
 public class ToePool extends ThreadGroup implements Reporter {
     /** run worker thread slightly lower than usual */
     public static int DEFAULT_TOE_PRIORITY = Thread.NORM_PRIORITY - 1;
+
+    private static final Logger logger =
+        Logger.getLogger(ToePool.class.getName());
     
     protected CrawlController controller;
+    protected AlertThreadGroup alertThreadGroup;
     protected int nextSerialNumber = 1;
     protected int targetSize = 0; 
 
+    /** whether ToeThreads run on virtual threads */
+    protected boolean virtual;
+    /** ToeThreads running on virtual threads */
+    protected Set<ToeThread> virtualToes = 
+        Collections.newSetFromMap(new ConcurrentHashMap<ToeThread,Boolean>());
+    /** Recorders shared by ToeThreads, or null if each owns one */
+    protected RecorderPool recorderPool;
+
     /**
      * Constructor. Creates a pool of ToeThreads. 
      *
@@ -59,7 +86,35 @@ public class ToePool extends ThreadGroup implements Reporter {
     public ToePool(AlertThreadGroup atg, CrawlController c) {
         super(atg, "ToeThreads");        
         this.controller = c;
+        this.alertThreadGroup = atg;
         setDaemon(true);
+        if (c.getUseVirtualToeThreads()) {
+            virtual = VirtualThreads.isSupported();
+            if (!virtual) {
+                logger.warning("virtual ToeThreads unsupported by this JVM; "
+                        + "using platform threads");
+            }
+        }
+        if (virtual || c.getRecorderBufferBudgetBytes() > 0) {
+            recorderPool = new RecorderPool(c.getScratchDir().getFile(),
+                    c.getRecorderOutBufferBytes(), c.getRecorderInBufferBytes(),
+                    c.getRecorderBufferBudgetBytes(),
+                    c.getRecorderBudgetWaitMs());
+        }
+    }
+
+    /**
+     * @return whether ToeThreads run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return Recorders shared by ToeThreads, or null if each owns one
+     */
+    public RecorderPool getRecorderPool() {
+        return recorderPool;
     }
     
     public void cleanup() {
@@ -71,12 +126,18 @@ public class ToePool extends ThreadGroup implements Reporter {
             }
         }
         
+        if (recorderPool != null) {
+            recorderPool.cleanup();
+        }
+        
         // see HER-2036
         this.controller = null;
     }
 
     /**
-     * @return The number of ToeThreads that are not available (Approximation).
+     * @return The number of ToeThreads that are not available, plus the
+     * number of URIs parked by a Processor, which are as much in process
+     * (Approximation).
      */
     public int getActiveToeCount() {
         Thread[] toes = getToes();
@@ -87,6 +148,10 @@ public class ToePool extends ThreadGroup implements Reporter {
                 count++;
             }
         }
+        CrawlController c = this.controller;
+        if (c != null && c.getFrontier() != null) {
+            count += c.getFrontier().parkedUriCount();
+        }
         return count; 
     }
 
@@ -108,7 +173,16 @@ public class ToePool extends ThreadGroup implements Reporter {
     private Thread[] getToes() {
         Thread[] toes = new Thread[activeCount()+10];
         this.enumerate(toes);
-        return toes;
+        if (virtualToes.isEmpty()) {
+            return toes;
+        }
+        List<Thread> all = new ArrayList<Thread>(virtualToes);
+        for (Thread toe : toes) {
+            if (toe != null) {
+                all.add(toe);
+            }
+        }
+        return all.toArray(new Thread[all.size()]);
     }
 
     /**
@@ -176,9 +250,27 @@ public class ToePool extends ThreadGroup implements Reporter {
     }
 
     private synchronized void startNewThread() {
-        ToeThread newThread = new ToeThread(this, nextSerialNumber++);
-        newThread.setPriority(DEFAULT_TOE_PRIORITY);
-        newThread.start();
+        final ToeThread newThread = new ToeThread(this, nextSerialNumber++);
+        if (virtual) {
+            Thread runner = VirtualThreads.newThread(newThread.getName(), 
+                    new Runnable() {
+                public void run() {
+                    // not a member of the pool's (alert) ThreadGroup
+                    AlertThreadGroup.setThreadGroup(alertThreadGroup, newThread);
+                    try {
+                        newThread.run();
+                    } finally {
+                        virtualToes.remove(newThread);
+                    }
+                }
+            });
+            newThread.setRunner(runner);
+            virtualToes.add(newThread);
+            runner.start();
+        } else {
+            newThread.setPriority(DEFAULT_TOE_PRIORITY);
+            newThread.start();
+        }
     }
 
     /**
@@ -199,7 +291,11 @@ public class ToePool extends ThreadGroup implements Reporter {
         writer.print(" Job being crawled: "
                 + this.controller.getMetadata().getJobName() + "\n");
         writer.print(" Number of toe threads in pool: " + getToeCount() + " ("
-                + getActiveToeCount() + " active)\n\n");
+                + getActiveToeCount() + " active)\n");
+        if (recorderPool != null) {
+            recorderPool.reportTo(writer);
+        }
+        writer.print("\n");
         
         Thread[] toes = this.getToes();
         synchronized (toes) {
@@ -338,6 +434,9 @@ public class ToePool extends ThreadGroup implements Reporter {
     
     private static boolean isAllAlive(Thread[] threads) {
         for (Thread t: threads) {
+            if (t instanceof ToeThread) {
+                t = ((ToeThread) t).getRunner();
+            }
             if ((t != null) && (!t.isAlive())) {
                 return false;
             }
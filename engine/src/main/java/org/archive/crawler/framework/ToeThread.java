@@ -38,6 +38,7 @@ import org.archive.io.SinkHandlerLogThread;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.Processor;
 import org.archive.modules.ProcessorChain.ChainStatusReceiver;
+import org.archive.modules.extractor.HeavyExtractorPool;
 import org.archive.modules.fetcher.HostResolver;
 import org.archive.spring.KeyedProperties;
 import org.archive.util.ArchiveUtils;
@@ -69,16 +70,21 @@ implements Reporter, ProgressStatisticsReporter,
         Logger.getLogger("org.archive.crawler.framework.ToeThread");
 
     private CrawlController controller;
+    private RecorderPool recorderPool;
     private int serialNumber;
     
     /**
      * Each ToeThead has an instance of HttpRecord that gets used
-     * over and over by each request.
+     * over and over by each request -- or, if the ToePool shares a 
+     * RecorderPool, one borrowed from it for each request.
      * 
      * @see org.archive.util.RecorderMarker
      */
     private Recorder httpRecorder = null;
 
+    /** thread running this ToeThread's loop: itself, or a virtual thread */
+    private volatile Thread runner = this;
+
     // activity monitoring, debugging, and problem detection
     private Step step = Step.NASCENT;
     private long atStepSince;
@@ -108,13 +114,70 @@ implements Reporter, ProgressStatisticsReporter,
         super(g,"ToeThread #" + sn);
         coreName="ToeThread #" + sn + ": ";
         controller = g.getController();
+        recorderPool = g.getRecorderPool();
         serialNumber = sn;
         setPriority(DEFAULT_PRIORITY);
+        if (recorderPool == null) {
+            httpRecorder = createRecorder();
+        }
+        lastFinishTime = System.currentTimeMillis();
+    }
+
+    /** Recorders this thread has had to give up to abandoned work */
+    private int recordersGivenUp = 0;
+
+    /**
+     * Create a Recorder for this thread's own use, when not pooled.
+     */
+    protected Recorder createRecorder() {
         int outBufferSize = controller.getRecorderOutBufferBytes();
         int inBufferSize = controller.getRecorderInBufferBytes();
-        httpRecorder = new Recorder(controller.getScratchDir().getFile(),
-            "tt" + sn + "http", outBufferSize, inBufferSize);
-        lastFinishTime = System.currentTimeMillis();
+        String name = "tt" + serialNumber + "http";
+        if (recordersGivenUp > 0) {
+            name = name + "-" + recordersGivenUp;
+        }
+        return new Recorder(controller.getScratchDir().getFile(), name,
+                outBufferSize, inBufferSize);
+    }
+
+    /**
+     * Leave this thread's Recorder to abandoned work on a detached copy of
+     * the URI which may still be reading it (see CrawlURI#holdRecorder()),
+     * to be reset and returned, or closed, once that work ends; record
+     * the next URI with another.
+     */
+    protected void giveUpRecorder(CrawlURI curi) {
+        final Recorder held = httpRecorder;
+        final RecorderPool pool = recorderPool;
+        curi.whenRecorderFree(new Runnable() {
+            public void run() {
+                held.endReplays();
+                if (pool != null) {
+                    pool.release(held);
+                } else {
+                    held.closeRecorders();
+                }
+            }
+        });
+        recordersGivenUp++;
+        httpRecorder = (pool != null) ? null : createRecorder();
+        Recorder.setHttpRecorder(httpRecorder);
+    }
+
+    /**
+     * Set the (virtual) thread which is to run this ToeThread's loop, 
+     * instead of this thread itself being started.
+     */
+    protected void setRunner(Thread runner) {
+        this.runner = runner;
+    }
+
+    /**
+     * @return thread running this ToeThread's loop: itself, or a virtual
+     * thread
+     */
+    public Thread getRunner() {
+        return runner;
     }
 
     /** (non-Javadoc)
@@ -132,23 +195,44 @@ implements Reporter, ProgressStatisticsReporter,
                 setStep(Step.ABOUT_TO_GET_URI, null);
 
                 CrawlURI curi = controller.getFrontier().next();
+                // a URI resuming after being parked brings its own Recorder
+                boolean resumed = curi.getParkedBy() != null;
+                boolean parked = false;
+                if (recorderPool != null && !resumed) {
+                    httpRecorder = recorderPool.take();
+                    Recorder.setHttpRecorder(httpRecorder);
+                }
 
                 synchronized(this) {
                     setCurrentCuri(curi);
                     ArchiveUtils.continueCheck();
                     currentCuri.setThreadNumber(this.serialNumber);
                     lastStartTime = System.currentTimeMillis();
-                    currentCuri.setRecorder(httpRecorder);
+                    if (resumed) {
+                        Recorder.setHttpRecorder(currentCuri.getRecorder());
+                    } else {
+                        currentCuri.setRecorder(httpRecorder);
+                        currentCuri.setResumptionReceiver(controller.getFrontier());
+                    }
                 }
                 
                 try {
                     KeyedProperties.loadOverridesFrom(curi);
                     
-                    controller.getFetchChain().process(curi,this);
-                    
-                    controller.getFrontier().beginDisposition(curi);
+                    if (resumed) {
+                        controller.getFetchChain().resume(curi,this);
+                    } else {
+                        controller.getFetchChain().process(curi,this);
+                    }
                     
-                    controller.getDispositionChain().process(curi,this);
+                    if (curi.isParked()) {
+                        // set aside, still in process, until resumed
+                        parked = true;
+                    } else {
+                        controller.getFrontier().beginDisposition(curi);
+                        
+                        controller.getDispositionChain().process(curi,this);
+                    }
   
                 } catch (RuntimeExceptionWrapper e) {
                     // Workaround to get cause from BDB
@@ -175,7 +259,29 @@ implements Reporter, ProgressStatisticsReporter,
                     // OutOfMemory and any others
                     seriousError(err); 
                 } finally {
-                    httpRecorder.endReplays();
+                    if (!parked) {
+                        // extractions the CandidatesProcessor never merged
+                        // may still be reading the Recorder
+                        HeavyExtractorPool.abandonPendingExtractions(curi);
+                    }
+                    if (resumed) {
+                        final Recorder parkedRecorder = curi.getRecorder();
+                        Recorder.setHttpRecorder(httpRecorder);
+                        if (parked) {
+                            parkedRecorder.endReplays();
+                        } else {
+                            curi.whenRecorderFree(new Runnable() {
+                                public void run() {
+                                    parkedRecorder.endReplays();
+                                }
+                            });
+                            curi.parkingComplete();
+                        }
+                    } else if (curi.isRecorderHeld()) {
+                        giveUpRecorder(curi);
+                    } else if (httpRecorder != null) {
+                        httpRecorder.endReplays();
+                    }
                     KeyedProperties.clearOverridesFrom(curi); 
                 }
                 
@@ -183,10 +289,24 @@ implements Reporter, ProgressStatisticsReporter,
                 ArchiveUtils.continueCheck();
 
                 synchronized(this) {
-                    controller.getFrontier().finished(currentCuri);
+                    if (parked) {
+                        // counted as active until resumed
+                        controller.getFrontier().parked(currentCuri);
+                    } else {
+                        controller.getFrontier().finished(currentCuri);
+                    }
                     controller.getFrontier().endDisposition();
                     setCurrentCuri(null);
                 }
+                if (recorderPool != null && httpRecorder != null) {
+                    recorderPool.release(httpRecorder);
+                    httpRecorder = null;
+                    Recorder.setHttpRecorder(null);
+                }
+                if (parked) {
+                    // only now may another thread take it up
+                    curi.releaseParked();
+                }
                 curi = null;
                 
                 setStep(Step.FINISHING_PROCESS, null);
@@ -218,8 +338,13 @@ implements Reporter, ProgressStatisticsReporter,
 
         setCurrentCuri(null);
         // Do cleanup so that objects can be GC.
-        this.httpRecorder.closeRecorders();
+        if (recorderPool == null) {
+            this.httpRecorder.closeRecorders();
+        } else if (this.httpRecorder != null) {
+            recorderPool.release(this.httpRecorder);
+        }
         this.httpRecorder = null;
+        recorderPool = null;
 
         logger.fine(getName()+" finished for order '"+name+"'");
         setStep(Step.FINISHED, null);
@@ -231,10 +356,10 @@ implements Reporter, ProgressStatisticsReporter,
      * @param curi
      */
     private void setCurrentCuri(CrawlURI curi) {
-        if(curi==null) {
-            setName(coreName);
-        } else {
-            setName(coreName+curi);
+        String name = (curi == null) ? coreName : coreName + curi;
+        setName(name);
+        if (runner != this) {
+            runner.setName(name);
         }
         currentCuri = curi;
     }
@@ -374,7 +499,20 @@ implements Reporter, ProgressStatisticsReporter,
      */
     public boolean isActive() {
         // if alive and not waiting in/for frontier.next(), we're 'active'
-        return this.isAlive() && (currentCuri != null) && !isInterrupted();
+        return runner.isAlive() && (currentCuri != null) 
+                && !runner.isInterrupted();
+    }
+
+    /**
+     * Interrupt the thread running this ToeThread's loop.
+     */
+    @Override
+    public void interrupt() {
+        if (runner != this) {
+            runner.interrupt();
+        } else {
+            super.interrupt();
+        }
     }
     
     /**
@@ -457,7 +595,7 @@ implements Reporter, ProgressStatisticsReporter,
         pw.print(ArchiveUtils.formatMillisecondsToConventional(System.currentTimeMillis()-atStepSince));
         pw.println();
 
-        reportThread(this, pw);
+        reportThread(runner, pw);
         pw.print("]");
         pw.println();
         
@@ -472,9 +610,12 @@ implements Reporter, ProgressStatisticsReporter,
         ThreadMXBean tmxb = ManagementFactory.getThreadMXBean();
         ThreadInfo info = tmxb.getThreadInfo(t.getId());
         pw.print("Java Thread State: ");
-        pw.println(info.getThreadState());
+        // virtual threads are unknown to ThreadMXBean
+        pw.println(info != null ? info.getThreadState() : t.getState());
         pw.print("Blocked/Waiting On: ");
-        if (info.getLockOwnerId() >= 0) {
+        if (info == null) {
+            pw.println("UNKNOWN");
+        } else if (info.getLockOwnerId() >= 0) {
             pw.print(info.getLockName());
             pw.print(" which is owned by ");
             pw.print(info.getLockOwnerName());
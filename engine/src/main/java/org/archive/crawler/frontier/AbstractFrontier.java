@@ -41,6 +41,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
@@ -380,7 +383,7 @@ public abstract class AbstractFrontier
                         outboundLock.writeLock().lock();
                         // process all inbound
                         while (targetState == State.PAUSE) {
-                            if (getInProcessCount()==0) {
+                            if (getInProcessCount()==0 && parkedUriCount()==0) {
                                 reachedState(State.PAUSE);
                             }
                             
@@ -392,7 +395,7 @@ public abstract class AbstractFrontier
                         // prevent all outbound takes
                         outboundLock.writeLock().lock();
                         // process all inbound
-                        while (getInProcessCount()>0) {
+                        while (getInProcessCount()>0 || parkedUriCount()>0) {
                             Thread.sleep(250);
                         }
                         logger.fine("0 urls in process, running final tasks");
@@ -452,7 +455,16 @@ public abstract class AbstractFrontier
     public CrawlURI next() throws InterruptedException {
         CrawlURI crawlable = null;
         while(crawlable==null) {
-            outboundLock.readLock().lockInterruptibly();
+            // resumed URIs come first, even while outbound is held (as
+            // when pausing): they are still in process, and so awaited
+            crawlable = resumedUris.poll();
+            if(crawlable!=null) {
+                parkedUris.decrementAndGet();
+                break;
+            }
+            if(!outboundLock.readLock().tryLock(RESUMED_POLL_MS, TimeUnit.MILLISECONDS)) {
+                continue;
+            }
             // try filling outbound until we get something to work on
             crawlable = findEligibleURI();
             outboundLock.readLock().unlock();
@@ -460,6 +472,57 @@ public abstract class AbstractFrontier
         return crawlable;
     }
 
+    /** longest a thread held from outbound goes without checking resumedUris */
+    protected static final long RESUMED_POLL_MS = 250;
+
+    /**
+     * URIs parked by a Processor, now ready to resume processing
+     */
+    protected LinkedBlockingQueue<CrawlURI> resumedUris = 
+        new LinkedBlockingQueue<CrawlURI>();
+
+    /**
+     * URIs parked, whether or not yet resumed, and not since returned by
+     * next()
+     */
+    protected AtomicInteger parkedUris = new AtomicInteger(0);
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.framework.Frontier#parked(org.archive.modules.CrawlURI)
+     */
+    public void parked(CrawlURI curi) {
+        parkedUris.incrementAndGet();
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.framework.Frontier#parkedUriCount()
+     */
+    public int parkedUriCount() {
+        return parkedUris.get();
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.framework.Frontier#resume(org.archive.modules.CrawlURI)
+     */
+    public void resume(CrawlURI curi) {
+        resumedUris.add(curi);
+        synchronized (resumedUris) {
+            resumedUris.notifyAll();
+        }
+    }
+
+    /**
+     * Wait up to the given time for a parked URI to be resumed; for use
+     * in place of an idle sleep when no other URI is ready.
+     */
+    protected void awaitResumed(long millis) throws InterruptedException {
+        synchronized (resumedUris) {
+            if (resumedUris.isEmpty()) {
+                resumedUris.wait(millis);
+            }
+        }
+    }
+
     /**
      * Find a CrawlURI eligible to be put on the outbound queue for 
      * processing. If none, return null. 
@@ -27,7 +27,6 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.DelayQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,6 +45,7 @@ import org.archive.modules.CrawlURI;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.ObjectIdentityCache;
 import org.archive.util.Supplier;
+import org.archive.util.TimingWheel;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -103,6 +103,58 @@ implements Checkpointable, BeanNameAware {
         this.dumpPendingAtClose = dumpPendingAtClose;
     }
 
+    /**
+     * Number of independent shards across which the ready-queues list is
+     * split. The default of 1 keeps a single shared queue; on many-core
+     * machines running many hundreds of ToeThreads, a value near the number
+     * of cores reduces contention among threads seeking their next URI.
+     * Shards are not persisted separately, so this may be changed between
+     * checkpoint and resume.
+     */
+    protected int readyQueueShards = 1;
+    public int getReadyQueueShards() {
+        return readyQueueShards;
+    }
+    public void setReadyQueueShards(int readyQueueShards) {
+        this.readyQueueShards = readyQueueShards;
+    }
+
+    /**
+     * Whether to store queued CrawlURIs with the compact, schema-based
+     * CrawlURICodec rather than Kryo. Typically halves the size of each
+     * stored URI, and with it BDB log volume, cleaner work and cache
+     * pressure. Kryo-encoded entries (as from an older checkpoint) remain
+     * readable, and are rewritten compactly as they are requeued.
+     * Checkpoints taken with this enabled cannot be resumed with it
+     * disabled.
+     */
+    protected boolean compactCrawlUriEncoding = false;
+    public boolean getCompactCrawlUriEncoding() {
+        return compactCrawlUriEncoding;
+    }
+    public void setCompactCrawlUriEncoding(boolean compactCrawlUriEncoding) {
+        this.compactCrawlUriEncoding = compactCrawlUriEncoding;
+    }
+
+    /**
+     * Number of upcoming URIs each active queue holds in memory, read from
+     * the pending-URIs database with a single cursor scan, so that most
+     * URIs emitted from busy queues need no individual BDB lookup. 
+     * A higher-precedence insert cuts the window short, so it is read in
+     * its turn; the window is discarded when a queue is deactivated or
+     * retired, or a URI is returned to it for retry. The 
+     * default of 1 reads each URI individually as it reaches the queue
+     * front. Values of 5-20 suit crawls with a modest number of active
+     * queues; memory use grows with (active queues x this value).
+     */
+    protected int headPrefetchSize = 1;
+    public int getHeadPrefetchSize() {
+        return headPrefetchSize;
+    }
+    public void setHeadPrefetchSize(int headPrefetchSize) {
+        this.headPrefetchSize = headPrefetchSize;
+    }
+
     /* (non-Javadoc)
      * @see org.archive.crawler.frontier.WorkQueueFrontier#getInactiveQueuesByPrecedence()
      */
@@ -137,7 +189,8 @@ implements Checkpointable, BeanNameAware {
         // before a page-out is required need never cause disk IO.
         db = bdb.openDatabase("pending", dbConfig, recycle);
         
-        return new BdbMultipleWorkQueues(db, bdb.getClassCatalog());
+        return new BdbMultipleWorkQueues(db, bdb.getClassCatalog(),
+                compactCrawlUriEncoding);
     }
 
 
@@ -224,6 +277,9 @@ implements Checkpointable, BeanNameAware {
     
     public void startCheckpoint(Checkpoint checkpointInProgress) {
         dispositionInProgressLock.writeLock().lock();
+        // future URIs held in memory must be in the futureUris db to
+        // be part of the checkpoint
+        futureUriWheel.spillAll();
     }
 
     public void doCheckpoint(Checkpoint checkpointInProgress) {
@@ -337,20 +393,31 @@ implements Checkpointable, BeanNameAware {
         
         // tiny risk of OutOfMemoryError: if giant number of snoozed
         // queues all wake-to-ready at once
-        readyClassQueues = new LinkedBlockingQueue<String>();
+        if (getReadyQueueShards() > 1) {
+            readyClassQueues = new ShardedReadyQueue(getReadyQueueShards());
+        } else {
+            readyClassQueues = new LinkedBlockingQueue<String>();
+        }
 
         inactiveQueuesByPrecedence = new ConcurrentSkipListMap<Integer,Queue<String>>();
         
         retiredQueues = bdb.getStoredQueue("retiredQueues", String.class, recycle);
 
-        // primary snoozed queues
-        snoozedClassQueues = new DelayQueue<DelayedWorkQueue>();
-        // just in case: overflow for extreme situations
+        // overflow for snoozes beyond wheel horizon (~46 hours) or 
+        // memory limit
         snoozedOverflow = bdb.getStoredMap(
                 "snoozedOverflow", Long.class, DelayedWorkQueue.class, true, false);
+        // primary snoozed queues
+        snoozedClassQueues = new TimingWheel<DelayedWorkQueue>(
+                SNOOZE_TICK_MS, 8, 3, MAX_SNOOZED_IN_MEMORY, 
+                snoozedOverflow, System.currentTimeMillis());
             
         this.futureUris = bdb.getStoredMap(
                 "futureUris", Long.class, CrawlURI.class, true, recoveryCheckpoint!=null);
+        // next ~18 hours of future URIs in memory
+        this.futureUriWheel = new TimingWheel<CrawlURI>(
+                FUTURE_URI_TICK_MS, 8, 2, MAX_FUTURE_URIS_IN_MEMORY,
+                futureUris, System.currentTimeMillis());
         
         // initialize master map in which other queues live
         this.pendingUris = createMultipleWorkQueues();
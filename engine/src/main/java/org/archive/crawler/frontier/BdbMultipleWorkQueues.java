@@ -23,6 +23,7 @@ import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -79,10 +80,25 @@ public class BdbMultipleWorkQueues {
      */
     public BdbMultipleWorkQueues(Database db,
         StoredClassCatalog classCatalog)
+    throws DatabaseException {
+        this(db, classCatalog, false);
+    }
+
+    /**
+     * Create the multi queue in the given environment. 
+     * 
+     * @param compactEncoding if true, store CrawlURIs with the compact
+     * CrawlURICodec (still reading any Kryo-encoded entries); otherwise 
+     * with Kryo
+     * @throws DatabaseException
+     */
+    public BdbMultipleWorkQueues(Database db,
+        StoredClassCatalog classCatalog, boolean compactEncoding)
     throws DatabaseException {
         this.pendingUrisDB = db;
-        crawlUriBinding =
-              new KryoBinding<CrawlURI>(CrawlURI.class);
+        crawlUriBinding = compactEncoding
+            ? new CompactCrawlURIBinding()
+            : new KryoBinding<CrawlURI>(CrawlURI.class);
 //            new RecyclingSerialBinding<CrawlURI>(classCatalog, CrawlURI.class);
 //            new BenchmarkingBinding<CrawlURI>(new EntryBinding[] {
 //                new KryoBinding<CrawlURI>(CrawlURI.class,true),
@@ -286,6 +302,53 @@ public class BdbMultipleWorkQueues {
         return retVal;
     }
     
+    /**
+     * Read up to max items from the front of the queue beginning at the
+     * given origin key, in queue order, with a single cursor scan. Each 
+     * returned CrawlURI has its holder key set, as by {@link #get}.
+     * 
+     * @param origin origin key (queue 'cap') of the queue to read
+     * @param max maximum number of items to read
+     * @param into list to which read items are appended
+     * @return true if the scan reached the end of the queue (so that
+     * every item of the queue is now in the list)
+     * @throws DatabaseException
+     */
+    public boolean getHeadItems(byte[] origin, int max, List<CrawlURI> into)
+    throws DatabaseException {
+        DatabaseEntry key = new DatabaseEntry(origin);
+        DatabaseEntry value = new DatabaseEntry();
+        Cursor cursor = null;
+        try {
+            cursor = this.pendingUrisDB.openCursor(null, null);
+            OperationStatus status = cursor.getSearchKey(key, value, null);
+            if (status != OperationStatus.SUCCESS 
+                    || value.getData().length > 0) {
+                LOGGER.severe("bdb queue cap missing or nonempty: " 
+                        + status + " " + BdbWorkQueue.getPrefixClassKey(origin));
+                return false;
+            }
+            int read = 0;
+            while (read < max) {
+                status = cursor.getNext(key, value, null);
+                if (status != OperationStatus.SUCCESS
+                        || !ArchiveUtils.startsWith(key.getData(), origin)) {
+                    // rolled into next queue (or end of db)
+                    return true;
+                }
+                CrawlURI curi = crawlUriBinding.entryToObject(value);
+                curi.setHolderKey(new DatabaseEntry(key.getData().clone()));
+                into.add(curi);
+                read++;
+            }
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     protected OperationStatus getNextNearestItem(DatabaseEntry headKey,
             DatabaseEntry result) throws DatabaseException {
         Cursor cursor = null;
@@ -560,6 +623,41 @@ public class BdbMultipleWorkQueues {
         cursor.close(); 
     }
 
+    /**
+     * Rewrite every pending CrawlURI not already in the current binding's
+     * compact encoding, as a one-time migration of a Kryo-encoded frontier 
+     * (eg from the scripting console) rather than waiting for entries to
+     * be rewritten as they are rescheduled. 
+     * 
+     * @return number of entries rewritten
+     * @throws DatabaseException
+     */
+    public long reencodeAll() throws DatabaseException {
+        if (!(crawlUriBinding instanceof CompactCrawlURIBinding)) {
+            return 0;
+        }
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry value = new DatabaseEntry();
+        long rewritten = 0;
+        Cursor cursor = pendingUrisDB.openCursor(null, null);
+        try {
+            while (cursor.getNext(key, value, null) == OperationStatus.SUCCESS) {
+                if (value.getData().length == 0 
+                        || CompactCrawlURIBinding.isCompact(value)) {
+                    continue;
+                }
+                CrawlURI item = crawlUriBinding.entryToObject(value);
+                crawlUriBinding.objectToEntry(item, value);
+                cursor.putCurrent(value);
+                rewritten++;
+            }
+        } finally {
+            cursor.close();
+        }
+        LOGGER.info("re-encoded " + rewritten + " pending CrawlURIs");
+        return rewritten;
+    }
+
     /**
      * Run through all uris in the pending uris database and write them to the writer.
      * @param writer destination writer for writting all the uris
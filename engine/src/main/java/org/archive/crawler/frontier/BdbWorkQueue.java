@@ -21,7 +21,11 @@ package org.archive.crawler.frontier;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +37,7 @@ import org.archive.util.ArchiveUtils;
 
 import com.sleepycat.je.DatabaseEntry;
 import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.tree.Key;
 
 
 /**
@@ -52,6 +57,16 @@ implements Serializable {
      */
     private byte[] origin;
 
+    /**
+     * In-memory copy of the next items of the queue, in queue order, 
+     * when BdbFrontier's headPrefetchSize is over 1. Holds only items as
+     * read from the database, each handed out at most once: cut short by
+     * inserts that sort within it, so that the next read sees them; 
+     * dropped when a peeked item is returned still in the queue, and 
+     * when the queue is deactivated or retired. Not persisted. 
+     */
+    transient private LinkedList<CrawlURI> headWindow;
+
     /**
      * Create a virtual queue inside the given BdbMultipleWorkQueues 
      * 
@@ -73,6 +88,7 @@ implements Serializable {
         try {
             final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
                 .getWorkQueues();
+            clearHeadWindow();
             return queues.deleteMatchingFromQueue(match, classKey,
                 new DatabaseEntry(origin));
         } catch (DatabaseException e) {
@@ -86,6 +102,7 @@ implements Serializable {
             final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
                 .getWorkQueues();
              queues.delete(peekItem);
+             removeFromHeadWindow(peekItem);
         } catch (DatabaseException e) {
             throw new IOException(e);
         }
@@ -95,6 +112,14 @@ implements Serializable {
     throws IOException {
         final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
             .getWorkQueues();
+        int prefetch = ((BdbFrontier) frontier).getHeadPrefetchSize();
+        if (prefetch > 1) {
+            CrawlURI curi = peekHeadWindow(queues, prefetch);
+            if (curi != null) {
+                return curi;
+            }
+            // fall through to single-item get, with its retries
+        }
         DatabaseEntry key = new DatabaseEntry(origin);
         CrawlURI curi = null;
         int tries = 1;
@@ -142,6 +167,7 @@ implements Serializable {
             final BdbMultipleWorkQueues queues = ((BdbFrontier) frontier)
                 .getWorkQueues();
             queues.put(curi, overwriteIfPresent);
+            noteInsertInHeadWindow(curi);
             if (LOGGER.isLoggable(Level.FINE)) {
                 LOGGER.fine("Inserted into " + getPrefixClassKey(this.origin) +
                     " (count " + Long.toString(getCount())+ "): " +
@@ -152,6 +178,124 @@ implements Serializable {
         }
     }
     
+    /**
+     * Return the first item of the head window, refilling it with one
+     * cursor scan if empty.
+     * 
+     * @return first queue item, or null if none could be read
+     */
+    protected synchronized CrawlURI peekHeadWindow(BdbMultipleWorkQueues queues,
+            int prefetch) {
+        if (headWindow == null) {
+            headWindow = new LinkedList<CrawlURI>();
+        }
+        if (headWindow.isEmpty()) {
+            int max = (int) Math.min(prefetch, getCount());
+            if (max <= 0) {
+                return null;
+            }
+            ArrayList<CrawlURI> items = new ArrayList<CrawlURI>(max);
+            try {
+                queues.getHeadItems(origin, max, items);
+            } catch (DatabaseException e) {
+                LOGGER.log(Level.SEVERE, "head prefetch failure", e);
+                return null;
+            }
+            headWindow.addAll(items);
+        }
+        return headWindow.peekFirst();
+    }
+
+    /**
+     * Keep the head window coherent with a just-inserted (or rewritten)
+     * item: if it sorts within the window (as when of higher precedence
+     * or scheduling priority), cut the window short before it, so that
+     * it is read back from the database in its turn. The caller's
+     * instance is never kept. 
+     */
+    protected synchronized void noteInsertInHeadWindow(CrawlURI curi) {
+        if (headWindow == null || headWindow.isEmpty()) {
+            // next peek will scan
+            return;
+        }
+        byte[] insertKey = keyOf(curi);
+        for (ListIterator<CrawlURI> iter = headWindow.listIterator();
+                iter.hasNext(); ) {
+            if (Key.compareKeys(insertKey, keyOf(iter.next()), null) <= 0) {
+                iter.previous();
+                while (iter.hasNext()) {
+                    iter.next();
+                    iter.remove();
+                }
+                return;
+            }
+        }
+    }
+
+    protected synchronized void removeFromHeadWindow(CrawlURI curi) {
+        if (headWindow == null) {
+            return;
+        }
+        byte[] deleteKey = keyOf(curi);
+        for (Iterator<CrawlURI> iter = headWindow.iterator(); iter.hasNext(); ) {
+            if (Key.compareKeys(deleteKey, keyOf(iter.next()), null) == 0) {
+                iter.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drop any prefetched items, releasing their memory.
+     */
+    protected synchronized void clearHeadWindow() {
+        headWindow = null;
+    }
+
+    private static byte[] keyOf(CrawlURI curi) {
+        return ((DatabaseEntry) curi.getHolderKey()).getData();
+    }
+
+    /**
+     * Also drop the head window if the forgiven item is still in it: it
+     * may have been changed in processing, and the next peek must read
+     * the item afresh. 
+     */
+    @Override
+    public synchronized void unpeek(CrawlURI expected) {
+        CrawlURI peeked = peekItem;
+        super.unpeek(expected);
+        if (peeked == null || headWindow == null) {
+            return;
+        }
+        for (CrawlURI item : headWindow) {
+            if (item == peeked) {
+                clearHeadWindow();
+                return;
+            }
+        }
+    }
+
+    @Override
+    protected void setRetired(boolean b) {
+        super.setRetired(b);
+        if (b) {
+            clearHeadWindow();
+        }
+    }
+
+    @Override
+    public synchronized void noteDeactivated() {
+        super.noteDeactivated();
+        clearHeadWindow();
+    }
+
+    @Override
+    public synchronized void noteExhausted() {
+        super.noteExhausted();
+        clearHeadWindow();
+    }
+
     /**
      * @param byteArray Byte array to get hex string of.
      * @return Hex string of passed in byte array (Used logging
@@ -0,0 +1,143 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.archive.bdb.KryoBinding;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.extractor.HTMLLinkContext;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.net.UURI;
+import org.archive.net.UURIFactory;
+
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Compare the stored size and encode/decode time of queued CrawlURIs
+ * under KryoBinding and CompactCrawlURIBinding.
+ *
+ * Usage: BenchmarkCrawlURIBindings [uri-per-line-file] [rounds]
+ *
+ * Without a file, synthetic URIs are used. Each URI is given the state a
+ * typical queued CrawlURI has: via, via-context, hop path, class key,
+ * precedence, ordinal, canonical string and heritable source tag.
+ */
+public class BenchmarkCrawlURIBindings {
+
+    public static void main(String[] args) throws IOException {
+        List<CrawlURI> curis = (args.length > 0)
+            ? loadCrawlURIs(args[0])
+            : syntheticCrawlURIs(100000);
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        System.out.println(curis.size() + " CrawlURIs, " + rounds + " rounds");
+        run("kryo", new KryoBinding<CrawlURI>(CrawlURI.class), curis, rounds);
+        run("compact", new CompactCrawlURIBinding(), curis, rounds);
+    }
+
+    protected static void run(String name, EntryBinding<CrawlURI> binding,
+            List<CrawlURI> curis, int rounds) {
+        DatabaseEntry[] entries = new DatabaseEntry[curis.size()];
+        long bytes = 0;
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int round = 0; round < rounds; round++) {
+            // first round warms up, and is not counted
+            long start = System.nanoTime();
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = new DatabaseEntry();
+                binding.objectToEntry(curis.get(i), entries[i]);
+            }
+            long mid = System.nanoTime();
+            for (int i = 0; i < entries.length; i++) {
+                binding.entryToObject(entries[i]);
+            }
+            long end = System.nanoTime();
+            if (round > 0) {
+                encodeNanos += mid - start;
+                decodeNanos += end - mid;
+            }
+        }
+        for (DatabaseEntry e : entries) {
+            bytes += e.getSize();
+        }
+        long ops = (long) entries.length * Math.max(1, rounds - 1);
+        System.out.println(name + ": "
+                + (bytes / entries.length) + " bytes/URI, "
+                + (encodeNanos / ops) + " ns encode, "
+                + (decodeNanos / ops) + " ns decode");
+    }
+
+    protected static List<CrawlURI> loadCrawlURIs(String filename)
+    throws IOException {
+        List<CrawlURI> curis = new ArrayList<CrawlURI>();
+        BufferedReader br = new BufferedReader(new FileReader(filename));
+        try {
+            String line;
+            UURI via = null;
+            while ((line = br.readLine()) != null) {
+                UURI u;
+                try {
+                    u = UURIFactory.getInstance(line.trim());
+                } catch (IOException e) {
+                    continue;
+                }
+                curis.add(typicalCrawlURI(u, via, curis.size()));
+                via = u;
+            }
+        } finally {
+            br.close();
+        }
+        return curis;
+    }
+
+    protected static List<CrawlURI> syntheticCrawlURIs(int count)
+    throws IOException {
+        List<CrawlURI> curis = new ArrayList<CrawlURI>(count);
+        UURI via = null;
+        for (int i = 0; i < count; i++) {
+            UURI u = UURIFactory.getInstance("http://www" + (i % 97)
+                    + ".example.com/section" + (i % 13) + "/page-" + i
+                    + ".html?ref=" + (i % 7));
+            curis.add(typicalCrawlURI(u, via, i));
+            via = u;
+        }
+        return curis;
+    }
+
+    protected static CrawlURI typicalCrawlURI(UURI u, UURI via, long ordinal)
+    throws IOException {
+        LinkContext context = (ordinal % 5 == 0)
+            ? HTMLLinkContext.IMG_SRC : HTMLLinkContext.A_HREF;
+        CrawlURI curi = new CrawlURI(u, "LLL" + ((ordinal % 5 == 0) ? "E" : "L"),
+                via, context);
+        curi.setClassKey(u.getHostBasename() + ",");
+        curi.setPrecedence(1);
+        curi.setOrdinal(ordinal);
+        curi.setCanonicalString(u.toString().replace("http://www", "http://"));
+        curi.setPolitenessDelay(3000);
+        curi.setSourceTag("http://seed.example.com/");
+        return curi;
+    }
+}
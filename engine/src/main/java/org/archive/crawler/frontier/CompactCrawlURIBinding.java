@@ -0,0 +1,79 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.frontier;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.archive.bdb.KryoBinding;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.CrawlURICodec;
+
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Binding writing CrawlURIs with the compact {@link CrawlURICodec}, but
+ * still reading entries written by the {@link KryoBinding}, so that a
+ * frontier begun (or checkpointed) with Kryo encoding may be resumed with
+ * this binding. Legacy entries are rewritten compactly whenever they are
+ * next put, as on every reschedule; see also
+ * {@link BdbMultipleWorkQueues#reencodeAll()}.
+ */
+public class CompactCrawlURIBinding implements EntryBinding<CrawlURI> {
+    protected CrawlURICodec codec = new CrawlURICodec();
+    protected KryoBinding<CrawlURI> legacy;
+    protected AtomicLong legacyReads = new AtomicLong();
+
+    public CompactCrawlURIBinding() {
+        super();
+    }
+
+    protected synchronized KryoBinding<CrawlURI> getLegacyBinding() {
+        if (legacy == null) {
+            legacy = new KryoBinding<CrawlURI>(CrawlURI.class);
+        }
+        return legacy;
+    }
+
+    /**
+     * @return count of entries read which were in the older Kryo encoding
+     */
+    public long getLegacyReads() {
+        return legacyReads.get();
+    }
+
+    public static boolean isCompact(DatabaseEntry entry) {
+        return CrawlURICodec.isCompact(entry.getData());
+    }
+
+    @Override
+    public void objectToEntry(CrawlURI curi, DatabaseEntry entry) {
+        entry.setData(codec.encode(curi));
+    }
+
+    @Override
+    public CrawlURI entryToObject(DatabaseEntry entry) {
+        byte[] data = entry.getData();
+        if (CrawlURICodec.isCompact(data)) {
+            return codec.decode(data);
+        }
+        legacyReads.incrementAndGet();
+        return getLegacyBinding().entryToObject(entry);
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.crawler.frontier;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BlockingQueue of ready queue names split into several independent
+ * LinkedBlockingQueue shards, to relieve the contention of many worker
+ * threads all polling a single readyClassQueues.
+ *
+ * Names are placed in a shard chosen by hash of the classKey, so a given
+ * queue always lands in the same shard. Each taking thread is given a
+ * 'home' shard, round-robin in order of first use so that threads spread
+ * evenly, and steals from the other shards in turn when its home shard
+ * is empty. Ordering is FIFO within each shard only;
+ * across shards it is approximately round-robin, which is all
+ * WorkQueueFrontier requires of its ready queue.
+ */
+public class ShardedReadyQueue extends AbstractQueue<String>
+implements BlockingQueue<String> {
+    /** longest single blocking wait on the home shard before rescanning
+     * the other shards, in ms */
+    protected static final long STEAL_RESCAN_MS = 10;
+
+    protected LinkedBlockingQueue<String>[] shards;
+
+    /** next home shard to hand out */
+    protected AtomicInteger nextHome = new AtomicInteger();
+    protected ThreadLocal<Integer> home = new ThreadLocal<Integer>() {
+        protected Integer initialValue() {
+            return (nextHome.getAndIncrement() & 0x7fffffff) % shards.length;
+        }
+    };
+
+    /** names taken from other than the taker's home shard */
+    protected AtomicLong stealCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public ShardedReadyQueue(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be >= 1: "
+                    + shardCount);
+        }
+        shards = new LinkedBlockingQueue[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new LinkedBlockingQueue<String>();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param classKey queue name
+     * @return index of the shard which holds the given queue name
+     */
+    protected int shardFor(String classKey) {
+        int h = classKey.hashCode();
+        // spread high bits, as in HashMap
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    /**
+     * @return index of the shard the current thread should poll first
+     */
+    protected int homeShard() {
+        return home.get();
+    }
+
+    /**
+     * @return number of names taken by a thread from other than its home
+     * shard
+     */
+    public long getStealCount() {
+        return stealCount.get();
+    }
+
+    public boolean offer(String classKey) {
+        return shards[shardFor(classKey)].offer(classKey);
+    }
+
+    public void put(String classKey) throws InterruptedException {
+        shards[shardFor(classKey)].put(classKey);
+    }
+
+    public boolean offer(String classKey, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return shards[shardFor(classKey)].offer(classKey, timeout, unit);
+    }
+
+    /**
+     * Poll the home shard, then every other shard in turn.
+     *
+     * @return a queue name, or null if all shards are empty
+     */
+    public String poll() {
+        int home = homeShard();
+        for (int i = 0; i < shards.length; i++) {
+            String key = shards[(home + i) % shards.length].poll();
+            if (key != null) {
+                if (i > 0) {
+                    stealCount.incrementAndGet();
+                }
+                return key;
+            }
+        }
+        return null;
+    }
+
+    public String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        LinkedBlockingQueue<String> home = shards[homeShard()];
+        while (true) {
+            String key = poll();
+            if (key != null) {
+                return key;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            // wait briefly on home shard, then rescan others for work to steal
+            key = home.poll(
+                    Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(STEAL_RESCAN_MS)),
+                    TimeUnit.NANOSECONDS);
+            if (key != null) {
+                return key;
+            }
+        }
+    }
+
+    public String take() throws InterruptedException {
+        String key;
+        while ((key = poll(STEAL_RESCAN_MS, TimeUnit.MILLISECONDS)) == null) {
+            // keep waiting
+        }
+        return key;
+    }
+
+    public String peek() {
+        int home = homeShard();
+        for (int i = 0; i < shards.length; i++) {
+            String key = shards[(home + i) % shards.length].peek();
+            if (key != null) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    public int drainTo(Collection<? super String> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super String> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        for (int i = 0; i < shards.length && drained < maxElements; i++) {
+            drained += shards[i].drainTo(c, maxElements - drained);
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (LinkedBlockingQueue<String> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (LinkedBlockingQueue<String> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return (o instanceof String) && shards[shardFor((String) o)].contains(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return (o instanceof String) && shards[shardFor((String) o)].remove(o);
+    }
+
+    @Override
+    public void clear() {
+        for (LinkedBlockingQueue<String> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    /**
+     * Weakly-consistent iterator over all shards in shard order, as used
+     * for reporting and checkpointing.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            int shard = 0;
+            Iterator<String> current = shards[0].iterator();
+            Iterator<String> last = null;
+
+            public boolean hasNext() {
+                while (!current.hasNext()) {
+                    if (++shard >= shards.length) {
+                        return false;
+                    }
+                    current = shards[shard].iterator();
+                }
+                return true;
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                last = current;
+                return current.next();
+            }
+
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                last.remove();
+                last = null;
+            }
+        };
+    }
+}
@@ -35,6 +35,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Queue;
@@ -42,10 +43,6 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -58,10 +55,14 @@ import org.archive.crawler.frontier.precedence.BaseQueuePrecedencePolicy;
 import org.archive.crawler.frontier.precedence.QueuePrecedencePolicy;
 import org.archive.crawler.util.TopNSet;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.DnsPrefetcher;
 import org.archive.spring.KeyedProperties;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.ObjectIdentityCache;
 import org.archive.util.ObjectIdentityMemCache;
+import org.archive.util.ReportUtils;
+import org.archive.util.Reporter;
+import org.archive.util.TimingWheel;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
@@ -195,15 +196,24 @@ implements Closeable,
         Collections.newSetFromMap(new ConcurrentHashMap<WorkQueue, Boolean>()); // of ClassKeyQueue
     
     /**
-     * All per-class queues held in snoozed state, sorted by wake time.
+     * All per-class queues held in snoozed state, by wake time. Those 
+     * beyond the wheel's horizon or memory limit are held in 
+     * snoozedOverflow.
      */
-    transient protected DelayQueue<DelayedWorkQueue> snoozedClassQueues;
+    transient protected TimingWheel<DelayedWorkQueue> snoozedClassQueues;
     protected StoredSortedMap<Long,DelayedWorkQueue> snoozedOverflow; 
-    protected AtomicInteger snoozedOverflowCount = new AtomicInteger(0); 
     protected static int MAX_SNOOZED_IN_MEMORY = 10000; 
+    /** granularity of snoozes; wakes may be up to this late */
+    protected static long SNOOZE_TICK_MS = 10;
     
-    /** URIs scheduled to be re-enqueued at future date */
+    /** 
+     * URIs scheduled to be re-enqueued at future date; those nearest
+     * in time are held in memory by futureUriWheel, the rest in futureUris
+     */
+    transient protected TimingWheel<CrawlURI> futureUriWheel;
     protected StoredSortedMap<Long, CrawlURI> futureUris; 
+    protected static int MAX_FUTURE_URIS_IN_MEMORY = 10000; 
+    protected static long FUTURE_URI_TICK_MS = 1000;
     
     /** remember keys of small number of largest queues for reporting */
     transient protected TopNSet largestQueues = new TopNSet(20);
@@ -232,6 +242,17 @@ implements Closeable,
         this.uriUniqFilter = uriUniqFilter;
     }
 
+    /** optional resolver of hosts of newly filled queues, ahead of their
+     * dns: prerequisites */
+    protected DnsPrefetcher dnsPrefetcher;
+    public DnsPrefetcher getDnsPrefetcher() {
+        return this.dnsPrefetcher;
+    }
+    @Autowired(required=false)
+    public void setDnsPrefetcher(DnsPrefetcher dnsPrefetcher) {
+        this.dnsPrefetcher = dnsPrefetcher;
+    }
+
     /**
      * Constructor.
      */
@@ -387,6 +408,7 @@ implements Closeable,
 //        assert Thread.currentThread() == managerThread;
         
         WorkQueue wq = getQueueFor(curi.getClassKey());
+        boolean newlyFilled = false;
         synchronized(wq) {
             int originalPrecedence = wq.getPrecedence();
             wq.enqueue(this, curi);
@@ -398,7 +420,8 @@ implements Closeable,
             if(!wq.isRetired()) {
                 incrementQueuedUriCount();
                 int currentPrecedence = wq.getPrecedence();
-                if(!wq.isManaged() || currentPrecedence < originalPrecedence) {
+                newlyFilled = !wq.isManaged();
+                if(newlyFilled || currentPrecedence < originalPrecedence) {
                     // queue newly filled or bumped up in precedence; ensure enqueuing
                     // at precedence level (perhaps duplicate; if so that's handled elsewhere)
                     deactivateQueue(wq);
@@ -408,6 +431,10 @@ implements Closeable,
             doJournalAdded(curi);
             wq.makeDirty();
         }
+        if (newlyFilled && dnsPrefetcher != null) {
+            // start resolving the host while the queue waits its turn
+            dnsPrefetcher.prefetch(curi);
+        }
         largestQueues.update(wq.getClassKey(), wq.getCount());
     }
 
@@ -722,12 +749,12 @@ implements Closeable,
                 uriUniqFilter.requestFlush();
             }
             
-            // if truly nothing ready, wait a moment before returning null
-            // so that loop in surrounding next() has a chance of getting something
-            // next time
+            // if truly nothing ready, wait a moment (or until a parked URI
+            // resumes) before returning null so that loop in surrounding 
+            // next() has a chance of getting something next time
             if(getTotalEligibleInactiveQueues()==0) {
                 try {
-                    Thread.sleep(250);
+                    awaitResumed(250);
                 } catch (InterruptedException e) {
                     // 
                 } 
@@ -741,21 +768,12 @@ implements Closeable,
      * Check for any future-scheduled URIs now eligible for reenqueuing
      */
     protected void checkFutures() {
-//        assert Thread.currentThread() == managerThread;
-        // TODO: consider only checking this every set interval
-        if(!futureUris.isEmpty()) {
-            synchronized(futureUris) {
-                Iterator<CrawlURI> iter = 
-                    futureUris.headMap(System.currentTimeMillis())
-                        .values().iterator();
-                while(iter.hasNext()) {
-                    CrawlURI curi = iter.next();
-                    curi.setRescheduleTime(-1); // unless again set elsewhere
-                    iter.remove();
-                    futureUriCount.decrementAndGet();
-                    receive(curi);
-                }
-            }
+        ArrayList<CrawlURI> due = new ArrayList<CrawlURI>();
+        futureUriWheel.advance(System.currentTimeMillis(), due);
+        for (CrawlURI curi : due) {
+            curi.setRescheduleTime(-1); // unless again set elsewhere
+            futureUriCount.decrementAndGet();
+            receive(curi);
         }
     }
     
@@ -843,8 +861,10 @@ implements Closeable,
      */
     @Override
     protected long getMaxInWait() {
-        Delayed next = snoozedClassQueues.peek();
-        return next == null ? 60000 : next.getDelay(TimeUnit.MILLISECONDS);
+        long next = snoozedClassQueues.nextReleaseTime();
+        return next == Long.MAX_VALUE 
+            ? 60000 
+            : Math.max(0, next - System.currentTimeMillis());
     }
 
     /**
@@ -853,60 +873,34 @@ implements Closeable,
      * put all queues in slow-retry-snoozes back to busy-ness. 
      */
     public void forceWakeQueues() {
-        Iterator<DelayedWorkQueue> iterSnoozed = snoozedClassQueues.iterator();
-        while(iterSnoozed.hasNext()) {
-            WorkQueue queue = iterSnoozed.next().getWorkQueue(WorkQueueFrontier.this);
+        ArrayList<DelayedWorkQueue> all = new ArrayList<DelayedWorkQueue>();
+        snoozedClassQueues.drainAll(all);
+        for (DelayedWorkQueue dq : all) {
+            WorkQueue queue = dq.getWorkQueue(WorkQueueFrontier.this);
             synchronized(queue) {
                 queue.setWakeTime(0);
                 reenqueueQueue(queue);
                 queue.makeDirty();
             }
-            iterSnoozed.remove(); 
-        }
-        Iterator<DelayedWorkQueue> iterOverflow = snoozedOverflow.values().iterator();
-        while(iterOverflow.hasNext()) {
-            WorkQueue queue = iterOverflow.next().getWorkQueue(WorkQueueFrontier.this);
-            synchronized(queue) {
-                queue.setWakeTime(0);
-                reenqueueQueue(queue);
-                queue.makeDirty();
-            }
-            iterOverflow.remove(); 
-            snoozedOverflowCount.decrementAndGet();
         }
     }
     
     /**
      * Wake any queues sitting in the snoozed queue whose time has come.
+     * The timing wheel releases, in one batch, all queues due since
+     * the last tick processed. 
      */
     protected void wakeQueues() {
-        DelayedWorkQueue waked; 
-        while((waked = snoozedClassQueues.poll())!=null) {
-            WorkQueue queue = waked.getWorkQueue(this);
+        ArrayList<DelayedWorkQueue> waked = new ArrayList<DelayedWorkQueue>();
+        snoozedClassQueues.advance(System.currentTimeMillis(), waked);
+        for (DelayedWorkQueue dq : waked) {
+            WorkQueue queue = dq.getWorkQueue(this);
             synchronized(queue) {
                 queue.setWakeTime(0);
                 queue.makeDirty();
             }
             reenqueueQueue(queue);
         }
-        // also consider overflow (usually empty)
-        if(!snoozedOverflow.isEmpty()) {
-            synchronized(snoozedOverflow) {
-                Iterator<DelayedWorkQueue> iter = 
-                    snoozedOverflow.headMap(System.currentTimeMillis()).values().iterator();
-                while(iter.hasNext()) {
-                    DelayedWorkQueue dq = iter.next();
-                    iter.remove();
-                    snoozedOverflowCount.decrementAndGet();
-                    WorkQueue queue = dq.getWorkQueue(this);
-                    synchronized(queue) {
-                        queue.setWakeTime(0);
-                        queue.makeDirty();
-                    }
-                    reenqueueQueue(queue);
-                }
-            }
-        }
     }
     
     /**
@@ -1020,7 +1014,7 @@ implements Closeable,
             // marked up for forced-revisit at a set time
             curi.processingCleanup();
             curi.resetForRescheduling(); 
-            futureUris.put(curi.getRescheduleTime(),curi);
+            futureUriWheel.schedule(curi.getRescheduleTime(),curi);
             futureUriCount.incrementAndGet(); 
         } else {
             curi.stripToMinimal();
@@ -1060,15 +1054,7 @@ implements Closeable,
     protected void snoozeQueue(WorkQueue wq, long now, long delay_ms) {
         long nextTime = now + delay_ms;
         wq.setWakeTime(nextTime);
-        DelayedWorkQueue dq = new DelayedWorkQueue(wq);
-        if(snoozedClassQueues.size()<MAX_SNOOZED_IN_MEMORY) {
-            snoozedClassQueues.add(dq);
-        } else {
-            synchronized(snoozedOverflow) {
-                snoozedOverflow.put(nextTime, dq);
-                snoozedOverflowCount.incrementAndGet();
-            }
-        }
+        snoozedClassQueues.schedule(nextTime, new DelayedWorkQueue(wq));
     }
 
     /**
@@ -1286,6 +1272,9 @@ implements Closeable,
         writer.print("  Disregarded:  ");
         writer.print(Long.toString(disregardedUriCount()));
         writer.print("\n");
+        if (dnsPrefetcher != null) {
+            dnsPrefetcher.reportTo(writer);
+        }
         writer.print("\n -----===== QUEUES =====-----\n");
         writer.print(" Already included size:     ");
         writer.print(Long.toString(uriUniqFilter.count()));
@@ -1293,6 +1282,13 @@ implements Closeable,
         writer.print("               pending:     ");
         writer.print(Long.toString(uriUniqFilter.pending()));
         writer.print("\n");
+        if (uriUniqFilter instanceof Reporter) {
+            Reporter uniqReporter = (Reporter) uriUniqFilter;
+            writer.print("   ");
+            writer.print(uniqReporter.shortReportLegend());
+            writer.print("\n   ");
+            writer.print(ReportUtils.shortReportLine(uniqReporter));
+        }
         writer.print("\n All class queues map size: ");
         writer.print(Long.toString(allCount));
         writer.print("\n");
@@ -1346,12 +1342,17 @@ implements Closeable,
         appendQueueReports(writer, "IN-PROCESS", copy.iterator(), copy.size(), maxQueuesPerReportCategory);
         
         writer.print("\n -----===== READY QUEUES =====-----\n");
+        if (readyClassQueues instanceof ShardedReadyQueue) {
+            ShardedReadyQueue sharded = (ShardedReadyQueue) readyClassQueues;
+            writer.print(sharded.getShardCount() + " shards, "
+                    + sharded.getStealCount() + " stolen\n");
+        }
         appendQueueReports(writer, "READY", this.readyClassQueues.iterator(),
             this.readyClassQueues.size(), maxQueuesPerReportCategory);
         
         writer.print("\n -----===== SNOOZED QUEUES =====-----\n");
-        Object[] objs = snoozedClassQueues.toArray();
-        DelayedWorkQueue[] qs = Arrays.copyOf(objs,objs.length,DelayedWorkQueue[].class);
+        List<DelayedWorkQueue> snoozed = snoozedClassQueues.snapshot();
+        DelayedWorkQueue[] qs = snoozed.toArray(new DelayedWorkQueue[snoozed.size()]);
         Arrays.sort(qs);
         appendQueueReports(writer, "SNOOZED", new ObjectArrayIterator(qs), getSnoozedCount(), maxQueuesPerReportCategory);
         
@@ -1577,7 +1578,7 @@ implements Closeable,
     }
     
     protected int getSnoozedCount() {
-        return snoozedClassQueues.size() + snoozedOverflowCount.get();
+        return (int) snoozedClassQueues.size();
     }
     
     public float congestionRatio() {
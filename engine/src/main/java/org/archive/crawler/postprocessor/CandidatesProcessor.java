@@ -31,6 +31,7 @@ import org.archive.modules.CandidateChain;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.Processor;
 import org.archive.modules.SchedulingConstants;
+import org.archive.modules.extractor.HeavyExtractorPool;
 import org.archive.modules.extractor.Hop;
 import org.archive.modules.seeds.SeedModule;
 import org.archive.spring.KeyedProperties;
@@ -234,6 +235,9 @@ public class CandidatesProcessor extends Processor {
      */
     @Override
     protected void innerProcess(final CrawlURI curi) throws InterruptedException {
+        // bring back outlinks from any extraction still running elsewhere
+        HeavyExtractorPool.mergePendingExtractions(curi);
+
         // (1) Handle any prerequisites when S_DEFERRED for prereqs
         if (curi.hasPrerequisiteUri() && curi.getFetchStatus() == S_DEFERRED) {
             CrawlURI prereq = curi.getPrerequisiteUri();
@@ -38,6 +38,9 @@ public class AlertThreadGroup extends ThreadGroup {
     protected int count;
     protected LinkedList<Logger> loggers = new LinkedList<Logger>(); 
     static protected ThreadLocal<Logger> threadLogger = new ThreadLocal<Logger>();
+    /** group (and log-thread info) for threads which cannot be members, as virtual threads */
+    static protected ThreadLocal<AlertThreadGroup> threadGroup = new ThreadLocal<AlertThreadGroup>();
+    static protected ThreadLocal<SinkHandlerLogThread> threadLogThread = new ThreadLocal<SinkHandlerLogThread>();
     
     public AlertThreadGroup(String name) {
         super(name);
@@ -60,12 +63,26 @@ public class AlertThreadGroup extends ThreadGroup {
         threadLogger.set(logger); 
     }
 
+    /** 
+     * set group to stand for the current thread's own, for a thread which
+     * cannot be a member (such as a virtual thread), along with the 
+     * SinkHandlerLogThread it runs for, if any 
+     */
+    public static void setThreadGroup(AlertThreadGroup atg, 
+            SinkHandlerLogThread logThread) {
+        threadGroup.set(atg);
+        threadLogThread.set(logThread);
+    }
+
     public static AlertThreadGroup current() {
         Thread t = Thread.currentThread();
         ThreadGroup th = t.getThreadGroup();
         while ((th != null) && !(th instanceof AlertThreadGroup)) {
             th = th.getParent();
         }
+        if (th == null) {
+            return threadGroup.get();
+        }
         return (AlertThreadGroup)th;
     }
 
@@ -98,8 +115,10 @@ public class AlertThreadGroup extends ThreadGroup {
         Thread current = Thread.currentThread();
         newMessage.append(orig).append(" (in thread '");
         newMessage.append(current.getName()).append("'");
-        if (current instanceof SinkHandlerLogThread) {
-            SinkHandlerLogThread tt = (SinkHandlerLogThread)current;
+        SinkHandlerLogThread tt = (current instanceof SinkHandlerLogThread)
+                ? (SinkHandlerLogThread) current
+                : threadLogThread.get();
+        if (tt != null) {
             if(tt.getCurrentProcessorName().length()>0) {
                 newMessage.append("; in processor '");
                 newMessage.append(tt.getCurrentProcessorName());
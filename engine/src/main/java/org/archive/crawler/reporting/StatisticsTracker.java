@@ -322,6 +322,7 @@ public class StatisticsTracker
             reports.add(new ProcessorsReport());
             reports.add(new FrontierSummaryReport());
             reports.add(new ToeThreadsReport());
+            reports.add(new ObjectCachesReport());
         }
         
         return reports;
@@ -19,6 +19,8 @@
  
 package org.archive.crawler.spring;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -30,13 +32,13 @@ import java.util.SortedSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.archive.modules.CrawlURI;
 import org.archive.spring.OverlayMapsSource;
 import org.archive.spring.Sheet;
-import org.archive.util.PrefixFinder;
 import org.archive.util.SurtPrefixSet;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.TypeMismatchException;
@@ -47,6 +49,9 @@ import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextRefreshedEvent;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 /**
  * Manager which marks-up CrawlURIs with the names of all applicable 
  * Sheets, and returns overlay maps by name. 
@@ -67,6 +72,65 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
     /** all sheets by (bean)name*/
     protected Map<String,Sheet> sheetsByName = new ConcurrentHashMap<String, Sheet>();
     
+    /**
+     * Stamp of the current associations; CrawlURIs carrying overlay 
+     * names assigned under this stamp need no reassignment. Advanced by
+     * any change of associations.
+     */
+    protected AtomicLong assignmentStamp = new AtomicLong(); 
+    
+    /**
+     * Version of the contents of all sheets; see 
+     * {@link #getOverlaysVersion()}.
+     */
+    protected AtomicLong overlaysVersion = new AtomicLong(); 
+    
+    /** sheetNamesBySurt compiled for lookup, under one stamp */
+    protected static class CompiledSurts {
+        final long stamp; 
+        final SurtPrefixTrie trie;
+        CompiledSurts(long stamp, SurtPrefixTrie trie) {
+            this.stamp = stamp; 
+            this.trie = trie;
+        }
+    }
+    
+    /** latest compiled sheetNamesBySurt; null when none */
+    protected volatile CompiledSurts surtTrie; 
+    
+    /** 
+     * Maximum number of SURT authorities (hosts) whose SURT-derived 
+     * sheet names are remembered. 
+     */
+    protected int authorityCacheSize = 10000; 
+    public int getAuthorityCacheSize() {
+        return authorityCacheSize;
+    }
+    public void setAuthorityCacheSize(int authorityCacheSize) {
+        this.authorityCacheSize = authorityCacheSize;
+        this.authorityMatches = null; 
+    }
+    
+    /** outcome of walking the SURT trie over one authority */
+    protected static class AuthorityMatch {
+        final long stamp; 
+        /** names from prefixes no longer than authority; unmodifiable */
+        final List<String> names;
+        /** trie node at end of authority, for longer prefixes, or null */
+        final SurtPrefixTrie.Node node;
+        AuthorityMatch(long stamp, List<String> names, SurtPrefixTrie.Node node) {
+            this.stamp = stamp; 
+            this.names = names;
+            this.node = node;
+        }
+    }
+    
+    protected volatile Cache<String,AuthorityMatch> authorityMatches; 
+    
+    /** shared unmodifiable instances of complete overlay-name lists */
+    protected Cache<List<String>,List<String>> internedNames = 
+        CacheBuilder.newBuilder().maximumSize(1000).<List<String>,List<String>>build();
+    
     public void setBeanFactory(BeanFactory beanFactory) throws BeansException {
         this.beanFactory = beanFactory;
     }
@@ -105,6 +169,44 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
     public NavigableMap<String,List<String>> getSheetsNamesBySurt() {
         return this.sheetNamesBySurt;
     }
+    
+    /**
+     * Note that associations have changed, so that remembered overlay
+     * assignments must be recomputed. Called by all association-changing
+     * methods here; must be called after any direct change to the map
+     * from {@link #getSheetsNamesBySurt()} or to an association's 
+     * target names. 
+     */
+    public void associationsChanged() {
+        surtTrie = null; 
+        Cache<String,AuthorityMatch> cache = authorityMatches;
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+        internedNames.invalidateAll();
+        assignmentStamp.incrementAndGet();
+    }
+
+    /**
+     * Version of the contents of all sheets, by which KeyedProperties
+     * recognize overrides they resolved as still current. Advanced by
+     * all sheet-changing methods here; {@link #overlaysChanged()} must 
+     * be called after any direct change to a sheet's map. 
+     * 
+     * @see org.archive.spring.OverlayMapsSource#getOverlaysVersion()
+     */
+    public long getOverlaysVersion() {
+        return overlaysVersion.get();
+    }
+    
+    /**
+     * Note that some sheet's contents have changed, so that overrides 
+     * resolved from them must be rechecked. 
+     */
+    public void overlaysChanged() {
+        overlaysVersion.incrementAndGet();
+    }
+
     /**
      * Collect all rule-based SheetAssociations. Typically autowired 
      * from the set of all DecideRuledSheetAssociation instances. 
@@ -114,10 +216,12 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
         // always keep sorted by order
         this.ruleAssociations.clear();
         this.ruleAssociations.addAll(associations);
+        associationsChanged();
     }
     
     public void addRuleAssociation(DecideRuledSheetAssociation assoc) {
         this.ruleAssociations.add(assoc); 
+        associationsChanged();
     }
 
     /**
@@ -139,6 +243,7 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
         }
         sheetNames.add(sheetName); 
         sheetNamesBySurt.put(prefix, sheetNames); 
+        associationsChanged();
     }
     
     public boolean removeSurtAssociation(String prefix, String sheetName) {
@@ -147,7 +252,9 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
             // no such association
             return false; 
         }
-        return sheetNames.remove(sheetName); 
+        boolean removed = sheetNames.remove(sheetName); 
+        associationsChanged();
+        return removed;
     }
 
     /** 
@@ -191,6 +298,8 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
             for(Sheet s: sheetsByName.values()) {
                 s.prime(); // exception if Sheet can't target overridable properties
             }
+            // priming converts values and adds external paths
+            overlaysChanged();
             // log warning for any sheets named but not present
             HashSet<String> allSheetNames = new HashSet<String>();
             for(DecideRuledSheetAssociation assoc : ruleAssociations) {
@@ -204,6 +313,7 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
                     logger.warning("sheet '"+name+"' referenced but absent");
                 }
             }
+            associationsChanged();
         }
     }
     
@@ -234,6 +344,8 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
             // revert to presumably non-damaging value
             sheet.getMap().put(beanPath, prevVal);
             throw tme;
+        } finally {
+            overlaysChanged();
         }
         return prevVal; 
     }
@@ -251,7 +363,11 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
             return null; 
         }
         // TODO: do all the externalPaths created by priming need eventual cleanup?
-        return sheet.getMap().remove(beanPath);
+        try {
+            return sheet.getMap().remove(beanPath);
+        } finally {
+            overlaysChanged();
+        }
     }
     
     /**
@@ -271,6 +387,7 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
             anyDeleted |= sheetNames.remove(sheetName);            
         }
         anyDeleted |= (null != sheetsByName.remove(sheetName)); 
+        associationsChanged();
         return anyDeleted;
     }
     
@@ -308,33 +425,121 @@ BeanFactoryAware, OverlayMapsSource, ApplicationListener<ApplicationEvent> {
      * Apply the proper overlays (by Sheet beanName) to the given CrawlURI,
      * according to configured associations.  
      * 
-     * TODO: add guard against redundant application more than once? 
-     * TODO: add mechanism for reapplying overlays after settings change? 
+     * SURT-based names come from the compiled trie, remembered per SURT
+     * authority and, under the current associations, on the CrawlURI
+     * itself. Rule-based names are evaluated anew every time, as rules
+     * may depend on any URI state, and appended. The resulting list is a
+     * shared, unmodifiable instance. 
+     * 
      * @param curi
      */
     public void applyOverlaysTo(CrawlURI curi) {
-        curi.setOverlayMapsSource(this); 
-        // apply SURT-based overlays
-        curi.getOverlayNames().clear(); // clear previous info
-        String effectiveSurt = SurtPrefixSet.getCandidateSurt(curi.getPolicyBasisUURI());
-        List<String> foundPrefixes = PrefixFinder.findKeys(sheetNamesBySurt, effectiveSurt);       
-        for(String prefix : foundPrefixes) {
-            for(String name : sheetNamesBySurt.get(prefix)) {
-                curi.getOverlayNames().add(name);
-            }
+        long stamp = assignmentStamp.get();
+        List<String> names = curi.getSurtOverlayNames();
+        if (names == null 
+                || curi.getSurtOverlayNamesStamp() != stamp
+                || curi.getOverlayMapsSource() != this) {
+            // apply SURT-based overlays
+            String effectiveSurt = SurtPrefixSet.getCandidateSurt(curi.getPolicyBasisUURI());
+            names = surtNamesFor(effectiveSurt, stamp); 
+            curi.setSurtOverlayNames(names, stamp);
         }
+        curi.setOverlayMapsSource(this); 
         // apply deciderule-based overlays
-        for(DecideRuledSheetAssociation assoc : ruleAssociations) {
-            try {
-                if(assoc.getRules().accepts(curi)) {
-                    curi.getOverlayNames().addAll(assoc.getTargetSheetNames());
+        if (!ruleAssociations.isEmpty()) {
+            List<String> combined = null; 
+            for(DecideRuledSheetAssociation assoc : ruleAssociations) {
+                try {
+                    if(assoc.getRules().accepts(curi)) {
+                        if (combined == null) {
+                            combined = new ArrayList<String>(names);
+                        }
+                        combined.addAll(assoc.getTargetSheetNames());
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE, "problem determining whether to apply overlays, so not applying " + assoc.getTargetSheetNames() + " to " + curi, e);
                 }
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "problem determining whether to apply overlays, so not applying " + assoc.getTargetSheetNames() + " to " + curi, e);
             }
+            if (combined != null) {
+                names = intern(combined); 
+            }
+        }
+        // even if no overlays set, the (empty) list signals step has 
+        // occurred -- helps ensure overlays added once-only
+        curi.setOverlayNames(names);
+    }
+    
+    /**
+     * @return shared unmodifiable list equal to the given list
+     */
+    protected List<String> intern(List<String> names) {
+        List<String> interned = internedNames.getIfPresent(names);
+        if (interned == null) {
+            interned = Collections.unmodifiableList(names);
+            internedNames.put(names, interned);
+        }
+        return interned;
+    }
+    
+    /**
+     * @return unmodifiable list of names of Sheets associated with any
+     * SURT prefix of the given SURT, shortest prefix first
+     */
+    protected List<String> surtNamesFor(String surt, long stamp) {
+        if (surt == null) {
+            return Collections.emptyList(); 
+        }
+        SurtPrefixTrie trie = compiledSurts(stamp);
+        int authorityEnd = surt.indexOf(')') + 1;
+        if (authorityEnd <= 0) {
+            authorityEnd = surt.length();
+        }
+        String authority = surt.substring(0, authorityEnd);
+        Cache<String,AuthorityMatch> cache = getAuthorityMatches();
+        AuthorityMatch match = cache.getIfPresent(authority);
+        if (match == null || match.stamp != stamp) {
+            List<String> names = new ArrayList<String>();
+            SurtPrefixTrie.Node node = trie.walk(
+                    trie.getRoot(), surt, 0, authorityEnd, names);
+            match = new AuthorityMatch(stamp, intern(names), node);
+            cache.put(authority, match);
+        }
+        if (match.node == null || authorityEnd == surt.length()) {
+            return match.names; 
+        }
+        // some longer (path) prefixes may apply
+        List<String> names = new ArrayList<String>(match.names);
+        trie.walk(match.node, surt, authorityEnd, surt.length(), names);
+        return (names.size() == match.names.size()) 
+            ? match.names 
+            : intern(names); 
+    }
+    
+    /**
+     * @return trie of sheetNamesBySurt as of (at least) the given stamp;
+     * remembered if the stamp is still current, so that a trie compiled
+     * while associations change is never taken for the newer stamp
+     */
+    protected SurtPrefixTrie compiledSurts(long stamp) {
+        CompiledSurts compiled = surtTrie; 
+        if (compiled == null || compiled.stamp != stamp) {
+            compiled = new CompiledSurts(stamp, 
+                    new SurtPrefixTrie(sheetNamesBySurt));
+            if (stamp == assignmentStamp.get()) {
+                surtTrie = compiled; 
+            }
+        }
+        return compiled.trie;
+    }
+    
+    protected Cache<String,AuthorityMatch> getAuthorityMatches() {
+        Cache<String,AuthorityMatch> cache = authorityMatches;
+        if (cache == null) {
+            cache = CacheBuilder.newBuilder()
+                .maximumSize(authorityCacheSize)
+                .<String,AuthorityMatch>build();
+            authorityMatches = cache; 
         }
-        // even if no overlays set, let creation of empty list signal
-        // step has occurred -- helps ensure overlays added once-only
-        curi.getOverlayNames();
+        return cache;
     }
 }
\ No newline at end of file
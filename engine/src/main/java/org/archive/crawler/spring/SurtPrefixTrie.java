@@ -0,0 +1,131 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.spring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable character trie of SURT prefixes, each carrying the names of
+ * the Sheets associated with it. Compiled from the SheetOverlaysManager's
+ * sheetNamesBySurt map; a lookup walks the candidate SURT once, collecting
+ * the names of every matching prefix, shortest prefix first.
+ */
+public class SurtPrefixTrie {
+
+    /** trie node; children kept in parallel arrays sorted by char */
+    public static class Node {
+        char[] chars = new char[0];
+        Node[] children = new Node[0];
+        /** sheet names for the prefix ending here, or null */
+        List<String> names;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            return (i >= 0) ? children[i] : null;
+        }
+
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int at = -i - 1;
+            char[] newChars = new char[chars.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(chars, 0, newChars, 0, at);
+            System.arraycopy(children, 0, newChildren, 0, at);
+            newChars[at] = c;
+            newChildren[at] = new Node();
+            System.arraycopy(chars, at, newChars, at + 1, chars.length - at);
+            System.arraycopy(children, at, newChildren, at + 1,
+                    children.length - at);
+            chars = newChars;
+            children = newChildren;
+            return newChildren[at];
+        }
+
+        boolean isLeaf() {
+            return chars.length == 0;
+        }
+    }
+
+    protected Node root = new Node();
+
+    public SurtPrefixTrie(Map<String,List<String>> sheetNamesBySurt) {
+        for (Map.Entry<String,List<String>> entry : sheetNamesBySurt.entrySet()) {
+            if (entry.getValue() == null || entry.getValue().isEmpty()) {
+                continue;
+            }
+            Node node = root;
+            String prefix = entry.getKey();
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.addChild(prefix.charAt(i));
+            }
+            List<String> names = new ArrayList<String>(entry.getValue());
+            node.names = Collections.unmodifiableList(names);
+        }
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Walk the trie from the given node over surt[from,to), appending the
+     * names of each matching prefix to the list.
+     *
+     * @return node reached at 'to', or null if the walk left the trie
+     */
+    public Node walk(Node node, String surt, int from, int to,
+            List<String> names) {
+        if (node == null) {
+            return null;
+        }
+        if (from == 0 && node.names != null) {
+            // empty prefix matches everything
+            names.addAll(node.names);
+        }
+        for (int i = from; i < to; i++) {
+            if (node.isLeaf()) {
+                return null;
+            }
+            node = node.child(surt.charAt(i));
+            if (node == null) {
+                return null;
+            }
+            if (node.names != null) {
+                names.addAll(node.names);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * @return names of the Sheets of every prefix of the given SURT
+     */
+    public List<String> namesFor(String surt) {
+        List<String> names = new ArrayList<String>();
+        walk(root, surt, 0, surt.length(), names);
+        return names;
+    }
+}
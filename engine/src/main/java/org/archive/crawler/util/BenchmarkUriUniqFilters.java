@@ -43,9 +43,11 @@ public class BenchmarkUriUniqFilters implements UriUniqFilter.CrawlUriReceiver {
     
     /**
      * Test the UriUniqFilter implementation (MemUriUniqFilter,
-     * BloomUriUniqFilter, or BdbUriUniqFilter) named in first
-     * argument against the file of one-per-line URIs named
-     * in the second argument. 
+     * BloomUriUniqFilter, BdbUriUniqFilter, DiskFPMergeUriUniqFilter or
+     * LeveledFPMergeUriUniqFilter) named in first argument against the 
+     * file of one-per-line URIs named in the second argument. Several
+     * comma-separated names (eg "BdbUriUniqFilter,LeveledFPMergeUriUniqFilter")
+     * run each in turn over the same input, for comparison. 
      * 
      * @param args from cmd-line
      * @throws IOException
@@ -55,7 +57,12 @@ public class BenchmarkUriUniqFilters implements UriUniqFilter.CrawlUriReceiver {
     }
     
     public void instanceMain(String[] args) throws IOException {
-        String testClass = args[0];
+        for(String testClass : args[0].split(",")) {
+            runBenchmark(testClass, args);
+        }
+    }
+
+    protected void runBenchmark(String testClass, String[] args) throws IOException {
         String inputFilename = args[1];
         long start = System.currentTimeMillis();
         UriUniqFilter uniq = createUriUniqFilter(testClass);
@@ -70,25 +77,37 @@ public class BenchmarkUriUniqFilters implements UriUniqFilter.CrawlUriReceiver {
             added++;
             uniq.add(current,null);
         }
+        if(uniq instanceof PendingFPUriUniqFilter) {
+            // buffering filters only count an item once merged
+            ((PendingFPUriUniqFilter)uniq).flush();
+        }
+        long retained = uniq.count();
         uniq.close();
         long finished = System.currentTimeMillis();
         if(out!=null) {
             out.close();
         }
+        System.out.println(testClass+":");
         System.out.println(added+" adds");
-        System.out.println(uniq.count()+" retained");
+        System.out.println(retained+" retained");
         System.out.println((created-start)+"ms to setup UUF");
         System.out.println((finished-created)+"ms to perform all adds");
+        if(added>0) {
+            System.out.println(((finished-created)*1000000L/added)+"ns per add");
+        }
     }
     
     private UriUniqFilter createUriUniqFilter(String testClass) throws IOException {
         UriUniqFilter uniq = null;
         if(BdbUriUniqFilter.class.getName().endsWith(testClass)) {;
             // BDB setup
-            File tmpDir = File.createTempFile("uuf","benchmark");
-            tmpDir.delete();
-            tmpDir.mkdir();
-            uniq = new BdbUriUniqFilter(tmpDir, 50);
+            uniq = new BdbUriUniqFilter(createTempDir(), 50);
+        } else if(DiskFPMergeUriUniqFilter.class.getName().endsWith(testClass)) {
+            // single fp file, fully rewritten each flush
+            uniq = new DiskFPMergeUriUniqFilter(createTempDir());
+        } else if(LeveledFPMergeUriUniqFilter.class.getName().endsWith(testClass)) {
+            // leveled sorted runs
+            uniq = new LeveledFPMergeUriUniqFilter(createTempDir());
         } else if(BloomUriUniqFilter.class.getName().endsWith(testClass)) {
             // bloom setup
             uniq = new BloomUriUniqFilter();
@@ -103,6 +122,13 @@ public class BenchmarkUriUniqFilters implements UriUniqFilter.CrawlUriReceiver {
         return uniq;
     }
 
+    private File createTempDir() throws IOException {
+        File tmpDir = File.createTempFile("uuf","benchmark");
+        tmpDir.delete();
+        tmpDir.mkdir();
+        return tmpDir;
+    }
+
     /* (non-Javadoc)
      * @see org.archive.crawler.datamodel.UriUniqFilter.HasUriReceiver#receive(org.archive.crawler.datamodel.CrawlURI)
      */
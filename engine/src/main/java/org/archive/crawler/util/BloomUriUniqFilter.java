@@ -25,13 +25,28 @@
 */
 package org.archive.crawler.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.archive.checkpointing.Checkpoint;
+import org.archive.checkpointing.Checkpointable;
 import org.archive.modules.CrawlURI;
 import org.archive.util.BloomFilter;
 import org.archive.util.BloomFilter64bit;
+import org.archive.util.FileBackedBloomFilter;
+import org.archive.util.MappedBloomFilter;
+import org.archive.util.ReportUtils;
+import org.archive.util.Reporter;
+import org.archive.util.ScalableBloomFilter;
+import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
 
 
 /**
@@ -48,13 +63,18 @@ import org.springframework.beans.factory.InitializingBean;
  * about 495MB in size. 
  * 
  * You may swap in an differently-configured BloomFilter class to alter
- * these tradeoffs. 
+ * these tradeoffs. A {@link MappedBloomFilter} keeps the bitfield off-heap
+ * in a memory-mapped file, and is checkpointed by file copy rather than
+ * serialization. A {@link ScalableBloomFilter} adds further mapped slices
+ * as each fills, so holds its false-positive rate without the crawl's size
+ * being known in advance.
  * 
  * @author gojomo
  * @version $Date$, $Revision$
  */
 public class BloomUriUniqFilter extends SetBasedUriUniqFilter
-implements Serializable, InitializingBean {
+implements Serializable, InitializingBean, Checkpointable, BeanNameAware,
+           Reporter {
 	private static final long serialVersionUID = 1061526253773091309L;
 
 	private static Logger LOGGER =
@@ -68,6 +88,17 @@ implements Serializable, InitializingBean {
         bloom = filter; 
     }
 
+    protected String beanName; 
+    public void setBeanName(String name) {
+        this.beanName = name;
+    }
+
+    protected Checkpoint recoveryCheckpoint;
+    @Autowired(required=false)
+    public void setRecoveryCheckpoint(Checkpoint checkpoint) {
+        this.recoveryCheckpoint = checkpoint; 
+    }
+
     /**
      * Default constructor
      */
@@ -88,6 +119,44 @@ implements Serializable, InitializingBean {
             // 1/(2^22) ~= 1 in every 4 million probes
             bloom = new BloomFilter64bit(125000000,22);
         }
+        if(recoveryCheckpoint != null && bloom instanceof FileBackedBloomFilter) {
+            File source = checkpointBloomFile(recoveryCheckpoint);
+            try {
+                ((FileBackedBloomFilter)bloom).restoreFrom(source);
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to restore bloom from "+source, e);
+            }
+        }
+    }
+
+    protected File checkpointBloomFile(Checkpoint checkpoint) {
+        return new File(checkpoint.getCheckpointDir().getFile(), beanName+"-bloom");
+    }
+
+    public void startCheckpoint(Checkpoint checkpointInProgress) {
+    }
+
+    public void doCheckpoint(Checkpoint checkpointInProgress) throws IOException {
+        // on-heap filters have never been checkpointed; file-backed filters
+        // are msync'd then copied file-to-file
+        if(bloom instanceof FileBackedBloomFilter) {
+            ((FileBackedBloomFilter)bloom).copyTo(checkpointBloomFile(checkpointInProgress));
+        }
+    }
+
+    public void finishCheckpoint(Checkpoint checkpointInProgress) {
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if(bloom instanceof FileBackedBloomFilter) {
+            try {
+                ((FileBackedBloomFilter)bloom).close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "problem closing bloom", e);
+            }
+        }
     }
 
     public void forget(String canonical, CrawlURI item) {
@@ -99,7 +168,9 @@ implements Serializable, InitializingBean {
         boolean added = bloom.add(uri);
         // warn if bloom has reached its expected size (and its false-pos
         // rate will now exceed the theoretical/designed level)
-        if( added && (count() == bloom.getExpectedInserts())) {
+        // (scalable filters grow instead)
+        if( added && !(bloom instanceof ScalableBloomFilter)
+                && (count() == bloom.getExpectedInserts())) {
             LOGGER.warning(
                 "Bloom has reached expected limit "+bloom.getExpectedInserts()+
                 "; false-positive rate will now rise above goal of "+
@@ -109,10 +180,75 @@ implements Serializable, InitializingBean {
     }
 
     protected long setCount() {
+        if(bloom instanceof FileBackedBloomFilter) {
+            // BloomFilter.size() is an int; file-backed filters may hold billions
+            return ((FileBackedBloomFilter)bloom).getPopulation();
+        }
         return bloom.size();
     }
 
     protected boolean setRemove(CharSequence uri) {
         throw new UnsupportedOperationException();
     }
+
+    /**
+     * @return estimated chance that a never-seen URI is reported as
+     * already-seen, given the filter's current population
+     */
+    public double getEstimatedFalsePositiveRate() {
+        if(bloom instanceof FileBackedBloomFilter) {
+            return ((FileBackedBloomFilter)bloom).getEstimatedFalsePositiveRate();
+        }
+        // (1 - e^(-kn/m))^k
+        double k = bloom.getHashCount();
+        double m = bloom.getSizeBytes() * 8d;
+        return Math.pow(1d - Math.exp(-k * setCount() / m), k);
+    }
+
+    //
+    // Reporter
+    //
+
+    @Override
+    public Map<String, Object> shortReportMap() {
+        Map<String,Object> map = new LinkedHashMap<String, Object>();
+        map.put("count", setCount());
+        map.put("expectedInserts", bloom.getExpectedInserts());
+        map.put("sizeBytes", bloom.getSizeBytes());
+        map.put("estimatedFalsePositiveRate", getEstimatedFalsePositiveRate());
+        if(bloom instanceof ScalableBloomFilter) {
+            map.put("slices", ((ScalableBloomFilter)bloom).getSliceCount());
+        }
+        return map;
+    }
+
+    @Override
+    public void shortReportLineTo(PrintWriter writer) {
+        writer.print(setCount());
+        writer.print(" ");
+        writer.print(bloom.getExpectedInserts());
+        writer.print(" ");
+        writer.print(bloom.getSizeBytes());
+        writer.print(" ");
+        writer.print(getEstimatedFalsePositiveRate());
+        writer.print(" ");
+        writer.print((bloom instanceof ScalableBloomFilter)
+                ? ((ScalableBloomFilter)bloom).getSliceCount() : 1);
+        writer.print("\n");
+    }
+
+    @Override
+    public String shortReportLegend() {
+        return "count expectedInserts sizeBytes estimatedFalsePositiveRate slices";
+    }
+
+    public String shortReportLine() {
+        return ReportUtils.shortReportLine(this);
+    }
+
+    @Override
+    public void reportTo(PrintWriter writer) {
+        writer.println(shortReportLegend());
+        shortReportLineTo(writer);
+    }
 }
@@ -0,0 +1,895 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.util;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.archive.util.FileUtils;
+
+/**
+ * PendingFPUriUniqFilter keeping its fingerprints in a log-structured set
+ * of immutable sorted runs, rather than one file rewritten by every flush
+ * as in {@link DiskFPMergeUriUniqFilter}.
+ *
+ * Each flush probes the sorted pending fingerprints against the existing
+ * runs, and writes only the novel ones as a new level-0 run, so flush I/O
+ * is proportional to the batch rather than to all fingerprints seen.
+ * Each run carries a Bloom filter and a sparse index of the first
+ * fingerprint of each block, so a probe usually touches no disk beyond
+ * the (normally cached) Bloom pages, and otherwise reads a single block.
+ *
+ * The Bloom filters are memory-mapped files beside their runs, taking
+ * bloomBitsPerFp/8 bytes per fingerprint of page cache rather than heap;
+ * the heap holds only the sparse indexes, 8 bytes per BLOCK_FPS
+ * fingerprints (about 16MB per billion).
+ *
+ * A background thread compacts runs tier-by-tier: whenever a level holds
+ * 'fanout' runs, they are merged into one run at the next level. The
+ * number of runs therefore grows only logarithmically with the number of
+ * fingerprints. If compaction falls far behind, flushes wait for it.
+ *
+ * Runs are raw big-endian longs, the same format as DiskFPMergeUriUniqFilter
+ * uses, named by level and sequence number; runs found in the directory at
+ * construction are reopened. A compaction first records the names of its
+ * inputs beside the merged run it is about to write; the merged run
+ * appearing under its final name is the commit point, after which
+ * reopening deletes any named inputs a crash left behind, and before which
+ * reopening discards the record and keeps the inputs.
+ */
+public class LeveledFPMergeUriUniqFilter extends PendingFPUriUniqFilter {
+    private static Logger LOGGER =
+        Logger.getLogger(LeveledFPMergeUriUniqFilter.class.getName());
+
+    protected static final Pattern RUN_NAME =
+        Pattern.compile("L(\\d+)-(\\d+)\\.fp");
+    /** suffix of a run's Bloom filter file */
+    protected static final String BLOOM_SUFFIX = ".bloom";
+    /** suffix of the file naming the inputs of a compaction to a run */
+    protected static final String INPUTS_SUFFIX = ".inputs";
+
+    /** fingerprints per block: the unit of sparse index and disk read */
+    public static final int BLOCK_FPS = 512;
+
+    protected File dir;
+
+    /** runs at a level which trigger their merge into the next level */
+    protected int fanout = 4;
+    public int getFanout() {
+        return fanout;
+    }
+    public void setFanout(int fanout) {
+        this.fanout = fanout;
+    }
+
+    /** per-run Bloom filter bits per fingerprint; 16 gives roughly a
+     * 1-in-2000 chance of a needless block read per run probed */
+    protected int bloomBitsPerFp = 16;
+    public int getBloomBitsPerFp() {
+        return bloomBitsPerFp;
+    }
+    public void setBloomBitsPerFp(int bloomBitsPerFp) {
+        this.bloomBitsPerFp = bloomBitsPerFp;
+    }
+
+    /** all current runs, newest first; replaced whole under runsLock */
+    protected volatile List<Run> runs = Collections.emptyList();
+    protected final Object runsLock = new Object();
+    protected volatile long count = 0;
+    protected AtomicLong nextSeq = new AtomicLong();
+
+    protected ExecutorService compactor;
+    protected Future<?> compaction;
+    protected final Object compactionLock = new Object();
+
+    public LeveledFPMergeUriUniqFilter(File dir) throws IOException {
+        super();
+        this.dir = dir;
+        FileUtils.ensureWriteableDirectory(dir);
+        reopenRuns();
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r,
+                        LeveledFPMergeUriUniqFilter.this.dir.getName()+"-compactor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    protected void reopenRuns() throws IOException {
+        for (File f : dir.listFiles()) {
+            if (f.getName().endsWith(".tmp")) {
+                // incomplete write or compaction
+                f.delete();
+            } else if (f.getName().endsWith(INPUTS_SUFFIX)) {
+                recoverCompaction(f);
+            }
+        }
+        List<Run> found = new ArrayList<Run>();
+        for (File f : dir.listFiles()) {
+            Matcher m = RUN_NAME.matcher(f.getName());
+            if (m.matches()) {
+                long seq = Long.parseLong(m.group(2));
+                found.add(Run.reopen(f, Integer.parseInt(m.group(1)), seq,
+                        bloomBitsPerFp));
+                if (seq >= nextSeq.get()) {
+                    nextSeq.set(seq + 1);
+                }
+            } else if (f.getName().endsWith(BLOOM_SUFFIX)
+                    && !runFileOf(f, BLOOM_SUFFIX).exists()) {
+                // run deleted, or never committed
+                f.delete();
+            }
+        }
+        setRuns(found);
+    }
+
+    /**
+     * Finish a compaction interrupted by a crash, given its record of
+     * inputs: if the merged run was committed, delete the inputs it
+     * supersedes; otherwise the inputs stand.
+     */
+    protected void recoverCompaction(File inputsFile) throws IOException {
+        File merged = runFileOf(inputsFile, INPUTS_SUFFIX);
+        if (merged.exists()) {
+            for (String name : Files.readAllLines(inputsFile.toPath(),
+                    StandardCharsets.UTF_8)) {
+                if (name.length() > 0) {
+                    Run.deleteFiles(new File(dir, name));
+                }
+            }
+            LOGGER.info("finished interrupted compaction into " + merged);
+        }
+        if (!inputsFile.delete()) {
+            throw new IOException("unable to delete " + inputsFile);
+        }
+    }
+
+    protected static File runFileOf(File f, String suffix) {
+        String name = f.getName();
+        return new File(f.getParentFile(),
+                name.substring(0, name.length() - suffix.length()));
+    }
+
+    /**
+     * Install a new list of runs, sorted newest-first.
+     */
+    protected void setRuns(List<Run> newRuns) {
+        List<Run> sorted = new ArrayList<Run>(newRuns);
+        Collections.sort(sorted);
+        long total = 0;
+        for (Run r : sorted) {
+            total += r.count;
+        }
+        runs = Collections.unmodifiableList(sorted);
+        count = total;
+    }
+
+    /**
+     * Not synchronized on the filter: the compactor calls this while a
+     * flush may hold the filter's lock awaiting it.
+     */
+    protected File nextRunFile(int level) {
+        return new File(dir, String.format("L%02d-%012d.fp", level,
+                nextSeq.getAndIncrement()));
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.datamodel.UriUniqFilter#count()
+     */
+    public long count() {
+        return count;
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * Check each pending fingerprint against all runs, writing only the
+     * novel ones as a new level-0 run.
+     *
+     * @see org.archive.crawler.util.PendingFPUriUniqFilter#flush()
+     */
+    @Override
+    public synchronized long flush() {
+        if(pending()==0) {
+            return 0;
+        }
+        long flushStartTime = System.currentTimeMillis();
+        awaitCompactionIfBehind();
+        long adds = 0;
+        long fpOnlyAdds = 0;
+        LongArrayList novel = new LongArrayList(pendingSet.size());
+        try {
+            synchronized (runsLock) {
+                List<Run> current = runs;
+                for (PendingItem item : pendingSet) {
+                    if (contains(current, item.fp)) {
+                        mergeDuplicateCount++;
+                        continue;
+                    }
+                    novel.add(item.fp);
+                    if (item.caUri != null) {
+                        adds++;
+                        this.receiver.receive(item.caUri);
+                    } else {
+                        fpOnlyAdds++;
+                    }
+                }
+                if (!novel.isEmpty()) {
+                    Run run = Run.write(nextRunFile(0), 0, novel.iterator(),
+                            novel.size(), bloomBitsPerFp);
+                    List<Run> newRuns = new ArrayList<Run>(current);
+                    newRuns.add(run);
+                    setRuns(newRuns);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        pendingSet.clear();
+        maybeScheduleCompaction();
+
+        long flushDuration = System.currentTimeMillis() - flushStartTime;
+        nextFlushAllowableAfter = flushStartTime + (FLUSH_DELAY_FACTOR*flushDuration);
+        if(LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("flush took "+flushDuration+"ms: "
+                    +adds+" adds, "
+                    +fpOnlyAdds+" fpOnlyAdds, "
+                    +(mergeDuplicateCount-mergeDupAtLast)+" mergeDups, "
+                    +(pendDuplicateCount-pendDupAtLast)+" pendDups, "
+                    +(quickDuplicateCount-quickDupAtLast)+" quickDups, "
+                    +runs.size()+" runs");
+        }
+        mergeDupAtLast = mergeDuplicateCount;
+        pendDupAtLast = pendDuplicateCount;
+        quickDupAtLast = quickDuplicateCount;
+        return adds;
+    }
+
+    protected boolean contains(List<Run> current, long fp) throws IOException {
+        for (Run run : current) {
+            if (run.contains(fp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * If level 0 has backed up to twice the fanout, wait for the
+     * running compaction rather than let probes grow ever costlier.
+     */
+    protected void awaitCompactionIfBehind() {
+        int level0 = 0;
+        for (Run r : runs) {
+            if (r.level == 0) {
+                level0++;
+            }
+        }
+        if (level0 < 2 * fanout) {
+            return;
+        }
+        Future<?> inProgress;
+        synchronized (compactionLock) {
+            inProgress = compaction;
+        }
+        if (inProgress == null) {
+            return;
+        }
+        try {
+            inProgress.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // already logged by the compactor
+        }
+    }
+
+    protected void maybeScheduleCompaction() {
+        if (findCompactableLevel(runs) < 0) {
+            return;
+        }
+        synchronized (compactionLock) {
+            if (compaction != null && !compaction.isDone()) {
+                return;
+            }
+            if (compactor.isShutdown()) {
+                return;
+            }
+            compaction = compactor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        compactAll();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.SEVERE, "compaction failed", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return lowest level holding at least 'fanout' runs, or -1
+     */
+    protected int findCompactableLevel(List<Run> current) {
+        int[] perLevel = new int[64];
+        for (Run r : current) {
+            perLevel[Math.min(r.level, 63)]++;
+        }
+        for (int level = 0; level < perLevel.length; level++) {
+            if (perLevel[level] >= fanout) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compact levels until none holds 'fanout' runs. Only ever run by
+     * the single compactor thread, so never merges the same run twice.
+     */
+    protected void compactAll() throws IOException {
+        int level;
+        while ((level = findCompactableLevel(runs)) >= 0) {
+            compactLevel(level);
+        }
+    }
+
+    /**
+     * Merge all runs at the given level into one run at the next level.
+     * The merge itself runs without locks, since runs are immutable;
+     * only the swap of the run list excludes flushes.
+     */
+    protected void compactLevel(int level) throws IOException {
+        List<Run> inputs = new ArrayList<Run>();
+        long total = 0;
+        for (Run r : runs) {
+            if (r.level == level) {
+                inputs.add(r);
+                total += r.count;
+            }
+        }
+        long start = System.currentTimeMillis();
+        File mergedFile = nextRunFile(level + 1);
+        File inputsFile = writeInputsRecord(mergedFile, inputs);
+        Run merged = null;
+        try {
+            merged = Run.write(mergedFile, level + 1,
+                    new MergingLongIterator(inputs), total, bloomBitsPerFp);
+        } finally {
+            if (merged == null) {
+                // not committed: the inputs stand
+                inputsFile.delete();
+            }
+        }
+        synchronized (runsLock) {
+            List<Run> newRuns = new ArrayList<Run>(runs);
+            newRuns.removeAll(inputs);
+            newRuns.add(merged);
+            setRuns(newRuns);
+        }
+        deleteCompacted(inputs, inputsFile);
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("compacted " + inputs.size() + " level-" + level
+                    + " runs (" + merged.count + " fps) in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Durably record the names of the runs about to be merged into the
+     * given run file, for recovery should a crash interrupt the merge.
+     *
+     * @return the record file
+     */
+    protected File writeInputsRecord(File mergedFile, List<Run> inputs)
+    throws IOException {
+        List<String> names = new ArrayList<String>(inputs.size());
+        for (Run r : inputs) {
+            names.add(r.file.getName());
+        }
+        File record = new File(mergedFile.getPath() + INPUTS_SUFFIX);
+        File tmp = new File(record.getPath() + ".tmp");
+        Files.write(tmp.toPath(), names, StandardCharsets.UTF_8);
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+        if (!tmp.renameTo(record)) {
+            throw new IOException("unable to rename " + tmp + " to " + record);
+        }
+        return record;
+    }
+
+    /**
+     * Delete the inputs of a committed compaction, then its record.
+     */
+    protected void deleteCompacted(List<Run> inputs, File inputsFile)
+    throws IOException {
+        for (Run r : inputs) {
+            r.delete();
+        }
+        if (!inputsFile.delete()) {
+            LOGGER.warning("unable to delete " + inputsFile);
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (runsLock) {
+            for (Run r : runs) {
+                try {
+                    r.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "problem closing " + r.file, e);
+                }
+            }
+        }
+        super.close();
+    }
+
+    /**
+     * One immutable sorted run of fingerprints on disk, with its
+     * memory-mapped Bloom filter and in-memory sparse block index.
+     */
+    protected static class Run implements Comparable<Run> {
+        final File file;
+        final int level;
+        final long seq;
+        final long count;
+        /** first fingerprint of each block */
+        final long[] index;
+        final long lastFp;
+        final RunBloom bloom;
+        final FileChannel channel;
+        /** most recently read block; probes arrive in sorted order, so
+         * consecutive probes often land in the same block */
+        int cachedBlock = -1;
+        long[] cached = new long[BLOCK_FPS];
+        int cachedLength;
+
+        Run(File file, int level, long seq, long count, long[] index,
+                long lastFp, RunBloom bloom)
+        throws IOException {
+            this.file = file;
+            this.level = level;
+            this.seq = seq;
+            this.count = count;
+            this.index = index;
+            this.lastFp = lastFp;
+            this.bloom = bloom;
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        /**
+         * Write the given ascending fingerprints as a new run, building
+         * its Bloom filter and index along the way.
+         *
+         * @param expected upper bound on fingerprints, to size the Bloom
+         */
+        static Run write(File file, int level, LongIterator fps,
+                long expected, int bitsPerFp) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            File bloomFile = bloomFileOf(file);
+            File bloomTmp = new File(bloomFile.getPath() + ".tmp");
+            RunBloom bloom = RunBloom.create(bloomTmp, expected, bitsPerFp);
+            LongArrayList index = new LongArrayList();
+            long n = 0;
+            long last = Long.MIN_VALUE;
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(fileOut, 65536));
+            try {
+                while (fps.hasNext()) {
+                    long fp = fps.nextLong();
+                    if (n > 0 && fp == last) {
+                        continue;
+                    }
+                    if (n % BLOCK_FPS == 0) {
+                        index.add(fp);
+                    }
+                    out.writeLong(fp);
+                    bloom.add(fp);
+                    last = fp;
+                    n++;
+                }
+                out.flush();
+                fileOut.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            bloom.force();
+            // bloom first: a run under its final name always has one
+            rename(bloomTmp, bloomFile);
+            rename(tmp, file);
+            return new Run(file, level, seqOf(file), n, index.toLongArray(),
+                    last, bloom);
+        }
+
+        /**
+         * Rebuild the index of an existing run file by reading it through
+         * once, along with its Bloom filter if that is missing or was
+         * sized for other settings.
+         */
+        static Run reopen(File file, int level, long seq, int bitsPerFp)
+        throws IOException {
+            long expected = file.length() / 8;
+            File bloomFile = bloomFileOf(file);
+            File bloomTmp = null;
+            RunBloom bloom;
+            if (bloomFile.length() == RunBloom.bytesFor(expected, bitsPerFp)) {
+                bloom = RunBloom.open(bloomFile, bitsPerFp);
+            } else {
+                bloomTmp = new File(bloomFile.getPath() + ".tmp");
+                bloom = RunBloom.create(bloomTmp, expected, bitsPerFp);
+            }
+            LongArrayList index = new LongArrayList();
+            long last = Long.MIN_VALUE;
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 65536));
+            try {
+                for (long n = 0; n < expected; n++) {
+                    long fp = in.readLong();
+                    if (n % BLOCK_FPS == 0) {
+                        index.add(fp);
+                    }
+                    if (bloomTmp != null) {
+                        bloom.add(fp);
+                    }
+                    last = fp;
+                }
+            } finally {
+                in.close();
+            }
+            if (bloomTmp != null) {
+                bloom.force();
+                rename(bloomTmp, bloomFile);
+            }
+            return new Run(file, level, seq, expected, index.toLongArray(),
+                    last, bloom);
+        }
+
+        static long seqOf(File file) {
+            Matcher m = RUN_NAME.matcher(file.getName());
+            m.matches();
+            return Long.parseLong(m.group(2));
+        }
+
+        static File bloomFileOf(File runFile) {
+            return new File(runFile.getPath() + BLOOM_SUFFIX);
+        }
+
+        static void rename(File from, File to) throws IOException {
+            if (!from.renameTo(to)) {
+                throw new IOException("unable to rename " + from + " to " + to);
+            }
+        }
+
+        boolean contains(long fp) throws IOException {
+            if (count == 0 || fp < index[0] || fp > lastFp) {
+                return false;
+            }
+            if (!bloom.contains(fp)) {
+                return false;
+            }
+            int pos = Arrays.binarySearch(index, fp);
+            if (pos >= 0) {
+                return true;
+            }
+            int block = -pos - 2; // last block whose first fp < fp
+            loadBlock(block);
+            return Arrays.binarySearch(cached, 0, cachedLength, fp) >= 0;
+        }
+
+        void loadBlock(int block) throws IOException {
+            if (block == cachedBlock) {
+                return;
+            }
+            long start = (long) block * BLOCK_FPS;
+            int length = (int) Math.min(BLOCK_FPS, count - start);
+            ByteBuffer buf = ByteBuffer.allocate(length * 8);
+            long position = start * 8;
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException(file.toString());
+                }
+            }
+            buf.flip();
+            buf.asLongBuffer().get(cached, 0, length);
+            cachedLength = length;
+            cachedBlock = block;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        void delete() throws IOException {
+            close();
+            deleteFiles(file);
+        }
+
+        /**
+         * Delete a run file and its Bloom filter, if present.
+         */
+        static void deleteFiles(File runFile) {
+            if (runFile.exists() && !runFile.delete()) {
+                LOGGER.warning("unable to delete " + runFile);
+            }
+            File bloomFile = bloomFileOf(runFile);
+            if (bloomFile.exists() && !bloomFile.delete()) {
+                LOGGER.warning("unable to delete " + bloomFile);
+            }
+        }
+
+        /** newest first: higher level runs are older, then by sequence */
+        public int compareTo(Run o) {
+            if (level != o.level) {
+                return level < o.level ? -1 : 1;
+            }
+            return seq > o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * Bloom filter of one run, in a file of raw words mapped in chunks
+     * (a single mapping being limited to 2GB). Written only while its run
+     * is written, before the run is published; read-only thereafter. The
+     * mapping is released when the instance is collected.
+     */
+    protected static class RunBloom {
+        static final long CHUNK_BYTES = 1L << 30;
+        static final long WORDS_PER_CHUNK = CHUNK_BYTES / 8;
+
+        final MappedByteBuffer[] chunks;
+        final long bits;
+        final int hashes;
+
+        RunBloom(MappedByteBuffer[] chunks, long bytes, int hashes) {
+            this.chunks = chunks;
+            this.bits = bytes * 8;
+            this.hashes = hashes;
+        }
+
+        static long bytesFor(long expected, int bitsPerFp) {
+            return Math.max(1, (expected * bitsPerFp + 63) / 64) * 8;
+        }
+
+        static int hashCount(int bitsPerFp) {
+            return Math.max(1, (int) Math.round(bitsPerFp * Math.log(2)));
+        }
+
+        /**
+         * Create a zeroed filter sized for the expected fingerprints.
+         */
+        static RunBloom create(File file, long expected, int bitsPerFp)
+        throws IOException {
+            long bytes = bytesFor(expected, bitsPerFp);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                // sparse on most filesystems until bits are set
+                raf.setLength(bytes);
+                return new RunBloom(map(raf.getChannel(),
+                        FileChannel.MapMode.READ_WRITE, bytes), bytes,
+                        hashCount(bitsPerFp));
+            } finally {
+                // mappings outlive the channel
+                raf.close();
+            }
+        }
+
+        /**
+         * Map an existing, complete filter for reading.
+         */
+        static RunBloom open(File file, int bitsPerFp) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long bytes = raf.length();
+                return new RunBloom(map(raf.getChannel(),
+                        FileChannel.MapMode.READ_ONLY, bytes), bytes,
+                        hashCount(bitsPerFp));
+            } finally {
+                raf.close();
+            }
+        }
+
+        static MappedByteBuffer[] map(FileChannel channel,
+                FileChannel.MapMode mode, long bytes) throws IOException {
+            int n = (int) ((bytes + CHUNK_BYTES - 1) / CHUNK_BYTES);
+            MappedByteBuffer[] chunks = new MappedByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                long start = i * CHUNK_BYTES;
+                chunks[i] = channel.map(mode, start,
+                        Math.min(CHUNK_BYTES, bytes - start));
+            }
+            return chunks;
+        }
+
+        /** further mix the fingerprint, in case its low bits are weak */
+        static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            return z ^ (z >>> 31);
+        }
+
+        long word(long w) {
+            return chunks[(int) (w / WORDS_PER_CHUNK)]
+                .getLong((int) (w % WORDS_PER_CHUNK) * 8);
+        }
+
+        void add(long fp) {
+            long h1 = mix(fp);
+            long h2 = (h1 >>> 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+                long w = bit >>> 6;
+                chunks[(int) (w / WORDS_PER_CHUNK)].putLong(
+                        (int) (w % WORDS_PER_CHUNK) * 8,
+                        word(w) | (1L << bit));
+            }
+        }
+
+        boolean contains(long fp) {
+            long h1 = mix(fp);
+            long h2 = (h1 >>> 32) | 1;
+            for (int i = 0; i < hashes; i++) {
+                long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+                if ((word(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+    }
+
+    /**
+     * Ascending iterator over the union of several runs' files.
+     */
+    protected static class MergingLongIterator implements LongIterator {
+        DataInputStream[] ins;
+        long[] remaining;
+        long[] heads;
+        boolean[] valid;
+
+        MergingLongIterator(List<Run> inputs) throws IOException {
+            int n = inputs.size();
+            ins = new DataInputStream[n];
+            remaining = new long[n];
+            heads = new long[n];
+            valid = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                Run r = inputs.get(i);
+                ins[i] = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(r.file), 65536));
+                remaining[i] = r.count;
+                advance(i);
+            }
+        }
+
+        void advance(int i) {
+            if (remaining[i] == 0) {
+                valid[i] = false;
+                try {
+                    ins[i].close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                return;
+            }
+            try {
+                heads[i] = ins[i].readLong();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            remaining[i]--;
+            valid[i] = true;
+        }
+
+        public boolean hasNext() {
+            for (boolean v : valid) {
+                if (v) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public long nextLong() {
+            // fanout is small, so a linear scan beats a heap
+            int min = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if (valid[i] && (min < 0 || heads[i] < heads[min])) {
+                    min = i;
+                }
+            }
+            if (min < 0) {
+                throw new java.util.NoSuchElementException();
+            }
+            long fp = heads[min];
+            advance(min);
+            return fp;
+        }
+
+        public Long next() {
+            return nextLong();
+        }
+
+        public int skip(int n) {
+            int i = 0;
+            while (i < n && hasNext()) {
+                nextLong();
+                i++;
+            }
+            return i;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
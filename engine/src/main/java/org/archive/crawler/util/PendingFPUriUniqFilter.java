@@ -0,0 +1,260 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.archive.crawler.datamodel.UriUniqFilter;
+import org.archive.modules.CrawlURI;
+import org.archive.util.fingerprint.ArrayLongFPCache;
+
+import st.ata.util.FPGenerator;
+
+/**
+ * UriUniqFilter which batches the fingerprints of added URIs in a sorted
+ * 'pending' set, after a quick check against recently-seen fingerprints, 
+ * until a flush decides which are new. Subclasses supply the flush 
+ * against their store of all fingerprints seen.
+ * 
+ * Split out of FPMergeUriUniqFilter, which flushes by merging the whole
+ * fingerprint list.
+ */
+public abstract class PendingFPUriUniqFilter implements UriUniqFilter {
+    /**
+     * Represents a long fingerprint and (possibly) its corresponding
+     * CrawlURI, awaiting the next merge in a 'pending' state. 
+     */
+    public class PendingItem implements Comparable<PendingItem> {
+        long fp;
+        CrawlURI caUri;
+        public PendingItem(long fp, CrawlURI value) {
+            this.fp = fp;
+            this.caUri = value;
+        }
+        public int compareTo(PendingItem vs) {
+            return (fp < vs.fp) ? -1 : ( (fp == vs.fp) ? 0 : 1); 
+        }
+    }
+    
+    protected CrawlUriReceiver receiver;
+    protected PrintWriter profileLog;
+    
+    // statistics
+    protected long quickDuplicateCount = 0;
+    protected long quickDupAtLast = 0; 
+    protected long pendDuplicateCount = 0;
+    protected long pendDupAtLast = 0; 
+    protected long mergeDuplicateCount = 0;
+    protected long mergeDupAtLast = 0; 
+    
+    /** items awaiting merge
+     * TODO: consider only sorting just pre-merge
+     * TODO: consider using a fastutil long-&gt;Object class
+     * TODO: consider actually writing items to disk file,
+     * as in Najork/Heydon
+     */
+    protected TreeSet<PendingItem> pendingSet = new TreeSet<PendingItem>();
+    
+    /** size at which to force flush of pending items */
+    protected int maxPending = DEFAULT_MAX_PENDING;
+    public static final int DEFAULT_MAX_PENDING = 10000; 
+    // TODO: increase
+    
+    /**
+     * time-based throttle on flush-merge operations
+     */
+    protected long nextFlushAllowableAfter = 0;
+    public static final long FLUSH_DELAY_FACTOR = 100;
+
+    /** cache of most recently seen FPs */
+    protected ArrayLongFPCache quickCache = new ArrayLongFPCache();
+    // TODO: make cache most-often seen, not just most-recent
+    
+    protected AtomicLong addedCount = new AtomicLong();
+
+    public PendingFPUriUniqFilter() {
+        super();
+        // property name kept from before this class was split out
+        String profileLogFile = System.getProperty(
+                "org.archive.crawler.util.FPMergeUriUniqFilter.profileLogFile");
+        if (profileLogFile != null) {
+            setProfileLog(new File(profileLogFile));
+        }
+    }
+
+    public void setMaxPending(int max) {
+        maxPending = max;
+    }
+    
+    public long pending() {
+        return pendingSet.size();
+    }
+
+    @Override
+    public long addedCount() {
+        return addedCount.get();
+    }
+
+    public void setDestination(CrawlUriReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    protected void profileLog(String key) {
+        if (profileLog != null) {
+            profileLog.println(key);
+        }
+    }
+    
+    /* (non-Javadoc)
+     * @see org.archive.crawler.datamodel.UriUniqFilter#add(java.lang.String, org.archive.crawler.datamodel.CrawlURI)
+     */
+    public synchronized void add(String key, CrawlURI value) {
+        addedCount.incrementAndGet();
+        profileLog(key);
+        long fp = createFp(key); 
+        if(! quickCheck(fp)) {
+            quickDuplicateCount++;
+            return; 
+        }
+        pend(fp,value);
+        if (pendingSet.size()>=maxPending) {
+            flush();
+        }
+    }
+
+    /**
+     * Place the given FP/CrawlURI pair into the pending set, awaiting
+     * a merge to determine if it's actually accepted. 
+     * 
+     * @param fp long fingerprint
+     * @param value CrawlURI or null, if fp only needs merging (as when 
+     * CrawlURI was already forced in
+     */
+    protected void pend(long fp, CrawlURI value) {
+        // special case for first batch of adds
+        if(count()==0) {
+            if(pendingSet.add(new PendingItem(fp,null))==false) {
+                pendDuplicateCount++; // was already present
+            } else {
+                // since there's no prior list to merge, push uri along right now
+                if(value!=null) {
+                    this.receiver.receive(value);
+                }
+            }
+            return;
+        }
+        if(pendingSet.add(new PendingItem(fp,value))==false) {
+            pendDuplicateCount++; // was already present
+        }
+    }
+
+    /**
+     * Evaluate if quick-check cache considers fingerprint novel enough
+     * for further consideration. 
+     * 
+     * @param fp long fingerprint to check
+     * @return true if fp deserves consideration; false if it appears in cache
+     */
+    private boolean quickCheck(long fp) {
+        return quickCache.add(fp);
+    }
+
+    /**
+     * Create a fingerprint from the given key
+     * 
+     * @param key CharSequence (URI) to fingerprint
+     * @return long fingerprint
+     */
+    public static long createFp(CharSequence key) {
+        return FPGenerator.std64.fp(key);
+    }
+
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.datamodel.UriUniqFilter#addNow(java.lang.String, org.archive.crawler.datamodel.CrawlURI)
+     */
+    public void addNow(String key, CrawlURI value) {
+        add(key, value);
+        flush();
+    }
+    
+    /* (non-Javadoc)
+     * @see org.archive.crawler.datamodel.UriUniqFilter#addForce(java.lang.String, org.archive.crawler.datamodel.CrawlURI)
+     */
+    public void addForce(String key, CrawlURI value) {
+        add(key,null); // dummy pend
+        this.receiver.receive(value);
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.datamodel.UriUniqFilter#note(java.lang.String)
+     */
+    public void note(String key) {
+        add(key,null);
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.datamodel.UriUniqFilter#forget(java.lang.String, org.archive.crawler.datamodel.CrawlURI)
+     */
+    public void forget(String key, CrawlURI value) {
+        throw new UnsupportedOperationException();
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.datamodel.UriUniqFilter#requestFlush()
+     */
+    public synchronized long requestFlush() {
+        if(System.currentTimeMillis()>nextFlushAllowableAfter) {
+            return flush();
+        } else {
+//            LOGGER.info("declining to flush: too soon after last flush");
+            return -1; 
+        }
+    }
+
+    /**
+     * Check all 'pending' items against the fingerprints already known. 
+     * If the pending item is new, and has an associated CrawlURI, pass that
+     * URI along to the 'receiver' (frontier) for queueing. 
+     * 
+     * @return number of pending items actually added 
+     */
+    public abstract long flush();
+
+    public void close() {
+        if (profileLog != null) {
+            profileLog.close();
+        }
+    }
+
+    public void setProfileLog(File logfile) {
+        try {
+            profileLog = new PrintWriter(new BufferedOutputStream(
+                    new FileOutputStream(logfile)));
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
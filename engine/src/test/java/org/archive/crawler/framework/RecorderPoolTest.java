@@ -0,0 +1,119 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.framework;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.archive.util.Recorder;
+import org.archive.util.TmpDirTestCase;
+
+/**
+ * Tests for RecorderPool.
+ */
+public class RecorderPoolTest extends TmpDirTestCase {
+
+    public void testBudget() {
+        // room for two full-size Recorders
+        RecorderPool pool = new RecorderPool(getTmpDir(), 100, 1000, 2500);
+        Recorder a = pool.take();
+        Recorder b = pool.take();
+        assertEquals(2200, pool.getBytesAllocated());
+        assertEquals(0, pool.getRecordersCreatedOverBudget());
+
+        Recorder c = pool.take();
+        assertEquals(1, pool.getRecordersCreatedOverBudget());
+        assertEquals(3300, pool.getBytesAllocated());
+        assertEquals(3, pool.getInUseCount());
+
+        // over budget: returned Recorder closed, not kept
+        pool.release(c);
+        assertEquals(2200, pool.getBytesAllocated());
+        assertEquals(0, pool.getIdleCount());
+
+        pool.release(a);
+        pool.release(b);
+        assertEquals(2, pool.getIdleCount());
+        assertEquals(0, pool.getInUseCount());
+
+        // idle Recorders lent again before any created
+        assertSame(a, pool.take());
+        assertEquals(3, pool.getRecordersCreated());
+        pool.release(a);
+
+        pool.cleanup();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getBytesAllocated());
+    }
+
+    public void testNoBudget() {
+        RecorderPool pool = new RecorderPool(getTmpDir(), 100, 1000, 0);
+        for (int i = 0; i < 10; i++) {
+            pool.take();
+        }
+        assertEquals(0, pool.getRecordersCreatedOverBudget());
+        assertEquals(11000, pool.getBytesAllocated());
+    }
+
+    public void testTakeWaitsForRelease() throws Exception {
+        final RecorderPool pool = 
+            new RecorderPool(getTmpDir(), 100, 1000, 2500, 10000);
+        Recorder a = pool.take();
+        pool.take();
+        final AtomicReference<Recorder> taken = new AtomicReference<Recorder>();
+        Thread taker = new Thread() {
+            public void run() {
+                taken.set(pool.take());
+            }
+        };
+        taker.start();
+        while (pool.getBudgetWaits() == 0) {
+            Thread.sleep(10);
+        }
+        assertNull(taken.get());
+
+        pool.release(a);
+        taker.join(5000);
+        assertFalse(taker.isAlive());
+        assertSame(a, taken.get());
+        assertEquals(0, pool.getRecordersCreatedOverBudget());
+        assertEquals(2200, pool.getBytesAllocated());
+        assertEquals(2, pool.getInUseCount());
+    }
+
+    public void testTakeFallsBackAfterWait() {
+        RecorderPool pool = new RecorderPool(getTmpDir(), 100, 1000, 2500, 50);
+        pool.take();
+        pool.take();
+        long start = System.currentTimeMillis();
+        pool.take();
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(1, pool.getBudgetWaits());
+        assertEquals(1, pool.getRecordersCreatedOverBudget());
+        assertEquals(3300, pool.getBytesAllocated());
+
+        StringWriter report = new StringWriter();
+        pool.reportTo(new PrintWriter(report));
+        assertTrue(report.toString(), 
+                report.toString().contains("1 small, as fallback"));
+        assertTrue(report.toString(), 
+                report.toString().contains("1 waited on budget"));
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.crawler.frontier;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.archive.bdb.BdbModule;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.SchedulingConstants;
+import org.archive.net.UURIFactory;
+import org.archive.util.TmpDirTestCase;
+import org.archive.util.bdbje.EnhancedEnvironment;
+
+import com.sleepycat.je.Database;
+import com.sleepycat.je.EnvironmentConfig;
+
+/**
+ * Tests for the head prefetch window of BdbWorkQueue.
+ */
+public class BdbWorkQueueTest extends TmpDirTestCase {
+    protected static final String CLASS_KEY = "com,example,";
+
+    protected EnhancedEnvironment env;
+    protected Database db;
+    protected File envDir;
+    protected BdbFrontier frontier;
+    protected BdbWorkQueue wq;
+    protected long ordinal = 0;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.envDir = new File(getTmpDir(), "BdbWorkQueueTest");
+        org.archive.util.FileUtils.ensureWriteableDirectory(this.envDir);
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setTransactional(false);
+        envConfig.setAllowCreate(true);
+        env = new EnhancedEnvironment(envDir, envConfig);
+        BdbModule.BdbConfig dbConfig = new BdbModule.BdbConfig();
+        dbConfig.setAllowCreate(true);
+        db = env.openDatabase(null, "pending", dbConfig.toDatabaseConfig());
+        frontier = new BdbFrontier();
+        frontier.pendingUris =
+            new BdbMultipleWorkQueues(db, env.getClassCatalog());
+        frontier.setHeadPrefetchSize(3);
+        wq = new BdbWorkQueue(CLASS_KEY, frontier);
+    }
+
+    protected void tearDown() throws Exception {
+        db.close();
+        env.close();
+        FileUtils.deleteDirectory(this.envDir);
+        super.tearDown();
+    }
+
+    protected CrawlURI curi(String path) throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://example.com/" + path));
+        curi.setClassKey(CLASS_KEY);
+        curi.setOrdinal(++ordinal);
+        return curi;
+    }
+
+    protected void enqueue(String... paths) throws Exception {
+        for (String path : paths) {
+            wq.enqueue(frontier, curi(path));
+        }
+    }
+
+    /**
+     * Peek and dequeue everything, as the frontier would.
+     */
+    protected List<String> drain() {
+        List<String> paths = new ArrayList<String>();
+        CrawlURI curi;
+        while ((curi = wq.peek(frontier)) != null) {
+            paths.add(curi.getURI().substring("http://example.com/".length()));
+            wq.dequeue(frontier, curi);
+        }
+        return paths;
+    }
+
+    public void testHigherPriorityInsertAfterWindowFills() throws Exception {
+        enqueue("a", "b", "c", "d", "e");
+        CrawlURI a = wq.peek(frontier);
+        assertEquals("http://example.com/a", a.getURI());
+        wq.dequeue(frontier, a);
+
+        CrawlURI high = curi("high");
+        high.setSchedulingDirective(SchedulingConstants.HIGH);
+        wq.enqueue(frontier, high);
+        CrawlURI between = curi("between");
+        between.setSchedulingDirective(SchedulingConstants.MEDIUM);
+        wq.enqueue(frontier, between);
+        enqueue("f");
+
+        assertEquals(Arrays.asList("high", "between", "b", "c", "d", "e", "f"),
+                drain());
+        assertEquals(0, wq.getCount());
+    }
+
+    public void testRetryReadsFreshCopy() throws Exception {
+        enqueue("a", "b", "c");
+        CrawlURI a = wq.peek(frontier);
+        a.getAnnotations().add("inProcess");
+        // as WorkQueueFrontier does for a URI to retry
+        a.processingCleanup();
+        wq.unpeek(a);
+        wq.update(frontier, a);
+
+        CrawlURI again = wq.peek(frontier);
+        assertEquals(a.getURI(), again.getURI());
+        assertNotSame(a, again);
+        assertEquals(Arrays.asList("a", "b", "c"), drain());
+
+        enqueue("d", "e");
+        CrawlURI d = wq.peek(frontier);
+        wq.unpeek(d);
+        CrawlURI d2 = wq.peek(frontier);
+        assertEquals(d.getURI(), d2.getURI());
+        assertNotSame(d, d2);
+    }
+
+    /**
+     * Inserts made straight to the database, bypassing the window, are
+     * seen once it has been dropped.
+     */
+    protected void assertWindowDropped(Runnable drop) throws Exception {
+        enqueue("a", "b", "c", "d");
+        wq.dequeue(frontier, wq.peek(frontier));
+        // window now holds b, c
+
+        CrawlURI high = curi("high");
+        high.setSchedulingDirective(SchedulingConstants.HIGH);
+        frontier.getWorkQueues().put(high, false);
+        wq.count++;
+        drop.run();
+
+        assertEquals(Arrays.asList("high", "b", "c", "d"), drain());
+    }
+
+    public void testWindowDroppedOnDeactivate() throws Exception {
+        assertWindowDropped(new Runnable() {
+            public void run() {
+                wq.noteDeactivated();
+            }
+        });
+    }
+
+    public void testWindowDroppedOnRetire() throws Exception {
+        assertWindowDropped(new Runnable() {
+            public void run() {
+                wq.setRetired(true);
+                wq.setRetired(false);
+            }
+        });
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.crawler.frontier;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for ShardedReadyQueue.
+ */
+public class ShardedReadyQueueTest extends TestCase {
+
+    public void testPutPollAll() throws InterruptedException {
+        ShardedReadyQueue q = new ShardedReadyQueue(8);
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "host" + i + ",com,";
+            q.put(key);
+            expected.add(key);
+        }
+        assertEquals(1000, q.size());
+        Set<String> seen = new HashSet<String>();
+        String key;
+        while ((key = q.poll()) != null) {
+            assertTrue("duplicate " + key, seen.add(key));
+        }
+        assertEquals(expected, seen);
+        assertTrue(q.isEmpty());
+    }
+
+    public void testSameKeySameShard() {
+        ShardedReadyQueue q = new ShardedReadyQueue(16);
+        assertEquals(q.shardFor("org,archive,"), q.shardFor(new String("org,archive,")));
+        q.offer("org,archive,");
+        assertTrue(q.contains("org,archive,"));
+        assertTrue(q.remove("org,archive,"));
+        assertFalse(q.contains("org,archive,"));
+    }
+
+    /**
+     * ShardedReadyQueue whose takers all have the given home shard.
+     */
+    static class FixedHomeQueue extends ShardedReadyQueue {
+        int fixedHome;
+        FixedHomeQueue(int shardCount, int fixedHome) {
+            super(shardCount);
+            this.fixedHome = fixedHome;
+        }
+        @Override
+        protected int homeShard() {
+            return fixedHome;
+        }
+    }
+
+    /**
+     * @return a key which the given queue places in other than the given
+     * shard
+     */
+    protected String keyNotIn(ShardedReadyQueue q, int shard) {
+        for (int i = 0; ; i++) {
+            String key = "host" + i + ",com,";
+            if (q.shardFor(key) != shard) {
+                return key;
+            }
+        }
+    }
+
+    public void testStealFromOtherShard() throws InterruptedException {
+        FixedHomeQueue q = new FixedHomeQueue(4, 0);
+        String key = keyNotIn(q, 0);
+        q.put(key);
+        assertEquals(key, q.poll());
+        assertEquals(1, q.getStealCount());
+        assertNull(q.poll());
+    }
+
+    public void testHomeShardFirst() throws InterruptedException {
+        FixedHomeQueue q = new FixedHomeQueue(4, 0);
+        String away = keyNotIn(q, 0);
+        String local = null;
+        for (int i = 0; local == null; i++) {
+            if (q.shardFor("local" + i) == 0) {
+                local = "local" + i;
+            }
+        }
+        q.put(away);
+        q.put(local);
+        assertEquals(local, q.poll());
+        assertEquals(0, q.getStealCount());
+        assertEquals(away, q.poll());
+        assertEquals(1, q.getStealCount());
+    }
+
+    public void testTimedPollStealsWhileWaiting() throws Exception {
+        final FixedHomeQueue q = new FixedHomeQueue(4, 0);
+        final String key = keyNotIn(q, 0);
+        final String[] got = new String[1];
+        Thread taker = new Thread() {
+            public void run() {
+                try {
+                    got[0] = q.poll(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // leave null
+                }
+            }
+        };
+        taker.start();
+        q.put(key);
+        taker.join(10000);
+        assertEquals(key, got[0]);
+    }
+
+    public void testHomeShardsSpreadEvenly() throws InterruptedException {
+        final ShardedReadyQueue q = new ShardedReadyQueue(4);
+        final int[] homes = new int[8];
+        Thread[] threads = new Thread[homes.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    homes[n] = q.homeShard();
+                }
+            };
+            // started one at a time, so homes are handed out in order
+            threads[i].start();
+            threads[i].join();
+        }
+        int[] perShard = new int[4];
+        for (int home : homes) {
+            perShard[home]++;
+        }
+        for (int count : perShard) {
+            assertEquals(2, count);
+        }
+    }
+
+    /**
+     * Many threads putting and taking at once: every name put is taken
+     * exactly once.
+     */
+    public void testContention() throws Exception {
+        final ShardedReadyQueue q = new ShardedReadyQueue(8);
+        final int threadCount = 16;
+        final int perThread = 5000;
+        final ConcurrentHashMap<String,Integer> taken = 
+            new ConcurrentHashMap<String,Integer>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int n = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < perThread; i++) {
+                            q.put("t" + n + "-" + i + ",com,");
+                            String key = q.poll(1, TimeUnit.SECONDS);
+                            if (key != null && taken.put(key, n) != null) {
+                                duplicates.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // fall out; counts will show it
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join(60000);
+        }
+        String key;
+        while ((key = q.poll()) != null) {
+            if (taken.put(key, -1) != null) {
+                duplicates.incrementAndGet();
+            }
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(threadCount * perThread, taken.size());
+        assertTrue(q.isEmpty());
+    }
+
+    public void testTimedPoll() throws InterruptedException {
+        ShardedReadyQueue q = new ShardedReadyQueue(3);
+        long start = System.currentTimeMillis();
+        assertNull(q.poll(50, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 40);
+        q.put("x");
+        assertEquals("x", q.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    public void testIteratorAndDrain() throws InterruptedException {
+        ShardedReadyQueue q = new ShardedReadyQueue(5);
+        for (int i = 0; i < 50; i++) {
+            q.put("k" + i);
+        }
+        int count = 0;
+        for (@SuppressWarnings("unused") String k : q) {
+            count++;
+        }
+        assertEquals(50, count);
+        List<String> drained = new ArrayList<String>();
+        assertEquals(20, q.drainTo(drained, 20));
+        assertEquals(30, q.size());
+        assertEquals(30, q.drainTo(drained));
+        assertEquals(50, new HashSet<String>(drained).size());
+    }
+}
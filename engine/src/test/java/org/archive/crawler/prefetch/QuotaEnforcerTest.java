@@ -198,6 +198,16 @@ public class QuotaEnforcerTest extends CrawlerProcessorTestBase {
         public void finished(CrawlURI cURI) {
         }
         @Override
+        public void resume(CrawlURI cURI) {
+        }
+        @Override
+        public void parked(CrawlURI cURI) {
+        }
+        @Override
+        public int parkedUriCount() {
+            return 0;
+        }
+        @Override
         public long discoveredUriCount() {
             return 0;
         }
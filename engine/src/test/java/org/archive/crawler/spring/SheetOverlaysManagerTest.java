@@ -0,0 +1,120 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.crawler.spring;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for SheetOverlaysManager: SURT-based overlay lookup, and the
+ * version of sheet contents.
+ */
+public class SheetOverlaysManagerTest extends TestCase {
+
+    protected static final String SURT = "http://(org,example,)/private/x.html";
+
+    protected SheetOverlaysManager manager() {
+        SheetOverlaysManager manager = new SheetOverlaysManager();
+        manager.addSurtAssociation("http://(org,", "org");
+        manager.addSurtAssociation("http://(org,example,", "example");
+        manager.addSurtAssociation("http://(org,example,)/private/", "private");
+        return manager;
+    }
+
+    protected String namesFor(SheetOverlaysManager manager, String surt) {
+        return manager.surtNamesFor(surt, manager.assignmentStamp.get())
+            .toString();
+    }
+
+    public void testMemoized() {
+        SheetOverlaysManager manager = manager();
+        long stamp = manager.assignmentStamp.get();
+        assertEquals("[org, example, private]", namesFor(manager, SURT));
+        SheetOverlaysManager.CompiledSurts compiled = manager.surtTrie;
+        assertNotNull(compiled);
+        assertEquals(stamp, compiled.stamp);
+
+        assertSame(manager.surtNamesFor(SURT, stamp),
+                manager.surtNamesFor(SURT, stamp));
+        assertEquals("[org, example]",
+                namesFor(manager, "http://(org,example,)/public/"));
+        assertSame(compiled, manager.surtTrie);
+    }
+
+    public void testAddSurtAssociationInvalidates() {
+        SheetOverlaysManager manager = manager();
+        assertEquals("[org, example, private]", namesFor(manager, SURT));
+        manager.addSurtAssociation("http://(org,example,)/", "site");
+        assertEquals("[org, example, site, private]", namesFor(manager, SURT));
+        manager.addSurtAssociation("http://(org,example,", "polite");
+        assertEquals("[org, example, polite, site, private]",
+                namesFor(manager, SURT));
+    }
+
+    public void testRemoveSurtAssociationInvalidates() {
+        SheetOverlaysManager manager = manager();
+        assertEquals("[org, example, private]", namesFor(manager, SURT));
+        assertTrue(manager.removeSurtAssociation(
+                "http://(org,example,", "example"));
+        assertEquals("[org, private]", namesFor(manager, SURT));
+        assertFalse(manager.removeSurtAssociation("http://(net,", "org"));
+    }
+
+    public void testDeleteSheetInvalidates() {
+        SheetOverlaysManager manager = manager();
+        assertEquals("[org, example, private]", namesFor(manager, SURT));
+        assertTrue(manager.deleteSheet("private"));
+        assertEquals("[org, example]", namesFor(manager, SURT));
+    }
+
+    public void testSheetEditsAdvanceOverlaysVersion() {
+        SheetOverlaysManager manager = manager();
+        manager.getOrCreateSheet("private").getMap().put("bean.delay", 10);
+        long version = manager.getOverlaysVersion();
+        assertEquals(10, manager.removeSheetOverlay("private", "bean.delay"));
+        assertTrue(manager.getOverlaysVersion() > version);
+
+        version = manager.getOverlaysVersion();
+        assertNull(manager.removeSheetOverlay("absent", "bean.delay"));
+        assertEquals(version, manager.getOverlaysVersion());
+
+        // versions are per manager
+        assertEquals(0, new SheetOverlaysManager().getOverlaysVersion());
+    }
+
+    /**
+     * A lookup begun under an older stamp may compile the trie after the
+     * associations change; it must not then serve the newer stamp.
+     */
+    public void testTrieFromStaleStampNotKept() {
+        SheetOverlaysManager manager = manager();
+        long stale = manager.assignmentStamp.get();
+        assertEquals("[org, example, private]", namesFor(manager, SURT));
+        manager.removeSurtAssociation("http://(org,", "org");
+        assertNull(manager.surtTrie);
+
+        // the racing lookup finishes under the stamp it started with
+        manager.surtNamesFor(SURT, stale);
+        assertNull(manager.surtTrie);
+
+        manager.addSurtAssociation("http://(org,", "org2");
+        assertEquals("[org2, example, private]", namesFor(manager, SURT));
+        assertEquals(manager.assignmentStamp.get(), manager.surtTrie.stamp);
+    }
+}
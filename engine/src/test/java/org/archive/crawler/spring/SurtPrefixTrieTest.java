@@ -0,0 +1,76 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.spring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for SurtPrefixTrie.
+ */
+public class SurtPrefixTrieTest extends TestCase {
+
+    protected TreeMap<String,List<String>> map() {
+        TreeMap<String,List<String>> map = new TreeMap<String,List<String>>();
+        map.put("http://(org,", Arrays.asList("org"));
+        map.put("http://(org,example,", Arrays.asList("example", "polite"));
+        map.put("http://(org,example,)/private/", Arrays.asList("private"));
+        map.put("http://(com,", new ArrayList<String>());
+        return map;
+    }
+
+    public void testNamesShortestPrefixFirst() {
+        SurtPrefixTrie trie = new SurtPrefixTrie(map());
+        assertEquals("[org, example, polite, private]", 
+                trie.namesFor("http://(org,example,)/private/x.html").toString());
+        assertEquals("[org, example, polite]", 
+                trie.namesFor("http://(org,example,www,)/private/").toString());
+        assertEquals("[org]", trie.namesFor("http://(org,archive,)/").toString());
+        assertEquals("[]", trie.namesFor("http://(com,example,)/").toString());
+        assertEquals("[]", trie.namesFor("https://(org,example,)/").toString());
+    }
+
+    public void testEmptyPrefixMatchesAll() {
+        TreeMap<String,List<String>> map = map();
+        map.put("", Arrays.asList("all"));
+        SurtPrefixTrie trie = new SurtPrefixTrie(map);
+        assertEquals("[all]", trie.namesFor("http://(com,)/").toString());
+        assertEquals("[all, org]", trie.namesFor("http://(org,)/").toString());
+    }
+
+    public void testWalkResumesFromNode() {
+        SurtPrefixTrie trie = new SurtPrefixTrie(map());
+        String surt = "http://(org,example,)/private/a";
+        int authorityEnd = surt.indexOf(')') + 1;
+        List<String> names = new ArrayList<String>();
+        SurtPrefixTrie.Node node = trie.walk(trie.getRoot(), surt, 0, 
+                authorityEnd, names);
+        assertNotNull(node);
+        assertEquals("[org, example, polite]", names.toString());
+        trie.walk(node, surt, authorityEnd, surt.length(), names);
+        assertEquals("[org, example, polite, private]", names.toString());
+
+        names.clear();
+        assertNull(trie.walk(trie.getRoot(), "http://(net,)/", 0, 14, names));
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.crawler.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.io.FileUtils;
+import org.archive.crawler.datamodel.UriUniqFilter;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.TmpDirTestCase;
+
+/**
+ * Test LeveledFPMergeUriUniqFilter.
+ */
+public class LeveledFPMergeUriUniqFilterTest extends TmpDirTestCase
+implements UriUniqFilter.CrawlUriReceiver {
+    protected LeveledFPMergeUriUniqFilter filter;
+    protected File runsDir;
+    protected int received = 0;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        this.runsDir = new File(getTmpDir(), this.getClass().getName());
+        if (this.runsDir.exists()) {
+            FileUtils.deleteDirectory(runsDir);
+        }
+        this.filter = openFilter();
+    }
+
+    protected LeveledFPMergeUriUniqFilter openFilter() throws IOException {
+        return configure(new LeveledFPMergeUriUniqFilter(runsDir));
+    }
+
+    protected LeveledFPMergeUriUniqFilter configure(
+            LeveledFPMergeUriUniqFilter f) {
+        f.setMaxPending(500);
+        f.setFanout(3);
+        f.setDestination(this);
+        return f;
+    }
+
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        this.filter.close();
+    }
+
+    public void testNoFalseNegativesAcrossCompactions() throws URIException {
+        for (int i = 0; i < 20000; i++) {
+            this.filter.note("http://www" + i + ".example.com/");
+        }
+        this.filter.flush();
+        assertEquals(20000, this.filter.count());
+
+        // every earlier URI is recognized, whichever run now holds it
+        for (int i = 0; i < 20000; i += 7) {
+            this.filter.add("http://www" + i + ".example.com/", crawlUri(i));
+        }
+        this.filter.flush();
+        assertEquals(0, this.received);
+        assertEquals(20000, this.filter.count());
+
+        this.filter.add("http://www20000.example.com/", crawlUri(20000));
+        this.filter.flush();
+        assertEquals(1, this.received);
+        assertEquals(20001, this.filter.count());
+    }
+
+    public void testRunsCompacted() {
+        for (int i = 0; i < 50000; i++) {
+            this.filter.note("http://www" + i + ".example.com/");
+        }
+        this.filter.flush();
+        // awaits any compaction in progress
+        this.filter.close();
+        // 100 flushes at fanout 3 leave at most 2 runs per level
+        assertTrue("too many runs: " + this.filter.getRunCount(),
+                this.filter.getRunCount() <= 2 * 5);
+    }
+
+    public void testReopen() throws IOException {
+        for (int i = 0; i < 5000; i++) {
+            this.filter.note("http://www" + i + ".example.com/");
+        }
+        this.filter.flush();
+        this.filter.close();
+
+        this.filter = openFilter();
+        assertEquals(5000, this.filter.count());
+        this.filter.add("http://www42.example.com/", crawlUri(42));
+        this.filter.add("http://www5000.example.com/", crawlUri(5000));
+        this.filter.flush();
+        assertEquals(1, this.received);
+        assertEquals(5001, this.filter.count());
+    }
+
+    /**
+     * A crash after a merged run is committed but before its inputs are
+     * deleted must not leave their fingerprints counted twice.
+     */
+    public void testCrashAfterCompactionCommit() throws IOException {
+        this.filter.close();
+        this.filter = configure(new LeveledFPMergeUriUniqFilter(runsDir) {
+            @Override
+            protected void deleteCompacted(List<Run> inputs, File inputsFile) {
+                // crash: inputs and record left behind
+            }
+        });
+        for (int i = 0; i < 5000; i++) {
+            this.filter.note("http://www" + i + ".example.com/");
+        }
+        this.filter.flush();
+        this.filter.close();
+        assertTrue(list(".inputs").length > 0);
+
+        this.filter = openFilter();
+        assertEquals(0, list(".inputs").length);
+        assertEquals(5000, this.filter.count());
+        this.filter.add("http://www42.example.com/", crawlUri(42));
+        this.filter.add("http://www5000.example.com/", crawlUri(5000));
+        this.filter.flush();
+        assertEquals(1, this.received);
+        assertEquals(5001, this.filter.count());
+    }
+
+    /**
+     * A crash before a merged run is committed leaves the inputs as the
+     * runs, and any partial output is discarded.
+     */
+    public void testCrashBeforeCompactionCommit() throws IOException {
+        for (int i = 0; i < 5000; i++) {
+            this.filter.note("http://www" + i + ".example.com/");
+        }
+        this.filter.flush();
+        this.filter.close();
+        String[] runNames = list(".fp");
+        assertTrue(runNames.length > 0);
+        assertEquals(runNames.length, list(".fp.bloom").length);
+
+        String merged = "L09-000009999999.fp";
+        Files.write(new File(runsDir, merged + ".inputs").toPath(),
+                Arrays.asList(runNames), StandardCharsets.UTF_8);
+        Files.write(new File(runsDir, merged + ".tmp").toPath(),
+                new byte[80]);
+        Files.write(new File(runsDir, merged + ".bloom").toPath(),
+                new byte[80]);
+        // a run whose Bloom filter must be rebuilt
+        assertTrue(new File(runsDir, runNames[0] + ".bloom").delete());
+
+        this.filter = openFilter();
+        assertEquals(0, list(".inputs").length);
+        assertEquals(0, list(".tmp").length);
+        assertFalse(new File(runsDir, merged + ".bloom").exists());
+        assertEquals(runNames.length, list(".fp").length);
+        assertEquals(runNames.length, list(".fp.bloom").length);
+        assertEquals(5000, this.filter.count());
+        for (int i = 0; i < 5000; i += 7) {
+            this.filter.add("http://www" + i + ".example.com/", crawlUri(i));
+        }
+        this.filter.flush();
+        assertEquals(0, this.received);
+    }
+
+    protected String[] list(final String suffix) {
+        return runsDir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(suffix);
+            }
+        });
+    }
+
+    protected CrawlURI crawlUri(int i) throws URIException {
+        return new CrawlURI(UURIFactory.getInstance(
+                "http://www" + i + ".example.com/"));
+    }
+
+    public void receive(CrawlURI item) {
+        this.received++;
+    }
+}
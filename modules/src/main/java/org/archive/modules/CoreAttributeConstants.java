@@ -129,4 +129,7 @@ public interface CoreAttributeConstants {
     public static final String A_WARC_RESPONSE_HEADERS = "warc-response-headers";
     
     public static final String A_WARC_STATS = "warc-stats";
+
+    /** lastmod given for a URL by the sitemap listing it, in ms since epoch */
+    public static final String A_SITEMAP_LASTMOD = "sitemap-lastmod";
 }
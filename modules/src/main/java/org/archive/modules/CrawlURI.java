@@ -25,6 +25,7 @@ import org.archive.bdb.AutoKryo;
 import org.archive.modules.credential.Credential;
 import org.archive.modules.credential.HttpAuthenticationCredential;
 import org.archive.modules.extractor.HTMLLinkContext;
+import org.archive.modules.extractor.HeavyExtractorPool;
 import org.archive.modules.extractor.Hop;
 import org.archive.modules.extractor.LinkContext;
 import org.archive.modules.revisit.RevisitProfile;
@@ -140,6 +141,14 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
     // Once a link extractor has finished processing this curi this will be
     // set as true
     transient private boolean linkExtractorFinished = false;
+
+    // Once an extractor has looked in the content for a declared charset
+    // (and applied it to the recorder) this will be set as true
+    transient private boolean contentCharsetSniffed = false;
+
+    // Content extraction handed off to a HeavyExtractorPool, whose results
+    // are merged back before outlinks are considered
+    transient private List<HeavyExtractorPool.PendingExtraction> pendingExtractions = null;
    
     transient private int discardedOutlinks = 0; 
     
@@ -803,6 +812,44 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         return getFetchType().equals(FetchType.HTTP_GET) || getFetchType().equals(FetchType.HTTP_POST);
     }
 
+    /**
+     * @return True if an extractor has already looked in the content for a
+     * declared charset, so the Recorder's charset is final for this fetch
+     *
+     * @see #contentCharsetSniffed()
+     */
+    public boolean hasContentCharsetBeenSniffed() {
+        return contentCharsetSniffed;
+    }
+
+    /**
+     * Note that the content has been checked for a declared charset, and
+     * any found applied to the Recorder, so later extractors can decode
+     * with the Recorder's charset without sniffing again.
+     */
+    public void contentCharsetSniffed() {
+        contentCharsetSniffed = true;
+    }
+
+    /**
+     * @return extractions running elsewhere on this URI's content, not yet
+     * merged back; null if none
+     */
+    public List<HeavyExtractorPool.PendingExtraction> getPendingExtractions() {
+        return pendingExtractions;
+    }
+
+    public void addPendingExtraction(HeavyExtractorPool.PendingExtraction pending) {
+        if (pendingExtractions == null) {
+            pendingExtractions = new ArrayList<HeavyExtractorPool.PendingExtraction>(1);
+        }
+        pendingExtractions.add(pending);
+    }
+
+    public void clearPendingExtractions() {
+        pendingExtractions = null;
+    }
+
     /**
      * Clean up after a run through the processing chain.
      *
@@ -817,6 +864,10 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         this.contentLength = UNCALCULATED;
         // Clear 'links extracted' flag.
         this.linkExtractorFinished = false;
+        this.contentCharsetSniffed = false;
+        // Abandon any extraction nobody waited for (normally already
+        // done by the ToeThread, before it gave up the Recorder)
+        HeavyExtractorPool.abandonPendingExtractions(this);
         
         extraInfo = null;
         outLinks = null;
@@ -980,6 +1031,115 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         return holderKey;
     }
 
+    /**
+     * Processor which parked this CrawlURI (see ProcessResult.PARK), or
+     * null. Remains set after resumption until processing is complete.
+     */
+    transient protected volatile Processor parkedBy;
+    transient protected volatile boolean parked = false;
+    /** parking thread not yet done with this CrawlURI; guarded by this */
+    transient protected boolean parkingHeld = false;
+    /** resume() called while parkingHeld; guarded by this */
+    transient protected boolean resumeDeferred = false;
+    transient protected ProcessorChain.ResumptionReceiver resumptionReceiver;
+
+    /**
+     * Remember the facility (Frontier) which is to take this CrawlURI 
+     * back should it be parked and then resumed.
+     */
+    public void setResumptionReceiver(ProcessorChain.ResumptionReceiver receiver) {
+        this.resumptionReceiver = receiver;
+    }
+
+    /**
+     * @return true if processing of this CrawlURI has been set aside by a
+     * Processor and not yet resumed
+     */
+    public boolean isParked() {
+        return parked;
+    }
+
+    public Processor getParkedBy() {
+        return parkedBy;
+    }
+
+    /**
+     * Set this CrawlURI aside on behalf of the given Processor. A Processor
+     * which hands the CrawlURI to another thread, which may resume it, 
+     * must park it before doing so; otherwise the chain parks it when the 
+     * Processor returns ProcessResult.PARK. Until the parking thread calls
+     * {@link #releaseParked()}, a resume() is held back.
+     */
+    public synchronized void park(Processor processor) {
+        this.parkedBy = processor;
+        this.parked = true;
+        this.parkingHeld = true;
+    }
+
+    /**
+     * Undo a {@link #park(Processor)} made before handing this CrawlURI to
+     * another thread failed, so processing continues as usual.
+     */
+    public synchronized void cancelPark() {
+        this.parkedBy = null;
+        this.parked = false;
+        this.parkingHeld = false;
+        this.resumeDeferred = false;
+    }
+
+    protected void unpark() {
+        this.parked = false;
+    }
+
+    /**
+     * Hand this parked CrawlURI back for its processing to continue, in 
+     * some processing thread. May be called from any thread, but only
+     * once the parking Processor is done with it until resumption. If
+     * the thread which parked it has not yet let it go, it is handed 
+     * back when that thread does.
+     */
+    public void resume() {
+        if (resumptionReceiver == null) {
+            throw new IllegalStateException("no resumption receiver: " + this);
+        }
+        synchronized (this) {
+            if (parkingHeld) {
+                resumeDeferred = true;
+                return;
+            }
+        }
+        resumptionReceiver.resume(this);
+    }
+
+    /**
+     * Note that the thread which parked this CrawlURI is done with it, 
+     * and so it may now be resumed, in this thread if resume() has 
+     * already been called. 
+     */
+    public void releaseParked() {
+        boolean resumeNow;
+        synchronized (this) {
+            parkingHeld = false;
+            resumeNow = resumeDeferred;
+            resumeDeferred = false;
+        }
+        if (resumeNow) {
+            resumptionReceiver.resume(this);
+        }
+    }
+
+    /**
+     * Let the Processor which parked this CrawlURI, if any, release what
+     * it held for it. To be called once all processing is complete.
+     */
+    public void parkingComplete() {
+        if (parkedBy != null && !parked) {
+            Processor processor = parkedBy;
+            parkedBy = null;
+            processor.parkedProcessingComplete(this);
+        }
+    }
+
     /**
      * Get the ordinal (serial number) assigned at creation.
      * 
@@ -1507,6 +1667,126 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         return newCaURI;
     }
 
+    /**
+     * Returns a detached copy of this URI carrying what content extractors
+     * consult (recorder, content type and sizes, fetch status, data and
+     * overlays), so links can be extracted on another thread while this
+     * URI continues through processing. The copy has its own annotations,
+     * non-fatal failures and a synchronized outlinks collection, which
+     * {@link #mergeDetachedCopy(CrawlURI, boolean)} brings back.
+     * 
+     * <p>The copy shares this URI's Recorder; work on the copy abandoned
+     * while it may still be reading must {@link #holdRecorder()}.
+     * 
+     * @return the copy
+     */
+    public CrawlURI createDetachedCopy() {
+        CrawlURI copy = new CrawlURI(getUURI(), getPathFromSeed(), getVia(),
+                getViaContext());
+        copy.data = new HashMap<String,Object>(getData());
+        copy.data.remove(A_ANNOTATIONS);
+        copy.data.remove(A_NONFATAL_ERRORS);
+        copy.outLinks = Collections.synchronizedSet(new LinkedHashSet<CrawlURI>());
+        copy.httpRecorder = httpRecorder;
+        copy.contentType = contentType;
+        copy.contentSize = contentSize;
+        copy.contentLength = contentLength;
+        copy.fetchStatus = fetchStatus;
+        copy.fetchType = fetchType;
+        copy.contentCharsetSniffed = contentCharsetSniffed;
+        copy.overlayNames = overlayNames;
+        copy.surtOverlayNames = surtOverlayNames;
+        copy.surtOverlayNamesStamp = surtOverlayNamesStamp;
+        copy.overlayMapsSource = overlayMapsSource;
+        return copy;
+    }
+
+    /**
+     * Abandoned work on detached copies (see {@link #createDetachedCopy()})
+     * which may still be reading this URI's Recorder, and what to do once
+     * none is; guarded by this
+     */
+    transient protected int recorderHolds = 0;
+    transient protected List<Runnable> recorderFreeActions;
+
+    /**
+     * Note that work on a detached copy of this URI, though abandoned, may
+     * still be reading its Recorder, which must not be reused meanwhile.
+     * Each hold is ended by {@link #releaseRecorderHold()}.
+     */
+    public synchronized void holdRecorder() {
+        recorderHolds++;
+    }
+
+    /**
+     * End a hold taken by {@link #holdRecorder()}; the last to end runs
+     * any actions deferred by {@link #whenRecorderFree(Runnable)}. May be 
+     * called from any thread.
+     */
+    public void releaseRecorderHold() {
+        List<Runnable> actions = null;
+        synchronized (this) {
+            if (--recorderHolds == 0) {
+                actions = recorderFreeActions;
+                recorderFreeActions = null;
+            }
+        }
+        if (actions != null) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    public synchronized boolean isRecorderHeld() {
+        return recorderHolds > 0;
+    }
+
+    /**
+     * Run the given action, which resets or reuses this URI's Recorder,
+     * at once if nothing holds the Recorder, or else once the last hold
+     * ends (in the thread which ends it).
+     */
+    public void whenRecorderFree(Runnable action) {
+        synchronized (this) {
+            if (recorderHolds > 0) {
+                if (recorderFreeActions == null) {
+                    recorderFreeActions = new LinkedList<Runnable>();
+                }
+                recorderFreeActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Brings back the outlinks found on a copy from
+     * {@link #createDetachedCopy()}, plus, if extraction on it ran to
+     * completion, its annotations, failures and finished flag. Safe to
+     * call while an abandoned extraction is still adding to the copy.
+     * 
+     * @param copy detached copy of this URI
+     * @param complete whether extraction on the copy has finished
+     */
+    public void mergeDetachedCopy(CrawlURI copy, boolean complete) {
+        Collection<CrawlURI> links = copy.getOutLinks();
+        synchronized (links) {
+            getOutLinks().addAll(links);
+        }
+        if (!complete) {
+            return;
+        }
+        getAnnotations().addAll(copy.getAnnotations());
+        getNonFatalFailures().addAll(copy.getNonFatalFailures());
+        if (copy.linkExtractorFinished) {
+            // copy's "dol:" annotation, if any, came over above
+            linkExtractorFinished = true;
+        } else {
+            discardedOutlinks += copy.discardedOutlinks;
+        }
+    }
+
     /**
      * Extend a 'hopsPath' (pathFromSeed string of single-character hop-type symbols),
      * keeping the number of displayed hop-types under MAX_HOPS_DISPLAYED. For longer
@@ -1590,23 +1870,60 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
     //
     // OverridesSource implementation
     //
-    transient protected ArrayList<String> overlayNames = null;
+    transient protected List<String> overlayNames = null;
+    transient protected List<String> surtOverlayNames = null;
+    transient protected long surtOverlayNamesStamp = -1;
     transient protected OverlayMapsSource overlayMapsSource; 
     public boolean haveOverlayNamesBeenSet() {
         return overlayNames != null;
     }
     
-    public ArrayList<String> getOverlayNames() {
+    public List<String> getOverlayNames() {
         if(overlayNames == null) {
             overlayNames = new ArrayList<String>(); 
         }
         return overlayNames;
     }
 
+    /**
+     * Set the names of overlays applying to this CrawlURI, as a 
+     * (possibly shared, unmodifiable) list.
+     */
+    public void setOverlayNames(List<String> names) {
+        this.overlayNames = names;
+    }
+
+    /**
+     * Remember the names of overlays applying to this CrawlURI by its
+     * SURT alone, along with a stamp by which the assigner can later
+     * recognize them as still current.
+     */
+    public void setSurtOverlayNames(List<String> names, long stamp) {
+        this.surtOverlayNames = names;
+        this.surtOverlayNamesStamp = stamp;
+    }
+
+    public List<String> getSurtOverlayNames() {
+        return surtOverlayNames;
+    }
+
+    public long getSurtOverlayNamesStamp() {
+        return surtOverlayNamesStamp;
+    }
+
+    public OverlayMapsSource getOverlayMapsSource() {
+        return overlayMapsSource;
+    }
+
     public Map<String, Object> getOverlayMap(String name) {
         return overlayMapsSource.getOverlayMap(name);
     }
 
+    public long getOverlaysVersion() {
+        return (overlayMapsSource == null) 
+            ? 0 : overlayMapsSource.getOverlaysVersion();
+    }
+
     public void setOverlayMapsSource(OverlayMapsSource overrideMapsSource) {
         this.overlayMapsSource = overrideMapsSource;
     }
@@ -1707,6 +2024,235 @@ implements Reporter, Serializable, OverlayContext, Comparable<CrawlURI> {
         kryo.autoregister(FetchType.class);
         kryo.setRegistrationOptional(true);
     }
+
+    // Compact codec support
+    // field numbers: append only, never reuse
+    private static final int F_URI = 1;
+    private static final int F_VIA = 2;
+    private static final int F_VIA_CONTEXT_HTML = 3;
+    private static final int F_VIA_CONTEXT_SIMPLE = 4;
+    private static final int F_PATH_FROM_SEED = 5;
+    private static final int F_IS_SEED = 6;
+    private static final int F_SCHEDULING_DIRECTIVE = 7;
+    private static final int F_CLASS_KEY = 8;
+    private static final int F_PRECEDENCE = 9;
+    private static final int F_FETCH_STATUS = 10;
+    private static final int F_DEFERRALS = 11;
+    private static final int F_FETCH_ATTEMPTS = 12;
+    private static final int F_USER_AGENT = 13;
+    private static final int F_CONTENT_SIZE = 14;
+    private static final int F_CONTENT_LENGTH = 15;
+    private static final int F_FORCE_REVISIT = 16;
+    private static final int F_CONTENT_TYPE = 17;
+    private static final int F_PREREQUISITE = 18;
+    private static final int F_FETCH_TYPE = 19;
+    private static final int F_ORDINAL = 20;
+    private static final int F_CONTENT_DIGEST = 21;
+    private static final int F_CONTENT_DIGEST_SCHEME = 22;
+    private static final int F_HOLDER_COST = 23;
+    private static final int F_CANONICAL_STRING = 24;
+    private static final int F_POLITENESS_DELAY = 25;
+    private static final int F_RESCHEDULE_TIME = 26;
+    private static final int F_EXTRA_INFO = 27;
+    private static final int F_DATA = 28;
+
+    /**
+     * Write all persistent state differing from the defaults of a
+     * freshly-deserialized instance, as CrawlURICodec tagged fields.
+     */
+    void writeCompactTo(CrawlURICodec.Output out) {
+        String uri = uuri.toCustomString();
+        out.writeField(F_URI, uri);
+        if (via != null) {
+            out.writeField(F_VIA, via.toCustomString(), uri);
+        }
+        if (viaContext instanceof HTMLLinkContext) {
+            out.writeField(F_VIA_CONTEXT_HTML, viaContext.toString());
+        } else if (viaContext != null) {
+            out.writeField(F_VIA_CONTEXT_SIMPLE, viaContext.toString());
+        }
+        if (pathFromSeed != null) {
+            out.writeField(F_PATH_FROM_SEED, pathFromSeed);
+        }
+        if (isSeed) {
+            out.writeField(F_IS_SEED, 1);
+        }
+        if (schedulingDirective != NORMAL) {
+            out.writeField(F_SCHEDULING_DIRECTIVE, schedulingDirective);
+        }
+        if (classKey != null) {
+            out.writeField(F_CLASS_KEY, classKey);
+        }
+        if (precedence != 0) {
+            out.writeField(F_PRECEDENCE, precedence);
+        }
+        if (fetchStatus != 0) {
+            out.writeField(F_FETCH_STATUS, fetchStatus);
+        }
+        if (deferrals != 0) {
+            out.writeField(F_DEFERRALS, deferrals);
+        }
+        if (fetchAttempts != 0) {
+            out.writeField(F_FETCH_ATTEMPTS, fetchAttempts);
+        }
+        if (userAgent != null) {
+            out.writeField(F_USER_AGENT, userAgent);
+        }
+        if (contentSize != UNCALCULATED) {
+            out.writeField(F_CONTENT_SIZE, contentSize);
+        }
+        if (contentLength != UNCALCULATED) {
+            out.writeField(F_CONTENT_LENGTH, contentLength);
+        }
+        if (forceRevisit) {
+            out.writeField(F_FORCE_REVISIT, 1);
+        }
+        if (!"unknown".equals(contentType)) {
+            out.writeField(F_CONTENT_TYPE, contentType);
+        }
+        if (prerequisite) {
+            out.writeField(F_PREREQUISITE, 1);
+        }
+        if (fetchType != FetchType.UNKNOWN) {
+            out.writeField(F_FETCH_TYPE, fetchType.ordinal());
+        }
+        if (ordinal != 0) {
+            out.writeField(F_ORDINAL, ordinal);
+        }
+        if (contentDigest != null) {
+            out.writeField(F_CONTENT_DIGEST, contentDigest);
+        }
+        if (contentDigestScheme != null) {
+            out.writeField(F_CONTENT_DIGEST_SCHEME, contentDigestScheme);
+        }
+        if (holderCost != UNCALCULATED) {
+            out.writeField(F_HOLDER_COST, holderCost);
+        }
+        if (canonicalString != null) {
+            out.writeField(F_CANONICAL_STRING, canonicalString, uri);
+        }
+        if (politenessDelay != -1) {
+            out.writeField(F_POLITENESS_DELAY, politenessDelay);
+        }
+        if (rescheduleTime != -1) {
+            out.writeField(F_RESCHEDULE_TIME, rescheduleTime);
+        }
+        if (extraInfo != null) {
+            out.writeField(F_EXTRA_INFO, extraInfo.toString());
+        }
+        if (data != null && !data.isEmpty()) {
+            out.writeValueField(F_DATA, data);
+        }
+    }
+
+    /**
+     * Recreate a CrawlURI from CrawlURICodec tagged fields.
+     */
+    @SuppressWarnings("unchecked")
+    static CrawlURI readCompactFrom(CrawlURICodec.Input in) {
+        CrawlURI curi = new CrawlURI();
+        String uri = null;
+        int tag;
+        while ((tag = in.readTag()) != 0) {
+            int field = tag >>> 3;
+            switch (field) {
+            case F_URI:
+                uri = in.readString();
+                curi.uuri = in.toUURI(uri);
+                break;
+            case F_VIA:
+                curi.via = in.toUURI(in.readPrefixedString(uri));
+                break;
+            case F_VIA_CONTEXT_HTML:
+                curi.viaContext = HTMLLinkContext.get(in.readString());
+                break;
+            case F_VIA_CONTEXT_SIMPLE:
+                curi.viaContext = new LinkContext.SimpleLinkContext(in.readString());
+                break;
+            case F_PATH_FROM_SEED:
+                curi.pathFromSeed = in.readString();
+                break;
+            case F_IS_SEED:
+                curi.isSeed = in.readZigZag() != 0;
+                break;
+            case F_SCHEDULING_DIRECTIVE:
+                curi.schedulingDirective = (int) in.readZigZag();
+                break;
+            case F_CLASS_KEY:
+                curi.classKey = in.readString();
+                break;
+            case F_PRECEDENCE:
+                curi.precedence = (int) in.readZigZag();
+                break;
+            case F_FETCH_STATUS:
+                curi.fetchStatus = (int) in.readZigZag();
+                break;
+            case F_DEFERRALS:
+                curi.deferrals = (int) in.readZigZag();
+                break;
+            case F_FETCH_ATTEMPTS:
+                curi.fetchAttempts = (int) in.readZigZag();
+                break;
+            case F_USER_AGENT:
+                curi.userAgent = in.readString();
+                break;
+            case F_CONTENT_SIZE:
+                curi.contentSize = in.readZigZag();
+                break;
+            case F_CONTENT_LENGTH:
+                curi.contentLength = in.readZigZag();
+                break;
+            case F_FORCE_REVISIT:
+                curi.forceRevisit = in.readZigZag() != 0;
+                break;
+            case F_CONTENT_TYPE:
+                curi.contentType = ((tag & 7) == CrawlURICodec.WIRE_NULL)
+                        ? null : in.readString();
+                break;
+            case F_PREREQUISITE:
+                curi.prerequisite = in.readZigZag() != 0;
+                break;
+            case F_FETCH_TYPE:
+                curi.fetchType = FetchType.values()[(int) in.readZigZag()];
+                break;
+            case F_ORDINAL:
+                curi.ordinal = in.readZigZag();
+                break;
+            case F_CONTENT_DIGEST:
+                curi.contentDigest = in.readBytes();
+                break;
+            case F_CONTENT_DIGEST_SCHEME:
+                curi.contentDigestScheme = in.readString();
+                break;
+            case F_HOLDER_COST:
+                curi.holderCost = (int) in.readZigZag();
+                break;
+            case F_CANONICAL_STRING:
+                curi.canonicalString = in.readPrefixedString(uri);
+                break;
+            case F_POLITENESS_DELAY:
+                curi.politenessDelay = in.readZigZag();
+                break;
+            case F_RESCHEDULE_TIME:
+                curi.rescheduleTime = in.readZigZag();
+                break;
+            case F_EXTRA_INFO:
+                try {
+                    curi.extraInfo = new JSONObject(in.readString());
+                } catch (JSONException e) {
+                    logger.log(Level.WARNING, "dropping unparseable extra info", e);
+                }
+                break;
+            case F_DATA:
+                curi.data = (Map<String,Object>) in.readValue();
+                break;
+            default:
+                // from a later version; ignore
+                in.skipField(tag);
+            }
+        }
+        return curi;
+    }
     
     /**
      * Do all actions associated with setting a <code>CrawlURI</code> as
@@ -0,0 +1,585 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.bdb.AutoKryo;
+import org.archive.modules.recrawl.RecrawlAttributeConstants;
+import org.archive.net.UURI;
+
+import com.esotericsoftware.kryo.ObjectBuffer;
+
+/**
+ * Compact, versioned binary encoding of a CrawlURI, for the hundreds of
+ * millions of URIs held in frontier queues.
+ *
+ * An encoding is a MAGIC byte, a version varint, then a sequence of
+ * tagged fields (see CrawlURI's "Compact codec support") ending in a
+ * zero tag. Each tag carries its field number and wire type, so a reader
+ * can skip fields it doesn't know. Only fields differing from their
+ * defaults are written. Numbers are zig-zag varints; the via and
+ * canonical strings are written as a count of characters shared with the
+ * URI plus the differing suffix. In the data map, well-known keys are
+ * written as small integers and common value types get compact tags; any
+ * other value falls back to Kryo.
+ *
+ * Kryo's FieldSerializer output for CrawlURI begins with the 0/1
+ * null-marker of its first field, so never with MAGIC; so
+ * {@link #isCompact(byte[])} tells the two apart, letting environments
+ * written with the Kryo binding be read, and rewritten compactly, in place.
+ */
+public class CrawlURICodec {
+    public static final byte MAGIC = (byte) 0xC7;
+    public static final int VERSION = 1;
+
+    // wire types: low 3 bits of each field tag
+    public static final int WIRE_VARINT = 0;
+    public static final int WIRE_STRING = 1;
+    public static final int WIRE_PREFIXED_STRING = 2;
+    public static final int WIRE_BYTES = 3;
+    public static final int WIRE_NULL = 4;
+    public static final int WIRE_VALUE = 5;
+
+    // data value types
+    protected static final int V_NULL = 0;
+    protected static final int V_STRING = 1;
+    protected static final int V_INT = 2;
+    protected static final int V_LONG = 3;
+    protected static final int V_TRUE = 4;
+    protected static final int V_FALSE = 5;
+    protected static final int V_BYTES = 6;
+    protected static final int V_UURI = 7;
+    protected static final int V_HASHSET = 8;
+    protected static final int V_LINKEDHASHSET = 9;
+    protected static final int V_HASHMAP = 10;
+    protected static final int V_HASHMAP_ARRAY = 11;
+    protected static final int V_DOUBLE = 12;
+    protected static final int V_ARRAYLIST = 13;
+    protected static final int V_KRYO = 14;
+
+    /**
+     * Data-map keys written as (index+1) rather than as strings. Append
+     * only: reordering or removing entries breaks stored encodings.
+     */
+    protected static final String[] KEYS = {
+        CoreAttributeConstants.A_CONTENT_TYPE,
+        CoreAttributeConstants.A_DELAY_FACTOR,
+        CoreAttributeConstants.A_MINIMUM_DELAY,
+        CoreAttributeConstants.A_RRECORD_SET_LABEL,
+        CoreAttributeConstants.A_DNS_FETCH_TIME,
+        CoreAttributeConstants.A_FETCH_BEGAN_TIME,
+        CoreAttributeConstants.A_FETCH_COMPLETED_TIME,
+        CoreAttributeConstants.A_SERVER_IP,
+        CoreAttributeConstants.A_RUNTIME_EXCEPTION,
+        CoreAttributeConstants.A_NONFATAL_ERRORS,
+        CoreAttributeConstants.A_ANNOTATIONS,
+        CoreAttributeConstants.A_PREREQUISITE_URI,
+        CoreAttributeConstants.A_DISTANCE_FROM_SEED,
+        CoreAttributeConstants.A_HTML_BASE,
+        CoreAttributeConstants.A_RETRY_DELAY,
+        CoreAttributeConstants.A_MIRROR_PATH,
+        CoreAttributeConstants.A_CREDENTIALS_KEY,
+        CoreAttributeConstants.A_SOURCE_TAG,
+        CoreAttributeConstants.A_HERITABLE_KEYS,
+        CoreAttributeConstants.A_FORCE_RETIRE,
+        CoreAttributeConstants.A_PRECALC_PRECEDENCE,
+        CoreAttributeConstants.A_HTTP_PROXY_HOST,
+        CoreAttributeConstants.A_HTTP_PROXY_PORT,
+        CoreAttributeConstants.A_HTTP_RESPONSE_HEADERS,
+        CoreAttributeConstants.A_HTTP_AUTH_CHALLENGES,
+        CoreAttributeConstants.A_SUBMIT_DATA,
+        CoreAttributeConstants.A_SUBMIT_ENCTYPE,
+        CoreAttributeConstants.A_WARC_RESPONSE_HEADERS,
+        CoreAttributeConstants.A_WARC_STATS,
+        CrawlURI.A_FETCH_HISTORY,
+        RecrawlAttributeConstants.A_CONTENT_DIGEST,
+        RecrawlAttributeConstants.A_LAST_MODIFIED_HEADER,
+        RecrawlAttributeConstants.A_ETAG_HEADER,
+        RecrawlAttributeConstants.A_STATUS,
+        RecrawlAttributeConstants.A_REFERENCE_LENGTH,
+        RecrawlAttributeConstants.A_CONTENT_DIGEST_HISTORY,
+        RecrawlAttributeConstants.A_ORIGINAL_URL,
+        RecrawlAttributeConstants.A_WARC_RECORD_ID,
+        RecrawlAttributeConstants.A_WARC_FILENAME,
+        RecrawlAttributeConstants.A_WARC_FILE_OFFSET,
+        RecrawlAttributeConstants.A_ORIGINAL_DATE,
+        RecrawlAttributeConstants.A_CONTENT_DIGEST_COUNT,
+        RecrawlAttributeConstants.A_WRITE_TAG,
+    };
+    protected static final Map<String,Integer> KEY_CODES =
+        new HashMap<String,Integer>();
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEY_CODES.put(KEYS[i], i + 1);
+        }
+    }
+
+    /** kryo for data values of no compact type */
+    protected AutoKryo kryo = new AutoKryo();
+    protected ThreadLocal<ObjectBuffer> kryoBuffer = new ThreadLocal<ObjectBuffer>() {
+        @Override
+        protected ObjectBuffer initialValue() {
+            return new ObjectBuffer(kryo, 1024, Integer.MAX_VALUE);
+        }
+    };
+    protected ThreadLocal<Output> threadOutput = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    public CrawlURICodec() {
+        kryo.autoregister(CrawlURI.class);
+    }
+
+    /**
+     * @return true if the given bytes are a compact encoding (rather than,
+     * say, a Kryo serialization of a CrawlURI)
+     */
+    public static boolean isCompact(byte[] bytes) {
+        return bytes.length > 1 && bytes[0] == MAGIC;
+    }
+
+    public byte[] encode(CrawlURI curi) {
+        Output out = threadOutput.get();
+        out.reset();
+        out.writeByte(MAGIC);
+        out.writeVarLong(VERSION);
+        curi.writeCompactTo(out);
+        out.writeVarLong(0); // end of fields
+        return out.toByteArray();
+    }
+
+    public CrawlURI decode(byte[] bytes) {
+        Input in = new Input(bytes);
+        if (in.readByte() != MAGIC) {
+            throw new IllegalArgumentException("not a compact CrawlURI encoding");
+        }
+        int version = (int) in.readVarLong();
+        if (version > VERSION) {
+            throw new IllegalArgumentException("unsupported CrawlURI encoding version "
+                    + version);
+        }
+        return CrawlURI.readCompactFrom(in);
+    }
+
+    /**
+     * Growable byte buffer with the codec's primitive writers.
+     */
+    public class Output {
+        protected byte[] buf = new byte[256];
+        protected int pos = 0;
+
+        void reset() {
+            pos = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+
+        protected void ensure(int more) {
+            if (pos + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + more));
+            }
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        public void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[pos++] = (byte) v;
+        }
+
+        public void writeZigZag(long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        public void writeBytes(byte[] b) {
+            writeVarLong(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, pos, b.length);
+            pos += b.length;
+        }
+
+        public void writeString(String s) {
+            int len = s.length();
+            // fast path for the usual all-ASCII URI
+            boolean ascii = true;
+            for (int i = 0; i < len && ascii; i++) {
+                ascii = s.charAt(i) < 0x80;
+            }
+            if (ascii) {
+                writeVarLong(len);
+                ensure(len);
+                for (int i = 0; i < len; i++) {
+                    buf[pos++] = (byte) s.charAt(i);
+                }
+            } else {
+                writeBytes(s.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        /**
+         * Write s as the count of leading chars it shares with base, then
+         * the remainder.
+         */
+        public void writePrefixedString(String s, String base) {
+            int shared = 0;
+            if (base != null) {
+                int max = Math.min(s.length(), base.length());
+                while (shared < max && s.charAt(shared) == base.charAt(shared)) {
+                    shared++;
+                }
+            }
+            writeVarLong(shared);
+            writeString(s.substring(shared));
+        }
+
+        public void writeTag(int field, int wireType) {
+            writeVarLong((field << 3) | wireType);
+        }
+
+        public void writeField(int field, long value) {
+            writeTag(field, WIRE_VARINT);
+            writeZigZag(value);
+        }
+
+        public void writeField(int field, String value) {
+            if (value == null) {
+                writeTag(field, WIRE_NULL);
+            } else {
+                writeTag(field, WIRE_STRING);
+                writeString(value);
+            }
+        }
+
+        public void writeField(int field, String value, String base) {
+            writeTag(field, WIRE_PREFIXED_STRING);
+            writePrefixedString(value, base);
+        }
+
+        public void writeField(int field, byte[] value) {
+            writeTag(field, WIRE_BYTES);
+            writeBytes(value);
+        }
+
+        public void writeValueField(int field, Object value) {
+            writeTag(field, WIRE_VALUE);
+            writeValue(value);
+        }
+
+        public void writeKey(String key) {
+            Integer code = KEY_CODES.get(key);
+            if (code != null) {
+                writeVarLong(code);
+            } else {
+                writeVarLong(0);
+                writeString(key);
+            }
+        }
+
+        /**
+         * Write a data-map value, compactly if of a common type.
+         */
+        @SuppressWarnings("unchecked")
+        public void writeValue(Object value) {
+            if (value == null) {
+                writeVarLong(V_NULL);
+            } else if (value instanceof String) {
+                writeVarLong(V_STRING);
+                writeString((String) value);
+            } else if (value instanceof Integer) {
+                writeVarLong(V_INT);
+                writeZigZag((Integer) value);
+            } else if (value instanceof Long) {
+                writeVarLong(V_LONG);
+                writeZigZag((Long) value);
+            } else if (value instanceof Boolean) {
+                writeVarLong(((Boolean) value) ? V_TRUE : V_FALSE);
+            } else if (value instanceof byte[]) {
+                writeVarLong(V_BYTES);
+                writeBytes((byte[]) value);
+            } else if (value.getClass() == UURI.class) {
+                writeVarLong(V_UURI);
+                writeString(((UURI) value).toCustomString());
+            } else if (value instanceof Double) {
+                writeVarLong(V_DOUBLE);
+                // byte-reversed, so the zero low bytes of a short mantissa
+                // become cheap high bytes
+                long bits = Double.doubleToRawLongBits((Double) value);
+                writeVarLong(Long.reverseBytes(bits));
+            } else if (value.getClass() == HashSet.class) {
+                writeVarLong(V_HASHSET);
+                writeCollection((Collection<Object>) value);
+            } else if (value.getClass() == LinkedHashSet.class) {
+                writeVarLong(V_LINKEDHASHSET);
+                writeCollection((Collection<Object>) value);
+            } else if (value.getClass() == ArrayList.class) {
+                writeVarLong(V_ARRAYLIST);
+                writeCollection((Collection<Object>) value);
+            } else if (value.getClass() == HashMap.class
+                    && hasStringKeys((Map<?,?>) value)) {
+                writeVarLong(V_HASHMAP);
+                writeMap((Map<String,Object>) value);
+            } else if (value.getClass() == HashMap[].class
+                    && hasStringKeys((Map<?,?>[]) value)) {
+                writeVarLong(V_HASHMAP_ARRAY);
+                Map<String,Object>[] maps = (Map<String,Object>[]) value;
+                writeVarLong(maps.length);
+                for (Map<String,Object> m : maps) {
+                    if (m == null) {
+                        writeByte(0);
+                    } else {
+                        writeByte(1);
+                        writeMap(m);
+                    }
+                }
+            } else {
+                writeVarLong(V_KRYO);
+                writeBytes(kryoBuffer.get().writeClassAndObject(value));
+            }
+        }
+
+        protected void writeCollection(Collection<Object> c) {
+            writeVarLong(c.size());
+            for (Object o : c) {
+                writeValue(o);
+            }
+        }
+
+        public void writeMap(Map<String,Object> map) {
+            writeVarLong(map.size());
+            for (Map.Entry<String,Object> e : map.entrySet()) {
+                writeKey(e.getKey());
+                writeValue(e.getValue());
+            }
+        }
+    }
+
+    protected static boolean hasStringKeys(Map<?,?> map) {
+        for (Object k : map.keySet()) {
+            if (!(k instanceof String)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean hasStringKeys(Map<?,?>[] maps) {
+        for (Map<?,?> m : maps) {
+            if (m != null && !hasStringKeys(m)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reader over an encoding, mirroring Output.
+     */
+    public class Input {
+        protected final byte[] buf;
+        protected int pos = 0;
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        public boolean hasRemaining() {
+            return pos < buf.length;
+        }
+
+        public int readByte() {
+            return buf[pos++];
+        }
+
+        public long readVarLong() {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                byte b = buf[pos++];
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+                shift += 7;
+            }
+        }
+
+        public long readZigZag() {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        public byte[] readBytes() {
+            int len = (int) readVarLong();
+            byte[] b = Arrays.copyOfRange(buf, pos, pos + len);
+            pos += len;
+            return b;
+        }
+
+        public String readString() {
+            int len = (int) readVarLong();
+            String s = new String(buf, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        public String readPrefixedString(String base) {
+            int shared = (int) readVarLong();
+            String suffix = readString();
+            return shared == 0 ? suffix : base.substring(0, shared) + suffix;
+        }
+
+        public UURI readUURI() {
+            return toUURI(readString());
+        }
+
+        protected UURI toUURI(String s) {
+            try {
+                return UURI.fromCustomString(s);
+            } catch (URIException e) {
+                throw new IllegalStateException("bad stored URI " + s, e);
+            }
+        }
+
+        /**
+         * @return next field tag, or 0 at end of fields
+         */
+        public int readTag() {
+            return (int) readVarLong();
+        }
+
+        /**
+         * Skip the value of a field of unknown number, written by a later
+         * version of the codec.
+         */
+        public void skipField(int tag) {
+            switch (tag & 7) {
+            case WIRE_VARINT:
+                readVarLong();
+                break;
+            case WIRE_STRING:
+                readString();
+                break;
+            case WIRE_PREFIXED_STRING:
+                readVarLong();
+                readString();
+                break;
+            case WIRE_BYTES:
+                readBytes();
+                break;
+            case WIRE_NULL:
+                break;
+            case WIRE_VALUE:
+                readValue();
+                break;
+            default:
+                throw new IllegalStateException("unknown wire type in tag " + tag);
+            }
+        }
+
+        public String readKey() {
+            int code = (int) readVarLong();
+            return code == 0 ? readString() : KEYS[code - 1];
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public Object readValue() {
+            int type = (int) readVarLong();
+            switch (type) {
+            case V_NULL:
+                return null;
+            case V_STRING:
+                return readString();
+            case V_INT:
+                return (int) readZigZag();
+            case V_LONG:
+                return readZigZag();
+            case V_TRUE:
+                return Boolean.TRUE;
+            case V_FALSE:
+                return Boolean.FALSE;
+            case V_BYTES:
+                return readBytes();
+            case V_UURI:
+                return readUURI();
+            case V_DOUBLE:
+                return Double.longBitsToDouble(Long.reverseBytes(readVarLong()));
+            case V_HASHSET:
+                return readCollection(new HashSet<Object>());
+            case V_LINKEDHASHSET:
+                return readCollection(new LinkedHashSet<Object>());
+            case V_ARRAYLIST:
+                return readCollection(new ArrayList<Object>());
+            case V_HASHMAP:
+                return readMap();
+            case V_HASHMAP_ARRAY:
+                HashMap[] maps = new HashMap[(int) readVarLong()];
+                for (int i = 0; i < maps.length; i++) {
+                    if (readByte() != 0) {
+                        maps[i] = readMap();
+                    }
+                }
+                return maps;
+            case V_KRYO:
+                return kryoBuffer.get().readClassAndObject(readBytes());
+            default:
+                throw new IllegalStateException("unknown value type " + type);
+            }
+        }
+
+        protected Collection<Object> readCollection(Collection<Object> c) {
+            int size = (int) readVarLong();
+            for (int i = 0; i < size; i++) {
+                c.add(readValue());
+            }
+            return c;
+        }
+
+        public HashMap<String,Object> readMap() {
+            int size = (int) readVarLong();
+            HashMap<String,Object> map = new HashMap<String,Object>(
+                    Math.max(4, size * 4 / 3 + 1));
+            for (int i = 0; i < size; i++) {
+                String key = readKey();
+                map.put(key, readValue());
+            }
+            return map;
+        }
+    }
+}
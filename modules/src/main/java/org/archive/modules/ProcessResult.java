@@ -46,6 +46,15 @@ public class ProcessResult {
          * scheduled next processor.
          */
         JUMP,
+
+        /**
+         * The Processor has set the URI aside to await some event (such as
+         * the completion of asynchronous I/O), freeing the thread for other
+         * work. The chain should stop; once the Processor hands the URI 
+         * back (see {@link CrawlURI#resume()}), processing continues with
+         * the Processor's resumption.
+         */
+        PARK,
     }
     
     final public static ProcessResult PROCEED = 
@@ -54,6 +63,9 @@ public class ProcessResult {
     final public static ProcessResult FINISH =
         new ProcessResult(ProcessStatus.FINISH);
     
+    final public static ProcessResult PARK =
+        new ProcessResult(ProcessStatus.PARK);
+    
     
     final private ProcessStatus status;
     final private String jumpTarget;
@@ -189,6 +189,33 @@ implements HasKeyedProperties,
     throws InterruptedException;
 
 
+    /**
+     * Completes the processing of a URI this processor parked (by 
+     * returning {@link ProcessResult#PARK}), once it has been resumed. 
+     * Processors which never park need not override this.
+     * 
+     * @param uri    the resumed URI
+     * @return  how the chain should proceed
+     * @throws InterruptedException   if the thread is interrupted
+     */
+    protected ProcessResult resumeProcess(CrawlURI uri) 
+    throws InterruptedException {
+        return ProcessResult.PROCEED;
+    }
+
+
+    /**
+     * Invoked once all processing of a URI this processor parked, and 
+     * which was later resumed, is complete, so that anything held for it
+     * since (such as a Recorder) may be released. The default 
+     * implementation does nothing.
+     * 
+     * @param uri    the URI whose processing is complete
+     */
+    protected void parkedProcessingComplete(CrawlURI uri) {
+    }
+
+
     /**
      * Invoked after a URI has been rejected.  The default implementation
      * does nothing; subclasses may override to log rejects or something.
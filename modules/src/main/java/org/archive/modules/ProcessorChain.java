@@ -115,8 +115,24 @@ implements Iterable<Processor>,
     }
 
     public void process(CrawlURI curi, ChainStatusReceiver thread) throws InterruptedException {
+        process(curi, thread, null);
+    }
+
+    /**
+     * Continue processing of a CrawlURI which was parked (see 
+     * {@link ProcessResult#PARK}) and has since been resumed: the 
+     * Processor which parked it finishes its work, and the chain proceeds
+     * from there.
+     */
+    public void resume(CrawlURI curi, ChainStatusReceiver thread) throws InterruptedException {
+        curi.unpark();
+        process(curi, thread, curi.getParkedBy());
+    }
+
+    protected void process(CrawlURI curi, ChainStatusReceiver thread,
+            Processor resumeProc) throws InterruptedException {
         assert KeyedProperties.overridesActiveFrom(curi);
-        String skipToProc = null; 
+        String skipToProc = (resumeProc == null) ? null : resumeProc.getBeanName(); 
         
         ploop: for(Processor curProc : this ) {
             if(skipToProc!=null && !curProc.getBeanName().equals(skipToProc)) {
@@ -128,7 +144,13 @@ implements Iterable<Processor>,
                 thread.atProcessor(curProc);
             }
             ArchiveUtils.continueCheck();
-            ProcessResult pr = curProc.process(curi);
+            ProcessResult pr;
+            if (curProc == resumeProc) {
+                resumeProc = null;
+                pr = curProc.resumeProcess(curi);
+            } else {
+                pr = curProc.process(curi);
+            }
             switch (pr.getProcessStatus()) {
                 case PROCEED:
                     continue;
@@ -137,6 +159,11 @@ implements Iterable<Processor>,
                 case JUMP:
                     skipToProc = pr.getJumpTarget();
                     continue;
+                case PARK:
+                    if (!curi.isParked()) {
+                        curi.park(curProc);
+                    }
+                    break ploop;
             }
         }
     }
@@ -144,4 +171,11 @@ implements Iterable<Processor>,
     public interface ChainStatusReceiver {
         public void atProcessor(Processor proc);
     }
+
+    /**
+     * Accepts parked CrawlURIs which are ready to resume processing.
+     */
+    public interface ResumptionReceiver {
+        public void resume(CrawlURI curi);
+    }
 }
@@ -18,8 +18,11 @@
  */
 package org.archive.modules.extractor;
 
+import java.io.IOException;
+
 import org.archive.modules.CrawlURI;
 import org.archive.modules.fetcher.FetchStatusCodes;
+import org.springframework.beans.factory.annotation.Autowired;
 
 
 /**
@@ -29,17 +32,100 @@ import org.archive.modules.fetcher.FetchStatusCodes;
  */
 public abstract class ContentExtractor extends Extractor {
 
+    {
+        setStreamingThreshold(-1L);
+    }
+    public long getStreamingThreshold() {
+        return (Long) kp.get("streamingThreshold");
+    }
+    /**
+     * Content longer than this many bytes is scanned a bounded window at a
+     * time (see {@link ReplayCharWindow}) rather than decoded whole, by
+     * extractors that support it ({@link ExtractorCSS}, {@link ExtractorJS},
+     * {@link ExtractorXML}). This keeps per-thread memory flat for very
+     * large documents; matches longer than
+     * {@link ReplayCharWindow#DEFAULT_LOOK_BACK} characters, such as
+     * absurdly long XML tokens, may be missed. -1 (the default) disables.
+     */
+    public void setStreamingThreshold(long threshold) {
+        kp.put("streamingThreshold", threshold);
+    }
+
+    /**
+     * Opens a window over the URI's content if it is longer than
+     * {@link #getStreamingThreshold()}, for extractors that can scan
+     * incrementally; the caller must close it.
+     * 
+     * @return the window, or null if the content should be read whole
+     */
+    protected ReplayCharWindow openReplayWindow(CrawlURI curi)
+            throws IOException {
+        long threshold = getStreamingThreshold();
+        if (threshold < 0 || curi.getContentLength() <= threshold) {
+            return null;
+        }
+        return ReplayCharWindow.open(curi.getRecorder(),
+                ReplayCharWindow.DEFAULT_CHUNK_SIZE,
+                ReplayCharWindow.DEFAULT_LOOK_BACK);
+    }
+
+
+    {
+        setHeavy(false);
+    }
+    public boolean getHeavy() {
+        return (Boolean) kp.get("heavy");
+    }
+    /**
+     * Whether this extractor's work is slow or risky enough to run on the
+     * {@link HeavyExtractorPool}, if one is declared, rather than on the
+     * ToeThread.
+     */
+    public void setHeavy(boolean heavy) {
+        kp.put("heavy", heavy);
+    }
+
+    protected transient HeavyExtractorPool heavyExtractorPool;
+    public HeavyExtractorPool getHeavyExtractorPool() {
+        return heavyExtractorPool;
+    }
+    @Autowired(required=false)
+    public void setHeavyExtractorPool(HeavyExtractorPool heavyExtractorPool) {
+        this.heavyExtractorPool = heavyExtractorPool;
+    }
 
     /**
      * Extracts links 
      */
     final protected void extract(CrawlURI uri) {
+        if (heavyExtractorPool != null && getHeavy()
+                && heavyExtractorPool.submit(this, uri)) {
+            // outlinks are merged back before candidates are scheduled
+            return;
+        }
         boolean finished = innerExtract(uri);
         if (finished) {
             uri.linkExtractorFinished();
         }
     }
 
+    /**
+     * Runs {@link #innerExtract(CrawlURI)} with the error handling of
+     * {@link #innerProcess(CrawlURI)}, for extraction off the ToeThread.
+     */
+    protected boolean innerExtractGuarded(CrawlURI uri) {
+        try {
+            return innerExtract(uri);
+        } catch (NullPointerException npe) {
+            handleException(uri, npe);
+        } catch (StackOverflowError soe) {
+            handleException(uri, soe);
+        } catch (java.nio.charset.CoderMalfunctionError cme) {
+            handleException(uri, cme);
+        }
+        return false;
+    }
+
     /**
      * Determines if links should be extracted from the given URI. This method
      * performs four checks. It first checks if the URI was processed successfully,
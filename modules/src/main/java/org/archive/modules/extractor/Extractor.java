@@ -112,7 +112,7 @@ public abstract class Extractor extends Processor {
     }
     
     
-    private void handleException(CrawlURI uri, Throwable t) {
+    protected void handleException(CrawlURI uri, Throwable t) {
         // both annotate (to highlight in crawl log) & add as local-error
         uri.getAnnotations().add("err=" + t.getClass().getName());
         uri.getNonFatalFailures().add(t);
@@ -108,6 +108,16 @@ public class ExtractorCSS extends ContentExtractor {
      */
     public boolean innerExtract(CrawlURI curi) {
         try {
+            ReplayCharWindow window = openReplayWindow(curi);
+            if (window != null) {
+                try {
+                    numberOfLinksExtracted.addAndGet(
+                        processStyleCode(this, curi, window));
+                } finally {
+                    window.close();
+                }
+                return true;
+            }
             ReplayCharSequence cs = curi.getRecorder().getContentReplayCharSequence();
             numberOfLinksExtracted.addAndGet(
                 processStyleCode(this, curi, cs));
@@ -123,24 +133,11 @@ public class ExtractorCSS extends ContentExtractor {
             CrawlURI curi, CharSequence cs) {
         long foundLinks = 0;
         Matcher uris = null;
-        String cssUri;
         try {
             uris = TextUtils.getMatcher(CSS_URI_EXTRACTOR, cs);
             while (uris.find()) {
-                cssUri = uris.group(2);
-                // TODO: Escape more HTML Entities.
-                cssUri = TextUtils.replaceAll(ESCAPED_AMP, cssUri, "&");
-                // Remove backslashes when used as escape character in CSS URL
-                cssUri = TextUtils.replaceAll(CSS_BACKSLASH_ESCAPE, cssUri,
-                        "$1");
                 foundLinks++;
-                int max = ext.getExtractorParameters().getMaxOutlinks();
-                try {
-                	addRelativeToBase(curi, max, cssUri, 
-                            LinkContext.EMBED_MISC, Hop.EMBED);
-                } catch (URIException e) {
-                    ext.logUriError(e, curi.getUURI(), cssUri);
-                }
+                considerStyleUri(ext, curi, uris.group(2));
             }
         } catch (StackOverflowError e) {
             DevUtils.warnHandle(e, "ExtractorCSS StackOverflowError");
@@ -149,4 +146,50 @@ public class ExtractorCSS extends ContentExtractor {
         }
         return foundLinks;
     }
+
+    /**
+     * As {@link #processStyleCode(Extractor, CrawlURI, CharSequence)}, but
+     * over content read a window at a time.
+     */
+    public static long processStyleCode(Extractor ext, 
+            CrawlURI curi, ReplayCharWindow window) throws IOException {
+        long foundLinks = 0;
+        long resume = 0;
+        while (window.advance()) {
+            Matcher uris = null;
+            try {
+                uris = TextUtils.getMatcher(CSS_URI_EXTRACTOR, window);
+                int from = window.indexOf(resume);
+                int limit = window.completeLimit();
+                while (uris.find(from) && uris.start() < limit) {
+                    foundLinks++;
+                    considerStyleUri(ext, curi, uris.group(2));
+                    from = uris.end();
+                }
+                resume = window.resumeOffset(from);
+            } catch (StackOverflowError e) {
+                DevUtils.warnHandle(e, "ExtractorCSS StackOverflowError");
+                return foundLinks;
+            } finally {
+                TextUtils.recycleMatcher(uris);
+            }
+        }
+        return foundLinks;
+    }
+
+    protected static void considerStyleUri(Extractor ext, CrawlURI curi,
+            String cssUri) {
+        // TODO: Escape more HTML Entities.
+        cssUri = TextUtils.replaceAll(ESCAPED_AMP, cssUri, "&");
+        // Remove backslashes when used as escape character in CSS URL
+        cssUri = TextUtils.replaceAll(CSS_BACKSLASH_ESCAPE, cssUri,
+                "$1");
+        int max = ext.getExtractorParameters().getMaxOutlinks();
+        try {
+        	addRelativeToBase(curi, max, cssUri, 
+                    LinkContext.EMBED_MISC, Hop.EMBED);
+        } catch (URIException e) {
+            ext.logUriError(e, curi.getUURI(), cssUri);
+        }
+    }
 }
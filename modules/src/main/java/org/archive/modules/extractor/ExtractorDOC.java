@@ -50,6 +50,10 @@ public class ExtractorDOC extends ContentExtractor {
     private static Logger logger =
         Logger.getLogger("org.archive.crawler.extractor.ExtractorDOC");
 
+    {
+        setHeavy(true);
+    }
+
     public ExtractorDOC() {
     }
 
@@ -743,22 +743,29 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
 				|| context.equals(HTMLLinkContext.IMG_DATA_ORIGINAL_SET.toString())
 				|| context.equals(HTMLLinkContext.SOURCE_DATA_ORIGINAL_SET.toString())) {
             logger.log(Level.FINE,"Found srcset listing: {0}", value);
-
-            Matcher matcher = TextUtils.getMatcher("[\\s,]*(\\S*[^,\\s])(?:\\s(?:[^,(]+|\\([^)]*(?:\\)|$))*)?", value);
-            while (matcher.lookingAt()) {
-                CharSequence link = value.subSequence(matcher.start(1), matcher.end(1));
-                matcher.region(matcher.end(), matcher.regionEnd());
-                logger.log(Level.FINER, "Found {0} adding to outlinks.", link);
-                addLinkFromString(curi, link, context, hop);
-                numberOfLinksExtracted.incrementAndGet();
-            }
-            TextUtils.recycleMatcher(matcher);
+            processSrcset(curi, value, context, hop);
         } else {
             addLinkFromString(curi, value, context, hop);
             numberOfLinksExtracted.incrementAndGet();
         }
     }
 
+    /**
+     * Add each URI of a srcset-style listing ("uri [descriptor], ...").
+     */
+    protected void processSrcset(CrawlURI curi, CharSequence value,
+            CharSequence context, Hop hop) {
+        Matcher matcher = TextUtils.getMatcher("[\\s,]*(\\S*[^,\\s])(?:\\s(?:[^,(]+|\\([^)]*(?:\\)|$))*)?", value);
+        while (matcher.lookingAt()) {
+            CharSequence link = value.subSequence(matcher.start(1), matcher.end(1));
+            matcher.region(matcher.end(), matcher.regionEnd());
+            logger.log(Level.FINER, "Found {0} adding to outlinks.", link);
+            addLinkFromString(curi, link, context, hop);
+            numberOfLinksExtracted.incrementAndGet();
+        }
+        TextUtils.recycleMatcher(matcher);
+    }
+
     
     protected boolean shouldExtract(CrawlURI uri) {
         if (getIgnoreUnexpectedHtml()) {
@@ -792,7 +799,9 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
     }
 
     public boolean innerExtract(CrawlURI curi) {
-        if (!curi.containsContentTypeCharsetDeclaration()) {
+        if (!curi.containsContentTypeCharsetDeclaration()
+                && !curi.hasContentCharsetBeenSniffed()) {
+            curi.contentCharsetSniffed();
             String contentPrefix = curi.getRecorder().getContentReplayPrefixString(1000);
             Charset contentDeclaredEncoding = getContentDeclaredCharset(curi,contentPrefix);
             if(!curi.getRecorder().getCharset().equals(contentDeclaredEncoding) && contentDeclaredEncoding!=null) {
@@ -1020,7 +1029,19 @@ public class ExtractorHTML extends ContentExtractor implements InitializingBean
             // TODO: handle other stuff
         }
         TextUtils.recycleMatcher(attr);
+        return processMeta(curi, name, httpEquiv, content);
+    }
 
+    /**
+     * Process the values of a metadata tag's attributes.
+     * @param curi CrawlURI we're processing.
+     * @param name value of NAME attribute, or null
+     * @param httpEquiv value of HTTP-EQUIV attribute, or null
+     * @param content value of CONTENT attribute, or null
+     * @return True robots exclusion metatag.
+     */
+    protected boolean processMeta(CrawlURI curi, String name,
+            String httpEquiv, String content) {
         // Look for the 'robots' meta-tag
         if("robots".equalsIgnoreCase(name) && content != null ) {
             curi.getData().put(A_META_ROBOTS, content);
@@ -116,6 +116,18 @@ public class ExtractorJS extends ContentExtractor {
         this.numberOfCURIsHandled++;
         ReplayCharSequence cs = null;
         try {
+            ReplayCharWindow window = openReplayWindow(curi);
+            if (window != null) {
+                try {
+                    numberOfLinksExtracted.addAndGet(
+                            considerStrings(this, curi, window, true));
+                } catch (StackOverflowError e) {
+                    DevUtils.warnHandle(e, "ExtractorJS StackOverflowError");
+                } finally {
+                    window.close();
+                }
+                return true;
+            }
             cs = curi.getRecorder().getContentReplayCharSequence();
             try {
                 numberOfLinksExtracted.addAndGet(considerStrings(curi, cs));
@@ -163,6 +175,40 @@ public class ExtractorJS extends ContentExtractor {
         return foundLinks;
     }
 
+    /**
+     * As {@link #considerStrings(Extractor, CrawlURI, CharSequence, boolean)},
+     * but over content read a window at a time.
+     */
+    public long considerStrings(Extractor ext, CrawlURI curi,
+            ReplayCharWindow window, boolean handlingJSFile)
+            throws IOException {
+        long foundLinks = 0;
+        long resume = 0;
+        while (window.advance()) {
+            Matcher strings =
+                TextUtils.getMatcher(JAVASCRIPT_STRING_EXTRACTOR, window);
+            try {
+                int startIndex = window.indexOf(resume);
+                int limit = window.completeLimit();
+                while (strings.find(startIndex) && strings.start() < limit) {
+                    CharSequence subsequence =
+                            window.subSequence(strings.start(2), strings.end(2));
+                    if (UriUtils.isPossibleUri(subsequence)) {
+                        if (considerString(ext, curi, handlingJSFile,
+                                subsequence.toString())) {
+                            foundLinks++;
+                        }
+                    }
+                    startIndex = strings.end(1);
+                }
+                resume = window.resumeOffset(startIndex);
+            } finally {
+                TextUtils.recycleMatcher(strings);
+            }
+        }
+        return foundLinks;
+    }
+
 
     protected boolean considerString(Extractor ext, CrawlURI curi,
             boolean handlingJSFile, String candidate) {
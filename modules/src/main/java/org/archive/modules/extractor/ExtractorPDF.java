@@ -21,6 +21,7 @@ package org.archive.modules.extractor;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import org.apache.commons.httpclient.URIException;
@@ -46,6 +47,7 @@ public class ExtractorPDF extends ContentExtractor {
 
     {
         setMaxSizeToParse(10*1024*1024L); // 10MB
+        setHeavy(true);
     }
     public long getMaxSizeToParse() {
         return (Long) kp.get("maxSizeToParse");
@@ -111,6 +113,15 @@ public class ExtractorPDF extends ContentExtractor {
             return true;
         }
 
+        addPdfOutlinks(curi, uris);
+        // Set flag to indicate that link extraction is completed.
+        return true;
+    }
+
+    /**
+     * Add the (absolute) URIs found in a PDF as navlinks.
+     */
+    protected void addPdfOutlinks(CrawlURI curi, List<String> uris) {
         for (String uri: uris) {
             try {
                 UURI src = curi.getUURI();
@@ -128,7 +139,5 @@ public class ExtractorPDF extends ContentExtractor {
         numberOfLinksExtracted.addAndGet(uris.size());
 
         LOGGER.fine(curi+" has "+uris.size()+" links.");
-        // Set flag to indicate that link extraction is completed.
-        return true;
     }
 }
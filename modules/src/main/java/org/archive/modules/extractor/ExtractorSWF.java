@@ -70,6 +70,10 @@ public class ExtractorSWF extends ContentExtractor {
         this.extractorJS = extractorJS;
     }
     
+    {
+        setHeavy(true);
+    }
+
     public ExtractorSWF() {
     }
 
@@ -1,5 +1,7 @@
 package org.archive.modules.extractor;
 
+import static org.archive.modules.CoreAttributeConstants.A_SITEMAP_LASTMOD;
+
 import java.io.IOException;
 import java.net.URL;
 import java.util.Collection;
@@ -30,6 +32,12 @@ public class ExtractorSitemap extends ContentExtractor {
     private static final Logger LOGGER = Logger
             .getLogger(ExtractorSitemap.class.getName());
 
+    /**
+     * Outlinks allowed from one sitemap: the most the sitemap protocol
+     * permits it to list.
+     */
+    protected static final int MAX_SITEMAP_OUTLINKS = 50000;
+
     /**
      * If urlPattern is not null then any url marked as a sitemap and matching the pattern is
      * assumed to be a sitemap. Otherwise the mime-type is checked (must be "text/xml" or "application/xml") and the
@@ -109,7 +117,7 @@ public class ExtractorSitemap extends ContentExtractor {
                     if (asm == null) {
                         continue;
                     }
-                    this.recordOutlink(uri, asm.getUrl(), asm.getLastModified(),
+                    this.recordOutlink(uri, asm.getUrl().toString(), asm.getLastModified(),
                             true);
                 }
             } else {
@@ -119,7 +127,7 @@ public class ExtractorSitemap extends ContentExtractor {
                     if (url == null) {
                         continue;
                     }
-                    this.recordOutlink(uri, url.getUrl(), url.getLastModified(),
+                    this.recordOutlink(uri, url.getUrl().toString(), url.getLastModified(),
                             false);
                 }
             }
@@ -161,7 +169,18 @@ public class ExtractorSitemap extends ContentExtractor {
         return sitemap;
     }
 
-    private void recordOutlink(CrawlURI curi, URL newUri, Date lastModified,
+    /**
+     * @return most outlinks to add from one sitemap
+     */
+    protected int getMaxSitemapOutlinks() {
+        return MAX_SITEMAP_OUTLINKS;
+    }
+
+    /**
+     * Add a URL listed in a sitemap (or sitemap index) as an outlink,
+     * keeping its lastmod, if any, in the outlink's data.
+     */
+    protected void recordOutlink(CrawlURI curi, String newUri, Date lastModified,
             boolean isSitemap) {
         try {
             // Get the max outlinks (needed by add method):
@@ -172,11 +191,11 @@ public class ExtractorSitemap extends ContentExtractor {
             // getExtractorParameters().getMaxOutlinks();
             //
             // And instead use the maximum that is allowed for a sitemap:
-            int max = 50000;
+            int max = getMaxSitemapOutlinks();
 
             // Add the URI:
         	// Adding 'regular' URL listed in the sitemap
-            CrawlURI newCuri = addRelativeToBase(curi, max, newUri.toString(),
+            CrawlURI newCuri = addRelativeToBase(curi, max, newUri,
                     LinkContext.MANIFEST_MISC, Hop.MANIFEST);
 
             if (newCuri == null) {
@@ -188,6 +207,10 @@ public class ExtractorSitemap extends ContentExtractor {
                 newCuri.getAnnotations().add(
                         ExtractorRobotsTxt.ANNOTATION_IS_SITEMAP);
             }
+            if (lastModified != null) {
+                newCuri.getData().put(A_SITEMAP_LASTMOD,
+                        lastModified.getTime());
+            }
             
             // And log about it:
             LOGGER.fine("Found " + newUri + " from " + curi + " Dated "
@@ -195,7 +218,7 @@ public class ExtractorSitemap extends ContentExtractor {
             // Count it:
             numberOfLinksExtracted.incrementAndGet();
         } catch (URIException e) {
-            logUriError(e, curi.getUURI(), newUri.toString());
+            logUriError(e, curi.getUURI(), newUri);
         }
 
     }
@@ -99,7 +99,9 @@ public class ExtractorXML extends ContentExtractor {
         Charset contentDeclaredEncoding = null; 
         try {
             // if charset not spec'd in http header look for <?xml encoding=""?>
-            if (!curi.containsContentTypeCharsetDeclaration()) {
+            if (!curi.containsContentTypeCharsetDeclaration()
+                    && !curi.hasContentCharsetBeenSniffed()) {
+                curi.contentCharsetSniffed();
                 String contentPrefix = curi.getRecorder().getContentReplayPrefixString(50);
                 contentDeclaredEncoding = getContentDeclaredCharset(curi, contentPrefix); 
                 if(!curi.getRecorder().getCharset().equals(contentDeclaredEncoding) && contentDeclaredEncoding!=null) {
@@ -116,6 +118,16 @@ public class ExtractorXML extends ContentExtractor {
                     }
                 }
             }
+            ReplayCharWindow window = openReplayWindow(curi);
+            if (window != null) {
+                try {
+                    numberOfLinksExtracted.addAndGet(
+                            processXml(this, curi, window));
+                } finally {
+                    window.close();
+                }
+                return true;
+            }
             cs = curi.getRecorder().getContentReplayCharSequence();
             numberOfLinksExtracted.addAndGet(processXml(this, curi, cs));
             // Set flag to indicate that link extraction is completed.
@@ -149,24 +161,56 @@ public class ExtractorXML extends ContentExtractor {
         long foundLinks = 0;
         Matcher matcher = XML_URI_EXTRACTOR.matcher(cs);
         while (matcher.find()) {
-            String xmlUri = StringEscapeUtils.unescapeXml(matcher.group(1));
-            if (UriUtils.isVeryLikelyUri(xmlUri)) {
+            if (considerXmlUri(ext, curi, matcher.group(1))) {
                 foundLinks++;
-                try {
-                    // treat as speculative, as whether context really 
-                    // intends to create a followable/fetchable URI is
-                    // unknown
-                    int max = ext.getExtractorParameters().getMaxOutlinks();
-                    addRelativeToBase(curi, max, xmlUri, 
-                            LinkContext.SPECULATIVE_MISC, Hop.SPECULATIVE); 
-                } catch (URIException e) {
-                    // There may not be a controller (e.g. If we're being run
-                    // by the extractor tool).
-                    ext.logUriError(e, curi.getUURI(), xmlUri);
+            }
+        }
+        return foundLinks;
+    }
+
+    /**
+     * As {@link #processXml(Extractor, CrawlURI, CharSequence)}, but over
+     * content read a window at a time. Tokens longer than the window's
+     * look-back are skipped.
+     */
+    public static long processXml(Extractor ext, 
+            CrawlURI curi, ReplayCharWindow window) throws IOException {
+        long foundLinks = 0;
+        long resume = 0;
+        while (window.advance()) {
+            Matcher matcher = XML_URI_EXTRACTOR.matcher(window);
+            int from = window.indexOf(resume);
+            int limit = window.completeLimit();
+            while (matcher.find(from) && matcher.start() < limit) {
+                if (considerXmlUri(ext, curi, matcher.group(1))) {
+                    foundLinks++;
                 }
+                from = matcher.end();
             }
+            resume = window.resumeOffset(from);
         }
         return foundLinks;
     }
+
+    protected static boolean considerXmlUri(Extractor ext, CrawlURI curi,
+            String candidate) {
+        String xmlUri = StringEscapeUtils.unescapeXml(candidate);
+        if (!UriUtils.isVeryLikelyUri(xmlUri)) {
+            return false;
+        }
+        try {
+            // treat as speculative, as whether context really 
+            // intends to create a followable/fetchable URI is
+            // unknown
+            int max = ext.getExtractorParameters().getMaxOutlinks();
+            addRelativeToBase(curi, max, xmlUri, 
+                    LinkContext.SPECULATIVE_MISC, Hop.SPECULATIVE); 
+        } catch (URIException e) {
+            // There may not be a controller (e.g. If we're being run
+            // by the extractor tool).
+            ext.logUriError(e, curi.getUURI(), xmlUri);
+        }
+        return true;
+    }
     
 }
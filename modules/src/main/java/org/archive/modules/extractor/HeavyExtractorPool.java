@@ -0,0 +1,448 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.modules.CrawlURI;
+import org.archive.spring.KeyedProperties;
+import org.springframework.context.Lifecycle;
+
+/**
+ * Runs {@link ContentExtractor}s marked as heavy (see
+ * {@link ContentExtractor#setHeavy(boolean)}) off the ToeThread, on a
+ * bounded pool of worker threads, with per-URI wall-clock and CPU budgets.
+ * 
+ * <p>Each extraction works on a detached copy of the CrawlURI (see
+ * {@link CrawlURI#createDetachedCopy()}), so the ToeThread carries on
+ * through the rest of the fetch chain and the disposition chain while it
+ * runs. The CandidatesProcessor waits for it, no longer than the wall-clock budget after submission,
+ * and merges the outlinks back before scheduling them. An extraction over
+ * either budget is cancelled (its worker interrupted); the outlinks it had
+ * found by then are kept, and the URI annotated 'heavyExtractionTimeout'
+ * or 'heavyExtractionCpuLimit'.
+ * 
+ * <p>Outlinks merged back after the WARC writer has run do not appear in
+ * its metadata record. Parsers that ignore interrupts keep their worker
+ * busy until they finish, and meanwhile hold the URI's Recorder (see
+ * {@link CrawlURI#holdRecorder()}) so it is not reused under them; when
+ * all workers are busy and the queue is full, extraction simply runs on
+ * the ToeThread as it would without the pool.
+ * 
+ * <p>Declare a bean of this class to enable; heavy extractors pick it up
+ * by autowiring.
+ */
+public class HeavyExtractorPool implements Lifecycle {
+    private static final Logger logger =
+        Logger.getLogger(HeavyExtractorPool.class.getName());
+
+    protected int maxWorkers = 4;
+    public int getMaxWorkers() {
+        return maxWorkers;
+    }
+    /**
+     * Number of worker threads running heavy extractions.
+     */
+    public void setMaxWorkers(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+    }
+
+    protected int queueSize = 16;
+    public int getQueueSize() {
+        return queueSize;
+    }
+    /**
+     * Extractions waiting for a worker beyond which new ones run on the
+     * ToeThread instead.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    protected long wallClockBudgetMs = 60 * 1000;
+    public long getWallClockBudgetMs() {
+        return wallClockBudgetMs;
+    }
+    /**
+     * Milliseconds, from submission, after which an extraction is
+     * cancelled and its partial results used.
+     */
+    public void setWallClockBudgetMs(long wallClockBudgetMs) {
+        this.wallClockBudgetMs = wallClockBudgetMs;
+    }
+
+    protected long cpuBudgetMs = 30 * 1000;
+    public long getCpuBudgetMs() {
+        return cpuBudgetMs;
+    }
+    /**
+     * Milliseconds of worker CPU time after which an extraction is
+     * cancelled and its partial results used. 0 means no CPU budget.
+     */
+    public void setCpuBudgetMs(long cpuBudgetMs) {
+        this.cpuBudgetMs = cpuBudgetMs;
+    }
+
+    protected ThreadPoolExecutor executor;
+    protected Thread watchdog;
+    protected volatile boolean isRunning = false;
+    protected ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /** extractions currently on a worker, for the watchdog */
+    protected Set<PendingExtraction> running =
+        ConcurrentHashMap.newKeySet();
+
+    protected AtomicLong submittedCount = new AtomicLong();
+    protected AtomicLong inlineCount = new AtomicLong();
+    protected AtomicLong timedOutCount = new AtomicLong();
+    protected AtomicLong cpuLimitedCount = new AtomicLong();
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        final AtomicInteger serial = new AtomicInteger();
+        executor = new ThreadPoolExecutor(getMaxWorkers(), getMaxWorkers(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, getQueueSize())),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HeavyExtractor-"
+                                + serial.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        if (getCpuBudgetMs() > 0 && threadMXBean.isThreadCpuTimeSupported()
+                && !threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+        isRunning = true;
+        watchdog = new Thread("HeavyExtractorWatchdog") {
+            public void run() {
+                watchLoop();
+            }
+        };
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    public synchronized void stop() {
+        isRunning = false;
+        if (watchdog != null) {
+            watchdog.interrupt();
+            watchdog = null;
+        }
+        if (executor != null) {
+            for (Runnable r : executor.shutdownNow()) {
+                PendingExtraction pending = (PendingExtraction) r;
+                pending.cancel(false);
+                // will never run, so never reads the Recorder
+                pending.exited();
+            }
+            executor = null;
+        }
+        running.clear();
+    }
+
+    /**
+     * Hand extraction of the URI's content to a worker.
+     * 
+     * @return false if the pool is not running or is saturated, in which
+     * case the caller should extract inline
+     */
+    public boolean submit(ContentExtractor extractor, CrawlURI curi) {
+        ThreadPoolExecutor ex = executor;
+        if (!isRunning || ex == null) {
+            return false;
+        }
+        PendingExtraction pending = new PendingExtraction(extractor, curi);
+        try {
+            ex.execute(pending);
+        } catch (RejectedExecutionException e) {
+            inlineCount.incrementAndGet();
+            return false;
+        }
+        curi.addPendingExtraction(pending);
+        submittedCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Wait for any extractions pending on the URI, within their wall-clock
+     * budgets, and merge their results (or partial results) back into it.
+     */
+    public static void mergePendingExtractions(CrawlURI curi)
+    throws InterruptedException {
+        List<PendingExtraction> pendings = curi.getPendingExtractions();
+        if (pendings == null) {
+            return;
+        }
+        curi.clearPendingExtractions();
+        for (PendingExtraction pending : pendings) {
+            pending.awaitAndMerge();
+        }
+    }
+
+    /**
+     * Cancel any extractions pending on the URI without merging their
+     * results, as when the CandidatesProcessor never got to wait for them
+     * (an earlier processor failed, or the URI was rejected). The URI's
+     * Recorder is held for any still running (see
+     * {@link CrawlURI#holdRecorder()}), so call this before handing the
+     * Recorder back.
+     */
+    public static void abandonPendingExtractions(CrawlURI curi) {
+        List<PendingExtraction> pendings = curi.getPendingExtractions();
+        if (pendings == null) {
+            return;
+        }
+        curi.clearPendingExtractions();
+        for (PendingExtraction pending : pendings) {
+            pending.abandon();
+        }
+    }
+
+    /**
+     * Cancel running extractions over their wall-clock or CPU budget.
+     */
+    protected void watchLoop() {
+        while (isRunning) {
+            try {
+                Thread.sleep(250);
+            } catch (InterruptedException e) {
+                break;
+            }
+            long now = System.currentTimeMillis();
+            for (PendingExtraction pending : running) {
+                if (now >= pending.deadline) {
+                    pending.cancelOverBudget("heavyExtractionTimeout");
+                } else if (getCpuBudgetMs() > 0
+                        && pending.cpuTimeNanos() > TimeUnit.MILLISECONDS
+                                .toNanos(getCpuBudgetMs())) {
+                    pending.cancelOverBudget("heavyExtractionCpuLimit");
+                }
+            }
+        }
+    }
+
+    /**
+     * One extraction handed to the pool: runs the extractor over a
+     * detached copy of the CrawlURI.
+     */
+    public class PendingExtraction extends FutureTask<Boolean> {
+        protected ContentExtractor extractor;
+        protected CrawlURI curi;
+        protected CrawlURI copy;
+        protected long deadline;
+        protected volatile Thread worker;
+        protected volatile long cpuStartNanos;
+        protected volatile String overBudget;
+        /** worker done with (or never to start) the copy; guarded by this */
+        protected boolean exited = false;
+        /** whether the URI's Recorder is held for the worker; guarded by this */
+        protected boolean holdingRecorder = false;
+
+        protected PendingExtraction(final ContentExtractor extractor,
+                final CrawlURI curi) {
+            this(extractor, curi, curi.createDetachedCopy());
+        }
+
+        private PendingExtraction(final ContentExtractor extractor,
+                CrawlURI curi, final CrawlURI copy) {
+            super(new Callable<Boolean>() {
+                public Boolean call() {
+                    final boolean[] finished = new boolean[1];
+                    // the extractor's settings must resolve against the
+                    // URI's sheet overlays on this thread too
+                    KeyedProperties.withOverridesDo(copy, new Runnable() {
+                        public void run() {
+                            finished[0] = extractor.innerExtractGuarded(copy);
+                        }
+                    });
+                    return finished[0];
+                }
+            });
+            this.extractor = extractor;
+            this.curi = curi;
+            this.copy = copy;
+            this.deadline = System.currentTimeMillis() + getWallClockBudgetMs();
+        }
+
+        @Override
+        public void run() {
+            worker = Thread.currentThread();
+            cpuStartNanos = threadCpuTime(worker);
+            running.add(this);
+            try {
+                super.run();
+            } finally {
+                running.remove(this);
+                worker = null;
+                // don't leave an interrupt meant for this task pending
+                // for the next one
+                Thread.interrupted();
+                exited();
+            }
+        }
+
+        /**
+         * Note that the copy (and so the URI's Recorder) is no longer read
+         * by this extraction, ending any hold on the Recorder.
+         */
+        protected void exited() {
+            boolean release;
+            synchronized (this) {
+                if (exited) {
+                    return;
+                }
+                exited = true;
+                release = holdingRecorder;
+            }
+            if (release) {
+                curi.releaseRecorderHold();
+            }
+        }
+
+        /**
+         * Keep the URI's Recorder from reuse until this extraction, though
+         * abandoned, stops reading it: parsers may ignore the interrupt.
+         */
+        protected void holdRecorderUntilExit() {
+            synchronized (this) {
+                if (exited || holdingRecorder) {
+                    return;
+                }
+                holdingRecorder = true;
+                curi.holdRecorder();
+            }
+        }
+
+        protected void abandon() {
+            cancel(true);
+            holdRecorderUntilExit();
+        }
+
+        protected long cpuTimeNanos() {
+            Thread t = worker;
+            if (t == null) {
+                return 0;
+            }
+            return threadCpuTime(t) - cpuStartNanos;
+        }
+
+        protected void cancelOverBudget(String annotation) {
+            if (isDone()) {
+                return;
+            }
+            overBudget = annotation;
+            if (cancel(true)) {
+                if ("heavyExtractionTimeout".equals(annotation)) {
+                    timedOutCount.incrementAndGet();
+                } else {
+                    cpuLimitedCount.incrementAndGet();
+                }
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine(annotation + " in "
+                            + extractor.getBeanName() + " for " + curi);
+                }
+            }
+        }
+
+        protected void awaitAndMerge() throws InterruptedException {
+            boolean complete = false;
+            try {
+                long wait = deadline - System.currentTimeMillis();
+                boolean finished = get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                complete = true;
+                if (finished) {
+                    copy.linkExtractorFinished();
+                }
+            } catch (TimeoutException e) {
+                cancelOverBudget("heavyExtractionTimeout");
+            } catch (CancellationException e) {
+                // over budget (or pool stopped); salvage what was found
+            } catch (ExecutionException e) {
+                complete = true;
+                copy.getNonFatalFailures().add(e.getCause());
+            }
+            curi.mergeDetachedCopy(copy, complete);
+            if (!complete) {
+                holdRecorderUntilExit();
+                curi.getAnnotations().add(overBudget != null
+                        ? overBudget : "heavyExtractionCancelled");
+            }
+        }
+    }
+
+    protected long threadCpuTime(Thread t) {
+        if (!threadMXBean.isThreadCpuTimeSupported()) {
+            return 0;
+        }
+        long nanos = threadMXBean.getThreadCpuTime(t.getId());
+        return Math.max(0, nanos);
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getInlineCount() {
+        return inlineCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+
+    public long getCpuLimitedCount() {
+        return cpuLimitedCount.get();
+    }
+
+    public String report() {
+        return "HeavyExtractorPool: " + getSubmittedCount() + " submitted, "
+            + getInlineCount() + " run inline (pool busy), "
+            + getTimedOutCount() + " over wall-clock budget, "
+            + getCpuLimitedCount() + " over CPU budget, "
+            + running.size() + " running\n";
+    }
+}
@@ -0,0 +1,797 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.archive.io.SeekInputStream;
+
+/**
+ * Finds the /URI (and /URL) values of a PDF by one forward pass over its
+ * bytes, without building the document.
+ * 
+ * <p>Objects are tokenized only as far as needed to see dictionary keys
+ * and strings. Stream data is skipped by its /Length (or, failing that, by
+ * searching for 'endstream'), except for Flate-compressed object streams,
+ * which hold the annotation and action dictionaries of PDF 1.5+ files and
+ * are inflated and scanned in turn. URI values given as indirect references
+ * are resolved against string objects seen anywhere in the file.
+ * 
+ * <p>Unlike {@link PDFParser}, which walks the document catalog, this also
+ * reports URIs of objects the catalog no longer reaches (such as those
+ * replaced by incremental updates). Strings of encrypted documents cannot
+ * be read; {@link #isEncrypted()} tells callers to fall back to PDFParser,
+ * which decrypts those opened with an empty password.
+ */
+public class PDFLinkScanner {
+
+    /**
+     * Random-access bytes to scan.
+     */
+    public interface Source {
+        long length();
+        /**
+         * Read up to len bytes at pos, returning the number read.
+         */
+        int read(long pos, byte[] buf, int off, int len) throws IOException;
+    }
+
+    /**
+     * Source over a ByteBuffer, such as a memory-mapped file.
+     */
+    public static class ByteBufferSource implements Source {
+        protected ByteBuffer buffer;
+        public ByteBufferSource(ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+        public long length() {
+            return buffer.limit();
+        }
+        public int read(long pos, byte[] buf, int off, int len) {
+            int n = (int) Math.min(len, buffer.limit() - pos);
+            if (n <= 0) {
+                return 0;
+            }
+            buffer.position((int) pos);
+            buffer.get(buf, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * Source over a range of a repositionable stream, such as a Recorder's
+     * replay of its recorded input.
+     */
+    public static class SeekInputStreamSource implements Source {
+        protected SeekInputStream in;
+        protected long start;
+        protected long length;
+        public SeekInputStreamSource(SeekInputStream in, long start, long length) {
+            this.in = in;
+            this.start = start;
+            this.length = length;
+        }
+        public long length() {
+            return length;
+        }
+        public int read(long pos, byte[] buf, int off, int len)
+                throws IOException {
+            len = (int) Math.min(len, length - pos);
+            if (len <= 0) {
+                return 0;
+            }
+            in.position(start + pos);
+            int total = 0;
+            while (total < len) {
+                int n = in.read(buf, off + total, len - total);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    protected static final int WINDOW_SIZE = 64 * 1024;
+    protected static final int MAX_STRING_LENGTH = 8 * 1024;
+    protected static final int MAX_TOKEN_LENGTH = 256;
+    protected static final int MAX_STRING_OBJECTS = 10000;
+
+    protected long maxObjectStreamBytes = 16 * 1024 * 1024;
+    public long getMaxObjectStreamBytes() {
+        return maxObjectStreamBytes;
+    }
+    /**
+     * Object streams larger than this, compressed or inflated, are
+     * skipped.
+     */
+    public void setMaxObjectStreamBytes(long maxObjectStreamBytes) {
+        this.maxObjectStreamBytes = maxObjectStreamBytes;
+    }
+
+    protected List<String> foundURIs = new ArrayList<String>();
+    /** object number of each URI given as an indirect reference */
+    protected List<Integer> referencedURIs = new ArrayList<Integer>();
+    /** value of each object consisting of a single string */
+    protected Map<Integer,String> stringObjects = new HashMap<Integer,String>();
+    protected boolean encrypted = false;
+    protected long bytesInflated = 0;
+
+    /**
+     * @return whether the document's strings are encrypted, in which case
+     * the URIs returned are not usable
+     */
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    /**
+     * Scan the whole source.
+     * 
+     * @return URIs, in order found, then those given by reference
+     */
+    public List<String> extractURIs(Source source) throws IOException {
+        Lexer lexer = new Lexer(source);
+        scan(lexer, -1);
+        for (Integer ref : referencedURIs) {
+            String uri = stringObjects.get(ref);
+            if (uri != null) {
+                foundURIs.add(uri);
+            }
+        }
+        return foundURIs;
+    }
+
+    /**
+     * What is known of the dictionary preceding a stream.
+     */
+    protected static class StreamDictionary {
+        long length = -1;
+        boolean objectStream = false;
+        List<String> filters = new ArrayList<String>(1);
+        boolean decodeParms = false;
+        long n = -1;
+        long first = -1;
+
+        boolean isPlainFlate() {
+            return filters.size() == 1 && "FlateDecode".equals(filters.get(0))
+                && !decodeParms;
+        }
+    }
+
+    /**
+     * Tokenize to the end of the lexer's range, collecting URIs.
+     * 
+     * @param objectNumber number of the object the range holds (within an
+     * object stream), or -1 to find objects by their 'obj' keywords
+     */
+    protected void scan(Lexer lexer, int objectNumber) throws IOException {
+        int currentObject = objectNumber;
+        boolean atObjectValue = objectNumber >= 0;
+        long int1 = 0;
+        long int2 = 0;
+        int intCount = 0;
+        // 1: after /URI, 2: after /URI n, 3: after /URI n g
+        int uriState = 0;
+        int uriRef = 0;
+        int depth = 0;
+        int arrayDepth = 0;
+        String key = null;
+        String arrayKey = null;
+        String lastIntKey = null;
+        StreamDictionary dict = new StreamDictionary();
+
+        for (int t = lexer.next(); t != Lexer.EOF; t = lexer.next()) {
+            if (t == Lexer.INTEGER) {
+                long v = lexer.integer;
+                if (uriState == 1) {
+                    uriRef = (int) v;
+                    uriState = 2;
+                } else if (uriState == 2) {
+                    uriState = 3;
+                } else {
+                    uriState = 0;
+                }
+                if (depth == 1 && key != null && arrayDepth == 0) {
+                    if ("Length".equals(key)) {
+                        dict.length = v;
+                    } else if ("N".equals(key)) {
+                        dict.n = v;
+                    } else if ("First".equals(key)) {
+                        dict.first = v;
+                    }
+                    lastIntKey = key;
+                    key = null;
+                }
+                atObjectValue = false;
+                int2 = int1;
+                int1 = v;
+                intCount = Math.min(intCount + 1, 2);
+                continue;
+            }
+
+            switch (t) {
+            case Lexer.KEYWORD:
+                String word = lexer.text;
+                if ("obj".equals(word)) {
+                    if (intCount == 2 && objectNumber < 0) {
+                        currentObject = (int) int2;
+                        atObjectValue = true;
+                    }
+                    depth = 0;
+                    arrayDepth = 0;
+                    key = null;
+                    arrayKey = null;
+                    uriState = 0;
+                    intCount = 0;
+                    continue;
+                } else if ("R".equals(word)) {
+                    if (uriState == 3) {
+                        referencedURIs.add(uriRef);
+                    }
+                    if (depth == 1 && intCount == 2 && "Length".equals(lastIntKey)) {
+                        // indirect length: not known here
+                        dict.length = -1;
+                    }
+                } else if ("endobj".equals(word)) {
+                    currentObject = objectNumber;
+                    depth = 0;
+                } else if ("stream".equals(word) && objectNumber < 0) {
+                    skipStream(lexer, dict);
+                    dict = new StreamDictionary();
+                    depth = 0;
+                }
+                lastIntKey = null;
+                break;
+            case Lexer.STRING:
+                if (uriState == 1) {
+                    foundURIs.add(lexer.string);
+                }
+                if (atObjectValue && currentObject >= 0
+                        && stringObjects.size() < MAX_STRING_OBJECTS) {
+                    stringObjects.put(currentObject, lexer.string);
+                }
+                if (depth == 1 && arrayDepth == 0) {
+                    key = null;
+                }
+                break;
+            case Lexer.NAME:
+                String name = lexer.text;
+                if (depth == 1) {
+                    if (arrayDepth > 0) {
+                        if ("Filter".equals(arrayKey)) {
+                            dict.filters.add(name);
+                        }
+                    } else if (key == null) {
+                        key = name;
+                        if ("Encrypt".equals(name)) {
+                            encrypted = true;
+                        }
+                    } else {
+                        if ("Type".equals(key) && "ObjStm".equals(name)) {
+                            dict.objectStream = true;
+                        } else if ("Filter".equals(key)) {
+                            dict.filters.add(name);
+                        }
+                        key = null;
+                    }
+                }
+                // '/S /URI /URI (...)' names the action type first; only
+                // a string or reference right after /URI counts
+                uriState = ("URI".equals(name) || "URL".equals(name)) ? 1 : 0;
+                atObjectValue = false;
+                intCount = 0;
+                continue;
+            case Lexer.DICT_START:
+                depth++;
+                if (depth == 1) {
+                    dict = new StreamDictionary();
+                    key = null;
+                    arrayDepth = 0;
+                } else if (depth == 2 && arrayDepth == 0 && key != null) {
+                    if ("DecodeParms".equals(key)) {
+                        dict.decodeParms = true;
+                    }
+                }
+                break;
+            case Lexer.DICT_END:
+                if (depth == 2 && arrayDepth == 0) {
+                    // a dictionary value is complete
+                    key = null;
+                }
+                depth = Math.max(0, depth - 1);
+                break;
+            case Lexer.ARRAY_START:
+                if (depth == 1) {
+                    if (arrayDepth == 0) {
+                        arrayKey = key;
+                        key = null;
+                        if ("DecodeParms".equals(arrayKey)) {
+                            dict.decodeParms = true;
+                        }
+                    }
+                    arrayDepth++;
+                }
+                break;
+            case Lexer.ARRAY_END:
+                if (depth == 1 && arrayDepth > 0) {
+                    arrayDepth--;
+                    if (arrayDepth == 0) {
+                        arrayKey = null;
+                    }
+                }
+                break;
+            default:
+                // real numbers and the like
+                if (depth == 1 && key != null && arrayDepth == 0) {
+                    key = null;
+                }
+                break;
+            }
+            uriState = 0;
+            atObjectValue = false;
+            intCount = 0;
+        }
+    }
+
+    /**
+     * Move the lexer past the data of the stream just begun, scanning it
+     * first if it is an object stream.
+     */
+    protected void skipStream(Lexer lexer, StreamDictionary dict)
+            throws IOException {
+        long dataStart = lexer.skipStreamEol();
+        long dataEnd = -1;
+        if (dict.length >= 0 && dataStart + dict.length <= lexer.limit
+                && lexer.isEndstreamAt(dataStart + dict.length)) {
+            dataEnd = dataStart + dict.length;
+        } else {
+            dataEnd = lexer.find(ENDSTREAM, dataStart);
+        }
+        if (dict.objectStream && dict.isPlainFlate() && dict.n > 0
+                && dict.first >= 0
+                && dataEnd - dataStart <= getMaxObjectStreamBytes()) {
+            try {
+                scanObjectStream(lexer.read(dataStart, dataEnd), dict);
+            } catch (DataFormatException e) {
+                // damaged object stream; carry on with the rest
+            }
+        }
+        lexer.seek(dataEnd);
+    }
+
+    /**
+     * Inflate an object stream and scan each object in it.
+     */
+    protected void scanObjectStream(byte[] compressed, StreamDictionary dict)
+            throws IOException, DataFormatException {
+        byte[] bytes = inflate(compressed);
+        if (bytes == null) {
+            return;
+        }
+        Lexer lexer = new Lexer(new ByteBufferSource(ByteBuffer.wrap(bytes)));
+        int n = (int) Math.min(dict.n, bytes.length / 2);
+        long first = dict.first;
+        int[] numbers = new int[n];
+        long[] offsets = new long[n];
+        lexer.setRange(0, Math.min(first, bytes.length));
+        int count = 0;
+        while (count < n) {
+            if (lexer.next() != Lexer.INTEGER) {
+                break;
+            }
+            numbers[count] = (int) lexer.integer;
+            if (lexer.next() != Lexer.INTEGER) {
+                break;
+            }
+            offsets[count] = first + lexer.integer;
+            count++;
+        }
+        for (int i = 0; i < count; i++) {
+            long start = offsets[i];
+            long end = (i + 1 < count) ? offsets[i + 1] : bytes.length;
+            if (start < first || start >= bytes.length || end < start) {
+                continue;
+            }
+            lexer.setRange(start, Math.min(end, bytes.length));
+            scan(lexer, numbers[i]);
+        }
+    }
+
+    protected byte[] inflate(byte[] compressed) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    compressed.length * 4);
+            byte[] buf = new byte[16 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(buf, 0, n);
+                if (out.size() > getMaxObjectStreamBytes()) {
+                    return null;
+                }
+            }
+            bytesInflated += out.size();
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    protected static final byte[] ENDSTREAM =
+        "endstream".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * A PDF tokenizer over a window of a Source, limited to a range.
+     */
+    protected static class Lexer {
+        static final int EOF = 0;
+        static final int INTEGER = 1;
+        static final int NUMBER = 2;
+        static final int NAME = 3;
+        static final int STRING = 4;
+        static final int KEYWORD = 5;
+        static final int DICT_START = 6;
+        static final int DICT_END = 7;
+        static final int ARRAY_START = 8;
+        static final int ARRAY_END = 9;
+
+        final Source source;
+        final byte[] window = new byte[WINDOW_SIZE];
+        /** source position of window[0] */
+        long windowStart = 0;
+        int windowLength = 0;
+        long pos = 0;
+        long limit;
+
+        // token values
+        long integer;
+        String text;
+        String string;
+
+        final StringBuilder sb = new StringBuilder();
+        final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+
+        Lexer(Source source) {
+            this.source = source;
+            this.limit = source.length();
+        }
+
+        void setRange(long start, long end) {
+            pos = start;
+            limit = end;
+        }
+
+        void seek(long p) {
+            pos = Math.min(p, limit);
+        }
+
+        /**
+         * @return byte at p, or -1 at or beyond the limit
+         */
+        int byteAt(long p) throws IOException {
+            if (p >= limit) {
+                return -1;
+            }
+            if (p < windowStart || p >= windowStart + windowLength) {
+                windowStart = p;
+                windowLength = source.read(p, window, 0, window.length);
+                if (windowLength <= 0) {
+                    windowLength = 0;
+                    return -1;
+                }
+            }
+            return window[(int) (p - windowStart)] & 0xff;
+        }
+
+        byte[] read(long start, long end) throws IOException {
+            byte[] bytes = new byte[(int) (end - start)];
+            int off = 0;
+            while (off < bytes.length) {
+                int n = source.read(start + off, bytes, off, bytes.length - off);
+                if (n <= 0) {
+                    break;
+                }
+                off += n;
+            }
+            return bytes;
+        }
+
+        static boolean isWhitespace(int c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t'
+                || c == '\f' || c == 0;
+        }
+
+        static boolean isDelimiter(int c) {
+            return c == '(' || c == ')' || c == '<' || c == '>' || c == '['
+                || c == ']' || c == '{' || c == '}' || c == '/' || c == '%';
+        }
+
+        int next() throws IOException {
+            while (true) {
+                int c = byteAt(pos);
+                if (c < 0) {
+                    return EOF;
+                }
+                if (isWhitespace(c)) {
+                    pos++;
+                    continue;
+                }
+                if (c == '%') {
+                    // comment, to end of line
+                    do {
+                        c = byteAt(++pos);
+                    } while (c >= 0 && c != '\n' && c != '\r');
+                    continue;
+                }
+                switch (c) {
+                case '(':
+                    pos++;
+                    readLiteralString();
+                    return STRING;
+                case '<':
+                    if (byteAt(pos + 1) == '<') {
+                        pos += 2;
+                        return DICT_START;
+                    }
+                    pos++;
+                    readHexString();
+                    return STRING;
+                case '>':
+                    if (byteAt(pos + 1) == '>') {
+                        pos += 2;
+                        return DICT_END;
+                    }
+                    pos++;
+                    continue;
+                case '[':
+                    pos++;
+                    return ARRAY_START;
+                case ']':
+                    pos++;
+                    return ARRAY_END;
+                case '/':
+                    pos++;
+                    readName();
+                    return NAME;
+                case ')':
+                case '{':
+                case '}':
+                    pos++;
+                    continue;
+                default:
+                    return readRegular();
+                }
+            }
+        }
+
+        void readName() throws IOException {
+            sb.setLength(0);
+            for (int c = byteAt(pos); c >= 0 && !isWhitespace(c)
+                    && !isDelimiter(c); c = byteAt(++pos)) {
+                if (c == '#') {
+                    int h = hexValue(byteAt(pos + 1));
+                    int l = hexValue(byteAt(pos + 2));
+                    if (h >= 0 && l >= 0) {
+                        c = (h << 4) | l;
+                        pos += 2;
+                    }
+                }
+                if (sb.length() < MAX_TOKEN_LENGTH) {
+                    sb.append((char) c);
+                }
+            }
+            text = sb.toString();
+        }
+
+        int readRegular() throws IOException {
+            sb.setLength(0);
+            boolean digits = true;
+            int c = byteAt(pos);
+            for (; c >= 0 && !isWhitespace(c) && !isDelimiter(c);
+                    c = byteAt(++pos)) {
+                if (!((c >= '0' && c <= '9')
+                        || ((c == '-' || c == '+') && sb.length() == 0))) {
+                    digits = false;
+                }
+                if (sb.length() < MAX_TOKEN_LENGTH) {
+                    sb.append((char) c);
+                }
+            }
+            text = sb.toString();
+            if (digits && sb.length() > 0 && sb.length() < 19
+                    && Character.isDigit(sb.charAt(sb.length() - 1))) {
+                integer = Long.parseLong(text.startsWith("+")
+                        ? text.substring(1) : text);
+                return INTEGER;
+            }
+            char first = text.length() > 0 ? text.charAt(0) : ' ';
+            if ((first >= '0' && first <= '9') || first == '-' || first == '+'
+                    || first == '.') {
+                return NUMBER;
+            }
+            return KEYWORD;
+        }
+
+        void readLiteralString() throws IOException {
+            stringBytes.reset();
+            int nesting = 1;
+            for (int c = byteAt(pos); c >= 0; c = byteAt(pos)) {
+                pos++;
+                if (c == '\\') {
+                    c = byteAt(pos);
+                    if (c < 0) {
+                        break;
+                    }
+                    pos++;
+                    switch (c) {
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    case 't': c = '\t'; break;
+                    case 'b': c = '\b'; break;
+                    case 'f': c = '\f'; break;
+                    case '\r':
+                        if (byteAt(pos) == '\n') {
+                            pos++;
+                        }
+                        continue;
+                    case '\n':
+                        continue;
+                    default:
+                        if (c >= '0' && c <= '7') {
+                            int octal = c - '0';
+                            for (int i = 0; i < 2; i++) {
+                                int d = byteAt(pos);
+                                if (d < '0' || d > '7') {
+                                    break;
+                                }
+                                octal = octal * 8 + (d - '0');
+                                pos++;
+                            }
+                            c = octal & 0xff;
+                        }
+                        // else '(' ')' '\\' or an unknown escape: the char
+                    }
+                } else if (c == '(') {
+                    nesting++;
+                } else if (c == ')') {
+                    if (--nesting == 0) {
+                        break;
+                    }
+                }
+                if (stringBytes.size() < MAX_STRING_LENGTH) {
+                    stringBytes.write(c);
+                }
+            }
+            string = decode(stringBytes.toByteArray());
+        }
+
+        void readHexString() throws IOException {
+            stringBytes.reset();
+            int high = -1;
+            for (int c = byteAt(pos); c >= 0; c = byteAt(pos)) {
+                pos++;
+                if (c == '>') {
+                    break;
+                }
+                int v = hexValue(c);
+                if (v < 0) {
+                    continue;
+                }
+                if (high < 0) {
+                    high = v;
+                } else {
+                    if (stringBytes.size() < MAX_STRING_LENGTH) {
+                        stringBytes.write((high << 4) | v);
+                    }
+                    high = -1;
+                }
+            }
+            if (high >= 0 && stringBytes.size() < MAX_STRING_LENGTH) {
+                stringBytes.write(high << 4);
+            }
+            string = decode(stringBytes.toByteArray());
+        }
+
+        static int hexValue(int c) {
+            if (c >= '0' && c <= '9') {
+                return c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                return c - 'a' + 10;
+            } else if (c >= 'A' && c <= 'F') {
+                return c - 'A' + 10;
+            }
+            return -1;
+        }
+
+        static String decode(byte[] bytes) {
+            if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xfe
+                    && (bytes[1] & 0xff) == 0xff) {
+                return new String(bytes, 2, bytes.length - 2,
+                        StandardCharsets.UTF_16BE);
+            }
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Skip the end-of-line after a 'stream' keyword.
+         * 
+         * @return position of the stream data
+         */
+        long skipStreamEol() throws IOException {
+            int c = byteAt(pos);
+            if (c == '\r') {
+                pos++;
+                c = byteAt(pos);
+            }
+            if (c == '\n') {
+                pos++;
+            }
+            return pos;
+        }
+
+        /**
+         * @return whether 'endstream' follows p, after optional whitespace
+         */
+        boolean isEndstreamAt(long p) throws IOException {
+            for (int i = 0; i < 4 && isWhitespace(byteAt(p)); i++) {
+                p++;
+            }
+            for (int i = 0; i < ENDSTREAM.length; i++) {
+                if (byteAt(p + i) != ENDSTREAM[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return position of the needle at or after p, or the limit
+         */
+        long find(byte[] needle, long p) throws IOException {
+            for (; p < limit; p++) {
+                if (byteAt(p) == needle[0]) {
+                    int i = 1;
+                    while (i < needle.length && byteAt(p + i) == needle[i]) {
+                        i++;
+                    }
+                    if (i == needle.length) {
+                        return p;
+                    }
+                }
+            }
+            return limit;
+        }
+    }
+}
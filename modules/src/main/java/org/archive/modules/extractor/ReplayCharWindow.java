@@ -0,0 +1,262 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+import org.archive.util.Recorder;
+
+/**
+ * A bounded, sliding character view of a recorded content body, for
+ * extractors that can scan content a window at a time instead of
+ * through a whole-document {@link org.archive.io.ReplayCharSequence}.
+ * 
+ * <p>The body is decoded from the Recorder's content replay stream with the
+ * Recorder's current charset. Each {@link #advance()} keeps the last
+ * <code>lookBack</code> characters of the previous window and appends up to
+ * <code>chunkSize</code> newly decoded ones, so memory use is fixed by those
+ * two sizes no matter how large the document is. Malformed or unmappable
+ * input decodes as U+FFFD and is counted, as in ReplayCharSequence.
+ * 
+ * <p>A pattern whose matches never exceed <code>lookBack</code> characters
+ * finds the same matches here as over the whole document, if matches are
+ * only accepted when they start before {@link #completeLimit()} and
+ * scanning resumes from {@link #resumeOffset(int)} in the next window:
+ * <pre>
+ * long resume = 0;
+ * while (window.advance()) {
+ *     Matcher m = pattern.matcher(window);
+ *     int from = window.indexOf(resume);
+ *     while (m.find(from) &amp;&amp; m.start() &lt; window.completeLimit()) {
+ *         ...
+ *         from = m.end();
+ *     }
+ *     resume = window.resumeOffset(from);
+ * }
+ * </pre>
+ * 
+ * @see ContentExtractor#openReplayWindow(org.archive.modules.CrawlURI)
+ */
+public class ReplayCharWindow implements CharSequence, Closeable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_LOOK_BACK = 8 * 1024;
+
+    protected InputStream in;
+    protected CharsetDecoder decoder;
+    protected ByteBuffer bytes;
+    protected char[] chars;
+    protected int lookBack;
+
+    /** absolute character offset of chars[0] */
+    protected long offset = 0;
+    /** valid characters in the window */
+    protected int length = 0;
+    /** index of the first character not present in the previous window */
+    protected int fresh = 0;
+
+    protected boolean inputDone = false;
+    protected boolean decodeDone = false;
+    protected boolean eof = false;
+    protected long decodeErrorCount = 0;
+
+    public ReplayCharWindow(InputStream in, Charset charset, int chunkSize,
+            int lookBack) {
+        if (chunkSize <= 0 || lookBack < 0) {
+            throw new IllegalArgumentException("chunkSize " + chunkSize
+                    + ", lookBack " + lookBack);
+        }
+        this.in = in;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        this.bytes = ByteBuffer.allocate(Math.min(chunkSize, 16 * 1024));
+        this.bytes.flip();
+        this.chars = new char[chunkSize + lookBack];
+        this.lookBack = lookBack;
+    }
+
+    /**
+     * Opens a window over the Recorder's content body, decoded with its
+     * current charset.
+     */
+    public static ReplayCharWindow open(Recorder recorder, int chunkSize,
+            int lookBack) throws IOException {
+        return new ReplayCharWindow(recorder.getContentReplayInputStream(),
+                recorder.getCharset(), chunkSize, lookBack);
+    }
+
+    /**
+     * Slides the window forward: keeps the last <code>lookBack</code>
+     * characters and decodes up to <code>chunkSize</code> more.
+     * 
+     * @return false once there are no new characters
+     */
+    public boolean advance() throws IOException {
+        if (eof) {
+            fresh = length;
+            return false;
+        }
+        int keep = Math.min(lookBack, length);
+        System.arraycopy(chars, length - keep, chars, 0, keep);
+        offset += length - keep;
+        length = keep;
+        fresh = keep;
+        fill();
+        return length > fresh;
+    }
+
+    /**
+     * Decodes until the window is full or the content is exhausted.
+     */
+    protected void fill() throws IOException {
+        CharBuffer out = CharBuffer.wrap(chars, length, chars.length - length);
+        while (out.hasRemaining() && !eof) {
+            if (decodeDone) {
+                if (decoder.flush(out).isOverflow()) {
+                    break;
+                }
+                eof = true;
+                break;
+            }
+            CoderResult cr = decoder.decode(bytes, out, inputDone);
+            if (cr.isError()) {
+                // skip the offending input, as CodingErrorAction.REPLACE
+                // would, but keep count
+                bytes.position(bytes.position() + cr.length());
+                out.put('\uFFFD');
+                decodeErrorCount++;
+            } else if (cr.isUnderflow()) {
+                if (inputDone) {
+                    decodeDone = true;
+                } else {
+                    readMore();
+                }
+            } else {
+                // no room for a surrogate pair; it starts the next window
+                break;
+            }
+        }
+        length = out.position();
+    }
+
+    protected void readMore() throws IOException {
+        bytes.compact();
+        int n = in.read(bytes.array(), bytes.arrayOffset() + bytes.position(),
+                bytes.remaining());
+        if (n < 0) {
+            inputDone = true;
+        } else {
+            bytes.position(bytes.position() + n);
+        }
+        bytes.flip();
+    }
+
+    /**
+     * @return absolute character offset of index 0 of this window
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return index of the first character this window added
+     */
+    public int getFreshIndex() {
+        return fresh;
+    }
+
+    /**
+     * @return true if this window reaches the end of the content
+     */
+    public boolean isAtEnd() {
+        return eof;
+    }
+
+    /**
+     * Matches starting before this index lie wholly in this window, if they
+     * are no longer than <code>lookBack</code>; later ones are seen again,
+     * complete, in the next window.
+     */
+    public int completeLimit() {
+        return eof ? length : length - lookBack;
+    }
+
+    /**
+     * @param absoluteOffset a character offset in the whole content
+     * @return index of that offset in this window, clamped to it
+     */
+    public int indexOf(long absoluteOffset) {
+        return (int) Math.min(length, Math.max(0, absoluteOffset - offset));
+    }
+
+    /**
+     * @param from index scanning reached in this window
+     * @return absolute offset at which to resume in the next window
+     */
+    public long resumeOffset(int from) {
+        return offset + Math.max(from, completeLimit());
+    }
+
+    public long getDecodeErrorCount() {
+        return decodeErrorCount;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index
+                    + ", length " + length);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException(start + "-" + end
+                    + ", length " + length);
+        }
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,838 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.io.FileUtils;
+import org.archive.modules.CoreAttributeConstants;
+import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.DevUtils;
+import org.archive.util.TextUtils;
+
+/**
+ * Link-extraction from an HTML content-body using a hand-written tokenizer
+ * in place of ExtractorHTML's regular expressions.
+ *
+ * <p>Tags, attributes and srcset listings are found by one forward pass
+ * over the content, yielding the same outlinks, hops and HTMLLinkContexts as
+ * ExtractorHTML -- including its quirks, such as a tag ending at its first
+ * '&gt;' whatever the quoting -- but without regex backtracking, which on
+ * pathological markup (unclosed scripts, comments and quotes) can make
+ * ExtractorHTML's cost grow with the square of the page size. Searches for
+ * closing delimiters are remembered, so each is made at most once per
+ * position reached.
+ *
+ * <p>Inline script is still handed to ExtractorJS when configured.
+ *
+ * <p>The {@link #main(String[])} method compares the outlinks of both
+ * extractors over a set of saved pages and reports the throughput of each.
+ */
+public class StreamingExtractorHTML extends ExtractorHTML {
+
+    @SuppressWarnings("unused")
+    private static final long serialVersionUID = 1L;
+
+    private static Logger logger =
+        Logger.getLogger(StreamingExtractorHTML.class.getName());
+
+    // attribute kinds, numbered as the groups of EACH_ATTRIBUTE_EXTRACTOR
+    protected static final int ATTR_HREF = 2;
+    protected static final int ATTR_ACTION = 3;
+    protected static final int ATTR_ON = 4;
+    protected static final int ATTR_SRC = 5;
+    protected static final int ATTR_CODEBASE = 6;
+    protected static final int ATTR_CLASSID = 7;
+    protected static final int ATTR_ARCHIVE = 8;
+    protected static final int ATTR_CODE = 9;
+    protected static final int ATTR_VALUE = 10;
+    protected static final int ATTR_STYLE = 11;
+    protected static final int ATTR_METHOD = 12;
+    protected static final int ATTR_OTHER = 13;
+
+    protected static final String[] SRC_ATTRIBUTES = {
+        "src", "srcset", "lowsrc", "background", "cite", "longdesc",
+        "usemap", "profile", "datasrc", "data-src", "data-srcset",
+        "data-original", "data-original-set"
+    };
+
+    /**
+     * Position of one attribute within tag innards.
+     */
+    protected static class Attribute {
+        int kind;
+        int nameStart;
+        int nameEnd;
+        int valueStart;
+        int valueEnd;
+    }
+
+    /**
+     * Finds case-insensitive occurrences of an ASCII needle, remembering
+     * the last result so that searches from increasing positions examine
+     * each char at most once.
+     */
+    protected static class Delimiter {
+        final CharSequence cs;
+        final String needle;
+        int searchedFrom = Integer.MAX_VALUE;
+        int found = -1;
+
+        Delimiter(CharSequence cs, String needle) {
+            this.cs = cs;
+            this.needle = needle;
+        }
+
+        /**
+         * @return index of first occurrence at or after from, or -1
+         */
+        int indexFrom(int from) {
+            if (from >= searchedFrom && (found < 0 || found >= from)) {
+                return found;
+            }
+            searchedFrom = from;
+            found = -1;
+            for (int i = from, last = cs.length() - needle.length(); i <= last; i++) {
+                if (regionMatches(cs, i, needle)) {
+                    found = i;
+                    break;
+                }
+            }
+            return found;
+        }
+    }
+
+    protected int maxElementLength;
+    protected int maxAttributeNameLength;
+    protected int maxAttributeValLength;
+
+    public StreamingExtractorHTML() {
+        super();
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        super.afterPropertiesSet();
+        maxElementLength = getMaxElementLength();
+        maxAttributeNameLength = getMaxAttributeNameLength();
+        maxAttributeValLength = getMaxAttributeValLength();
+    }
+
+    /** regex \w, without UNICODE_CHARACTER_CLASS */
+    protected static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+            || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /** regex [-\w] */
+    protected static boolean isNameChar(char c) {
+        return isWordChar(c) || c == '-';
+    }
+
+    /** regex \s */
+    protected static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+            || c == '\f' || c == '\r';
+    }
+
+    /** chars not matched by regex '.' without DOTALL */
+    protected static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+            || c == '\u2029';
+    }
+
+    /**
+     * @return true if cs has the given lowercase ASCII needle at offset,
+     * ignoring ASCII case
+     */
+    protected static boolean regionMatches(CharSequence cs, int offset,
+            String needle) {
+        if (offset + needle.length() > cs.length()) {
+            return false;
+        }
+        for (int i = 0; i < needle.length(); i++) {
+            char c = cs.charAt(offset + i);
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != needle.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static boolean equalsIgnoreCase(CharSequence cs, int start,
+            int end, String lowercase) {
+        return end - start == lowercase.length()
+            && regionMatches(cs, start, lowercase);
+    }
+
+    /**
+     * Whether regex '$' (without MULTILINE) matches at index i: at the end,
+     * or before a final line terminator.
+     */
+    protected static boolean isEnd(CharSequence cs, int i) {
+        int len = cs.length();
+        if (i == len) {
+            return true;
+        }
+        if (i == len - 2) {
+            return cs.charAt(i) == '\r' && cs.charAt(i + 1) == '\n';
+        }
+        if (i == len - 1) {
+            char c = cs.charAt(i);
+            if (c == '\n') {
+                return i == 0 || cs.charAt(i - 1) != '\r';
+            }
+            return c == '\r' || c == '\u0085' || c == '\u2028'
+                || c == '\u2029';
+        }
+        return false;
+    }
+
+    @Override
+    protected void extract(CrawlURI curi, CharSequence cs) {
+        Delimiter tagEnd = new Delimiter(cs, ">");
+        Delimiter scriptEnd = new Delimiter(cs, "</script>");
+        Delimiter styleEnd = new Delimiter(cs, "</style>");
+        Delimiter commentEnd = new Delimiter(cs, "-->");
+        final int len = cs.length();
+        int i = 0;
+        while (i < len) {
+            if (cs.charAt(i) != '<') {
+                i++;
+                continue;
+            }
+            int name = i + 1;
+
+            // whole <script>...</script> or <style>...</style>
+            if (regionMatches(cs, name, "script")) {
+                int open = tagEnd.indexFrom(name + 6);
+                int close = (open < 0) ? -1 : scriptEnd.indexFrom(open + 1);
+                if (close >= 0) {
+                    if (Thread.interrupted()) {
+                        break;
+                    }
+                    processScript(curi, cs.subSequence(name, close + 8),
+                            open - name);
+                    i = close + 9;
+                    continue;
+                }
+            } else if (regionMatches(cs, name, "style")) {
+                int open = tagEnd.indexFrom(name + 5);
+                int close = (open < 0) ? -1 : styleEnd.indexFrom(open + 1);
+                if (close >= 0) {
+                    if (Thread.interrupted()) {
+                        break;
+                    }
+                    processStyle(curi, cs.subSequence(name, close + 7),
+                            open - name);
+                    i = close + 8;
+                    continue;
+                }
+            }
+
+            // <meta ...> or other open-tag with whitespace after element
+            int elementEnd = name;
+            while (elementEnd < len && isWordChar(cs.charAt(elementEnd))) {
+                elementEnd++;
+            }
+            boolean meta = equalsIgnoreCase(cs, name, elementEnd, "meta");
+            if (elementEnd > name
+                    && (meta || elementEnd - name <= maxElementLength)
+                    && elementEnd < len && isWhitespace(cs.charAt(elementEnd))) {
+                int close = tagEnd.indexFrom(elementEnd);
+                if (close >= 0) {
+                    if (Thread.interrupted()) {
+                        break;
+                    }
+                    if (meta) {
+                        if (processMeta(curi, cs.subSequence(name, close))) {
+                            // meta tag included NOFOLLOW; abort processing
+                            break;
+                        }
+                    } else {
+                        String element = cs.subSequence(name, elementEnd).toString();
+                        processGeneralTag(curi, element,
+                                cs.subSequence(name, close));
+                        // remember FORM to help later extra processing
+                        if ("form".equalsIgnoreCase(element)) {
+                            curi.getDataList(A_FORM_OFFSETS).add((Integer) i);
+                        }
+                    }
+                    i = close + 1;
+                    continue;
+                }
+            }
+
+            // comment, except conditional comments and '<!-->'
+            if (regionMatches(cs, name, "!--")
+                    && !regionMatches(cs, name + 3, "[if")
+                    && !regionMatches(cs, name + 3, ">")) {
+                int close = commentEnd.indexFrom(name + 3);
+                if (close >= 0) {
+                    if (Thread.interrupted()) {
+                        break;
+                    }
+                    i = close + 3;
+                    continue;
+                }
+            }
+            i = name;
+        }
+    }
+
+    /**
+     * Find the next attribute, as EACH_ATTRIBUTE_EXTRACTOR would: a name
+     * followed by '=' and a double-quoted, single-quoted or bare value.
+     *
+     * @return offset at which to continue, or -1 if no attribute found
+     */
+    protected int nextAttribute(CharSequence cs, int from, Attribute attr) {
+        final int len = cs.length();
+        int i = from;
+        while (i < len) {
+            if (!isNameChar(cs.charAt(i))) {
+                i++;
+                continue;
+            }
+            int runStart = i;
+            int runEnd = i + 1;
+            while (runEnd < len && isNameChar(cs.charAt(runEnd))) {
+                runEnd++;
+            }
+            int eq = runEnd;
+            while (eq < len && isWhitespace(cs.charAt(eq))) {
+                eq++;
+            }
+            if (eq >= len || cs.charAt(eq) != '=') {
+                i = runEnd;
+                continue;
+            }
+            // the regex matches at the first offset into the run whose
+            // remainder is an acceptable name
+            int kind = 0;
+            int nameStart = runStart;
+            for (; nameStart < runEnd; nameStart++) {
+                kind = attributeKind(cs, nameStart, runEnd);
+                if (kind > 0) {
+                    break;
+                }
+            }
+            int v = eq + 1;
+            while (v < len && isWhitespace(cs.charAt(v))) {
+                v++;
+            }
+            if (kind == 0 || v >= len) {
+                // nothing but whitespace after '=': no more attributes
+                return -1;
+            }
+            attr.kind = kind;
+            attr.nameStart = nameStart;
+            attr.nameEnd = runEnd;
+            char quote = cs.charAt(v);
+            if (quote == '"' || quote == '\'') {
+                // lazily up to the closing quote or end, within max length
+                for (int k = 0; k <= maxAttributeValLength; k++) {
+                    int q = v + 1 + k;
+                    if (q < len && cs.charAt(q) == quote) {
+                        attr.valueStart = v + 1;
+                        attr.valueEnd = q;
+                        return q + 1;
+                    }
+                    if (isEnd(cs, q)) {
+                        attr.valueStart = v + 1;
+                        attr.valueEnd = q;
+                        return q;
+                    }
+                    if (q >= len) {
+                        break;
+                    }
+                }
+                // too long: taken as a bare value, quote and all
+            }
+            int end = v;
+            int max = (int) Math.min(len, (long) v + maxAttributeValLength);
+            while (end < max && !isWhitespace(cs.charAt(end))) {
+                end++;
+            }
+            attr.valueStart = v;
+            attr.valueEnd = end;
+            return end;
+        }
+        return -1;
+    }
+
+    /**
+     * @return kind of the attribute named by cs[start,end), or 0 if not an
+     * acceptable attribute name
+     */
+    protected int attributeKind(CharSequence cs, int start, int end) {
+        if (equalsIgnoreCase(cs, start, end, "href")) {
+            return ATTR_HREF;
+        }
+        if (equalsIgnoreCase(cs, start, end, "action")) {
+            return ATTR_ACTION;
+        }
+        if (regionMatches(cs, start, "on")) {
+            int i = start + 2;
+            while (i < end && cs.charAt(i) != '-') {
+                i++;
+            }
+            if (i == end) {
+                return ATTR_ON;
+            }
+        }
+        for (String src : SRC_ATTRIBUTES) {
+            if (equalsIgnoreCase(cs, start, end, src)) {
+                return ATTR_SRC;
+            }
+        }
+        if (equalsIgnoreCase(cs, start, end, "codebase")) {
+            return ATTR_CODEBASE;
+        }
+        if (equalsIgnoreCase(cs, start, end, "classid")
+                || equalsIgnoreCase(cs, start, end, "data")) {
+            return ATTR_CLASSID;
+        }
+        if (equalsIgnoreCase(cs, start, end, "archive")) {
+            return ATTR_ARCHIVE;
+        }
+        if (equalsIgnoreCase(cs, start, end, "code")) {
+            return ATTR_CODE;
+        }
+        if (equalsIgnoreCase(cs, start, end, "value")) {
+            return ATTR_VALUE;
+        }
+        if (equalsIgnoreCase(cs, start, end, "style")) {
+            return ATTR_STYLE;
+        }
+        if (equalsIgnoreCase(cs, start, end, "method")) {
+            return ATTR_METHOD;
+        }
+        if (end - start <= maxAttributeNameLength) {
+            return ATTR_OTHER;
+        }
+        return 0;
+    }
+
+    /**
+     * Whether an A tag's innards match
+     * "(?i).*data-remote\s*=\s*(["'])true.*\1", without the regex.
+     */
+    protected static boolean isDataRemote(CharSequence cs) {
+        int len = cs.length();
+        if (len == 0) {
+            return false;
+        }
+        char quote = cs.charAt(len - 1);
+        if (quote != '"' && quote != '\'') {
+            return false;
+        }
+        int lastTerminator = -1;
+        for (int i = len - 1; i >= 0; i--) {
+            if (isLineTerminator(cs.charAt(i))) {
+                lastTerminator = i;
+                break;
+            }
+        }
+        for (int i = 0; i < len; i++) {
+            if (regionMatches(cs, i, "data-remote")) {
+                int j = i + 11;
+                while (j < len && isWhitespace(cs.charAt(j))) {
+                    j++;
+                }
+                if (j < len && cs.charAt(j) == '=') {
+                    j++;
+                    while (j < len && isWhitespace(cs.charAt(j))) {
+                        j++;
+                    }
+                    if (j < len && cs.charAt(j) == quote
+                            && regionMatches(cs, j + 1, "true")
+                            && j + 5 < len && lastTerminator < j + 5) {
+                        return true;
+                    }
+                }
+            }
+            if (isLineTerminator(cs.charAt(i))) {
+                // '.*' prefix cannot extend past a line terminator
+                return false;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void processGeneralTag(CrawlURI curi, CharSequence element,
+            CharSequence cs) {
+        Attribute attr = new Attribute();
+
+        // Just in case it's an OBJECT or APPLET tag
+        String codebase = null;
+        ArrayList<String> resources = null;
+
+        // Just in case it's a FORM
+        CharSequence action = null;
+        CharSequence actionContext = null;
+        CharSequence method = null;
+
+        // Just in case it's a VALUE whose interpretation depends on accompanying NAME
+        CharSequence valueVal = null;
+        CharSequence valueContext = null;
+        CharSequence nameVal = null;
+
+        // Just in case it's a LINK tag
+        CharSequence linkHref = null;
+        CharSequence linkRel = null;
+
+        final boolean framesAsEmbeds = getTreatFramesAsEmbedLinks();
+        final boolean ignoreFormActions = getIgnoreFormActionUrls();
+        final boolean extractValueAttributes = getExtractValueAttributes();
+
+        final String elementStr = element.toString();
+
+        int pos = 0;
+        while ((pos = nextAttribute(cs, pos, attr)) >= 0) {
+            CharSequence attrName = cs.subSequence(attr.nameStart, attr.nameEnd);
+            CharSequence value = TextUtils.unescapeHtml(
+                    cs.subSequence(attr.valueStart, attr.valueEnd));
+            switch (attr.kind) {
+            case ATTR_HREF: {
+                CharSequence context;
+                if ("a".equals(elementStr) && isDataRemote(cs)) {
+                    context = "a[data-remote='true']/@href";
+                } else {
+                    context = elementContext(element, attrName);
+                }
+
+                if (elementStr.equalsIgnoreCase(LINK)) {
+                    // delay handling LINK until the end as we need both HREF and REL
+                    linkHref = value;
+                } else if ("a[data-remote='true']/@href".equals(context)) {
+                    processEmbed(curi, value, context);
+                } else {
+                    // other HREFs treated as links
+                    processLink(curi, value, context);
+                }
+                // Set the relative or absolute base URI if it's not already been modified.
+                if (elementStr.equalsIgnoreCase(BASE) && !curi.containsDataKey(CoreAttributeConstants.A_HTML_BASE)) {
+                    try {
+                        UURI base = UURIFactory.getInstance(curi.getUURI(),value.toString());
+                        curi.setBaseURI(base);
+                    } catch (URIException e) {
+                        logUriError(e, curi.getUURI(), value);
+                    }
+                }
+                break;
+            }
+            case ATTR_ACTION:
+                if (!ignoreFormActions) {
+                    action = value;
+                    actionContext = elementContext(element, attrName);
+                    // handling finished only at end (after METHOD also collected)
+                }
+                break;
+            case ATTR_ON:
+                processScriptCode(curi, value);
+                break;
+            case ATTR_SRC: {
+                CharSequence context = elementContext(element, attrName);
+                if (!context.toString().toLowerCase().startsWith("data:")) {
+                    final Hop hop;
+                    if (!framesAsEmbeds
+                            && (elementStr.equalsIgnoreCase(FRAME) || elementStr
+                            .equalsIgnoreCase(IFRAME))) {
+                        hop = Hop.NAVLINK;
+                    } else {
+                        hop = Hop.EMBED;
+                    }
+                    processEmbed(curi, value, context, hop);
+                }
+                break;
+            }
+            case ATTR_CODEBASE:
+                codebase = value.toString();
+                processLink(curi, codebase, elementContext(element, attrName));
+                break;
+            case ATTR_CLASSID:
+                if (resources == null) {
+                    resources = new ArrayList<String>();
+                }
+                resources.add(value.toString());
+                break;
+            case ATTR_ARCHIVE:
+                if (resources == null) {
+                    resources = new ArrayList<String>();
+                }
+                for (String res : TextUtils.split(WHITESPACE, value)) {
+                    resources.add(res);
+                }
+                break;
+            case ATTR_CODE:
+                if (resources == null) {
+                    resources = new ArrayList<String>();
+                }
+                // If element is applet and code value does not end with
+                // '.class' then append '.class' to the code value.
+                if (elementStr.equalsIgnoreCase(APPLET) &&
+                        !value.toString().toLowerCase().endsWith(CLASSEXT)) {
+                    resources.add(value.toString() + CLASSEXT);
+                } else {
+                    resources.add(value.toString());
+                }
+                break;
+            case ATTR_VALUE:
+                // store value, context for handling at end
+                valueVal = value;
+                valueContext = elementContext(element, attrName);
+                break;
+            case ATTR_STYLE:
+                numberOfLinksExtracted.addAndGet(ExtractorCSS.processStyleCode(
+                        this, curi, value));
+                break;
+            case ATTR_METHOD:
+                method = value;
+                break;
+            default:
+                if (equalsIgnoreCase(attrName, 0, attrName.length(), "name")) {
+                    // remember 'name' for end-analysis
+                    nameVal = value;
+                } else if (equalsIgnoreCase(attrName, 0, attrName.length(), "flashvars")) {
+                    // consider FLASHVARS attribute immediately
+                    valueContext = elementContext(element, attrName);
+                    considerQueryStringValues(curi, value, valueContext, Hop.SPECULATIVE);
+                } else if (equalsIgnoreCase(attrName, 0, attrName.length(), "rel")) {
+                    // remember 'rel' for end-analysis
+                    linkRel = value;
+                }
+            }
+        }
+
+        // handle codebase/resources
+        if (resources != null) {
+            Iterator<String> iter = resources.iterator();
+            UURI codebaseURI = null;
+            String res = null;
+            try {
+                if (codebase != null) {
+                    codebaseURI = UURIFactory.
+                        getInstance(curi.getUURI(), codebase);
+                }
+                while(iter.hasNext()) {
+                    res = iter.next().toString();
+                    res = (String) TextUtils.unescapeHtml(res);
+                    if (codebaseURI != null) {
+                        res = codebaseURI.resolve(res).toString();
+                    }
+                    processEmbed(curi, res, element); // TODO: include attribute too
+                }
+            } catch (URIException e) {
+                curi.getNonFatalFailures().add(e);
+            } catch (IllegalArgumentException e) {
+                DevUtils.logger.log(Level.WARNING, "processGeneralTag()\n" +
+                    "codebase=" + codebase + " res=" + res + "\n" +
+                    DevUtils.extraInfo(), e);
+            }
+        }
+
+        // finish handling LINK now both HREF and REL should be available
+        if (linkHref != null && linkRel != null) {
+            processLinkTagWithRel(curi, linkHref, linkRel);
+        }
+
+        // finish handling form action, now method is available
+        if(action != null) {
+            if(method == null || "GET".equalsIgnoreCase(method.toString())
+                        || ! getExtractOnlyFormGets()) {
+                processLink(curi, action, actionContext);
+            }
+        }
+
+        // finish handling VALUE
+        if(valueVal != null) {
+            if ("PARAM".equalsIgnoreCase(elementStr) && nameVal != null
+                    && "flashvars".equalsIgnoreCase(nameVal.toString())) {
+                // special handling for <PARAM NAME='flashvars" VALUE="">
+                considerQueryStringValues(curi, valueVal.toString(), valueContext,Hop.SPECULATIVE);
+            } else if (extractValueAttributes) {
+                considerIfLikelyUri(curi,valueVal,valueContext,Hop.NAVLINK);
+            }
+        }
+    }
+
+    @Override
+    protected boolean processMeta(CrawlURI curi, CharSequence cs) {
+        Attribute attr = new Attribute();
+        String name = null;
+        String httpEquiv = null;
+        String content = null;
+        int pos = 0;
+        while ((pos = nextAttribute(cs, pos, attr)) >= 0) {
+            if (equalsIgnoreCase(cs, attr.nameStart, attr.nameEnd, "name")) {
+                name = unescapedValue(cs, attr);
+            } else if (equalsIgnoreCase(cs, attr.nameStart, attr.nameEnd, "http-equiv")) {
+                httpEquiv = unescapedValue(cs, attr);
+            } else if (equalsIgnoreCase(cs, attr.nameStart, attr.nameEnd, "content")) {
+                content = unescapedValue(cs, attr);
+            }
+        }
+        return processMeta(curi, name, httpEquiv, content);
+    }
+
+    protected static String unescapedValue(CharSequence cs, Attribute attr) {
+        return TextUtils.unescapeHtml(
+                cs.subSequence(attr.valueStart, attr.valueEnd)).toString();
+    }
+
+    @Override
+    protected void processSrcset(CrawlURI curi, CharSequence value,
+            CharSequence context, Hop hop) {
+        final int len = value.length();
+        int i = 0;
+        while (true) {
+            while (i < len && (isWhitespace(value.charAt(i)) || value.charAt(i) == ',')) {
+                i++;
+            }
+            if (i >= len) {
+                break;
+            }
+            // uri: run of non-whitespace, less any trailing commas
+            int start = i;
+            while (i < len && !isWhitespace(value.charAt(i))) {
+                i++;
+            }
+            while (value.charAt(i - 1) == ',') {
+                i--;
+            }
+            CharSequence link = value.subSequence(start, i);
+            // descriptor: up to next comma outside parentheses
+            if (i < len && isWhitespace(value.charAt(i))) {
+                i++;
+                while (i < len && value.charAt(i) != ',') {
+                    if (value.charAt(i) == '(') {
+                        while (i < len && value.charAt(i) != ')') {
+                            i++;
+                        }
+                    }
+                    i++;
+                }
+                i = Math.min(i, len);
+            }
+            logger.log(Level.FINER, "Found {0} adding to outlinks.", link);
+            addLinkFromString(curi, link, context, hop);
+            numberOfLinksExtracted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Compare the outlinks found by ExtractorHTML and this extractor in each
+     * of the given files (or files under given directories), and report the
+     * throughput of each.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: StreamingExtractorHTML FILE_OR_DIR...");
+            System.err.println("Compares outlinks and throughput against ExtractorHTML");
+            System.exit(1);
+        }
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            File f = new File(arg);
+            if (f.isDirectory()) {
+                files.addAll(FileUtils.listFiles(f, null, true));
+            } else {
+                files.add(f);
+            }
+        }
+
+        CrawlMetadata metadata = new CrawlMetadata();
+        metadata.afterPropertiesSet();
+        ExtractorHTML regex = new ExtractorHTML();
+        ExtractorHTML streaming = new StreamingExtractorHTML();
+        for (ExtractorHTML extractor : new ExtractorHTML[] {regex, streaming}) {
+            extractor.setExtractorJS(new ExtractorJS());
+            extractor.setMetadata(metadata);
+            extractor.afterPropertiesSet();
+        }
+
+        long bytes = 0;
+        long regexNanos = 0;
+        long streamingNanos = 0;
+        int mismatches = 0;
+        for (File file : files) {
+            String content = readContent(file);
+            bytes += file.length();
+
+            CrawlURI regexCuri = new CrawlURI(UURIFactory.getInstance("http://example.com/"));
+            long start = System.nanoTime();
+            regex.extract(regexCuri, content);
+            regexNanos += System.nanoTime() - start;
+
+            CrawlURI streamingCuri = new CrawlURI(UURIFactory.getInstance("http://example.com/"));
+            start = System.nanoTime();
+            streaming.extract(streamingCuri, content);
+            streamingNanos += System.nanoTime() - start;
+
+            List<String> expected = describeOutlinks(regexCuri);
+            List<String> actual = describeOutlinks(streamingCuri);
+            if (!expected.equals(actual)) {
+                mismatches++;
+                System.out.println("MISMATCH " + file);
+                System.out.println("  ExtractorHTML:          " + expected);
+                System.out.println("  StreamingExtractorHTML: " + actual);
+            }
+        }
+        System.out.println(files.size() + " files, " + bytes + " bytes, "
+                + mismatches + " with differing outlinks");
+        System.out.println(String.format(Locale.ROOT,
+                "ExtractorHTML:          %.1f MB/s", mbPerSecond(bytes, regexNanos)));
+        System.out.println(String.format(Locale.ROOT,
+                "StreamingExtractorHTML: %.1f MB/s", mbPerSecond(bytes, streamingNanos)));
+    }
+
+    protected static String readContent(File file) throws IOException {
+        return FileUtils.readFileToString(file, StandardCharsets.ISO_8859_1);
+    }
+
+    protected static List<String> describeOutlinks(CrawlURI curi) {
+        List<String> links = new ArrayList<String>();
+        for (CrawlURI link : curi.getOutLinks()) {
+            links.add(link.getURI() + " " + link.getLastHop() + " " + link.getViaContext());
+        }
+        return links;
+    }
+
+    protected static double mbPerSecond(long bytes, long nanos) {
+        return (bytes / 1000000.0) / Math.max(nanos / 1e9, 1e-9);
+    }
+}
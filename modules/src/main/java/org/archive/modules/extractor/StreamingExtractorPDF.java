@@ -0,0 +1,199 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.archive.io.RecordingInputStream;
+import org.archive.io.ReplayInputStream;
+import org.archive.modules.CrawlURI;
+import org.archive.util.Recorder;
+
+/**
+ * Link-extraction from a PDF content-body read in place from the Recorder,
+ * using {@link PDFLinkScanner} rather than PDFParser.
+ * 
+ * <p>ExtractorPDF copies each body to a temporary file and has PDFParser
+ * load it entirely into memory. Here the body is read through the
+ * Recorder's own seekable replay of the recorded input, which serves it
+ * from the in-memory buffer and backing file without another copy, unless
+ * a transfer- or content-encoding must first be undone. Encrypted
+ * documents are handed to ExtractorPDF.
+ * 
+ * <p>The {@link #main(String[])} method compares the URIs found by both
+ * over a set of saved PDFs and reports the throughput of each.
+ */
+public class StreamingExtractorPDF extends ExtractorPDF {
+
+    @SuppressWarnings("unused")
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER =
+        Logger.getLogger(StreamingExtractorPDF.class.getName());
+
+    public StreamingExtractorPDF() {
+    }
+
+    @Override
+    protected boolean innerExtract(CrawlURI curi) {
+        PDFLinkScanner scanner = new PDFLinkScanner();
+        List<String> uris;
+        ReplayInputStream in = null;
+        // the as-is stream replays the Recorder's own backing file, which
+        // later processors still need; only a private copy is destroyed
+        boolean privateCopy = false;
+        try {
+            PDFLinkScanner.Source source;
+            Recorder recorder = curi.getRecorder();
+            if (isBodyRecordedAsIs(curi)) {
+                RecordingInputStream recorded = recorder.getRecordedInput();
+                long begin = recorded.getContentBegin();
+                in = recorded.getReplayInputStream();
+                source = new PDFLinkScanner.SeekInputStreamSource(in, begin,
+                        recorded.getSize() - begin);
+            } else {
+                InputStream content = recorder.getContentReplayInputStream();
+                try {
+                    in = new ReplayInputStream(content);
+                    privateCopy = true;
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+                source = new PDFLinkScanner.SeekInputStreamSource(in, 0,
+                        in.remaining());
+            }
+            uris = scanner.extractURIs(source);
+        } catch (IOException e) {
+            curi.getNonFatalFailures().add(e);
+            return false;
+        } catch (RuntimeException e) {
+            // Truncated/corrupt PDFs
+            curi.getNonFatalFailures().add(e);
+            return false;
+        } finally {
+            if (privateCopy) {
+                in.destroy();
+            } else {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        if (scanner.isEncrypted()) {
+            LOGGER.fine(curi + " is encrypted; using PDFParser");
+            return super.innerExtract(curi);
+        }
+        addPdfOutlinks(curi, uris);
+        return true;
+    }
+
+    /**
+     * @return whether the recorded bytes after the headers are the PDF
+     * itself, with no transfer- or content-encoding to undo
+     */
+    protected boolean isBodyRecordedAsIs(CrawlURI curi) {
+        return curi.getHttpResponseHeader("transfer-encoding") == null
+            && curi.getHttpResponseHeader("content-encoding") == null
+            && curi.getRecorder().getRecordedInput().getContentBegin() >= 0;
+    }
+
+    /**
+     * Compare PDFLinkScanner against PDFParser over saved PDFs.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            System.err.println("Usage: StreamingExtractorPDF FILE_OR_DIR...");
+            System.err.println("Compares URIs found and throughput against PDFParser");
+            System.exit(1);
+        }
+        List<File> files = new ArrayList<File>();
+        for (String arg : args) {
+            File f = new File(arg);
+            if (f.isDirectory()) {
+                files.addAll(FileUtils.listFiles(f, new String[] {"pdf", "PDF"}, true));
+            } else {
+                files.add(f);
+            }
+        }
+
+        long bytes = 0;
+        long parserNanos = 0;
+        long scannerNanos = 0;
+        int parserFailures = 0;
+        int missing = 0;
+        for (File file : files) {
+            bytes += file.length();
+
+            List<String> expected = Collections.emptyList();
+            long start = System.nanoTime();
+            try {
+                List<String> found = new PDFParser(file.getAbsolutePath()).extractURIs();
+                if (found != null) {
+                    expected = found;
+                }
+            } catch (Exception e) {
+                parserFailures++;
+            }
+            parserNanos += System.nanoTime() - start;
+
+            PDFLinkScanner scanner = new PDFLinkScanner();
+            List<String> actual;
+            start = System.nanoTime();
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                actual = scanner.extractURIs(new PDFLinkScanner.ByteBufferSource(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+            } finally {
+                raf.close();
+            }
+            scannerNanos += System.nanoTime() - start;
+
+            // the scanner may find more, in objects the catalog no longer uses
+            if (!scanner.isEncrypted() && !actual.containsAll(expected)) {
+                missing++;
+                List<String> notFound = new ArrayList<String>(expected);
+                notFound.removeAll(actual);
+                System.out.println("MISSING " + file + " " + notFound);
+            }
+        }
+        System.out.println(files.size() + " files, " + bytes + " bytes, "
+                + missing + " with URIs missed, " + parserFailures
+                + " PDFParser failures");
+        System.out.println(String.format(Locale.ROOT,
+                "PDFParser:      %.1f MB/s", mbPerSecond(bytes, parserNanos)));
+        System.out.println(String.format(Locale.ROOT,
+                "PDFLinkScanner: %.1f MB/s", mbPerSecond(bytes, scannerNanos)));
+    }
+
+    protected static double mbPerSecond(long bytes, long nanos) {
+        return (bytes / 1000000.0) / Math.max(nanos / 1e9, 1e-9);
+    }
+}
@@ -0,0 +1,321 @@
+package org.archive.modules.extractor;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.archive.modules.CrawlURI;
+
+/**
+ * Sitemap link-extraction that reads the content-body as a stream, adding
+ * each listed URL as an outlink as soon as it is read.
+ * 
+ * <p>ExtractorSitemap has crawler-commons load the whole body into a byte
+ * array and build every SiteMapURL before the first outlink is added. Here
+ * XML sitemaps and sitemap indexes are read with a StAX parser, and text
+ * sitemaps a line at a time, so memory use does not grow with the size of
+ * the sitemap. Gzipped bodies are inflated as they are read. Reading stops
+ * once the outlink limit is reached: the configured maxOutlinks (see 
+ * {@link ExtractorParameters}), but no more than the sitemap protocol 
+ * permits one sitemap to list.
+ * 
+ * <p>Other formats that crawler-commons accepts, such as RSS and Atom
+ * feeds, are handed to ExtractorSitemap.
+ */
+public class StreamingExtractorSitemap extends ExtractorSitemap {
+    private static final Logger LOGGER = Logger
+            .getLogger(StreamingExtractorSitemap.class.getName());
+
+    /** longest loc or lastmod kept; longer values are skipped */
+    protected static final int MAX_VALUE_LENGTH = 8 * 1024;
+
+    protected static final XMLInputFactory XML_INPUT_FACTORY;
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+    }
+
+    @Override
+    protected boolean innerExtract(CrawlURI uri) {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(
+                    uri.getRecorder().getContentReplayInputStream());
+            if (isGzipped(in)) {
+                in = new BufferedInputStream(new GZIPInputStream(in));
+            }
+            if (isXml(in)) {
+                if (!extractXml(uri, in)) {
+                    LOGGER.fine("Not a sitemap or sitemap index; "
+                            + "using crawler-commons parser: " + uri);
+                    IOUtils.closeQuietly(in);
+                    in = null;
+                    return super.innerExtract(uri);
+                }
+            } else {
+                extractText(uri, in);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING,
+                    "I/O Exception when parsing sitemap " + uri, e);
+        } catch (XMLStreamException e) {
+            // outlinks added before the error are kept
+            LOGGER.log(Level.WARNING,
+                    "XMLStreamException when parsing sitemap " + uri, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return false;
+    }
+
+    protected static boolean isGzipped(InputStream in) throws IOException {
+        in.mark(2);
+        int b1 = in.read();
+        int b2 = in.read();
+        in.reset();
+        return b1 == 0x1f && b2 == 0x8b;
+    }
+
+    /**
+     * @return whether the first thing in the stream, after any byte-order
+     * mark and whitespace, is markup
+     */
+    protected static boolean isXml(InputStream in) throws IOException {
+        in.mark(1024);
+        try {
+            int b = in.read();
+            if (b == 0xfe || b == 0xff) {
+                // UTF-16 byte-order mark
+                return true;
+            }
+            if (b == 0xef && in.read() == 0xbb && in.read() == 0xbf) {
+                b = in.read();
+            }
+            for (int i = 0; i < 1000 && Character.isWhitespace(b); i++) {
+                b = in.read();
+            }
+            return b == '<';
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Add the loc of each url of a urlset, or each sitemap of a
+     * sitemapindex, as it is read.
+     * 
+     * @return false if the document is not a urlset or sitemapindex
+     */
+    protected boolean extractXml(CrawlURI uri, InputStream in)
+            throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in);
+        try {
+            String scope = isEnableLenientExtraction() ? null : getScope(uri);
+            boolean isIndex = false;
+            String entryName = null;
+            int depth = 0;
+            boolean inEntry = false;
+            String field = null;
+            StringBuilder value = new StringBuilder();
+            String loc = null;
+            String lastmod = null;
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 1) {
+                        if ("sitemapindex".equals(name)) {
+                            isIndex = true;
+                            entryName = "sitemap";
+                        } else if ("urlset".equals(name)) {
+                            entryName = "url";
+                        } else {
+                            return false;
+                        }
+                    } else if (depth == 2 && entryName.equals(name)) {
+                        inEntry = true;
+                        loc = null;
+                        lastmod = null;
+                    } else if (depth == 3 && inEntry
+                            && ("loc".equals(name) || "lastmod".equals(name))) {
+                        field = name;
+                        value.setLength(0);
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                    if (field != null) {
+                        if (value.length() + reader.getTextLength() <= MAX_VALUE_LENGTH) {
+                            value.append(reader.getTextCharacters(),
+                                    reader.getTextStart(), reader.getTextLength());
+                        } else {
+                            value.setLength(MAX_VALUE_LENGTH + 1);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (depth == 3 && field != null) {
+                        String v = value.length() > MAX_VALUE_LENGTH
+                                ? null : value.toString().trim();
+                        if ("loc".equals(field)) {
+                            loc = v;
+                        } else {
+                            lastmod = v;
+                        }
+                        field = null;
+                    } else if (depth == 2 && inEntry) {
+                        inEntry = false;
+                        if (loc != null && !loc.isEmpty()
+                                && (isIndex || isInScope(scope, loc))) {
+                            if (isOutlinkLimitReached(uri)) {
+                                return true;
+                            }
+                            recordOutlink(uri, loc, parseLastmod(lastmod),
+                                    isIndex);
+                        }
+                    }
+                    depth--;
+                    break;
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Add each line of a text sitemap that is an http(s) URL.
+     */
+    protected void extractText(CrawlURI uri, InputStream in)
+            throws IOException {
+        String scope = isEnableLenientExtraction() ? null : getScope(uri);
+        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
+        StringBuilder line = new StringBuilder();
+        boolean overlong = false;
+        for (int c = reader.read(); ; c = reader.read()) {
+            if (c == '\n' || c == '\r' || c < 0) {
+                String url = line.toString().trim();
+                if (!overlong && isHttpUrl(url) && isInScope(scope, url)) {
+                    if (isOutlinkLimitReached(uri)) {
+                        return;
+                    }
+                    recordOutlink(uri, url, null, false);
+                }
+                if (c < 0) {
+                    return;
+                }
+                line.setLength(0);
+                overlong = false;
+            } else if (line.length() < MAX_VALUE_LENGTH) {
+                line.append((char) c);
+            } else {
+                overlong = true;
+            }
+        }
+    }
+
+    /**
+     * @return the configured maxOutlinks, capped at the most the sitemap
+     * protocol permits
+     */
+    @Override
+    protected int getMaxSitemapOutlinks() {
+        return Math.min(getExtractorParameters().getMaxOutlinks(),
+                MAX_SITEMAP_OUTLINKS);
+    }
+
+    protected boolean isOutlinkLimitReached(CrawlURI uri) {
+        int max = getMaxSitemapOutlinks();
+        if (uri.getOutLinks().size() >= max) {
+            LOGGER.warning("Reached " + max
+                    + " outlinks; ignoring the rest of sitemap " + uri);
+            return true;
+        }
+        return false;
+    }
+
+    protected static boolean isHttpUrl(String url) {
+        return url.regionMatches(true, 0, "http://", 0, 7)
+            || url.regionMatches(true, 0, "https://", 0, 8);
+    }
+
+    /**
+     * @return the URL prefix that, under the sitemap protocol, the URLs a
+     * sitemap lists must share: its own URL up to the last '/'
+     */
+    protected static String getScope(CrawlURI uri) {
+        String s = uri.getURI();
+        return s.substring(0, s.lastIndexOf('/') + 1);
+    }
+
+    protected static boolean isInScope(String scope, String url) {
+        if (scope == null || url.startsWith(scope)) {
+            return true;
+        }
+        LOGGER.fine("Skipping " + url + " outside of sitemap scope " + scope);
+        return false;
+    }
+
+    /**
+     * Parse a sitemap lastmod, which is in W3C Datetime format: a date,
+     * optionally with a time, or just a year, or year and month. A time
+     * without a zone is taken as UTC.
+     * 
+     * @return the date, or null if missing or unparseable
+     */
+    protected static Date parseLastmod(String lastmod) {
+        if (lastmod == null || lastmod.isEmpty()) {
+            return null;
+        }
+        try {
+            if (lastmod.indexOf('T') >= 0) {
+                try {
+                    return Date.from(OffsetDateTime.parse(lastmod).toInstant());
+                } catch (DateTimeParseException e) {
+                    return Date.from(LocalDateTime.parse(lastmod)
+                            .toInstant(ZoneOffset.UTC));
+                }
+            }
+            switch (lastmod.length()) {
+            case 4:
+                return Date.from(Year.parse(lastmod).atDay(1)
+                        .atStartOfDay().toInstant(ZoneOffset.UTC));
+            case 7:
+                return Date.from(YearMonth.parse(lastmod).atDay(1)
+                        .atStartOfDay().toInstant(ZoneOffset.UTC));
+            default:
+                return Date.from(LocalDate.parse(lastmod)
+                        .atStartOfDay().toInstant(ZoneOffset.UTC));
+            }
+        } catch (DateTimeParseException e) {
+            LOGGER.fine("Unparseable lastmod " + lastmod);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.modules.CrawlURI;
+import org.archive.spring.HasKeyedProperties;
+import org.archive.spring.KeyedProperties;
+
+/**
+ * Caps the rate at which fetchers read content, across all concurrent
+ * fetches: crawl-wide, per host, and per frontier queue. Each level with
+ * a nonzero limit is a token bucket (holding at most one second's worth
+ * of bytes); bytes read by a fetch are charged to the buckets of every
+ * level, and the reading thread sleeps off any resulting debt.
+ *
+ * <p>Limits are read, with any sheet overlays of the URI being fetched,
+ * as each fetch begins; a host's or queue's bucket then takes the most
+ * recently read limit. Declare a bean of this class to have FetchHTTP,
+ * FetchFTP and FetchSFTP use it. This is in addition to each fetcher's
+ * per-fetch maxFetchKBSec.
+ */
+public class BandwidthGovernor implements HasKeyedProperties {
+
+    /** buckets idle (and full) this long are forgotten */
+    protected static final long IDLE_BUCKET_MS = 60 * 1000;
+
+    /**
+     * Bytes-per-second token bucket; may go into debt, which readers then
+     * wait out.
+     */
+    public static class TokenBucket {
+        protected volatile long bytesPerSecond;
+        protected double tokens;
+        protected long lastRefill = System.currentTimeMillis();
+        protected AtomicLong throttledMs = new AtomicLong();
+
+        public TokenBucket(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.tokens = bytesPerSecond;
+        }
+
+        public void setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         * Charge bytes to the bucket.
+         * 
+         * @return milliseconds to wait before the bucket is out of debt
+         */
+        public synchronized long take(long bytes, long now) {
+            long rate = bytesPerSecond;
+            if (now > lastRefill) {
+                tokens = Math.min(rate, 
+                        tokens + (now - lastRefill) * rate / 1000.0);
+                lastRefill = now;
+            }
+            tokens -= bytes;
+            if (tokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-tokens * 1000 / rate);
+        }
+
+        protected synchronized boolean isIdle(long now) {
+            return now - lastRefill > IDLE_BUCKET_MS;
+        }
+
+        protected void throttled(long ms) {
+            throttledMs.addAndGet(ms);
+        }
+
+        public long getThrottledMs() {
+            return throttledMs.get();
+        }
+    }
+
+    /**
+     * The buckets governing one fetch.
+     */
+    public class Throttle {
+        protected final TokenBucket[] buckets;
+
+        protected Throttle(TokenBucket[] buckets) {
+            this.buckets = buckets;
+        }
+
+        /**
+         * Charge bytes read to each bucket, sleeping as long as the most
+         * indebted of them requires.
+         */
+        public void consume(long bytes) throws InterruptedIOException {
+            long now = System.currentTimeMillis();
+            long wait = 0;
+            TokenBucket limiting = null;
+            for (TokenBucket bucket : buckets) {
+                long bucketWait = bucket.take(bytes, now);
+                if (bucketWait > wait) {
+                    wait = bucketWait;
+                    limiting = bucket;
+                }
+            }
+            if (limiting == null) {
+                return;
+            }
+            limiting.throttled(wait);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while throttled");
+            }
+        }
+
+        /**
+         * @return stream charging each read to this Throttle
+         */
+        public InputStream wrap(InputStream in) {
+            return new ThrottledInputStream(in, this);
+        }
+    }
+
+    /**
+     * InputStream whose reads are charged to a Throttle.
+     */
+    public static class ThrottledInputStream extends FilterInputStream {
+        protected final Throttle throttle;
+
+        public ThrottledInputStream(InputStream in, Throttle throttle) {
+            super(in);
+            this.throttle = throttle;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                throttle.consume(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                throttle.consume(n);
+            }
+            return n;
+        }
+    }
+
+    protected KeyedProperties kp = new KeyedProperties();
+    public KeyedProperties getKeyedProperties() {
+        return kp;
+    }
+
+    {
+        setMaxGlobalKBSec(0);
+    }
+    public int getMaxGlobalKBSec() {
+        return (Integer) kp.get("maxGlobalKBSec");
+    }
+    /**
+     * Maximum rate, in KB/sec, at which all fetches together may read 
+     * content. Zero means no limit.
+     */
+    public void setMaxGlobalKBSec(int rate) {
+        kp.put("maxGlobalKBSec", rate);
+    }
+
+    {
+        setMaxPerHostKBSec(0);
+    }
+    public int getMaxPerHostKBSec() {
+        return (Integer) kp.get("maxPerHostKBSec");
+    }
+    /**
+     * Maximum rate, in KB/sec, at which all fetches from one host may 
+     * read content. Zero means no limit.
+     */
+    public void setMaxPerHostKBSec(int rate) {
+        kp.put("maxPerHostKBSec", rate);
+    }
+
+    {
+        setMaxPerQueueKBSec(0);
+    }
+    public int getMaxPerQueueKBSec() {
+        return (Integer) kp.get("maxPerQueueKBSec");
+    }
+    /**
+     * Maximum rate, in KB/sec, at which all fetches of URIs in one 
+     * frontier queue may read content. Zero means no limit.
+     */
+    public void setMaxPerQueueKBSec(int rate) {
+        kp.put("maxPerQueueKBSec", rate);
+    }
+
+    protected TokenBucket globalBucket = new TokenBucket(1);
+    protected ConcurrentHashMap<String,TokenBucket> hostBuckets = 
+        new ConcurrentHashMap<String,TokenBucket>();
+    protected ConcurrentHashMap<String,TokenBucket> queueBuckets = 
+        new ConcurrentHashMap<String,TokenBucket>();
+    /** throttle time of forgotten buckets */
+    protected AtomicLong retiredHostThrottledMs = new AtomicLong();
+    protected AtomicLong retiredQueueThrottledMs = new AtomicLong();
+    protected volatile long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Whether any limit applies to the given URI (under whose overlays 
+     * this is called).
+     */
+    public boolean isLimiting(CrawlURI curi) {
+        return getMaxGlobalKBSec() > 0 || getMaxPerHostKBSec() > 0
+            || (getMaxPerQueueKBSec() > 0 && curi.getClassKey() != null);
+    }
+
+    /**
+     * Throttle for a fetch of the given URI, to be called as the fetch 
+     * begins (under the URI's overlays).
+     * 
+     * @return Throttle, or null if no limit applies
+     */
+    public Throttle throttleFor(CrawlURI curi) {
+        long now = System.currentTimeMillis();
+        if (now - lastSweep > IDLE_BUCKET_MS) {
+            lastSweep = now;
+            sweep(now);
+        }
+        List<TokenBucket> buckets = new ArrayList<TokenBucket>(3);
+        int rate = getMaxGlobalKBSec();
+        if (rate > 0) {
+            globalBucket.setBytesPerSecond(1024L * rate);
+            buckets.add(globalBucket);
+        }
+        rate = getMaxPerHostKBSec();
+        String host = hostOf(curi);
+        if (rate > 0 && host != null) {
+            buckets.add(bucketFor(hostBuckets, host, 1024L * rate));
+        }
+        rate = getMaxPerQueueKBSec();
+        if (rate > 0 && curi.getClassKey() != null) {
+            buckets.add(bucketFor(queueBuckets, curi.getClassKey(), 1024L * rate));
+        }
+        if (buckets.isEmpty()) {
+            return null;
+        }
+        return new Throttle(buckets.toArray(new TokenBucket[buckets.size()]));
+    }
+
+    protected String hostOf(CrawlURI curi) {
+        try {
+            return curi.getUURI().getHost();
+        } catch (URIException e) {
+            return null;
+        }
+    }
+
+    protected TokenBucket bucketFor(ConcurrentHashMap<String,TokenBucket> buckets, 
+            String key, long bytesPerSecond) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new TokenBucket(bytesPerSecond);
+            TokenBucket prior = buckets.putIfAbsent(key, bucket);
+            if (prior != null) {
+                bucket = prior;
+            }
+        }
+        bucket.setBytesPerSecond(bytesPerSecond);
+        return bucket;
+    }
+
+    /**
+     * Forget buckets idle for a while; any fetch still holding one 
+     * continues to be governed by it alone.
+     */
+    protected void sweep(long now) {
+        sweep(hostBuckets, retiredHostThrottledMs, now);
+        sweep(queueBuckets, retiredQueueThrottledMs, now);
+    }
+
+    protected void sweep(Map<String,TokenBucket> buckets, AtomicLong retired,
+            long now) {
+        for (Iterator<TokenBucket> iter = buckets.values().iterator(); iter.hasNext(); ) {
+            TokenBucket bucket = iter.next();
+            if (bucket.isIdle(now)) {
+                iter.remove();
+                retired.addAndGet(bucket.getThrottledMs());
+            }
+        }
+    }
+
+    public long getGlobalThrottledMs() {
+        return globalBucket.getThrottledMs();
+    }
+
+    public long getHostThrottledMs() {
+        return retiredHostThrottledMs.get() + totalThrottledMs(hostBuckets);
+    }
+
+    public long getQueueThrottledMs() {
+        return retiredQueueThrottledMs.get() + totalThrottledMs(queueBuckets);
+    }
+
+    protected long totalThrottledMs(Map<String,TokenBucket> buckets) {
+        long total = 0;
+        for (TokenBucket bucket : buckets.values()) {
+            total += bucket.getThrottledMs();
+        }
+        return total;
+    }
+
+    public String report() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("  Bandwidth throttled (global):     " 
+                + getGlobalThrottledMs() + "ms\n");
+        buf.append("  Bandwidth throttled (per host):   " 
+                + getHostThrottledMs() + "ms in " + hostBuckets.size() 
+                + " active hosts\n");
+        buf.append("  Bandwidth throttled (per queue):  " 
+                + getQueueThrottledMs() + "ms in " + queueBuckets.size() 
+                + " active queues\n");
+        return buf.toString();
+    }
+}
@@ -27,6 +27,7 @@ import java.util.logging.Logger;
 import org.apache.commons.collections.Closure;
 import org.archive.modules.net.CrawlHost;
 import org.archive.modules.net.CrawlServer;
+import org.archive.modules.net.Robotstxt;
 import org.archive.modules.net.ServerCache;
 import org.archive.util.ObjectIdentityCache;
 import org.archive.util.ObjectIdentityMemCache;
@@ -57,6 +58,13 @@ public class DefaultServerCache extends ServerCache implements Closeable, Serial
      * Set in the initialization.
      */
     protected ObjectIdentityCache<CrawlHost> hosts = null;
+
+    /**
+     * robots.txt content digest -&gt; Robotstxt, shared by all servers
+     * serving identical robots.txt.
+     * Set in the initialization.
+     */
+    protected ObjectIdentityCache<Robotstxt> robots = null;
     
     /**
      * Constructor.
@@ -71,8 +79,15 @@ public class DefaultServerCache extends ServerCache implements Closeable, Serial
     
     public DefaultServerCache(ObjectIdentityCache<CrawlServer> servers, 
             ObjectIdentityCache<CrawlHost> hosts) {
+        this(servers, hosts, new ObjectIdentityMemCache<Robotstxt>());
+    }
+
+    public DefaultServerCache(ObjectIdentityCache<CrawlServer> servers, 
+            ObjectIdentityCache<CrawlHost> hosts,
+            ObjectIdentityCache<Robotstxt> robots) {
         this.servers = servers;
         this.hosts = hosts;
+        this.robots = robots;
     }
     
     /**
@@ -88,6 +103,7 @@ public class DefaultServerCache extends ServerCache implements Closeable, Serial
                         String skey = new String(serverKey); // ensure private minimal key
                         return new CrawlServer(skey);
                     }});
+        cserver.setServerCache(this);
         return cserver;
     }
     
@@ -114,6 +130,16 @@ public class DefaultServerCache extends ServerCache implements Closeable, Serial
         return host;
     }
 
+    @Override
+    public Robotstxt internRobotstxt(String digest, Supplier<Robotstxt> parse) {
+        return robots.getOrUse(digest, parse);
+    }
+
+    @Override
+    public Robotstxt getRobotstxt(String digest) {
+        return robots.get(digest);
+    }
+
     /**
      * @param serverKey Key to use doing lookup.
      * @return True if a server instance exists.
@@ -144,6 +170,10 @@ public class DefaultServerCache extends ServerCache implements Closeable, Serial
             this.servers.close();
             this.servers = null;
         }
+        if (this.robots != null) { 
+            this.robots.close();
+            this.robots = null;
+        }
     }
 
     /**
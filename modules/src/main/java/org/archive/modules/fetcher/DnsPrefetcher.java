@@ -0,0 +1,356 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.lang.StringUtils;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.net.CrawlHost;
+import org.archive.modules.net.ServerCache;
+import org.archive.util.InetAddressUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.Lifecycle;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.ResolverConfig;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * Resolves the hosts of newly discovered URIs in the background, ahead of
+ * their dns: prerequisites. The frontier offers each URI that fills a
+ * previously empty queue; hosts not yet looked up are queued here, and a
+ * single thread sends their A queries in batches, all outstanding at once,
+ * filling in the CrawlHost's IP and TTL from the first answer. When the
+ * URI later comes up for fetch, the PreconditionEnforcer finds the IP
+ * already valid and schedules no dns: URI.
+ *
+ * <p>Hosts that fail to resolve here are simply left alone, to be
+ * resolved (with the usual retries and unresolvable handling) by FetchDNS.
+ * Note that prefetched hosts never pass through FetchDNS, so no DNS
+ * response record is written for them.
+ *
+ * <p>Declare a bean of this class to enable prefetching.
+ */
+public class DnsPrefetcher implements Lifecycle {
+    private static final Logger logger =
+        Logger.getLogger(DnsPrefetcher.class.getName());
+
+    protected ServerCache serverCache;
+    public ServerCache getServerCache() {
+        return this.serverCache;
+    }
+    @Autowired
+    public void setServerCache(ServerCache serverCache) {
+        this.serverCache = serverCache;
+    }
+
+    protected String dnsServer = "";
+    public String getDnsServer() {
+        return dnsServer;
+    }
+    /**
+     * DNS server to query, as host or host:port. Empty (the default) means
+     * the first server of the system resolver configuration, as used by
+     * FetchDNS.
+     */
+    public void setDnsServer(String dnsServer) {
+        this.dnsServer = dnsServer;
+    }
+
+    protected int batchSize = 100;
+    public int getBatchSize() {
+        return batchSize;
+    }
+    /**
+     * Maximum number of queries outstanding at once.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    protected int timeoutSeconds = 5;
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+    /**
+     * Seconds to wait for the answers of a batch; hosts unanswered by
+     * then are left for FetchDNS.
+     */
+    public void setTimeoutSeconds(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+    }
+
+    protected int maxPending = 100000;
+    public int getMaxPending() {
+        return maxPending;
+    }
+    /**
+     * Maximum number of hosts awaiting resolution; hosts offered beyond
+     * this are not prefetched.
+     */
+    public void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    protected LinkedBlockingQueue<String> pending =
+        new LinkedBlockingQueue<String>();
+    /** names pending or in flight, to avoid duplicate queries */
+    protected Set<String> inProgress =
+        Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    protected AtomicLong resolvedCount = new AtomicLong();
+    protected AtomicLong failedCount = new AtomicLong();
+    protected AtomicLong droppedCount = new AtomicLong();
+
+    protected SimpleResolver resolver;
+    protected Thread thread;
+    protected volatile boolean isRunning = false;
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        try {
+            resolver = createResolver();
+        } catch (Exception e) {
+            throw new IllegalStateException("unable to create resolver for "
+                    + "dnsServer '" + getDnsServer() + "'", e);
+        }
+        isRunning = true;
+        thread = new Thread("DnsPrefetcher") {
+            public void run() {
+                resolveLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        isRunning = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        pending.clear();
+        inProgress.clear();
+    }
+
+    protected SimpleResolver createResolver() throws Exception {
+        SimpleResolver r;
+        if (StringUtils.isEmpty(getDnsServer())) {
+            r = new SimpleResolver(ResolverConfig.getCurrentConfig().server());
+        } else {
+            String server = getDnsServer();
+            int colon = server.lastIndexOf(':');
+            if (colon > 0 && server.indexOf(':') == colon) {
+                r = new SimpleResolver(server.substring(0, colon));
+                r.setPort(Integer.parseInt(server.substring(colon + 1)));
+            } else {
+                r = new SimpleResolver(server);
+            }
+        }
+        r.setTimeout(Duration.ofSeconds(getTimeoutSeconds()));
+        return r;
+    }
+
+    /**
+     * Queue the host of the given URI for resolution, if it has not been
+     * looked up already.
+     */
+    public void prefetch(CrawlURI curi) {
+        if (!isRunning) {
+            return;
+        }
+        String scheme = curi.getUURI().getScheme();
+        if (!"http".equals(scheme) && !"https".equals(scheme)
+                && !"ftp".equals(scheme) && !"sftp".equals(scheme)) {
+            return;
+        }
+        String hostname;
+        try {
+            hostname = curi.getUURI().getReferencedHost();
+        } catch (URIException e) {
+            return;
+        }
+        prefetch(hostname);
+    }
+
+    /**
+     * Queue the given host for resolution, if it has not been looked up
+     * already.
+     */
+    public void prefetch(String hostname) {
+        if (!isRunning || StringUtils.isEmpty(hostname)
+                || InetAddressUtil.IPV4_QUADS.matcher(hostname).matches()) {
+            return;
+        }
+        CrawlHost host = getServerCache().getHostFor(hostname);
+        if (host == null || host.hasBeenLookedUp()) {
+            return;
+        }
+        if (inProgress.size() >= getMaxPending()) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        if (inProgress.add(hostname)) {
+            pending.add(hostname);
+        }
+    }
+
+    protected void resolveLoop() {
+        List<String> batch = new ArrayList<String>();
+        while (isRunning) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch, getBatchSize() - 1);
+                resolveBatch(batch);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "dns prefetch batch failed", e);
+            } finally {
+                inProgress.removeAll(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Send a query for every name in the batch, then collect the answers
+     * that arrive within the timeout.
+     */
+    protected void resolveBatch(List<String> batch)
+    throws InterruptedException {
+        List<CompletableFuture<Message>> answers =
+            new ArrayList<CompletableFuture<Message>>(batch.size());
+        for (String hostname : batch) {
+            answers.add(query(hostname));
+        }
+        long deadline = System.currentTimeMillis()
+            + TimeUnit.SECONDS.toMillis(getTimeoutSeconds());
+        for (int i = 0; i < batch.size(); i++) {
+            String hostname = batch.get(i);
+            CompletableFuture<Message> answer = answers.get(i);
+            if (answer == null) {
+                failedCount.incrementAndGet();
+                continue;
+            }
+            try {
+                long wait = Math.max(0, deadline - System.currentTimeMillis());
+                store(hostname, answer.get(wait, TimeUnit.MILLISECONDS));
+            } catch (ExecutionException e) {
+                failedCount.incrementAndGet();
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("prefetch of " + hostname + " failed: "
+                            + e.getCause());
+                }
+            } catch (TimeoutException e) {
+                answer.cancel(true);
+                failedCount.incrementAndGet();
+            }
+        }
+    }
+
+    protected CompletableFuture<Message> query(String hostname) {
+        try {
+            String lookupName = hostname.endsWith(".") ? hostname
+                    : hostname + ".";
+            Record question = Record.newRecord(Name.fromString(lookupName),
+                    Type.A, DClass.IN);
+            return resolver.sendAsync(Message.newQuery(question))
+                    .toCompletableFuture();
+        } catch (TextParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set the host's IP and TTL from the first A record of the answer,
+     * unless the host was looked up meanwhile.
+     */
+    protected void store(String hostname, Message response) {
+        if (response.getRcode() != Rcode.NOERROR) {
+            failedCount.incrementAndGet();
+            return;
+        }
+        for (Record record : response.getSection(Section.ANSWER)) {
+            if (record instanceof ARecord) {
+                InetAddress address = ((ARecord) record).getAddress();
+                CrawlHost host = getServerCache().getHostFor(hostname);
+                synchronized (host) {
+                    if (!host.hasBeenLookedUp()) {
+                        host.setIP(address, record.getTTL());
+                        host.makeDirty();
+                    }
+                }
+                resolvedCount.incrementAndGet();
+                return;
+            }
+        }
+        failedCount.incrementAndGet();
+    }
+
+    public long getResolvedCount() {
+        return resolvedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public int getPendingCount() {
+        return inProgress.size();
+    }
+
+    public void reportTo(PrintWriter writer) {
+        writer.print(" DNS prefetch:  " + getResolvedCount() + " resolved, "
+            + getFailedCount() + " left to FetchDNS, "
+            + droppedCount.get() + " not queued, "
+            + getPendingCount() + " pending\n");
+    }
+}
@@ -22,6 +22,7 @@ import static org.archive.modules.CoreAttributeConstants.A_FTP_CONTROL_CONVERSAT
 import static org.archive.modules.CoreAttributeConstants.A_FTP_FETCH_STATUS;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -49,6 +50,7 @@ import org.archive.net.ClientFTP;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
 import org.archive.util.Recorder;
+import org.springframework.beans.factory.annotation.Autowired;
 
 
 /**
@@ -193,6 +195,19 @@ public class FetchFTP extends Processor  {
     public void setMaxFetchKBSec(int rate) {
         kp.put("maxFetchKBSec",rate);
     }
+
+    protected BandwidthGovernor bandwidthGovernor;
+    public BandwidthGovernor getBandwidthGovernor() {
+        return bandwidthGovernor;
+    }
+    /**
+     * Shared limits on the rate content is read, across concurrent 
+     * fetches; if none is declared, only maxFetchKBSec applies.
+     */
+    @Autowired(required=false)
+    public void setBandwidthGovernor(BandwidthGovernor bandwidthGovernor) {
+        this.bandwidthGovernor = bandwidthGovernor;
+    }
     
     {
         setTimeoutSeconds(20*60); // 20 minutes
@@ -491,7 +506,14 @@ public class FetchFTP extends Processor  {
     private void saveToRecorder(CrawlURI curi,
             Socket socket, Recorder recorder) 
     throws IOException, InterruptedException {
-        recorder.inputWrap(socket.getInputStream());
+        InputStream in = socket.getInputStream();
+        if (bandwidthGovernor != null) {
+            BandwidthGovernor.Throttle throttle = bandwidthGovernor.throttleFor(curi);
+            if (throttle != null) {
+                in = throttle.wrap(in);
+            }
+        }
+        recorder.inputWrap(in);
         recorder.outputWrap(socket.getOutputStream());
         recorder.markContentBegin();
 
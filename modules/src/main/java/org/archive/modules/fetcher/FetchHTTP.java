@@ -28,6 +28,9 @@ import static org.archive.modules.fetcher.FetchStatusCodes.S_UNFETCHABLE_URI;
 import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_REFERENCE_LENGTH;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.util.Arrays;
@@ -42,12 +45,15 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.TrustManager;
 
 import org.apache.commons.httpclient.URIException;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -72,6 +78,7 @@ import org.archive.httpclient.ConfigurableX509TrustManager.TrustLevel;
 import org.archive.io.RecorderLengthExceededException;
 import org.archive.io.RecorderTimeoutException;
 import org.archive.modules.CrawlURI;
+import org.archive.modules.ProcessResult;
 import org.archive.modules.Processor;
 import org.archive.modules.credential.Credential;
 import org.archive.modules.credential.CredentialStore;
@@ -82,6 +89,7 @@ import org.archive.modules.deciderules.DecideRule;
 import org.archive.modules.net.CrawlHost;
 import org.archive.modules.net.CrawlServer;
 import org.archive.modules.net.ServerCache;
+import org.archive.spring.ConfigPath;
 import org.archive.util.Recorder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.Lifecycle;
@@ -197,7 +205,7 @@ public class FetchHTTP extends Processor implements Lifecycle {
     }
 
     protected ProtocolVersion getConfiguredHttpVersion() {
-        if (getUseHTTP11()) {
+        if (getUseHTTP11() || getUsePooledConnections()) {
             return HttpVersion.HTTP_1_1;
         } else {
             return HttpVersion.HTTP_1_0;
@@ -274,6 +282,19 @@ public class FetchHTTP extends Processor implements Lifecycle {
     public AbstractCookieStore getCookieStore() {
         return cookieStore;
     }
+
+    protected BandwidthGovernor bandwidthGovernor;
+    public BandwidthGovernor getBandwidthGovernor() {
+        return bandwidthGovernor;
+    }
+    /**
+     * Shared limits on the rate content is read, across concurrent 
+     * fetches; if none is declared, only maxFetchKBSec applies.
+     */
+    @Autowired(required=false)
+    public void setBandwidthGovernor(BandwidthGovernor bandwidthGovernor) {
+        this.bandwidthGovernor = bandwidthGovernor;
+    }
     
     {
         // initialize with empty store so declaration not required
@@ -510,6 +531,140 @@ public class FetchHTTP extends Processor implements Lifecycle {
     }
 
 
+    {
+        setUsePooledConnections(false);
+    }
+    public boolean getUsePooledConnections() {
+        return (Boolean) kp.get("usePooledConnections");
+    }
+    /**
+     * Keep connections open between fetches from the same server (and
+     * proxy), sparing a new TCP -- and for HTTPS, TLS -- handshake for
+     * each URI. Requests are then made as HTTP/1.1 without 'Connection:
+     * close', whatever the useHTTP11 and sendConnectionClose settings. A
+     * connection is only reused when its previous response was read
+     * exactly to its end, so the recorded request and response bytes are
+     * the same as with a fresh connection. Default: false.
+     */
+    public void setUsePooledConnections(boolean usePooledConnections) {
+        kp.put("usePooledConnections",usePooledConnections);
+    }
+
+    {
+        setMaxIdleConnectionsPerServer(2);
+    }
+    public int getMaxIdleConnectionsPerServer() {
+        return (Integer) kp.get("maxIdleConnectionsPerServer");
+    }
+    /**
+     * With usePooledConnections, the maximum number of idle connections
+     * kept open to any one server.
+     */
+    public void setMaxIdleConnectionsPerServer(int max) {
+        kp.put("maxIdleConnectionsPerServer",max);
+    }
+
+    {
+        setPooledConnectionIdleTimeoutMs(15000);
+    }
+    public int getPooledConnectionIdleTimeoutMs() {
+        return (Integer) kp.get("pooledConnectionIdleTimeoutMs");
+    }
+    /**
+     * With usePooledConnections, how long a connection may sit idle before
+     * it is closed rather than reused. Connections of queues snoozed (as
+     * for politeness) longer than this are closed. A shorter keep-alive
+     * timeout announced by the server takes precedence.
+     */
+    public void setPooledConnectionIdleTimeoutMs(int timeout) {
+        kp.put("pooledConnectionIdleTimeoutMs",timeout);
+    }
+
+    protected transient FetchHTTPConnectionPool connectionPool = 
+        new FetchHTTPConnectionPool();
+    public FetchHTTPConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    {
+        setUseAsyncFetch(false);
+    }
+    public boolean getUseAsyncFetch() {
+        return (Boolean) kp.get("useAsyncFetch");
+    }
+    /**
+     * Hand fetches to a selector-based I/O engine, parking each CrawlURI
+     * (and freeing its ToeThread) until the response has been recorded,
+     * rather than holding a ToeThread for the whole round-trip. A few 
+     * hundred ToeThreads may then keep many thousands of fetches in 
+     * flight. Applies only to GETs made directly (no proxy), without
+     * credentials or a maxFetchKBSec limit, to hosts already looked up;
+     * other fetches proceed as usual. Connections are not kept open, 
+     * whatever usePooledConnections; soTimeoutMs, timeoutSeconds and 
+     * maxLengthBytes apply as usual. Since the response body is read 
+     * without pause, a shouldFetchBodyRule rejection only discards what
+     * was read. Default: false.
+     */
+    public void setUseAsyncFetch(boolean useAsyncFetch) {
+        kp.put("useAsyncFetch",useAsyncFetch);
+    }
+
+    protected int maxAsyncFetches = 10000;
+    public int getMaxAsyncFetches() {
+        return maxAsyncFetches;
+    }
+    /**
+     * With useAsyncFetch, the most fetches in flight at once, each with 
+     * its own Recorder; beyond this, fetches proceed as usual. Read at 
+     * crawl start.
+     */
+    public void setMaxAsyncFetches(int maxAsyncFetches) {
+        this.maxAsyncFetches = maxAsyncFetches;
+    }
+
+    protected int asyncRecorderInBufferBytes = 8192;
+    public int getAsyncRecorderInBufferBytes() {
+        return asyncRecorderInBufferBytes;
+    }
+    /**
+     * With useAsyncFetch, the in-memory buffer of each fetch's Recorder
+     * for responses; more is written to a backing file. Kept smaller 
+     * than a ToeThread's, as there are many more. Read at crawl start.
+     */
+    public void setAsyncRecorderInBufferBytes(int bytes) {
+        this.asyncRecorderInBufferBytes = bytes;
+    }
+
+    protected int asyncRecorderOutBufferBytes = 2048;
+    public int getAsyncRecorderOutBufferBytes() {
+        return asyncRecorderOutBufferBytes;
+    }
+    /**
+     * With useAsyncFetch, the in-memory buffer of each fetch's Recorder
+     * for requests. Read at crawl start.
+     */
+    public void setAsyncRecorderOutBufferBytes(int bytes) {
+        this.asyncRecorderOutBufferBytes = bytes;
+    }
+
+    protected ConfigPath asyncScratchDir = 
+        new ConfigPath("async fetch scratch subdirectory", "scratch");
+    public ConfigPath getAsyncScratchDir() {
+        return asyncScratchDir;
+    }
+    /**
+     * With useAsyncFetch, directory for the backing files of fetches'
+     * Recorders.
+     */
+    public void setAsyncScratchDir(ConfigPath asyncScratchDir) {
+        this.asyncScratchDir = asyncScratchDir;
+    }
+
+    protected transient FetchHTTPAsyncEngine asyncEngine;
+    public FetchHTTPAsyncEngine getAsyncEngine() {
+        return asyncEngine;
+    }
+
     protected transient SSLContext sslContext;
     protected synchronized SSLContext sslContext() {
         if (sslContext == null) {
@@ -644,6 +799,183 @@ public class FetchHTTP extends Processor implements Lifecycle {
         }
     }
 
+    @Override
+    protected ProcessResult innerProcessResult(CrawlURI curi)
+            throws InterruptedException {
+        if (asyncEngine != null && isAsyncFetchable(curi) 
+                && beginAsyncFetch(curi)) {
+            return ProcessResult.PARK;
+        }
+        innerProcess(curi);
+        return ProcessResult.PROCEED;
+    }
+
+    /**
+     * Whether the given CrawlURI may be fetched by the asynchronous 
+     * engine; see {@link #setUseAsyncFetch(boolean)}.
+     */
+    protected boolean isAsyncFetchable(CrawlURI curi) {
+        if (!getUseAsyncFetch() || curi.getFetchType() == HTTP_POST
+                || getMaxFetchKBSec() > 0) {
+            return false;
+        }
+        if (bandwidthGovernor != null && bandwidthGovernor.isLimiting(curi)) {
+            // throttling would stall the engine's thread
+            return false;
+        }
+        if (StringUtils.isNotEmpty((String) getAttributeEither(curi, "httpProxyHost"))
+                || StringUtils.isNotEmpty((String) getAttributeEither(curi, "socksProxyHost"))
+                || System.getProperty("http.proxyHost") != null
+                || System.getProperty("https.proxyHost") != null) {
+            return false;
+        }
+        if (curi.hasCredentials() || curi.getHttpAuthChallenges() != null) {
+            return false;
+        }
+        CrawlServer server = getServerCache().getServerFor(getServerKey(curi));
+        if (server == null || server.hasCredentials()) {
+            return false;
+        }
+        CrawlHost host = getServerCache().getHostFor(curi.getUURI());
+        return host != null && host.getIP() != null;
+    }
+
+    /**
+     * Hand the fetch of the given CrawlURI to the asynchronous engine, 
+     * parking it first, since the engine may resume it at once; 
+     * {@link #resumeProcess(CrawlURI)} finishes once the response has 
+     * been recorded.
+     * 
+     * @return false if the fetch was not handed over, and should proceed
+     * as usual
+     */
+    protected boolean beginAsyncFetch(CrawlURI curi) {
+        Recorder rec = asyncEngine.takeRecorder();
+        if (rec == null) {
+            // at capacity
+            return false;
+        }
+        Recorder threadRecorder = curi.getRecorder();
+        try {
+            FetchHTTPRequest req = new FetchHTTPRequest(this, curi);
+            HttpRequest request = req.prepareForAsync();
+
+            int port = curi.getUURI().getPort();
+            if (port < 0) {
+                port = HTTPS_SCHEME.equals(curi.getUURI().getScheme()) ? 443 : 80;
+            }
+            InetSocketAddress address = new InetSocketAddress(
+                    getServerCache().getHostFor(curi.getUURI()).getIP(), port);
+            InetAddress localAddress = null;
+            String bindAddress = (String) getAttributeEither(curi, HTTP_BIND_ADDRESS);
+            if (StringUtils.isNotEmpty(bindAddress)) {
+                localAddress = InetAddress.getByName(bindAddress);
+            }
+
+            curi.setFetchBeginTime(System.currentTimeMillis());
+            curi.setRecorder(rec);
+            if (getDigestContent()) {
+                rec.getRecordedInput().setDigest(getDigestAlgorithm());
+            } else {
+                rec.getRecordedInput().setDigest((MessageDigest)null);
+            }
+            rec.getRecordedInput().setLimits(getMaxLengthBytes(),
+                    1000l * (long) getTimeoutSeconds(), (long) getMaxFetchKBSec());
+            curi.park(this);
+            asyncEngine.submit(curi, req, request, address, localAddress);
+            return true;
+        } catch (Exception e) {
+            logger.log(Level.FINE, "async fetch not begun for " + curi, e);
+            curi.cancelPark();
+            curi.setRecorder(threadRecorder);
+            rec.close();
+            rec.closeRecorders();
+            asyncEngine.releaseRecorder(rec);
+            return false;
+        }
+    }
+
+    /**
+     * Finish the fetch of a CrawlURI parked by {@link #innerProcessResult}
+     * and resumed once its response was recorded (or the fetch failed),
+     * as {@link #innerProcess(CrawlURI)} finishes a fetch.
+     */
+    @Override
+    protected ProcessResult resumeProcess(CrawlURI curi)
+            throws InterruptedException {
+        FetchHTTPAsyncEngine.AsyncFetch fetch = asyncEngine.complete(curi);
+        if (fetch == null) {
+            logger.severe("no async fetch for resumed " + curi);
+            return ProcessResult.PROCEED;
+        }
+
+        Recorder rec = curi.getRecorder();
+        HttpResponse response = fetch.getResponse();
+        if (response == null) {
+            rec.close();
+            rec.closeRecorders();
+            if (fetch.getFailure() instanceof SSLException) {
+                // the usual fetch has fallbacks for problem TLS servers
+                innerProcess(curi);
+            } else {
+                failedExecuteCleanup(curi, fetch.getFailure());
+            }
+            return ProcessResult.PROCEED;
+        }
+
+        try {
+            fetch.getRequest().processAsyncResponse(response);
+        } catch (Exception e) {
+            logger.log(Level.FINE, "problem processing response cookies of " 
+                    + curi, e);
+        }
+        addResponseContent(response, curi);
+        if (checkMidfetchAbort(curi)) {
+            // body already read; can only be discarded
+            curi.getAnnotations().add("midFetchAbort");
+            rec.close();
+            rec.getRecordedInput().chopAtMessageBodyBegin();
+        }
+        try {
+            getContentLength(response);
+        } catch (NumberFormatException e) {
+            rec.close();
+            rec.closeRecorders();
+            cleanup(curi, e, "invalid content-length header", S_CONNECT_LOST);
+            return ProcessResult.PROCEED;
+        }
+        if (fetch.getTruncation() != null) {
+            curi.getAnnotations().add(fetch.getTruncation());
+        }
+
+        rec.close();
+        rec.closeRecorders();
+        curi.setFetchCompletedTime(fetch.getCompletedTime());
+        if (fetch.getFailure() != null) {
+            cleanup(curi, fetch.getFailure(), "readFully", S_CONNECT_LOST);
+        }
+        setCharacterEncoding(curi, rec, response);
+        setSizes(curi, rec);
+        setOtherCodings(curi, rec, response);
+        if (fetch.getFailure() == null) {
+            handleResponse(curi, rec, response, fetch.getRequest().addedCredentials);
+        }
+        return ProcessResult.PROCEED;
+    }
+
+    @Override
+    protected void parkedProcessingComplete(CrawlURI curi) {
+        final Recorder rec = curi.getRecorder();
+        if (asyncEngine != null && rec != null) {
+            // not while abandoned extraction may still read it
+            curi.whenRecorderFree(new Runnable() {
+                public void run() {
+                    asyncEngine.releaseRecorder(rec);
+                }
+            });
+        }
+    }
+
     @Override
     protected void innerProcess(final CrawlURI curi) throws InterruptedException {
         // Note begin time
@@ -704,25 +1036,27 @@ public class FetchHTTP extends Processor implements Lifecycle {
         
         maybeMidfetchAbort(curi, req.request);
         
-        long contentLength = -1l;
-        Header h = response.getLastHeader("content-length");
-        if (h != null) {
-            // browsers ignore everything after a null character and some buggy web servers rely on this
-            String contentLengthHeader = StringUtils.substringBefore(h.getValue(), "\0").trim();
-            if (!contentLengthHeader.isEmpty()) {
-                try {
-                    contentLength = Long.parseLong(contentLengthHeader);
-                } catch (NumberFormatException e) {
-                    cleanup(curi, e, "invalid content-length header", S_CONNECT_LOST);
-                    return;
-                }
-            }
+        long contentLength;
+        try {
+            contentLength = getContentLength(response);
+        } catch (NumberFormatException e) {
+            req.releaseConnection(response, false);
+            cleanup(curi, e, "invalid content-length header", S_CONNECT_LOST);
+            return;
         }
+        boolean readToEndOfMessage = false;
         try {
             if (!req.request.isAborted()) {
-                // Force read-to-end, so that any socket hangs occur here,
-                // not in later modules.
-                rec.getRecordedInput().readToEndOfContent(contentLength); 
+                if (req.isKeepAlive(response)) {
+                    // connection may be reused: read no further than the
+                    // end of this response
+                    readToEndOfMessage(curi, response);
+                    readToEndOfMessage = true;
+                } else {
+                    // Force read-to-end, so that any socket hangs occur here,
+                    // not in later modules.
+                    rec.getRecordedInput().readToEndOfContent(contentLength); 
+                }
             }
         } catch (RecorderTimeoutException ex) {
             doAbort(curi, req.request, TIMER_TRUNC);
@@ -741,6 +1075,8 @@ public class FetchHTTP extends Processor implements Lifecycle {
             rec.close();
             // ensure recording has stopped
             rec.closeRecorders();
+            // close connection, or return it to pool
+            req.releaseConnection(response, readToEndOfMessage);
             // Note completion time
             curi.setFetchCompletedTime(System.currentTimeMillis());
             
@@ -750,8 +1086,34 @@ public class FetchHTTP extends Processor implements Lifecycle {
             setOtherCodings(curi, rec, response); 
         }
 
-        if (digestContent) {
-            curi.setContentDigest(algorithm, 
+        handleResponse(curi, rec, response, req.addedCredentials);
+    }
+
+    /**
+     * @return value of the response's content-length header, or -1 if 
+     * none
+     * @throws NumberFormatException if the header is invalid
+     */
+    protected long getContentLength(HttpResponse response) {
+        Header h = response.getLastHeader("content-length");
+        if (h != null) {
+            // browsers ignore everything after a null character and some buggy web servers rely on this
+            String contentLengthHeader = StringUtils.substringBefore(h.getValue(), "\0").trim();
+            if (!contentLengthHeader.isEmpty()) {
+                return Long.parseLong(contentLengthHeader);
+            }
+        }
+        return -1l;
+    }
+
+    /**
+     * Complete the processing of a response fully read and recorded: note
+     * its digest, and act on any authentication outcome.
+     */
+    protected void handleResponse(CrawlURI curi, Recorder rec,
+            HttpResponse response, boolean addedCredentials) {
+        if (getDigestContent()) {
+            curi.setContentDigest(getDigestAlgorithm(), 
                 rec.getRecordedInput().getDigestValue());
         }
 
@@ -763,7 +1125,7 @@ public class FetchHTTP extends Processor implements Lifecycle {
                     + curi.getContentType());
         }
 
-        if (isSuccess(curi) && req.addedCredentials) {
+        if (isSuccess(curi) && addedCredentials) {
             // Promote the credentials from the CrawlURI to the CrawlServer
             // so they are available for all subsequent CrawlURIs on this
             // server.
@@ -790,6 +1152,31 @@ public class FetchHTTP extends Processor implements Lifecycle {
     }
 
 
+    /**
+     * Read the rest of a response on a connection which may be kept open,
+     * through HttpClient's own framing of the message (by content-length
+     * or chunked encoding) rather than to end-of-stream, which would wait
+     * out the server's keep-alive timeout. All bytes read still pass
+     * through the Recorder, which enforces the length, time and rate 
+     * limits. 
+     * 
+     * @param curi CrawlURI being fetched
+     * @param response response whose entity, if any, is to be read
+     */
+    protected void readToEndOfMessage(CrawlURI curi, HttpResponse response)
+            throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            // no message body, as for 204 or 304
+            return;
+        }
+        InputStream in = entity.getContent();
+        byte[] buf = new byte[16 * 1024];
+        while (in.read(buf) != -1) {
+            // recorded as read
+        }
+    }
+
     /**
      * Promote successful credential to the server.
      * 
@@ -1093,6 +1480,11 @@ public class FetchHTTP extends Processor implements Lifecycle {
         if (getCookieStore() != null) {
             getCookieStore().start();
         }
+
+        // engine's I/O thread starts with first use
+        asyncEngine = new FetchHTTPAsyncEngine(this, 
+                getAsyncScratchDir().getFile(), getMaxAsyncFetches(),
+                getAsyncRecorderOutBufferBytes(), getAsyncRecorderInBufferBytes());
     }
     
     public void stop() {
@@ -1100,6 +1492,10 @@ public class FetchHTTP extends Processor implements Lifecycle {
             return;
         }
         super.stop();
+        connectionPool.shutdown();
+        if (asyncEngine != null) {
+            asyncEngine.stop();
+        }
         // At the end save cookies to the file specified in the order file.
         if (getCookieStore() != null) {
             AbstractCookieStore r = getCookieStore();
@@ -1111,6 +1507,37 @@ public class FetchHTTP extends Processor implements Lifecycle {
         }
     }
 
+    @Override
+    public String report() {
+        boolean async = asyncEngine != null 
+                && asyncEngine.getFetchesCompleted() + asyncEngine.getFetchesFailed() > 0;
+        StringBuilder buf = new StringBuilder();
+        buf.append(super.report());
+        if (async) {
+            buf.append("  Async fetches in flight:   "
+                    + asyncEngine.getInFlightCount() + "\n");
+            buf.append("  Async fetches completed:   "
+                    + asyncEngine.getFetchesCompleted() + "\n");
+            buf.append("  Async fetches failed:      "
+                    + asyncEngine.getFetchesFailed() + "\n");
+        }
+        if (getUsePooledConnections()
+                || connectionPool.getConnectionsOpened() > 0) {
+            buf.append("  Pooled connections opened: "
+                    + connectionPool.getConnectionsOpened() + "\n");
+            buf.append("  Pooled connections reused: "
+                    + connectionPool.getConnectionsReused() + "\n");
+            buf.append("  Pooled connections expired: "
+                    + connectionPool.getConnectionsExpired() + "\n");
+            buf.append("  Idle pooled connections:   "
+                    + connectionPool.getIdleCount() + "\n");
+        }
+        if (bandwidthGovernor != null) {
+            buf.append(bandwidthGovernor.report());
+        }
+        return buf.toString();
+    }
+
     protected static String getServerKey(CrawlURI uri) {
         try {
             return CrawlServer.getServerKey(uri.getUURI());
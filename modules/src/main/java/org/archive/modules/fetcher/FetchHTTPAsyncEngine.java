@@ -0,0 +1,952 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import static org.archive.modules.fetcher.FetchErrors.LENGTH_TRUNC;
+import static org.archive.modules.fetcher.FetchErrors.TIMER_TRUNC;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.ParseException;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicLineFormatter;
+import org.apache.http.message.BasicLineParser;
+import org.apache.http.protocol.HTTP;
+import org.archive.io.RecorderLengthExceededException;
+import org.archive.io.RecorderTimeoutException;
+import org.archive.modules.CrawlURI;
+import org.archive.util.Recorder;
+
+/**
+ * Selector-based engine carrying out HTTP fetches without holding a 
+ * ToeThread for the network round-trip. FetchHTTP, when its useAsyncFetch
+ * setting applies, hands over a prepared request and parks the CrawlURI;
+ * a single I/O thread connects (with TLS through an SSLEngine for https),
+ * sends the request and records the response through a Recorder taken 
+ * from a pool, then resumes the CrawlURI, for FetchHTTP to finish in 
+ * whichever ToeThread takes it up.
+ *
+ * <p>Each connection is closed after its response, which is read to the
+ * end of its declared content-length, or else to end-of-stream. The I/O
+ * thread enforces soTimeoutMs (on connecting, and between reads) and 
+ * timeoutSeconds (for the whole fetch); the latter and maxLengthBytes
+ * are also enforced by the Recorder, as bytes are recorded.
+ */
+public class FetchHTTPAsyncEngine implements Runnable {
+    private static final Logger logger =
+        Logger.getLogger(FetchHTTPAsyncEngine.class.getName());
+
+    /** longest the I/O thread waits in select() between timeout checks */
+    protected static final long SELECT_MS = 100;
+    /** most rounds of reading and writing for one fetch per selection */
+    protected static final int MAX_ROUNDS = 16;
+    /** largest response head (status line and headers) accepted */
+    protected static final int MAX_HEAD_BYTES = 1024 * 1024;
+    protected static final int PLAIN_BUFFER_BYTES = 16 * 1024;
+
+    // states in following chunked transfer-coding
+    protected static final int CHUNK_SIZE = 0;
+    protected static final int CHUNK_DATA = 1;
+    protected static final int CHUNK_DATA_END = 2;
+    protected static final int CHUNK_TRAILER = 3;
+    protected static final int CHUNK_UNPARSEABLE = 4;
+
+    /**
+     * InputStream over the response bytes a fetch has ready, for its
+     * Recorder to wrap. Read only while bytes are available.
+     */
+    protected static class Feed extends InputStream {
+        ByteBuffer buf;
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+
+    /**
+     * One fetch in flight. Fields are used by the I/O thread until the
+     * fetch is done, and afterwards by the thread which resumes it.
+     */
+    public static class AsyncFetch {
+        protected final CrawlURI curi;
+        protected final FetchHTTPRequest req;
+        protected final Recorder recorder;
+        protected final InetSocketAddress address;
+        protected final InetAddress localAddress;
+        protected final SSLEngine ssl;
+        protected final long soTimeoutMs;
+        protected final long deadline;
+
+        /** request bytes not yet sent (http) or encrypted (https) */
+        protected final ByteBuffer request;
+        /** bytes ready to write, in read mode */
+        protected ByteBuffer netOut;
+        /** encrypted bytes read, awaiting unwrap (https only) */
+        protected ByteBuffer netIn;
+        /** response bytes awaiting recording */
+        protected ByteBuffer appIn;
+        protected final Feed feed = new Feed();
+        protected InputStream recordedInput;
+
+        protected SocketChannel channel;
+        protected SelectionKey key;
+        protected boolean connected = false;
+        protected boolean inboundClosed = false;
+        protected long lastActivity;
+
+        // response parsing
+        protected ByteArrayOutputStream head = new ByteArrayOutputStream(1024);
+        protected int lineLength = 0;
+        protected BasicHttpResponse response;
+        protected boolean noBody = false;
+        protected boolean chunked = false;
+        protected long contentLength = -1;
+        protected long bodyBytes = 0;
+
+        // chunked body framing, followed to notice its end
+        protected int chunkState = CHUNK_SIZE;
+        protected StringBuilder chunkSizeLine = new StringBuilder();
+        protected long chunkRemaining;
+        protected boolean chunksDone = false;
+
+        // outcome
+        protected volatile boolean done = false;
+        protected Exception failure;
+        protected String truncation;
+        protected long completedTime;
+
+        protected AsyncFetch(CrawlURI curi, FetchHTTPRequest req,
+                Recorder recorder, InetSocketAddress address,
+                InetAddress localAddress, SSLEngine ssl, byte[] requestBytes,
+                long soTimeoutMs, long timeoutMs) {
+            this.curi = curi;
+            this.req = req;
+            this.recorder = recorder;
+            this.address = address;
+            this.localAddress = localAddress;
+            this.ssl = ssl;
+            this.request = ByteBuffer.wrap(requestBytes);
+            this.soTimeoutMs = soTimeoutMs;
+            long now = System.currentTimeMillis();
+            this.deadline = (timeoutMs > 0) ? now + timeoutMs : Long.MAX_VALUE;
+            this.lastActivity = now;
+        }
+
+        /** allocate I/O buffers, once connected */
+        protected void allocateBuffers() {
+            if (ssl == null) {
+                netOut = request;
+                appIn = ByteBuffer.allocate(PLAIN_BUFFER_BYTES);
+            } else {
+                SSLSession session = ssl.getSession();
+                netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                netOut.flip();
+                netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+                appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+            }
+        }
+
+        protected void releaseBuffers() {
+            netOut = netIn = appIn = null;
+            head = null;
+            chunkSizeLine = null;
+        }
+
+        /**
+         * Note response bytes as recorded: parse the response head, and
+         * count body bytes.
+         */
+        protected void received(byte[] b, int off, int len) throws IOException {
+            int i = off;
+            int end = off + len;
+            while (response == null && i < end) {
+                byte c = b[i++];
+                head.write(c);
+                if (c == '\n') {
+                    if (lineLength == 0) {
+                        endOfHead();
+                    }
+                    lineLength = 0;
+                } else if (c != '\r') {
+                    lineLength++;
+                }
+                if (head != null && head.size() > MAX_HEAD_BYTES) {
+                    throw new ClientProtocolException("response head too large");
+                }
+            }
+            bodyBytes += end - i;
+            if (chunked) {
+                followChunks(b, i, end);
+            }
+        }
+
+        /**
+         * Follow the chunked transfer-coding of body bytes b[i,end), to
+         * notice the last chunk and trailer. If unparseable, the body is
+         * read to end-of-stream.
+         */
+        protected void followChunks(byte[] b, int i, int end) {
+            while (i < end && !chunksDone) {
+                byte c;
+                switch (chunkState) {
+                case CHUNK_SIZE:
+                    c = b[i++];
+                    if (c == '\n') {
+                        String size = chunkSizeLine.toString();
+                        chunkSizeLine.setLength(0);
+                        int semicolon = size.indexOf(';');
+                        if (semicolon >= 0) {
+                            size = size.substring(0, semicolon);
+                        }
+                        try {
+                            chunkRemaining = Long.parseLong(size.trim(), 16);
+                        } catch (NumberFormatException e) {
+                            chunkState = CHUNK_UNPARSEABLE;
+                            break;
+                        }
+                        lineLength = 0;
+                        chunkState = (chunkRemaining == 0) ? CHUNK_TRAILER : CHUNK_DATA;
+                    } else if (c != '\r') {
+                        if (chunkSizeLine.length() > 1024) {
+                            chunkState = CHUNK_UNPARSEABLE;
+                        }
+                        chunkSizeLine.append((char) c);
+                    }
+                    break;
+                case CHUNK_DATA:
+                    int n = (int) Math.min(chunkRemaining, end - i);
+                    i += n;
+                    chunkRemaining -= n;
+                    if (chunkRemaining == 0) {
+                        chunkState = CHUNK_DATA_END;
+                    }
+                    break;
+                case CHUNK_DATA_END:
+                    if (b[i++] == '\n') {
+                        chunkState = CHUNK_SIZE;
+                    }
+                    break;
+                case CHUNK_TRAILER:
+                    c = b[i++];
+                    if (c == '\n') {
+                        if (lineLength == 0) {
+                            chunksDone = true;
+                        }
+                        lineLength = 0;
+                    } else if (c != '\r') {
+                        lineLength++;
+                    }
+                    break;
+                default:
+                    return;
+                }
+            }
+        }
+
+        protected void endOfHead() throws IOException {
+            String text = new String(head.toByteArray(), "ISO-8859-1");
+            head.reset();
+            String[] lines = text.split("\r?\n");
+            if (lines.length == 0 || lines[0].length() == 0) {
+                // blank line(s) before status line; tolerated
+                return;
+            }
+            StatusLine statusLine;
+            try {
+                statusLine = BasicLineParser.parseStatusLine(lines[0], null);
+            } catch (ParseException e) {
+                throw new ClientProtocolException("invalid status line: " 
+                        + StringUtils.abbreviate(lines[0], 100), e);
+            }
+            int status = statusLine.getStatusCode();
+            if (status >= 100 && status < 200 && status != 101) {
+                // interim response; final one follows
+                return;
+            }
+            BasicHttpResponse parsed = new BasicHttpResponse(statusLine);
+            String pending = null;
+            for (int i = 1; i < lines.length; i++) {
+                String line = lines[i];
+                if (line.length() == 0) {
+                    continue;
+                }
+                if (pending != null 
+                        && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                    // folded continuation line
+                    pending = pending + " " + line.trim();
+                    continue;
+                }
+                addHeader(parsed, pending);
+                pending = line;
+            }
+            addHeader(parsed, pending);
+
+            noBody = status < 200 || status == 204 || status == 304;
+            Header te = parsed.getLastHeader(HTTP.TRANSFER_ENCODING);
+            chunked = te != null && te.getValue().trim().toLowerCase().endsWith(HTTP.CHUNK_CODING);
+            if (!chunked) {
+                Header cl = parsed.getLastHeader(HTTP.CONTENT_LEN);
+                if (cl != null) {
+                    try {
+                        contentLength = Long.parseLong(StringUtils.substringBefore(
+                                cl.getValue(), "\0").trim());
+                    } catch (NumberFormatException e) {
+                        // read to end-of-stream; FetchHTTP will object
+                    }
+                }
+            }
+            if (!noBody) {
+                BasicHttpEntity entity = new BasicHttpEntity();
+                entity.setContentType(parsed.getLastHeader(HTTP.CONTENT_TYPE));
+                entity.setContentEncoding(parsed.getLastHeader(HTTP.CONTENT_ENCODING));
+                entity.setChunked(chunked);
+                entity.setContentLength(contentLength);
+                parsed.setEntity(entity);
+            }
+            response = parsed;
+        }
+
+        protected void addHeader(BasicHttpResponse parsed, String line) {
+            if (line == null) {
+                return;
+            }
+            try {
+                parsed.addHeader(BasicLineParser.parseHeader(line, null));
+            } catch (ParseException e) {
+                logger.fine("skipping invalid header line in response to " 
+                        + curi + ": " + line);
+            }
+        }
+
+        protected boolean isComplete() {
+            return response != null
+                    && (noBody || chunksDone
+                            || (contentLength >= 0 && bodyBytes >= contentLength));
+        }
+
+        public CrawlURI getCrawlURI() {
+            return curi;
+        }
+
+        public FetchHTTPRequest getRequest() {
+            return req;
+        }
+
+        /**
+         * @return response received, with an entity (its content already
+         * recorded) unless none is expected; null if failed before the 
+         * response head was received
+         */
+        public HttpResponse getResponse() {
+            return response;
+        }
+
+        /**
+         * @return exception ending the fetch early, or null
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return TIMER_TRUNC or LENGTH_TRUNC annotation if the response 
+         * was truncated by a limit, or null
+         */
+        public String getTruncation() {
+            return truncation;
+        }
+
+        public long getCompletedTime() {
+            return completedTime;
+        }
+    }
+
+    protected final FetchHTTP fetcher;
+    protected final File scratchDir;
+    protected final int maxInFlight;
+    protected final int outBufferBytes;
+    protected final int inBufferBytes;
+
+    protected Selector selector;
+    protected Thread thread;
+    protected volatile boolean running = false;
+
+    /** fetches submitted, not yet taken up by the I/O thread */
+    protected final Queue<AsyncFetch> submitted = 
+        new ConcurrentLinkedQueue<AsyncFetch>();
+    /** all fetches, by CrawlURI, until taken back by {@link #complete(CrawlURI)} */
+    protected final Map<CrawlURI,AsyncFetch> fetches = Collections.synchronizedMap(
+            new IdentityHashMap<CrawlURI,AsyncFetch>());
+    /** fetches with I/O under way; I/O thread only */
+    protected final Set<AsyncFetch> active = Collections.newSetFromMap(
+            new IdentityHashMap<AsyncFetch,Boolean>());
+
+    protected final BlockingQueue<Recorder> idleRecorders = 
+        new LinkedBlockingQueue<Recorder>();
+    protected final AtomicInteger recorderCount = new AtomicInteger();
+
+    protected final AtomicLong fetchesCompleted = new AtomicLong();
+    protected final AtomicLong fetchesFailed = new AtomicLong();
+
+    /** recording scratch; I/O thread only */
+    protected final byte[] scratch = new byte[PLAIN_BUFFER_BYTES];
+    protected long lastTimeoutCheck = 0;
+
+    /**
+     * @param fetcher FetchHTTP on whose behalf fetches are made
+     * @param scratchDir directory for Recorder backing files
+     * @param maxInFlight most fetches (and so Recorders) at once
+     * @param outBufferBytes Recorder in-memory buffer for requests
+     * @param inBufferBytes Recorder in-memory buffer for responses
+     */
+    public FetchHTTPAsyncEngine(FetchHTTP fetcher, File scratchDir, 
+            int maxInFlight, int outBufferBytes, int inBufferBytes) {
+        this.fetcher = fetcher;
+        this.scratchDir = scratchDir;
+        this.maxInFlight = maxInFlight;
+        this.outBufferBytes = outBufferBytes;
+        this.inBufferBytes = inBufferBytes;
+    }
+
+    /**
+     * Take a Recorder for a new fetch.
+     * 
+     * @return idle or new Recorder, or null if maxInFlight are in use
+     */
+    public Recorder takeRecorder() {
+        Recorder recorder = idleRecorders.poll();
+        if (recorder != null) {
+            return recorder;
+        }
+        int n = recorderCount.incrementAndGet();
+        if (n > maxInFlight) {
+            recorderCount.decrementAndGet();
+            return null;
+        }
+        return new Recorder(scratchDir, "fa" + n + "http", outBufferBytes,
+                inBufferBytes);
+    }
+
+    /**
+     * Return a Recorder, closed and done with, for reuse.
+     */
+    public void releaseRecorder(Recorder recorder) {
+        idleRecorders.add(recorder);
+    }
+
+    /**
+     * Begin a fetch. The request is recorded at once; connecting, sending
+     * and receiving follow in the I/O thread, after which the CrawlURI is
+     * resumed.
+     * 
+     * @param curi CrawlURI, already parked by the caller, with a Recorder 
+     * from {@link #takeRecorder()} set
+     * @param req FetchHTTPRequest of which request was prepared
+     * @param request request made ready for sending 
+     * @param address server address
+     * @param localAddress local address to bind, or null
+     */
+    public void submit(CrawlURI curi, FetchHTTPRequest req, 
+            HttpRequest request, InetSocketAddress address, 
+            InetAddress localAddress) throws IOException {
+        ensureStarted();
+
+        SSLEngine ssl = null;
+        if (FetchHTTP.HTTPS_SCHEME.equals(curi.getUURI().getScheme())) {
+            ssl = fetcher.sslContext().createSSLEngine(
+                    req.targetHost.getHostName(), address.getPort());
+            ssl.setUseClientMode(true);
+        }
+
+        Recorder recorder = curi.getRecorder();
+        ByteArrayOutputStream sent = new ByteArrayOutputStream(1024);
+        OutputStream out = recorder.outputWrap(sent);
+        out.write(format(request));
+        out.flush();
+
+        AsyncFetch fetch = new AsyncFetch(curi, req, recorder, address, 
+                localAddress, ssl, sent.toByteArray(), fetcher.getSoTimeoutMs(),
+                1000L * fetcher.getTimeoutSeconds());
+        fetch.recordedInput = recorder.inputWrap(fetch.feed);
+        curi.setServerIP(address.getAddress().getHostAddress());
+
+        fetches.put(curi, fetch);
+        submitted.add(fetch);
+        selector.wakeup();
+    }
+
+    /**
+     * @return request line and headers as sent on the wire
+     */
+    protected static byte[] format(HttpRequest request) {
+        StringBuilder buf = new StringBuilder(512);
+        buf.append(BasicLineFormatter.INSTANCE.formatRequestLine(null,
+                request.getRequestLine()));
+        buf.append("\r\n");
+        for (Header header : request.getAllHeaders()) {
+            buf.append(BasicLineFormatter.INSTANCE.formatHeader(null, header));
+            buf.append("\r\n");
+        }
+        buf.append("\r\n");
+        byte[] bytes = new byte[buf.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) buf.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Take back the finished fetch of a resumed CrawlURI.
+     * 
+     * @return the fetch, or null if none
+     */
+    public AsyncFetch complete(CrawlURI curi) {
+        return fetches.remove(curi);
+    }
+
+    protected synchronized void ensureStarted() throws IOException {
+        if (thread != null) {
+            if (!running) {
+                throw new IOException("fetch engine stopped");
+            }
+            return;
+        }
+        scratchDir.mkdirs();
+        selector = Selector.open();
+        running = true;
+        thread = new Thread(this, "FetchHTTPAsyncEngine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the I/O thread, failing any fetches still under way.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            selector.wakeup();
+            try {
+                thread.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "problem closing selector", e);
+            }
+        }
+        Recorder recorder;
+        while ((recorder = idleRecorders.poll()) != null) {
+            recorder.cleanup();
+        }
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SELECT_MS);
+                startSubmitted();
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    AsyncFetch fetch = (AsyncFetch) key.attachment();
+                    if (!key.isValid() || fetch.done) {
+                        continue;
+                    }
+                    try {
+                        progress(fetch);
+                    } catch (IOException e) {
+                        finish(fetch, e);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "problem fetching " 
+                                + fetch.curi, e);
+                        finish(fetch, e);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= SELECT_MS) {
+                    lastTimeoutCheck = now;
+                    checkTimeouts(now);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "selector problem", e);
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "unexpected problem", e);
+            }
+        }
+        // stopped: fail whatever remains
+        startSubmitted();
+        for (AsyncFetch fetch : new ArrayList<AsyncFetch>(active)) {
+            finish(fetch, new IOException("fetch engine stopped"));
+        }
+    }
+
+    protected void startSubmitted() {
+        AsyncFetch fetch;
+        while ((fetch = submitted.poll()) != null) {
+            active.add(fetch);
+            if (!running) {
+                continue;
+            }
+            try {
+                fetch.channel = SocketChannel.open();
+                fetch.channel.configureBlocking(false);
+                if (fetch.localAddress != null) {
+                    fetch.channel.bind(new InetSocketAddress(fetch.localAddress, 0));
+                }
+                fetch.lastActivity = System.currentTimeMillis();
+                fetch.key = fetch.channel.register(selector, 0, fetch);
+                if (fetch.channel.connect(fetch.address)) {
+                    progress(fetch);
+                } else {
+                    fetch.key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch (IOException e) {
+                finish(fetch, e);
+            } catch (RuntimeException e) {
+                finish(fetch, e);
+            }
+        }
+    }
+
+    /**
+     * Advance a fetch as far as its connection allows without blocking:
+     * complete connecting, send, receive and record; then await the 
+     * connection's readiness for more.
+     */
+    protected void progress(AsyncFetch fetch) throws IOException {
+        long now = System.currentTimeMillis();
+        if (!fetch.connected) {
+            if (!fetch.channel.finishConnect()) {
+                return;
+            }
+            fetch.connected = true;
+            fetch.lastActivity = now;
+            fetch.allocateBuffers();
+            if (fetch.ssl != null) {
+                fetch.ssl.beginHandshake();
+            }
+        }
+        boolean eof = false;
+        boolean progressed = true;
+        for (int round = 0; progressed && round < MAX_ROUNDS && !fetch.done; round++) {
+            progressed = false;
+            if (fetch.netOut.hasRemaining()) {
+                if (fetch.channel.write(fetch.netOut) > 0) {
+                    fetch.lastActivity = now;
+                    progressed = true;
+                }
+                if (fetch.netOut.hasRemaining()) {
+                    // await writability
+                    break;
+                }
+            }
+            if (fetch.ssl != null && wrap(fetch)) {
+                progressed = true;
+                continue;
+            }
+            if (!fetch.inboundClosed) {
+                int n = fetch.channel.read(fetch.ssl != null ? fetch.netIn : fetch.appIn);
+                if (n > 0) {
+                    fetch.lastActivity = now;
+                    progressed = true;
+                } else if (n < 0) {
+                    eof = true;
+                }
+            }
+            if (fetch.ssl != null && unwrap(fetch)) {
+                progressed = true;
+            }
+            if (consume(fetch)) {
+                progressed = true;
+            }
+        }
+        if (fetch.done) {
+            return;
+        }
+        if (eof || fetch.inboundClosed) {
+            if (fetch.response != null) {
+                // body delimited by end-of-stream
+                finish(fetch, null);
+            } else {
+                finish(fetch, new NoHttpResponseException(
+                        fetch.address + " failed to respond"));
+            }
+            return;
+        }
+        fetch.key.interestOps(fetch.netOut.hasRemaining()
+                ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Encrypt whatever the SSLEngine has ready to send: handshake data,
+     * or once handshaking is done, the request.
+     * 
+     * @return true if anything was produced
+     */
+    protected boolean wrap(AsyncFetch fetch) throws IOException {
+        HandshakeStatus hs = fetch.ssl.getHandshakeStatus();
+        if (hs == HandshakeStatus.NEED_TASK) {
+            runTasks(fetch);
+            return true;
+        }
+        boolean handshaking = hs != HandshakeStatus.NOT_HANDSHAKING
+                && hs != HandshakeStatus.FINISHED;
+        if (hs != HandshakeStatus.NEED_WRAP 
+                && (handshaking || !fetch.request.hasRemaining())) {
+            return false;
+        }
+        fetch.netOut.clear();
+        SSLEngineResult result = fetch.ssl.wrap(fetch.request, fetch.netOut);
+        fetch.netOut.flip();
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new SSLException("connection closed during TLS wrap");
+        }
+        if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+            runTasks(fetch);
+        }
+        return result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+    }
+
+    /**
+     * Decrypt bytes read into the fetch's response buffer.
+     * 
+     * @return true if anything was consumed or produced
+     */
+    protected boolean unwrap(AsyncFetch fetch) throws IOException {
+        boolean progressed = false;
+        fetch.netIn.flip();
+        try {
+            while (fetch.netIn.hasRemaining()) {
+                SSLEngineResult result = fetch.ssl.unwrap(fetch.netIn, fetch.appIn);
+                switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // partial record; await more
+                    return progressed;
+                case BUFFER_OVERFLOW:
+                    if (fetch.appIn.position() == 0) {
+                        fetch.appIn = ByteBuffer.allocate(2 * fetch.appIn.capacity());
+                    }
+                    // room made by recording what is there
+                    return true;
+                case CLOSED:
+                    fetch.inboundClosed = true;
+                    return true;
+                default:
+                    break;
+                }
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runTasks(fetch);
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    return progressed;
+                }
+                progressed = true;
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    // reply before reading on
+                    return progressed;
+                }
+            }
+            return progressed;
+        } finally {
+            fetch.netIn.compact();
+        }
+    }
+
+    protected void runTasks(AsyncFetch fetch) {
+        Runnable task;
+        while ((task = fetch.ssl.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Pass response bytes received through the fetch's Recorder, noting
+     * the response head and body length, and finishing the fetch once 
+     * the response is complete or a recording limit is reached.
+     * 
+     * @return true if any bytes were recorded
+     */
+    protected boolean consume(AsyncFetch fetch) throws IOException {
+        if (fetch.appIn.position() == 0) {
+            return false;
+        }
+        fetch.appIn.flip();
+        fetch.feed.buf = fetch.appIn;
+        try {
+            while (!fetch.done && fetch.appIn.hasRemaining()) {
+                int n;
+                try {
+                    n = fetch.recordedInput.read(scratch, 0,
+                            Math.min(scratch.length, fetch.appIn.remaining()));
+                } catch (RecorderLengthExceededException e) {
+                    truncate(fetch, LENGTH_TRUNC, e);
+                    break;
+                } catch (RecorderTimeoutException e) {
+                    truncate(fetch, TIMER_TRUNC, e);
+                    break;
+                }
+                if (n <= 0) {
+                    break;
+                }
+                fetch.received(scratch, 0, n);
+                if (fetch.isComplete()) {
+                    finish(fetch, null);
+                }
+            }
+        } finally {
+            if (fetch.appIn != null) {
+                fetch.appIn.compact();
+            }
+        }
+        return true;
+    }
+
+    protected void truncate(AsyncFetch fetch, String annotation, IOException e) {
+        if (fetch.response != null) {
+            fetch.truncation = annotation;
+            finish(fetch, null);
+        } else {
+            finish(fetch, e);
+        }
+    }
+
+    protected void checkTimeouts(long now) {
+        List<AsyncFetch> expired = new ArrayList<AsyncFetch>();
+        for (AsyncFetch fetch : active) {
+            if (now >= fetch.deadline 
+                    || (fetch.soTimeoutMs > 0 
+                            && now - fetch.lastActivity >= fetch.soTimeoutMs)) {
+                expired.add(fetch);
+            }
+        }
+        for (AsyncFetch fetch : expired) {
+            if (now >= fetch.deadline) {
+                truncate(fetch, TIMER_TRUNC, new SocketTimeoutException(
+                        "fetch timeout exceeded before response"));
+            } else {
+                finish(fetch, new SocketTimeoutException(fetch.connected 
+                        ? "Read timed out" : "connect timed out"));
+            }
+        }
+    }
+
+    /**
+     * End a fetch, closing its connection, and resume its CrawlURI.
+     * 
+     * @param failure exception ending the fetch early, or null
+     */
+    protected void finish(AsyncFetch fetch, Exception failure) {
+        if (fetch.done) {
+            return;
+        }
+        fetch.failure = failure;
+        fetch.completedTime = System.currentTimeMillis();
+        active.remove(fetch);
+        if (fetch.key != null) {
+            fetch.key.cancel();
+        }
+        if (fetch.channel != null) {
+            try {
+                fetch.channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "problem closing connection", e);
+            }
+        }
+        fetch.releaseBuffers();
+        if (failure == null) {
+            fetchesCompleted.incrementAndGet();
+        } else {
+            fetchesFailed.incrementAndGet();
+        }
+        fetch.done = true;
+        fetch.curi.resume();
+    }
+
+    public int getInFlightCount() {
+        return fetches.size();
+    }
+
+    public long getFetchesCompleted() {
+        return fetchesCompleted.get();
+    }
+
+    public long getFetchesFailed() {
+        return fetchesFailed.get();
+    }
+}
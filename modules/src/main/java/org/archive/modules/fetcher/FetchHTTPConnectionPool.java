@@ -0,0 +1,390 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Lookup;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.DefaultHttpClientConnectionOperator;
+import org.apache.http.protocol.HttpContext;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.FetchHTTPRequest.RecordingHttpClientConnection;
+
+/**
+ * Idle persistent HTTP connections, kept between fetches from the same
+ * server, keyed by server (host:port) and proxy settings.
+ *
+ * <p>A connection is only returned here by a fetch which read its
+ * response exactly to the end of the message, so that the next
+ * response read from it is recorded from its first byte. Each idle
+ * connection expires after the server's keep-alive timeout or the
+ * configured idle timeout, whichever is shorter -- so connections of
+ * queues snoozed longer than that are closed rather than reused.
+ * Expired connections are closed as encountered, and by a sweep
+ * performed (at most once a second) as connections are released.
+ */
+public class FetchHTTPConnectionPool {
+    private static final Logger logger =
+        Logger.getLogger(FetchHTTPConnectionPool.class.getName());
+
+    protected static final long SWEEP_INTERVAL_MS = 1000;
+
+    /** an idle connection */
+    protected static class Idle {
+        final HttpRoute route;
+        final RecordingHttpClientConnection conn;
+        final long expires;
+        Idle(HttpRoute route, RecordingHttpClientConnection conn, long expires) {
+            this.route = route;
+            this.conn = conn;
+            this.expires = expires;
+        }
+    }
+
+    /** idle connections of one server, most recently released first */
+    protected static class ServerIdles {
+        final LinkedList<Idle> idles = new LinkedList<Idle>();
+        /** set when removed from map; no longer to be added to */
+        boolean retired = false;
+    }
+
+    protected Map<String,ServerIdles> idlesByServer =
+        new ConcurrentHashMap<String,ServerIdles>();
+
+    protected AtomicLong idleCount = new AtomicLong();
+    protected AtomicLong connectionsOpened = new AtomicLong();
+    protected AtomicLong connectionsReused = new AtomicLong();
+    protected AtomicLong connectionsExpired = new AtomicLong();
+    protected volatile long lastSweep = System.currentTimeMillis();
+
+    /**
+     * Pool key for the given server and proxy settings.
+     */
+    public static String keyFor(String serverKey, String proxy) {
+        return (proxy == null) ? serverKey : serverKey + "|" + proxy;
+    }
+
+    /**
+     * Take an idle connection for the given route, if one is available
+     * and still usable; expired or unusable connections encountered are
+     * closed.
+     *
+     * @return open connection, ready to be bound to a new fetch, or null
+     */
+    public RecordingHttpClientConnection lease(String key, HttpRoute route) {
+        ServerIdles server = idlesByServer.get(key);
+        if (server == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        while (true) {
+            Idle found = null;
+            synchronized (server) {
+                for (Iterator<Idle> iter = server.idles.iterator(); iter.hasNext(); ) {
+                    Idle idle = iter.next();
+                    if (idle.expires <= now) {
+                        iter.remove();
+                        idleCount.decrementAndGet();
+                        connectionsExpired.incrementAndGet();
+                        shutdown(idle.conn);
+                    } else if (found == null && idle.route.equals(route)) {
+                        iter.remove();
+                        idleCount.decrementAndGet();
+                        found = idle;
+                    }
+                }
+            }
+            if (found == null) {
+                return null;
+            }
+            // check outside lock: involves a (brief) socket read
+            if (found.conn.isReusable()) {
+                connectionsReused.incrementAndGet();
+                return found.conn;
+            }
+            shutdown(found.conn);
+        }
+    }
+
+    /**
+     * Keep the given open connection, at most maxIdle per server.
+     */
+    public void release(String key, HttpRoute route,
+            RecordingHttpClientConnection conn, long validMs, int maxIdle) {
+        long now = System.currentTimeMillis();
+        Idle idle = new Idle(route, conn, now + validMs);
+        while (true) {
+            ServerIdles server = idlesByServer.get(key);
+            if (server == null) {
+                server = new ServerIdles();
+                ServerIdles prior = idlesByServer.putIfAbsent(key, server);
+                if (prior != null) {
+                    server = prior;
+                }
+            }
+            synchronized (server) {
+                if (server.retired) {
+                    // lost race with sweep; retry with fresh entry
+                    continue;
+                }
+                server.idles.addFirst(idle);
+                idleCount.incrementAndGet();
+                while (server.idles.size() > Math.max(maxIdle, 0)) {
+                    shutdown(server.idles.removeLast().conn);
+                    idleCount.decrementAndGet();
+                }
+            }
+            break;
+        }
+        if (now - lastSweep > SWEEP_INTERVAL_MS) {
+            lastSweep = now;
+            sweep(now);
+        }
+    }
+
+    /**
+     * Close all expired idle connections, and forget servers with none.
+     */
+    public void sweep(long now) {
+        for (Map.Entry<String,ServerIdles> entry : idlesByServer.entrySet()) {
+            ServerIdles server = entry.getValue();
+            synchronized (server) {
+                for (Iterator<Idle> iter = server.idles.iterator(); iter.hasNext(); ) {
+                    Idle idle = iter.next();
+                    if (idle.expires <= now) {
+                        iter.remove();
+                        idleCount.decrementAndGet();
+                        connectionsExpired.incrementAndGet();
+                        shutdown(idle.conn);
+                    }
+                }
+                if (server.idles.isEmpty()) {
+                    server.retired = true;
+                    idlesByServer.remove(entry.getKey(), server);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all idle connections.
+     */
+    public void shutdown() {
+        sweep(Long.MAX_VALUE);
+    }
+
+    protected void shutdown(HttpClientConnection conn) {
+        try {
+            // not close(): that would also close the current thread's
+            // Recorder, which belongs to an unrelated fetch
+            conn.shutdown();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "problem closing idle connection", e);
+        }
+    }
+
+    public long getIdleCount() {
+        return idleCount.get();
+    }
+
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    public long getConnectionsExpired() {
+        return connectionsExpired.get();
+    }
+
+    /**
+     * Connection manager for one FetchHTTPRequest, taking connections
+     * from and returning them to the shared pool. Stands in the place
+     * of the BasicHttpClientConnectionManager used when connections are
+     * not pooled.
+     *
+     * <p>Since FetchHTTP reads response bodies through its Recorder
+     * rather than through HttpClient, the leased connection is only
+     * returned to the pool by {@link #finish(boolean, long, int)} at the
+     * end of the fetch, not when HttpClient considers it released.
+     */
+    public static class Manager implements HttpClientConnectionManager {
+        protected final FetchHTTPConnectionPool pool;
+        protected final String key;
+        protected final CrawlURI curi;
+        protected final DefaultHttpClientConnectionOperator connectionOperator;
+        protected final HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connFactory;
+        protected volatile SocketConfig socketConfig = SocketConfig.DEFAULT;
+        protected BandwidthGovernor.Throttle throttle;
+
+        protected RecordingHttpClientConnection conn;
+        protected HttpRoute route;
+
+        public Manager(FetchHTTPConnectionPool pool, String key, CrawlURI curi,
+                Lookup<ConnectionSocketFactory> socketFactoryRegistry,
+                HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connFactory,
+                DnsResolver dnsResolver) {
+            this.pool = pool;
+            this.key = key;
+            this.curi = curi;
+            this.connFactory = connFactory;
+            this.connectionOperator = new DefaultHttpClientConnectionOperator(
+                    socketFactoryRegistry, null, dnsResolver);
+        }
+
+        public void setSocketConfig(SocketConfig socketConfig) {
+            this.socketConfig = socketConfig;
+        }
+
+        public void setThrottle(BandwidthGovernor.Throttle throttle) {
+            this.throttle = throttle;
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(final HttpRoute route,
+                final Object state) {
+            return new ConnectionRequest() {
+                @Override
+                public boolean cancel() {
+                    return false;
+                }
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit) {
+                    return getConnection(route);
+                }
+            };
+        }
+
+        protected synchronized HttpClientConnection getConnection(HttpRoute route) {
+            if (conn != null) {
+                // as from an internal retry; earlier connection not reusable
+                pool.shutdown(conn);
+            }
+            this.route = route;
+            conn = pool.lease(key, route);
+            if (conn != null) {
+                try {
+                    conn.setThrottle(throttle);
+                    conn.bindForReuse(curi);
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "pooled connection unusable", e);
+                    pool.shutdown(conn);
+                    conn = null;
+                }
+            }
+            if (conn == null) {
+                conn = (RecordingHttpClientConnection) connFactory.create(
+                        route, ConnectionConfig.DEFAULT);
+                pool.connectionsOpened.incrementAndGet();
+            }
+            return conn;
+        }
+
+        @Override
+        public synchronized void releaseConnection(HttpClientConnection released,
+                Object newState, long validDuration, TimeUnit timeUnit) {
+            // HttpClient is done with it; if still open, pooling awaits
+            // FetchHTTP's reading to end of content
+            if (released == conn && !released.isOpen()) {
+                conn = null;
+            }
+        }
+
+        /**
+         * Called at end of fetch: return connection to the pool, if
+         * reusable, or close it.
+         *
+         * @param reusable whether the response was read exactly to its
+         * end and the server permits keep-alive
+         * @param validMs how long the connection may be kept idle
+         * @param maxIdle maximum idle connections to keep for the server
+         */
+        public synchronized void finish(boolean reusable, long validMs, int maxIdle) {
+            if (conn == null) {
+                return;
+            }
+            if (reusable && validMs > 0 && conn.isOpen()) {
+                pool.release(key, route, conn, validMs, maxIdle);
+            } else {
+                pool.shutdown(conn);
+            }
+            conn = null;
+        }
+
+        @Override
+        public void connect(HttpClientConnection conn, HttpRoute route,
+                int connectTimeout, HttpContext context) throws IOException {
+            HttpHost host = (route.getProxyHost() != null)
+                    ? route.getProxyHost()
+                    : route.getTargetHost();
+            InetSocketAddress localAddress = route.getLocalSocketAddress();
+            connectionOperator.connect((ManagedHttpClientConnection) conn,
+                    host, localAddress, connectTimeout, socketConfig, context);
+        }
+
+        @Override
+        public void upgrade(HttpClientConnection conn, HttpRoute route,
+                HttpContext context) throws IOException {
+            connectionOperator.upgrade((ManagedHttpClientConnection) conn,
+                    route.getTargetHost(), context);
+        }
+
+        @Override
+        public void routeComplete(HttpClientConnection conn, HttpRoute route,
+                HttpContext context) throws IOException {
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime, TimeUnit tunit) {
+            // idle connections are the shared pool's concern
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+            // idle connections are the shared pool's concern
+        }
+
+        @Override
+        public synchronized void shutdown() {
+            finish(false, 0, 0);
+        }
+    }
+}
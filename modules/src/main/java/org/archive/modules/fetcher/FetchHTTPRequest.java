@@ -47,6 +47,8 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 
 import org.apache.commons.httpclient.URIException;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
@@ -70,6 +72,9 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.AbstractExecutionAwareRequest;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.RequestAddCookies;
+import org.apache.http.client.protocol.RequestClientConnControl;
+import org.apache.http.client.protocol.ResponseProcessCookies;
 import org.apache.http.config.ConnectionConfig;
 import org.apache.http.config.MessageConstraints;
 import org.apache.http.config.Registry;
@@ -89,18 +94,29 @@ import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.DefaultBHttpClientConnection;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.CookieSpecRegistries;
 import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.http.impl.conn.DefaultHttpResponseParserFactory;
 import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
 import org.apache.http.impl.io.DefaultHttpRequestWriterFactory;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
 import org.apache.http.io.HttpMessageParserFactory;
 import org.apache.http.io.HttpMessageWriterFactory;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.util.Args;
 import org.archive.modules.CoreAttributeConstants;
@@ -179,6 +195,15 @@ public class FetchHTTPRequest {
     // make this a member variable so it doesn't get gc'd prematurely
     protected HttpClientConnectionManager connMan;
 
+    protected String userAgent;
+    protected CookieStore cookieStore;
+    protected HttpRequestInterceptor customHeadersInterceptor;
+    /** shared bandwidth limits on reading the response, or null */
+    protected BandwidthGovernor.Throttle throttle;
+
+    /** whether connection comes from, and may return to, the pool */
+    protected boolean pooled;
+
     public FetchHTTPRequest(FetchHTTP fetcher, CrawlURI curi) throws URIException {
         this.fetcher = fetcher;
         this.curi = curi;
@@ -188,6 +213,10 @@ public class FetchHTTPRequest {
         
         this.httpClientContext = new HttpClientContext();
         this.requestConfigBuilder = RequestConfig.custom();
+        this.pooled = fetcher.getUsePooledConnections();
+        if (fetcher.getBandwidthGovernor() != null) {
+            this.throttle = fetcher.getBandwidthGovernor().throttleFor(curi);
+        }
 
         ProtocolVersion httpVersion = fetcher.getConfiguredHttpVersion();
 
@@ -352,7 +381,7 @@ public class FetchHTTPRequest {
             request.setHeader(HttpHeaders.RANGE, "bytes=0-" + rangeEnd);
         }
 
-        if (fetcher.getSendConnectionClose()) {
+        if (fetcher.getSendConnectionClose() && !pooled) {
             request.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
         }
         
@@ -396,7 +425,7 @@ public class FetchHTTPRequest {
          * anything else (this could just as well belong in
          * configureHttpClientBuilder())
          */
-        httpClientBuilder.addInterceptorLast(new HttpRequestInterceptor() {
+        customHeadersInterceptor = new HttpRequestInterceptor() {
             @Override
             public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
                 @SuppressWarnings("unchecked")
@@ -407,7 +436,8 @@ public class FetchHTTPRequest {
                     }
                 }
             }
-        });
+        };
+        httpClientBuilder.addInterceptorLast(customHeadersInterceptor);
 
     }
 
@@ -584,13 +614,13 @@ public class FetchHTTPRequest {
     }
     
     protected void configureHttpClientBuilder() throws URIException {
-        String userAgent = curi.getUserAgent();
+        userAgent = curi.getUserAgent();
         if (userAgent == null) {
             userAgent = fetcher.getUserAgentProvider().getUserAgent();
         }
         httpClientBuilder.setUserAgent(userAgent);
 
-        CookieStore cookieStore = fetcher.getCookieStore().cookieStoreFor(curi);
+        cookieStore = fetcher.getCookieStore().cookieStoreFor(curi);
         httpClientBuilder.setDefaultCookieStore(cookieStore);
         
         connMan = buildConnectionManager();
@@ -652,32 +682,106 @@ public class FetchHTTPRequest {
                     charencoder.onMalformedInput(malformedInputAction);
                     charencoder.onUnmappableCharacter(unmappableInputAction);
                 }
-                return new RecordingHttpClientConnection(DEFAULT_BUFSIZE,
-                        DEFAULT_BUFSIZE, chardecoder, charencoder,
+                RecordingHttpClientConnection conn = new RecordingHttpClientConnection(
+                        DEFAULT_BUFSIZE, DEFAULT_BUFSIZE, chardecoder, charencoder,
                         cconfig.getMessageConstraints(), null, null,
                         DefaultHttpRequestWriterFactory.INSTANCE,
-                        DefaultHttpResponseParserFactory.INSTANCE, proxyHost, curi);
+                        DefaultHttpResponseParserFactory.INSTANCE, proxyHost, 
+                        curi, pooled);
+                conn.setThrottle(throttle);
+                return conn;
             }
         };
-        BasicHttpClientConnectionManager connMan = new BasicHttpClientConnectionManager(
-                socketFactoryRegistry, connFactory, null, dnsResolver);
         
         SocketConfig.Builder socketConfigBuilder = SocketConfig.custom();
         socketConfigBuilder.setSoTimeout(fetcher.getSoTimeoutMs());
+
+        if (pooled) {
+            FetchHTTPConnectionPool.Manager connMan = new FetchHTTPConnectionPool.Manager(
+                    fetcher.getConnectionPool(), getPoolKey(), curi,
+                    socketFactoryRegistry, connFactory, dnsResolver);
+            connMan.setSocketConfig(socketConfigBuilder.build());
+            connMan.setThrottle(throttle);
+            return connMan;
+        }
+
+        BasicHttpClientConnectionManager connMan = new BasicHttpClientConnectionManager(
+                socketFactoryRegistry, connFactory, null, dnsResolver);
         connMan.setSocketConfig(socketConfigBuilder.build());
         
         return connMan;
     }
+
+    /**
+     * @return key of pooled connections usable for this request: the
+     * CrawlServer key (host:port) plus any proxy in use
+     */
+    protected String getPoolKey() {
+        String proxy = null;
+        if (useSocksProxy) {
+            proxy = "socks:" + socksProxyHost + ":" + socksProxyPort;
+        } else if (proxyHost != null) {
+            proxy = proxyHost.toHostString();
+        }
+        return FetchHTTPConnectionPool.keyFor(FetchHTTP.getServerKey(curi), proxy);
+    }
+
+    /**
+     * @return whether the connection of this (pooled) request may be kept
+     * open after the given response, which must then be read only to the
+     * end of the message rather than to end-of-stream
+     */
+    public boolean isKeepAlive(HttpResponse response) {
+        return pooled && response != null 
+                && DefaultConnectionReuseStrategy.INSTANCE.keepAlive(
+                        response, httpClientContext);
+    }
+
+    /**
+     * Finish with the connection, at end of fetch. A pooled connection is
+     * kept for reuse if the response was read exactly to its end, and the
+     * server permits; otherwise it is closed. Does nothing for unpooled 
+     * connections. 
+     * 
+     * @param response response received, or null
+     * @param readToEndOfMessage whether the response was read exactly to
+     * its end
+     */
+    public void releaseConnection(HttpResponse response, 
+            boolean readToEndOfMessage) {
+        if (!(connMan instanceof FetchHTTPConnectionPool.Manager)) {
+            return;
+        }
+        boolean reusable = readToEndOfMessage && !request.isAborted()
+                && isKeepAlive(response);
+        long validMs = fetcher.getPooledConnectionIdleTimeoutMs();
+        if (reusable) {
+            long keepAliveMs = DefaultConnectionKeepAliveStrategy.INSTANCE
+                    .getKeepAliveDuration(response, httpClientContext);
+            if (keepAliveMs > 0) {
+                validMs = Math.min(validMs, keepAliveMs);
+            }
+        }
+        ((FetchHTTPConnectionPool.Manager) connMan).finish(reusable, validMs,
+                fetcher.getMaxIdleConnectionsPerServer());
+    }
     
     protected static class RecordingHttpClientConnection extends DefaultBHttpClientConnection
     implements ManagedHttpClientConnection {
 
         private static final AtomicLong COUNTER = new AtomicLong();
         private String id;
-        private final CrawlURI curi;
+        private CrawlURI curi;
         private final boolean isProxyConnect;
         private boolean shouldWrapInput = true;
         private boolean shouldWrapOutput = true;
+        /** 
+         * whether the connection may outlive the fetch, so the socket 
+         * must not be closed along with the Recorder
+         */
+        private final boolean pooled;
+        /** shared bandwidth limits on reading, or null */
+        private BandwidthGovernor.Throttle throttle;
 
         public RecordingHttpClientConnection(
                 final int buffersize,
@@ -690,11 +794,29 @@ public class FetchHTTPRequest {
                 final HttpMessageWriterFactory<HttpRequest> requestWriterFactory,
                 final HttpMessageParserFactory<HttpResponse> responseParserFactory,
                 final HttpHost proxy, CrawlURI curi) {
+            this(buffersize, fragmentSizeHint, chardecoder, charencoder,
+                    constraints, incomingContentStrategy, outgoingContentStrategy,
+                    requestWriterFactory, responseParserFactory, proxy, curi, 
+                    false);
+        }
+
+        public RecordingHttpClientConnection(
+                final int buffersize,
+                final int fragmentSizeHint,
+                final CharsetDecoder chardecoder,
+                final CharsetEncoder charencoder,
+                final MessageConstraints constraints,
+                final ContentLengthStrategy incomingContentStrategy,
+                final ContentLengthStrategy outgoingContentStrategy,
+                final HttpMessageWriterFactory<HttpRequest> requestWriterFactory,
+                final HttpMessageParserFactory<HttpResponse> responseParserFactory,
+                final HttpHost proxy, CrawlURI curi, boolean pooled) {
             super(buffersize, fragmentSizeHint, chardecoder, charencoder,
                     constraints, incomingContentStrategy, outgoingContentStrategy,
                     requestWriterFactory, responseParserFactory);
             id = "recording-http-connection-" + Long.toString(COUNTER.getAndIncrement());
             this.curi = curi;
+            this.pooled = pooled;
             // if we send HTTPS over a proxy, then the first connection should not be recorded,
             // as it is only the "CONNECT" to open the SSL-tunnel for the actual connection
             isProxyConnect = (proxy != null && "https".equalsIgnoreCase(curi.getBaseURI().getScheme()));
@@ -703,13 +825,28 @@ public class FetchHTTPRequest {
             }
         }
 
+        /**
+         * Set the Throttle charged for bytes read, from the next binding 
+         * of the socket (as by {@link #bindForReuse(CrawlURI)}) on.
+         */
+        protected void setThrottle(BandwidthGovernor.Throttle throttle) {
+            this.throttle = throttle;
+        }
+
         @Override
         protected InputStream getSocketInputStream(final Socket socket) throws IOException {
             curi.setServerIP(socket.getInetAddress().getHostAddress());
             Recorder recorder = Recorder.getHttpRecorder();
 
             if (shouldWrapInput && recorder != null) { // means: !(isSecure() && isProxied()) {
-                return recorder.inputWrap(super.getSocketInputStream(socket));
+                InputStream in = super.getSocketInputStream(socket);
+                if (throttle != null) {
+                    in = throttle.wrap(in);
+                }
+                if (pooled) {
+                    return recorder.inputWrap(new CloseShieldInputStream(in));
+                }
+                return recorder.inputWrap(in);
             } else {
                 if (isProxyConnect) {
                     shouldWrapInput = true;
@@ -723,6 +860,10 @@ public class FetchHTTPRequest {
             Recorder recorder = Recorder.getHttpRecorder();
 
             if (shouldWrapOutput && recorder != null) { // means: !(isSecure() && isProxied()) {
+                if (pooled) {
+                    return recorder.outputWrap(new CloseShieldOutputStream(
+                            super.getSocketOutputStream(socket)));
+                }
                 return recorder.outputWrap(super.getSocketOutputStream(socket));
             } else {
                 // for the next connection we want to record the contents
@@ -749,6 +890,42 @@ public class FetchHTTPRequest {
             }
         }
 
+        /**
+         * Check whether this idle, open connection may carry another
+         * request: the server has not closed it, nor sent anything
+         * unrequested. Leaves the connection reading and writing its 
+         * socket directly, unrecorded.
+         */
+        protected boolean isReusable() {
+            Socket socket = getSocket();
+            if (socket == null || !isOpen()) {
+                return false;
+            }
+            SessionInputBufferImpl inBuffer = (SessionInputBufferImpl) getSessionInputBuffer();
+            try {
+                inBuffer.bind(super.getSocketInputStream(socket));
+                ((SessionOutputBufferImpl) getSessionOutputBuffer()).bind(
+                        super.getSocketOutputStream(socket));
+            } catch (IOException e) {
+                return false;
+            }
+            return !isStale() && inBuffer.length() == 0;
+        }
+
+        /**
+         * Prepare this pooled connection, kept from an earlier fetch, to
+         * carry a request for the given CrawlURI: recording through the
+         * current thread's Recorder from the first byte sent. 
+         */
+        protected void bindForReuse(CrawlURI curi) throws IOException {
+            this.curi = curi;
+            Socket socket = getSocket();
+            ((SessionInputBufferImpl) getSessionInputBuffer()).bind(
+                    getSocketInputStream(socket));
+            ((SessionOutputBufferImpl) getSessionOutputBuffer()).bind(
+                    getSocketOutputStream(socket));
+        }
+
         @Override
         public String getId() {
             return id;
@@ -822,4 +999,47 @@ public class FetchHTTPRequest {
         
         return httpClient.execute(targetHost, request, httpClientContext);
     }
+
+    /**
+     * Complete the request for sending other than through HttpClient, as
+     * by the {@link FetchHTTPAsyncEngine}: add the headers HttpClient 
+     * would (Host, User-Agent, cookies, custom headers), on a connection
+     * always closed after the response. Only for direct (unproxied) 
+     * requests.
+     * 
+     * @return request ready to be written
+     */
+    public HttpRequest prepareForAsync() throws IOException, HttpException {
+        request.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+
+        httpClientContext.setRequestConfig(requestConfigBuilder.build());
+        httpClientContext.setAttribute(HttpClientContext.HTTP_ROUTE, 
+                new HttpRoute(targetHost, null, 
+                        FetchHTTP.HTTPS_SCHEME.equals(targetHost.getSchemeName())));
+        httpClientContext.setAttribute(HttpCoreContext.HTTP_TARGET_HOST, targetHost);
+        httpClientContext.setAttribute(HttpClientContext.COOKIE_STORE, cookieStore);
+        httpClientContext.setAttribute(HttpClientContext.COOKIESPEC_REGISTRY,
+                CookieSpecRegistries.createDefault());
+
+        // as HttpClientBuilder would assemble for this request
+        HttpProcessor processor = new ImmutableHttpProcessor(
+                new RequestContent(), 
+                new RequestTargetHost(),
+                new RequestClientConnControl(), 
+                new RequestUserAgent(userAgent),
+                new RequestAddCookies(),
+                customHeadersInterceptor);
+        processor.process(request, httpClientContext);
+        return request;
+    }
+
+    /**
+     * Process a response received for a request made ready by 
+     * {@link #prepareForAsync()}, as HttpClient would: take any cookies
+     * set.
+     */
+    public void processAsyncResponse(HttpResponse response) 
+            throws IOException, HttpException {
+        new ResponseProcessCookies().process(response, httpClientContext);
+    }
 }
@@ -27,6 +27,7 @@ import org.archive.net.ClientSFTP;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
 import org.archive.util.Recorder;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftp.LsEntry;
@@ -175,6 +176,21 @@ public class FetchSFTP extends Processor {
 		kp.put("maxFetchKBSec", rate);
 	}
 
+	protected BandwidthGovernor bandwidthGovernor;
+
+	public BandwidthGovernor getBandwidthGovernor() {
+		return bandwidthGovernor;
+	}
+
+	/**
+	 * Shared limits on the rate content is read, across concurrent 
+	 * fetches; if none is declared, only maxFetchKBSec applies.
+	 */
+	@Autowired(required = false)
+	public void setBandwidthGovernor(BandwidthGovernor bandwidthGovernor) {
+		this.bandwidthGovernor = bandwidthGovernor;
+	}
+
 	{
 		setTimeoutSeconds(20 * 60); // 20 minutes
 	}
@@ -410,6 +426,12 @@ public class FetchSFTP extends Processor {
 		String str = new String(paramCrawlURI.getUURI().getPath());
 
 		InputStream inputStream = paramChannelSftp.get(str);
+		if (bandwidthGovernor != null) {
+			BandwidthGovernor.Throttle throttle = bandwidthGovernor.throttleFor(paramCrawlURI);
+			if (throttle != null) {
+				inputStream = throttle.wrap(inputStream);
+			}
+		}
 
 		paramCrawlURI.setRecorder(paramHttpRecorder);
 		paramHttpRecorder.inputWrap(inputStream);
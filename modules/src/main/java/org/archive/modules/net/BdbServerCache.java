@@ -54,8 +54,13 @@ implements Lifecycle, Checkpointable {
             return;
         }
         try {
+            if (isCheckpointRecovery && LegacyServerMigration.isNeeded(bdb)) {
+                // checkpoint predates robots.txt interning
+                LegacyServerMigration.migrate(bdb);
+            }
             this.servers = bdb.getObjectCache("servers", isCheckpointRecovery, CrawlServer.class, CrawlServer.class);
             this.hosts = bdb.getObjectCache("hosts", isCheckpointRecovery, CrawlHost.class, CrawlHost.class);
+            this.robots = bdb.getObjectCache("robots", isCheckpointRecovery, Robotstxt.class, Robotstxt.class);
         } catch (DatabaseException e) {
             throw new IllegalStateException(e);
         }
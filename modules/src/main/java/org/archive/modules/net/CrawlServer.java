@@ -42,6 +42,7 @@ import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
 import org.archive.util.IdentityCacheable;
 import org.archive.util.ObjectIdentityCache;
+import org.archive.util.Supplier;
 
 /**
  * Represents a single remote "server".
@@ -54,7 +55,7 @@ import org.archive.util.ObjectIdentityCache;
 public class CrawlServer implements Serializable, FetchStats.HasFetchStats, IdentityCacheable {
     private static final Logger logger =
         Logger.getLogger(CrawlServer.class.getName());
-    private static final long serialVersionUID = 3L;
+    private static final long serialVersionUID = 4L;
 
     public static final long ROBOTS_NOT_FETCHED = -1;
     /** only check if robots-fetch is perhaps superfluous 
@@ -63,7 +64,10 @@ public class CrawlServer implements Serializable, FetchStats.HasFetchStats, Iden
 
     private String server; // actually, host+port in the https case
     private int port;
-    protected Robotstxt robotstxt;
+    /** robots rules, held by reference: persisted only as robotsDigest,
+     * and shared with other servers with identical robots.txt */
+    protected transient Robotstxt robotstxt;
+    protected String robotsDigest;
     protected long robotsFetched = ROBOTS_NOT_FETCHED;
     protected boolean validRobots = false;
     protected FetchStats substats = new FetchStats();
@@ -124,7 +128,31 @@ public class CrawlServer implements Serializable, FetchStats.HasFetchStats, Iden
     }
     
     public Robotstxt getRobotstxt() {
-        return robotstxt;
+        Robotstxt r = robotstxt;
+        if (r == null && robotsDigest != null) {
+            // reloaded without its transient rules; find shared copy
+            if (robotsDigest.equals(Robotstxt.NO_ROBOTS.getKey())) {
+                r = Robotstxt.NO_ROBOTS;
+            } else if (serverCache != null) {
+                r = serverCache.getRobotstxt(robotsDigest);
+            }
+            robotstxt = r;
+        }
+        return r;
+    }
+
+    protected void setRobotstxt(Robotstxt robotstxt) {
+        this.robotstxt = robotstxt;
+        this.robotsDigest = robotstxt.getKey();
+    }
+
+    transient private ServerCache serverCache;
+    /**
+     * Set the ServerCache holding this server, through which robots.txt
+     * rules are interned.
+     */
+    public void setServerCache(ServerCache serverCache) {
+        this.serverCache = serverCache;
     }
 
     /**
@@ -167,7 +195,7 @@ public class CrawlServer implements Serializable, FetchStats.HasFetchStats, Iden
 
         int fetchStatus = curi.getFetchStatus();
         if (fetchStatus < 200 || fetchStatus >= 300) {
-            robotstxt = Robotstxt.NO_ROBOTS;
+            setRobotstxt(Robotstxt.NO_ROBOTS);
             validRobots = true;
             return;
         }
@@ -177,10 +205,24 @@ public class CrawlServer implements Serializable, FetchStats.HasFetchStats, Iden
             contentBodyStream = curi.getRecorder().getContentReplayInputStream();
 
             InputStreamReader reader = new InputStreamReader(contentBodyStream);
-            robotstxt = new Robotstxt(reader);
+            final CharSequence content = Robotstxt.readContent(reader);
+            String digest = Robotstxt.digestOf(content);
+            if (digest.equals(Robotstxt.NO_ROBOTS.getKey())) {
+                setRobotstxt(Robotstxt.NO_ROBOTS);
+            } else if (serverCache != null) {
+                // parse only if no other server has served the same
+                setRobotstxt(serverCache.internRobotstxt(digest,
+                        new Supplier<Robotstxt>() {
+                            public Robotstxt get() {
+                                return new Robotstxt(content);
+                            }
+                        }));
+            } else {
+                setRobotstxt(new Robotstxt(content));
+            }
             validRobots = true;
         } catch (IOException e) {
-            robotstxt = Robotstxt.NO_ROBOTS;
+            setRobotstxt(Robotstxt.NO_ROBOTS);
             logger.log(Level.WARNING,"problem reading robots.txt for "+curi,e);
             validRobots = true;
             curi.getNonFatalFailures().add(e);
@@ -0,0 +1,204 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.net;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.archive.bdb.AutoKryo;
+import org.archive.bdb.BdbModule;
+import org.archive.bdb.KryoBinding;
+import org.archive.modules.fetcher.FetchStats;
+
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.DatabaseException;
+import com.sleepycat.je.OperationStatus;
+
+/**
+ * Rewrites the "servers" database of a checkpoint taken before robots.txt
+ * rules were interned by content digest.
+ * 
+ * <p>Such checkpoints stored each CrawlServer with its Robotstxt inline,
+ * and a Robotstxt without its digest. Kryo's FieldSerializer writes fields
+ * in name order with no version, so those entries cannot be read as the
+ * current classes. They are read here through classes with the old
+ * persisted fields, registered in the same order as the old classes were
+ * so that nested class IDs agree, and written back in the current form.
+ * A checkpoint is recognized as old by having a "servers" database but no
+ * "robots" database.
+ * 
+ * <p>The content of an old Robotstxt is unknown, so its digest cannot be
+ * computed: each is stored under a key of {@link #LEGACY_KEY_PREFIX} plus
+ * its server's name, and is shared with no other server until robots.txt
+ * is next fetched.
+ */
+public class LegacyServerMigration {
+    private static final Logger logger =
+        Logger.getLogger(LegacyServerMigration.class.getName());
+
+    public static final String SERVERS_DB = "servers";
+    public static final String ROBOTS_DB = "robots";
+    public static final String LEGACY_KEY_PREFIX = "legacy:";
+
+    /**
+     * CrawlServer's persisted fields before robots.txt interning. Names
+     * and declared types must not change: they fix the stored layout.
+     */
+    public static class LegacyCrawlServer {
+        protected int consecutiveConnectionErrors;
+        protected int port;
+        protected long robotsFetched;
+        // declared as Robotstxt, read as LegacyRobotstxt
+        protected Object robotstxt;
+        protected String server;
+        protected FetchStats substats;
+        protected boolean validRobots;
+
+        /** mirrors CrawlServer.autoregisterTo */
+        public static void autoregisterTo(AutoKryo kryo) {
+            kryo.register(LegacyCrawlServer.class);
+            kryo.autoregister(FetchStats.class); 
+            kryo.autoregister(LegacyRobotstxt.class);
+            kryo.setRegistrationOptional(true); 
+        }
+    }
+
+    /**
+     * Robotstxt's persisted fields before it carried its digest.
+     */
+    public static class LegacyRobotstxt {
+        protected LinkedList<String> namedUserAgents;
+        protected Map<String,RobotsDirectives> agentsToDirectives;
+        protected RobotsDirectives wildcardDirectives;
+        protected boolean hasErrors;
+
+        /** mirrors Robotstxt.autoregisterTo */
+        public static void autoregisterTo(AutoKryo kryo) {
+            kryo.register(LegacyRobotstxt.class);
+            kryo.autoregister(HashMap.class);
+            kryo.autoregister(LinkedList.class);
+            kryo.autoregister(RobotsDirectives.class);
+            kryo.setRegistrationOptional(true); 
+        }
+    }
+
+    /**
+     * @return whether the given (recovered) BdbModule holds servers
+     * stored before robots.txt interning
+     */
+    public static boolean isNeeded(BdbModule bdb) throws DatabaseException {
+        return bdb.hasDatabase(SERVERS_DB) && !bdb.hasDatabase(ROBOTS_DB);
+    }
+
+    /**
+     * Rewrite every server in the current form, moving its robots.txt
+     * rules to the robots database. Must run before either database is
+     * opened as an ObjectIdentityCache.
+     * 
+     * @return number of servers rewritten
+     */
+    public static long migrate(BdbModule bdb) throws DatabaseException {
+        BdbModule.BdbConfig config = new BdbModule.BdbConfig();
+        config.setAllowCreate(true);
+        Database servers = bdb.openDatabase(SERVERS_DB, config, true);
+        Database robots = bdb.openDatabase(ROBOTS_DB, config, true);
+        EntryBinding<String> keyBinding = 
+            TupleBinding.getPrimitiveBinding(String.class);
+        KryoBinding<LegacyCrawlServer> legacyBinding = 
+            new KryoBinding<LegacyCrawlServer>(LegacyCrawlServer.class);
+        KryoBinding<CrawlServer> serverBinding = 
+            new KryoBinding<CrawlServer>(CrawlServer.class);
+        KryoBinding<Robotstxt> robotsBinding = 
+            new KryoBinding<Robotstxt>(Robotstxt.class);
+
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry value = new DatabaseEntry();
+        long rewritten = 0;
+        Cursor cursor = servers.openCursor(null, null);
+        try {
+            while (cursor.getNext(key, value, null) == OperationStatus.SUCCESS) {
+                LegacyCrawlServer legacy = legacyBinding.entryToObject(value);
+                CrawlServer server = toCrawlServer(legacy);
+                Robotstxt rules = server.robotstxt;
+                if (rules != null && rules != Robotstxt.NO_ROBOTS) {
+                    DatabaseEntry robotsKey = new DatabaseEntry();
+                    keyBinding.objectToEntry(rules.getKey(), robotsKey);
+                    DatabaseEntry robotsValue = new DatabaseEntry();
+                    robotsBinding.objectToEntry(rules, robotsValue);
+                    robots.put(null, robotsKey, robotsValue);
+                }
+                serverBinding.objectToEntry(server, value);
+                cursor.putCurrent(value);
+                rewritten++;
+            }
+        } finally {
+            cursor.close();
+            bdb.closeDatabase(SERVERS_DB);
+            bdb.closeDatabase(ROBOTS_DB);
+        }
+        logger.info("rewrote " + rewritten 
+                + " servers stored before robots.txt interning");
+        return rewritten;
+    }
+
+    protected static CrawlServer toCrawlServer(LegacyCrawlServer legacy) {
+        CrawlServer server = new CrawlServer(legacy.server);
+        server.consecutiveConnectionErrors = legacy.consecutiveConnectionErrors;
+        server.robotsFetched = legacy.robotsFetched;
+        server.validRobots = legacy.validRobots;
+        if (legacy.substats != null) {
+            server.substats = legacy.substats;
+        }
+        LegacyRobotstxt rules = (LegacyRobotstxt) legacy.robotstxt;
+        if (rules != null) {
+            server.setRobotstxt(toRobotstxt(rules, legacy.server));
+        }
+        return server;
+    }
+
+    protected static Robotstxt toRobotstxt(LegacyRobotstxt legacy, 
+            String serverName) {
+        boolean empty = (legacy.namedUserAgents == null 
+                    || legacy.namedUserAgents.isEmpty())
+                && (legacy.agentsToDirectives == null 
+                    || legacy.agentsToDirectives.isEmpty())
+                && legacy.wildcardDirectives == null
+                && !legacy.hasErrors;
+        if (empty) {
+            return Robotstxt.NO_ROBOTS;
+        }
+        Robotstxt robotstxt = new Robotstxt();
+        if (legacy.namedUserAgents != null) {
+            robotstxt.namedUserAgents = legacy.namedUserAgents;
+        }
+        if (legacy.agentsToDirectives != null) {
+            robotstxt.agentsToDirectives = legacy.agentsToDirectives;
+        }
+        robotstxt.wildcardDirectives = legacy.wildcardDirectives;
+        robotstxt.hasErrors = legacy.hasErrors;
+        robotstxt.digest = LEGACY_KEY_PREFIX + serverName;
+        return robotstxt;
+    }
+}
@@ -28,6 +28,9 @@ import com.esotericsoftware.kryo.serialize.ReferenceFieldSerializer;
 /**
  * Represents the directives that apply to a user-agent (or set of
  * user-agents)
+ *
+ * <p>Paths may use '*' wildcards and a trailing '$' end anchor; the
+ * longest matching path wins, Allow winning ties. See RobotsMatcher.
  */
 public class RobotsDirectives implements Serializable {
     private static final long serialVersionUID = 5386542759286155383L;
@@ -37,24 +40,16 @@ public class RobotsDirectives implements Serializable {
     protected float crawlDelay = -1; 
     public transient boolean hasDirectives = false;
 
-    public boolean allows(String path) {
-        return !(longestPrefixLength(disallows, path) > longestPrefixLength(allows, path));
-    }
-
-    /**
-     * @param prefixSet
-     * @param str
-     * @return length of longest entry in {@code prefixSet} that prefixes {@code str}, or zero
-     *         if no entry prefixes {@code str}
-     */
-    protected int longestPrefixLength(ConcurrentSkipListSet<String> prefixSet,
-            String str) {
-        String possiblePrefix = prefixSet.floor(str);
-        if (possiblePrefix != null && str.startsWith(possiblePrefix)) {
-            return possiblePrefix.length();
-        } else {
-            return 0;
+    /** compiled form of allows/disallows; rebuilt after any change */
+    protected transient volatile RobotsMatcher matcher;
+
+    public boolean allows(String path) {
+        RobotsMatcher m = matcher;
+        if (m == null) {
+            m = new RobotsMatcher(allows, disallows);
+            matcher = m;
         }
+        return m.allows(path);
     }
 
     public void addDisallow(String path) {
@@ -65,11 +60,13 @@ public class RobotsDirectives implements Serializable {
             return;
         }
         disallows.add(path);
+        matcher = null;
     }
 
     public void addAllow(String path) {
         hasDirectives = true;
         allows.add(path);
+        matcher = null;
     }
 
     public void setCrawlDelay(float i) {
@@ -0,0 +1,186 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.net;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable compiled form of a set of robots.txt Allow and Disallow paths,
+ * answering whether a path is allowed with longest-match semantics: the
+ * matching rule with the longest path wins, Allow winning ties.
+ *
+ * <p>Rules are matched against the path (including any query-string) as
+ * prefixes, with '*' matching any run of characters and a trailing '$'
+ * anchoring the rule to the end of the path. Plain prefix rules are held
+ * in a character trie walked once per lookup; the (usually few) wildcard
+ * and anchored rules are tried longest-first, only while they could still
+ * beat the best prefix match.
+ */
+public class RobotsMatcher {
+
+    protected static final byte ALLOW = 1;
+    protected static final byte DISALLOW = 2;
+
+    /** trie node; children kept in parallel arrays sorted by char */
+    protected static class Node {
+        char[] chars = new char[0];
+        Node[] children = new Node[0];
+        /** ALLOW, DISALLOW, or 0 if no rule ends here */
+        byte rule;
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            return (i >= 0) ? children[i] : null;
+        }
+
+        Node addChild(char c) {
+            int i = Arrays.binarySearch(chars, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            int at = -i - 1;
+            char[] newChars = new char[chars.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(chars, 0, newChars, 0, at);
+            System.arraycopy(children, 0, newChildren, 0, at);
+            newChars[at] = c;
+            newChildren[at] = new Node();
+            System.arraycopy(chars, at, newChars, at + 1, chars.length - at);
+            System.arraycopy(children, at, newChildren, at + 1,
+                    children.length - at);
+            chars = newChars;
+            children = newChildren;
+            return newChildren[at];
+        }
+    }
+
+    /** a rule using '*' or '$' */
+    protected static class PatternRule {
+        final int length;
+        final boolean allow;
+        /** literal pieces between '*'s */
+        final String[] parts;
+        final boolean anchored;
+
+        PatternRule(String path, boolean allow) {
+            this.length = path.length();
+            this.allow = allow;
+            this.anchored = path.endsWith("$");
+            String body = anchored ? path.substring(0, path.length() - 1) : path;
+            this.parts = body.split("\\*", -1);
+        }
+
+        boolean matches(String path) {
+            if (!path.startsWith(parts[0])) {
+                return false;
+            }
+            int pos = parts[0].length();
+            int last = parts.length - 1;
+            for (int i = 1; i <= last; i++) {
+                if (anchored && i == last) {
+                    return path.length() - parts[i].length() >= pos
+                        && path.endsWith(parts[i]);
+                }
+                int at = path.indexOf(parts[i], pos);
+                if (at < 0) {
+                    return false;
+                }
+                pos = at + parts[i].length();
+            }
+            return !anchored || pos == path.length();
+        }
+    }
+
+    /** longest first; Allow first among equals */
+    protected static final Comparator<PatternRule> PRECEDENCE =
+        new Comparator<PatternRule>() {
+            public int compare(PatternRule a, PatternRule b) {
+                if (a.length != b.length) {
+                    return b.length - a.length;
+                }
+                return (a.allow == b.allow) ? 0 : (a.allow ? -1 : 1);
+            }
+        };
+
+    protected final Node root = new Node();
+    protected final PatternRule[] patterns;
+
+    public RobotsMatcher(Collection<String> allows,
+            Collection<String> disallows) {
+        List<PatternRule> patternList = new ArrayList<PatternRule>();
+        for (String path : disallows) {
+            add(path, false, patternList);
+        }
+        for (String path : allows) {
+            add(path, true, patternList);
+        }
+        Collections.sort(patternList, PRECEDENCE);
+        patterns = patternList.toArray(new PatternRule[patternList.size()]);
+    }
+
+    protected void add(String path, boolean allow,
+            List<PatternRule> patternList) {
+        if (path.indexOf('*') >= 0 || path.endsWith("$")) {
+            patternList.add(new PatternRule(path, allow));
+            return;
+        }
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.addChild(path.charAt(i));
+        }
+        // Allow wins over a Disallow of the same path
+        node.rule = allow ? ALLOW : (node.rule == ALLOW ? ALLOW : DISALLOW);
+    }
+
+    /**
+     * @param path path, with any query-string, to test
+     * @return true unless the longest matching rule is a Disallow
+     */
+    public boolean allows(String path) {
+        int bestLength = -1;
+        boolean bestAllow = true;
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                break;
+            }
+            if (node.rule != 0) {
+                bestLength = i + 1;
+                bestAllow = (node.rule == ALLOW);
+            }
+        }
+        for (PatternRule rule : patterns) {
+            if (rule.length < bestLength || (rule.length == bestLength
+                    && (bestAllow || !rule.allow))) {
+                // neither this nor any later rule can win
+                break;
+            }
+            if (rule.matches(path)) {
+                return rule.allow;
+            }
+        }
+        return bestAllow;
+    }
+}
@@ -23,6 +23,9 @@ import java.io.Reader;
 import java.io.Serializable;
 import java.nio.Buffer;
 import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -34,13 +37,20 @@ import java.util.regex.Pattern;
 import org.apache.commons.io.IOUtils;
 import org.archive.bdb.AutoKryo;
 import org.archive.io.ReadSource;
+import org.archive.util.Base32;
+import org.archive.util.IdentityCacheable;
+import org.archive.util.ObjectIdentityCache;
 
 /**
  * Utility class for parsing and representing 'robots.txt' format 
  * directives, into a list of named user-agents and map from user-agents 
  * to RobotsDirectives. 
+ *
+ * <p>Instances are not changed once parsed, so those parsed from
+ * byte-identical robots.txt may be shared: each carries the digest of its
+ * content as its key, by which the ServerCache interns them.
  */
-public class Robotstxt implements Serializable {
+public class Robotstxt implements Serializable, IdentityCacheable {
     static final long serialVersionUID = 7025386509301303890L;
     private static final Logger logger =
         Logger.getLogger(Robotstxt.class.getName());
@@ -58,20 +68,28 @@ public class Robotstxt implements Serializable {
     protected RobotsDirectives wildcardDirectives = null; 
     
     protected boolean hasErrors = false;
+
+    /** Base32 SHA-1 of the (possibly truncated) content parsed */
+    protected String digest;
     
     protected static RobotsDirectives NO_DIRECTIVES = new RobotsDirectives();
     /** empty, reusable instance for all sites providing no rules */
     public static Robotstxt NO_ROBOTS = new Robotstxt();
     
     public Robotstxt() {
+        this.digest = digestOf("");
     }
 
     public Robotstxt(Reader reader) throws IOException {
-        try {
-            initializeFromReader(reader);
-        } finally {
-            IOUtils.closeQuietly(reader);
-        }
+        this(readContent(reader));
+    }
+
+    /**
+     * @param content robots.txt content, as from {@link #readContent(Reader)}
+     */
+    public Robotstxt(CharSequence content) {
+        this.digest = digestOf(content);
+        initializeFromContent(content);
     }
 
     public Robotstxt(ReadSource customRobots) {
@@ -88,23 +106,51 @@ public class Robotstxt implements Serializable {
     }
 
     protected void initializeFromReader(Reader reader) throws IOException {
-        CharBuffer buffer = CharBuffer.allocate(MAX_SIZE);
-        while (buffer.hasRemaining() && reader.read(buffer) >= 0) ;
-        //buffer.flip();
-        // Explicit cast as per https://stackoverflow.com/questions/61267495/exception-in-thread-main-java-lang-nosuchmethoderror-java-nio-bytebuffer-flip
-        ((Buffer) buffer).flip();
+        CharSequence content = readContent(reader);
+        digest = digestOf(content);
+        initializeFromContent(content);
+    }
 
-        String[] lines = LINE_SEPARATOR.split(buffer);
-        if (buffer.limit() == buffer.capacity()) {
-            int processed = buffer.capacity();
-            if (lines.length != 0) {
-                // discard the partial line at the end so we don't process a truncated path
-                int last = lines.length - 1;
-                processed -= lines[last].length();
-                lines[last] = "";
+    /**
+     * Read robots.txt content, up to MAX_SIZE characters, closing the
+     * reader. If truncated, the partial last line is dropped so that a
+     * truncated path is never processed.
+     */
+    public static CharSequence readContent(Reader reader) throws IOException {
+        try {
+            CharBuffer buffer = CharBuffer.allocate(MAX_SIZE);
+            while (buffer.hasRemaining() && reader.read(buffer) >= 0) ;
+            //buffer.flip();
+            // Explicit cast as per https://stackoverflow.com/questions/61267495/exception-in-thread-main-java-lang-nosuchmethoderror-java-nio-bytebuffer-flip
+            ((Buffer) buffer).flip();
+            if (buffer.limit() < buffer.capacity()) {
+                return buffer;
             }
+            String text = buffer.toString();
+            int processed = Math.max(text.lastIndexOf('\n'),
+                    text.lastIndexOf('\r')) + 1;
             logger.warning("processed " + processed + " characters, ignoring the rest (see HER-1990)");
+            return text.substring(0, processed);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * @return Base32 SHA-1 digest of the given content's UTF-8 encoding
+     */
+    public static String digestOf(CharSequence content) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base32.encode(sha1.digest(
+                    content.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
+    }
+
+    protected void initializeFromContent(CharSequence content) {
+        String[] lines = LINE_SEPARATOR.split(content);
 
         // current is the disallowed paths for the preceding User-Agent(s)
         RobotsDirectives current = null;
@@ -151,8 +197,7 @@ public class Robotstxt implements Serializable {
                     String path = read.substring(9).trim();
                     // tolerate common error of ending path with '*' character
                     // (not allowed by original spec; redundant but harmless with 
-                    // Google's wildcarding extensions -- which we don't yet fully
-                    // support). 
+                    // Google's wildcarding extensions). 
                     if(path.endsWith("*")) {
                         path = path.substring(0,path.length()-1); 
                     }
@@ -187,8 +232,7 @@ public class Robotstxt implements Serializable {
                     String path = read.substring(6).trim();
                     // tolerate common error of ending path with '*' character
                     // (not allowed by original spec; redundant but harmless with 
-                    // Google's wildcarding extensions -- which we don't yet fully
-                    // support). 
+                    // Google's wildcarding extensions). 
                     if(path.endsWith("*")) {
                         path = path.substring(0,path.length()-1); 
                     }
@@ -255,6 +299,28 @@ public class Robotstxt implements Serializable {
         return getDirectivesFor(userAgent, true);
     }
     
+    //
+    // IdentityCacheable support
+    //
+    transient private ObjectIdentityCache<?> cache;
+    @Override
+    public String getKey() {
+        return digest;
+    }
+
+    @Override
+    public void makeDirty() {
+        // never changed once parsed, but honor the contract
+        if (cache != null) {
+            cache.dirtyKey(getKey());
+        }
+    }
+
+    @Override
+    public void setIdentityCache(ObjectIdentityCache<?> cache) {
+        this.cache = cache; 
+    }
+    
     // Kryo support
     public static void autoregisterTo(AutoKryo kryo) {
         kryo.register(Robotstxt.class);
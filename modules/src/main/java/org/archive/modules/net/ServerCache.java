@@ -26,6 +26,7 @@ import java.util.logging.Logger;
 import org.apache.commons.collections.Closure;
 import org.apache.commons.httpclient.URIException;
 import org.archive.net.UURI;
+import org.archive.util.Supplier;
 
 /**
  * Abstract class for crawl-global registry of CrawlServer (host:port) and
@@ -44,6 +45,27 @@ public abstract class ServerCache {
      */
     public abstract void forAllHostsDo(Closure action);
 
+    /**
+     * Return the canonical Robotstxt for the given content digest, taking
+     * the supplied instance (typically a fresh parse) if none is yet known.
+     * This implementation interns nothing.
+     * 
+     * @param digest content digest, as from {@link Robotstxt#digestOf}
+     * @param parse supplier of the Robotstxt if not already held
+     * @return Robotstxt to share
+     */
+    public Robotstxt internRobotstxt(String digest, Supplier<Robotstxt> parse) {
+        return parse.get();
+    }
+
+    /**
+     * @param digest content digest of a Robotstxt previously interned
+     * @return the interned Robotstxt, or null if not held
+     */
+    public Robotstxt getRobotstxt(String digest) {
+        return null;
+    }
+
     
     private static Logger logger =
         Logger.getLogger(ServerCache.class.getName());
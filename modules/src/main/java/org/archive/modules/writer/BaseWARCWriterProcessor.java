@@ -9,6 +9,7 @@ import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_WARC_FILE_
 import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_WARC_RECORD_ID;
 import static org.archive.modules.recrawl.RecrawlAttributeConstants.A_WRITE_TAG;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
@@ -26,6 +27,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang.StringUtils;
+import org.archive.checkpointing.Checkpoint;
 import org.archive.format.warc.WARCConstants.WARCRecordType;
 import org.archive.io.warc.WARCRecordInfo;
 import org.archive.io.warc.WARCWriter;
@@ -34,10 +36,12 @@ import org.archive.io.warc.WARCWriterPoolSettings;
 import org.archive.modules.CrawlMetadata;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.revisit.IdenticalPayloadDigestRevisit;
+import org.archive.spring.ConfigFile;
 import org.archive.spring.ConfigPath;
 import org.archive.uid.RecordIDGenerator;
 import org.archive.uid.UUIDGenerator;
 import org.archive.util.ArchiveUtils;
+import org.archive.util.MimetypeUtils;
 import org.archive.util.anvl.ANVLRecord;
 
 abstract public class BaseWARCWriterProcessor extends WriterPoolProcessor
@@ -78,8 +82,185 @@ abstract public class BaseWARCWriterProcessor extends WriterPoolProcessor
         return paths;
     }
 
+    /**
+     * Whether compressed WARCs (see {@link #setCompress(boolean)}) use
+     * Zstandard, written as '.warc.zst' files with one frame per record,
+     * rather than gzip. Default is false. This setting cannot be varied
+     * over the life of a crawl.
+     */
+    protected boolean zstdCompression = false;
+    public boolean getZstdCompression() {
+        return zstdCompression;
+    }
+    public void setZstdCompression(boolean zstdCompression) {
+        this.zstdCompression = zstdCompression;
+    }
+
+    /**
+     * Zstandard compression level. Default is 3.
+     */
+    protected int zstdLevel = 3;
+    public int getZstdLevel() {
+        return zstdLevel;
+    }
+    public void setZstdLevel(int zstdLevel) {
+        this.zstdLevel = zstdLevel;
+    }
+
+    /**
+     * Optional Zstandard dictionary, as written by
+     * {@link ZstdDictionaryTrainer}, with which every record is compressed.
+     * It is embedded at the start of each WARC file.
+     */
+    protected ConfigPath zstdDictionary = new ConfigFile("zstd dictionary", "");
+    public ConfigPath getZstdDictionary() {
+        return zstdDictionary;
+    }
+    public void setZstdDictionary(ConfigPath zstdDictionary) {
+        this.zstdDictionary = zstdDictionary;
+    }
+
+    private transient ZstdWARCWriter.Settings zstdSettings;
+    /**
+     * @return zstd settings if compressing with zstd, otherwise null
+     */
+    protected ZstdWARCWriter.Settings getZstdSettings() {
+        if (!getCompress() || !getZstdCompression()) {
+            return null;
+        }
+        if (zstdSettings == null) {
+            try {
+                zstdSettings = ZstdWARCWriter.Settings.load(getZstdLevel(),
+                        StringUtils.isNotBlank(getZstdDictionary().getPath())
+                                ? getZstdDictionary().getFile() : null);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return zstdSettings;
+    }
+
+    /**
+     * Whether to write a CDX index beside each WARC file, as its records
+     * are written, for response, revisit and resource records. The index
+     * of a WARC is sorted and moved into place once the WARC is closed;
+     * until then it has an '.open' suffix. Default is false.
+     */
+    protected boolean writeCdx = false;
+    public boolean getWriteCdx() {
+        return writeCdx;
+    }
+    public void setWriteCdx(boolean writeCdx) {
+        this.writeCdx = writeCdx;
+    }
+
+    /**
+     * Format of the CDX index written if {@link #setWriteCdx(boolean)}:
+     * CDXJ ('.cdxj') or classic 11-field CDX ('.cdx'). Default is CDXJ.
+     */
+    protected CdxSidecarWriter.Format cdxFormat = CdxSidecarWriter.Format.CDXJ;
+    public CdxSidecarWriter.Format getCdxFormat() {
+        return cdxFormat;
+    }
+    public void setCdxFormat(CdxSidecarWriter.Format cdxFormat) {
+        this.cdxFormat = cdxFormat;
+    }
+
+    /**
+     * Maximum number of batches of CDX entries waiting to be written before
+     * writer threads wait. Default is 1000.
+     */
+    protected int cdxQueueSize = 1000;
+    public int getCdxQueueSize() {
+        return cdxQueueSize;
+    }
+    public void setCdxQueueSize(int cdxQueueSize) {
+        this.cdxQueueSize = cdxQueueSize;
+    }
+
+    /**
+     * Most bytes of CDX lines held in memory while sorting a sidecar when
+     * its WARC is closed; larger sidecars are sorted in runs on disk, then
+     * merged. Default is 16MiB.
+     */
+    protected int cdxSortChunkBytes = CdxSidecarWriter.DEFAULT_SORT_CHUNK_BYTES;
+    public int getCdxSortChunkBytes() {
+        return cdxSortChunkBytes;
+    }
+    public void setCdxSortChunkBytes(int cdxSortChunkBytes) {
+        this.cdxSortChunkBytes = cdxSortChunkBytes;
+    }
+
+    private transient CdxSidecarWriter cdxWriter;
+    /**
+     * @return cdx writer if writing CDX indexes, otherwise null
+     */
+    protected synchronized CdxSidecarWriter getCdxWriter() {
+        if (cdxWriter == null && getWriteCdx()) {
+            cdxWriter = new CdxSidecarWriter(getCdxFormat(), getCdxQueueSize());
+            cdxWriter.setSortChunkBytes(getCdxSortChunkBytes());
+        }
+        return cdxWriter;
+    }
+
+    /**
+     * Note that the given WARC file has been closed, as on rollover, so
+     * its CDX index may be finished.
+     */
+    protected void warcFileClosed(File warc) {
+        CdxSidecarWriter cdx = getCdxWriter();
+        if (cdx != null) {
+            cdx.finish(warc, true);
+        }
+    }
+
+    /**
+     * Note that the given WARC file has been marked invalid.
+     */
+    protected void warcFileInvalidated(File warc) {
+        CdxSidecarWriter cdx = getCdxWriter();
+        if (cdx != null) {
+            cdx.finish(warc, false);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!isRunning()) {
+            return;
+        }
+        super.stop();
+        synchronized (this) {
+            if (cdxWriter != null) {
+                cdxWriter.shutdown();
+                cdxWriter = null;
+            }
+        }
+    }
+
+    @Override
+    public void doCheckpoint(Checkpoint checkpointInProgress)
+            throws IOException {
+        super.doCheckpoint(checkpointInProgress);
+        CdxSidecarWriter cdx = getCdxWriter();
+        if (cdx != null) {
+            if (getStartNewFilesOnCheckpoint()) {
+                // all warcs were closed
+                cdx.finishAll();
+            } else {
+                cdx.flush();
+            }
+        }
+    }
+
     @Override
     protected void setupPool(final AtomicInteger serialNo) {
+        ZstdWARCWriter.Settings zstd = getZstdSettings();
+        if (zstd != null) {
+            setPool(new ZstdWARCWriter.ZstdWARCWriterPool(serialNo, this,
+                    getPoolMaxActive(), getMaxWaitForIdleMs(), zstd));
+            return;
+        }
         setPool(new WARCWriterPool(serialNo, this, getPoolMaxActive(), getMaxWaitForIdleMs()));
     }
 
@@ -186,7 +367,8 @@ abstract public class BaseWARCWriterProcessor extends WriterPoolProcessor
         buf.append("  Total uncompressed bytes (including all warc records): "
                 + bytes + " (" + ArchiveUtils.formatBytesForDisplay(bytes) + ")\n");
         
-        buf.append("  Total size on disk ("+ (getCompress() ? "compressed" : "uncompressed") + "): "
+        buf.append("  Total size on disk ("+ (!getCompress() ? "uncompressed"
+                : getZstdCompression() ? "zstd compressed" : "compressed") + "): "
                 + getTotalBytesWritten() + " (" + ArchiveUtils.formatBytesForDisplay(getTotalBytesWritten()) + ")\n");
         
         return buf.toString();
@@ -248,6 +430,50 @@ abstract public class BaseWARCWriterProcessor extends WriterPoolProcessor
                 }
             }
         }
+
+        CdxSidecarWriter cdx = getCdxWriter();
+        if (cdx != null) {
+            cdx.add(writer.getFile(), cdxEntries(curi, writer));
+        }
+    }
+
+    /**
+     * @return CDX entries for the response, revisit and resource records
+     * just written for the given uri
+     */
+    protected List<CdxSidecarWriter.Entry> cdxEntries(CrawlURI curi,
+            WARCWriter writer) {
+        List<CdxSidecarWriter.Entry> entries =
+            new ArrayList<CdxSidecarWriter.Entry>();
+        List<WARCRecordInfo> records = new ArrayList<WARCRecordInfo>();
+        for (WARCRecordInfo record : writer.getTmpRecordLog()) {
+            records.add(record);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            WARCRecordInfo record = records.get(i);
+            if (record.getType() != WARCRecordType.response
+                    && record.getType() != WARCRecordType.revisit
+                    && record.getType() != WARCRecordType.resource) {
+                continue;
+            }
+            CdxSidecarWriter.Entry entry = new CdxSidecarWriter.Entry();
+            entry.url = record.getUrl();
+            entry.timestamp = record.getCreate14DigitDate();
+            entry.mimetype = record.getType() == WARCRecordType.revisit
+                    ? "warc/revisit"
+                    : MimetypeUtils.truncate(curi.getContentType());
+            entry.status = curi.isHttpTransaction()
+                    ? Integer.toString(curi.getFetchStatus()) : "-";
+            entry.digest = curi.getContentDigestSchemeString();
+            entry.offset = record.getWARCFileOffset();
+            long end = (i + 1 < records.size())
+                    ? records.get(i + 1).getWARCFileOffset()
+                    : writer.getPosition();
+            entry.length = end - entry.offset;
+            entry.filename = record.getWARCFilename();
+            entries.add(entry);
+        }
+        return entries;
     }
 
 }
@@ -0,0 +1,493 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.archive.url.WaybackURLKeyMaker;
+import org.json.JSONObject;
+
+/**
+ * Writes a CDXJ (or CDX11) index beside each WARC as its records are
+ * written, so no separate indexing pass over the WARCs is needed.
+ *
+ * <p>Entries are handed to a single background thread through a bounded
+ * queue (callers block when it is full), which canonicalizes, formats and
+ * appends them to an 'open' sidecar per WARC. When the WARC is closed the
+ * sidecar is sorted and atomically renamed into place, so a '.cdxj' file
+ * beside a WARC is always complete; one for a WARC found invalid ends up
+ * with an '.invalid' suffix instead.
+ *
+ * <p>Sidecars are sorted as raw UTF-8 bytes, unsigned -- the order of
+ * 'LC_ALL=C sort' that CDX consumers binary-search by -- in sorted runs
+ * of at most {@link #getSortChunkBytes()} each, spilled to disk and
+ * merged when there is more than one, so sorting a large sidecar does
+ * not need it all in memory.
+ */
+public class CdxSidecarWriter {
+    private static final Logger logger =
+        Logger.getLogger(CdxSidecarWriter.class.getName());
+
+    public enum Format {
+        CDXJ(".cdxj", null),
+        CDX11(".cdx", " CDX N b a m s k r M S V g");
+
+        protected final String extension;
+        protected final String header;
+
+        Format(String extension, String header) {
+            this.extension = extension;
+            this.header = header;
+        }
+    }
+
+    public static final String OPEN_SUFFIX = ".open";
+    public static final String INVALID_SUFFIX = ".invalid";
+    public static final int DEFAULT_SORT_CHUNK_BYTES = 16 * 1024 * 1024;
+    /** rough heap cost of each line held for sorting, beyond its bytes */
+    protected static final int LINE_OVERHEAD_BYTES = 32;
+
+    /** lines as UTF-8 bytes, compared unsigned, as in the C locale */
+    public static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+        public int compare(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                int c = (a[i] & 0xff) - (b[i] & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    /** one index entry: a WARC record and the capture it holds */
+    public static class Entry {
+        public String url;
+        public String timestamp;
+        public String mimetype;
+        public String status;
+        /** digest in 'scheme:value' form, or null */
+        public String digest;
+        public long length;
+        public long offset;
+        public String filename;
+    }
+
+    protected final Format format;
+    protected final ThreadPoolExecutor executor;
+    protected final WaybackURLKeyMaker keyMaker = new WaybackURLKeyMaker();
+    /** open sidecar writers, by final sidecar file; writer thread only */
+    protected final Map<File, Writer> openSidecars = new HashMap<File, Writer>();
+
+    protected volatile int sortChunkBytes = DEFAULT_SORT_CHUNK_BYTES;
+    /**
+     * Most bytes of sidecar lines (plus per-line overhead) held in memory
+     * at once while sorting; larger sidecars are sorted in runs spilled
+     * to disk beside them, then merged.
+     */
+    public int getSortChunkBytes() {
+        return sortChunkBytes;
+    }
+    public void setSortChunkBytes(int sortChunkBytes) {
+        this.sortChunkBytes = sortChunkBytes;
+    }
+
+    public CdxSidecarWriter(Format format, int queueSize) {
+        this.format = format;
+        this.executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "CdxSidecarWriter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r,
+                            ThreadPoolExecutor e) {
+                        if (e.isShutdown()) {
+                            logger.warning("cdx writer shut down; dropped " + r);
+                            return;
+                        }
+                        // queue full: wait for room
+                        try {
+                            e.getQueue().put(r);
+                        } catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @param warc WARC file, with or without its '.open' suffix
+     * @return sidecar index file for the given WARC
+     */
+    public File sidecarFor(File warc) {
+        String name = warc.getName();
+        if (name.endsWith(OPEN_SUFFIX)) {
+            name = name.substring(0, name.length() - OPEN_SUFFIX.length());
+        } else if (name.endsWith(INVALID_SUFFIX)) {
+            name = name.substring(0, name.length() - INVALID_SUFFIX.length());
+        }
+        for (String suffix : new String[] {".gz", ZstdWARCWriter.DOT_ZST}) {
+            if (name.endsWith(suffix)) {
+                name = name.substring(0, name.length() - suffix.length());
+            }
+        }
+        if (name.endsWith(".warc")) {
+            name = name.substring(0, name.length() - ".warc".length());
+        }
+        return new File(warc.getParentFile(), name + format.extension);
+    }
+
+    /**
+     * Queue entries for records written to the given WARC.
+     */
+    public void add(File warc, final List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final File sidecar = sidecarFor(warc);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Writer out = openSidecars.get(sidecar);
+                    if (out == null) {
+                        out = new BufferedWriter(new OutputStreamWriter(
+                                new FileOutputStream(openFile(sidecar), true),
+                                StandardCharsets.UTF_8));
+                        openSidecars.put(sidecar, out);
+                    }
+                    for (Entry entry : entries) {
+                        out.write(formatLine(entry));
+                        out.write('\n');
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "writing to " + sidecar, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Finish the sidecar of a WARC that has been closed.
+     *
+     * @param valid false if the WARC was marked invalid
+     */
+    public void finish(File warc, final boolean valid) {
+        final File sidecar = sidecarFor(warc);
+        executor.execute(new Runnable() {
+            public void run() {
+                finishSidecar(sidecar, valid);
+            }
+        });
+    }
+
+    /**
+     * Finish every open sidecar, as when all WARCs have been closed, and
+     * wait for it to be done.
+     */
+    public void finishAll() {
+        runAndWait(new Runnable() {
+            public void run() {
+                for (File sidecar : openSidecars.keySet().toArray(new File[0])) {
+                    finishSidecar(sidecar, true);
+                }
+            }
+        });
+    }
+
+    /**
+     * Flush open sidecars to disk, and wait for it to be done.
+     */
+    public void flush() {
+        runAndWait(new Runnable() {
+            public void run() {
+                for (Map.Entry<File, Writer> open : openSidecars.entrySet()) {
+                    try {
+                        open.getValue().flush();
+                    } catch (IOException e) {
+                        logger.log(Level.SEVERE, "flushing " + open.getKey(), e);
+                    }
+                }
+            }
+        });
+    }
+
+    protected void runAndWait(Runnable r) {
+        try {
+            executor.submit(r).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "cdx writer task failed", e.getCause());
+        }
+    }
+
+    public void shutdown() {
+        finishAll();
+        executor.shutdown();
+    }
+
+    protected static File openFile(File sidecar) {
+        return new File(sidecar.getParentFile(), sidecar.getName() + OPEN_SUFFIX);
+    }
+
+    /**
+     * Close, sort and rename into place the given sidecar. Writer thread
+     * only.
+     */
+    protected void finishSidecar(File sidecar, boolean valid) {
+        Writer out = openSidecars.remove(sidecar);
+        File open = openFile(sidecar);
+        try {
+            if (out != null) {
+                out.close();
+            }
+            if (!open.exists()) {
+                return;
+            }
+            if (!valid) {
+                Files.move(open.toPath(), new File(sidecar.getParentFile(),
+                        sidecar.getName() + INVALID_SUFFIX).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+            File tmp = new File(sidecar.getParentFile(),
+                    sidecar.getName() + ".tmp");
+            sort(open, tmp, format.header);
+            Files.move(tmp.toPath(), sidecar.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(open.toPath());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "finishing " + sidecar, e);
+        }
+    }
+
+    /**
+     * Write the lines of the given file, sorted in byte order, after the
+     * given header (if not null), to the given file. Holds at most about
+     * {@link #getSortChunkBytes()} of lines in memory at once.
+     */
+    protected void sort(File in, File out, String header) throws IOException {
+        List<File> runs = new ArrayList<File>();
+        InputStream input = new BufferedInputStream(new FileInputStream(in));
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            List<byte[]> chunk = new ArrayList<byte[]>();
+            boolean more = true;
+            while (more) {
+                long chunkBytes = 0;
+                chunk.clear();
+                byte[] line;
+                while (chunkBytes < sortChunkBytes
+                        && (line = readLine(input, buf)) != null) {
+                    chunk.add(line);
+                    chunkBytes += line.length + LINE_OVERHEAD_BYTES;
+                }
+                more = chunkBytes >= sortChunkBytes;
+                Collections.sort(chunk, BYTE_ORDER);
+                if (!more && runs.isEmpty()) {
+                    // all fit in memory: no merge needed
+                    writeLines(chunk, out, header);
+                    return;
+                }
+                File run = new File(out.getParentFile(),
+                        out.getName() + ".run" + runs.size());
+                runs.add(run);
+                writeLines(chunk, run, null);
+            }
+            input.close();
+            input = null;
+            merge(runs, out, header);
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+            for (File run : runs) {
+                Files.deleteIfExists(run.toPath());
+            }
+        }
+    }
+
+    /** a sorted run being merged, with its current line */
+    protected static class RunReader {
+        protected final InputStream in;
+        protected final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        protected byte[] line;
+
+        protected RunReader(File run) throws IOException {
+            in = new BufferedInputStream(new FileInputStream(run));
+        }
+
+        protected boolean advance() throws IOException {
+            line = readLine(in, buf);
+            return line != null;
+        }
+    }
+
+    protected void merge(List<File> runs, File out, String header)
+            throws IOException {
+        PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>(
+                runs.size(), new Comparator<RunReader>() {
+                    public int compare(RunReader a, RunReader b) {
+                        return BYTE_ORDER.compare(a.line, b.line);
+                    }
+                });
+        List<RunReader> readers = new ArrayList<RunReader>(runs.size());
+        OutputStream output = null;
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+            output = new BufferedOutputStream(new FileOutputStream(out));
+            writeHeader(output, header);
+            RunReader reader;
+            while ((reader = heads.poll()) != null) {
+                output.write(reader.line);
+                output.write('\n');
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+            output.close();
+            output = null;
+        } finally {
+            if (output != null) {
+                output.close();
+            }
+            for (RunReader r : readers) {
+                r.in.close();
+            }
+        }
+    }
+
+    protected static void writeLines(List<byte[]> lines, File file,
+            String header) throws IOException {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            writeHeader(output, header);
+            for (byte[] line : lines) {
+                output.write(line);
+                output.write('\n');
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    protected static void writeHeader(OutputStream output, String header)
+            throws IOException {
+        if (header != null) {
+            output.write(header.getBytes(StandardCharsets.UTF_8));
+            output.write('\n');
+        }
+    }
+
+    /**
+     * @return next line, without its newline, or null at end of stream
+     */
+    protected static byte[] readLine(InputStream in, ByteArrayOutputStream buf)
+            throws IOException {
+        buf.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return buf.size() > 0 ? buf.toByteArray() : null;
+            }
+            buf.write(b);
+        }
+        return buf.toByteArray();
+    }
+
+    protected String formatLine(Entry entry) {
+        String urlkey;
+        try {
+            urlkey = keyMaker.makeKey(entry.url);
+        } catch (URISyntaxException e) {
+            urlkey = entry.url;
+        }
+        if (format == Format.CDX11) {
+            String digest = entry.digest;
+            if (digest == null) {
+                digest = "-";
+            } else if (digest.indexOf(':') >= 0) {
+                digest = digest.substring(digest.indexOf(':') + 1);
+            }
+            return urlkey + ' ' + entry.timestamp + ' '
+                + entry.url.replace(" ", "%20") + ' ' + entry.mimetype + ' '
+                + entry.status + ' ' + digest + " - - " + entry.length + ' '
+                + entry.offset + ' ' + entry.filename;
+        }
+        StringBuilder json = new StringBuilder();
+        json.append("{\"url\": ").append(JSONObject.quote(entry.url));
+        json.append(", \"mime\": ").append(JSONObject.quote(entry.mimetype));
+        json.append(", \"status\": ").append(JSONObject.quote(entry.status));
+        if (entry.digest != null) {
+            json.append(", \"digest\": ").append(JSONObject.quote(entry.digest));
+        }
+        json.append(", \"length\": \"").append(entry.length).append('"');
+        json.append(", \"offset\": \"").append(entry.offset).append('"');
+        json.append(", \"filename\": ").append(JSONObject.quote(entry.filename));
+        json.append('}');
+        return urlkey + ' ' + entry.timestamp + ' ' + json;
+    }
+}
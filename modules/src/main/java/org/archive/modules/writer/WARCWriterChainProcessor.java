@@ -1,12 +1,15 @@
 package org.archive.modules.writer;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +28,8 @@ import org.archive.modules.warc.MetadataRecordBuilder;
 import org.archive.modules.warc.RevisitRecordBuilder;
 import org.archive.modules.warc.WARCRecordBuilder;
 import org.archive.modules.warc.WhoisResponseRecordBuilder;
+import org.archive.modules.writer.WARCWriterPipeline.CompressedRecord;
+import org.archive.modules.writer.WARCWriterPipeline.PipelineWARCWriter;
 import org.archive.spring.HasKeyedProperties;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -79,6 +84,75 @@ public class WARCWriterChainProcessor extends BaseWARCWriterProcessor implements
         kp.put("chain", chain);
     }
 
+    /**
+     * Number of threads compressing records ahead of writing. If nonzero,
+     * each URI's records are compressed in parallel before a writer is
+     * borrowed from the pool, which is then held only to append the
+     * finished members. Default is 0, compressing in the writer as the
+     * records are written. This setting cannot be varied over the life of
+     * a crawl.
+     */
+    protected int compressionThreads = 0;
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+    public void setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+    }
+
+    /**
+     * Maximum records awaiting compression. When full, threads compress
+     * their own records.
+     */
+    protected int compressionQueueSize = 1000;
+    public int getCompressionQueueSize() {
+        return compressionQueueSize;
+    }
+    public void setCompressionQueueSize(int compressionQueueSize) {
+        this.compressionQueueSize = compressionQueueSize;
+    }
+
+    /**
+     * Compressed record size beyond which it is held in a temporary file,
+     * rather than in memory, until appended.
+     */
+    protected int compressionSpillBytes = 1024 * 1024;
+    public int getCompressionSpillBytes() {
+        return compressionSpillBytes;
+    }
+    public void setCompressionSpillBytes(int compressionSpillBytes) {
+        this.compressionSpillBytes = compressionSpillBytes;
+    }
+
+    protected transient WARCWriterPipeline pipeline;
+    public WARCWriterPipeline getPipeline() {
+        return pipeline;
+    }
+
+    @Override
+    protected void setupPool(final AtomicInteger serialNo) {
+        if (getCompressionThreads() <= 0) {
+            super.setupPool(serialNo);
+            return;
+        }
+        if (pipeline == null) {
+            pipeline = new WARCWriterPipeline(this, getZstdSettings(),
+                    getCompressionThreads(), getCompressionQueueSize(),
+                    getCompressionSpillBytes());
+        }
+        setPool(new WARCWriterPipeline.PipelineWARCWriterPool(serialNo, this,
+                getPoolMaxActive(), getMaxWaitForIdleMs(), getZstdSettings()));
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+    }
+
     @Override
     protected boolean shouldWrite(CrawlURI curi) {
         if (getSkipIdenticalDigests()
@@ -115,7 +189,21 @@ public class WARCWriterChainProcessor extends BaseWARCWriterProcessor implements
     
     protected ProcessResult write(final CrawlURI curi)
     throws IOException {
-        WARCWriter writer = (WARCWriter) getPool().borrowFile();
+        WARCWriterPipeline pipeline = this.pipeline;
+        List<CompressedRecord> members = null;
+        if (pipeline != null) {
+            // compress before borrowing, so writer is held only to append
+            members = pipeline.compress(buildRecords(curi));
+        }
+        WARCWriter writer;
+        try {
+            writer = (WARCWriter) getPool().borrowFile();
+        } catch (IOException e) {
+            if (members != null) {
+                pipeline.discard(members);
+            }
+            throw e;
+        }
 
         // Reset writer temp stats so they reflect only this set of records.
         writer.resetTmpStats();
@@ -124,8 +212,12 @@ public class WARCWriterChainProcessor extends BaseWARCWriterProcessor implements
         long position = writer.getPosition();
         try {
             // Roll over to new warc file if we've exceeded maxBytes.
+            File previousFile = writer.getFile();
             writer.checkSize();
             if (writer.getPosition() != position) {
+                if (previousFile != null) {
+                    warcFileClosed(previousFile);
+                }
                 // We rolled over to a new warc and wrote a warcinfo record.
                 // Tally stats and reset temp stats, to avoid including warcinfo
                 // record in stats for current url.
@@ -137,10 +229,18 @@ public class WARCWriterChainProcessor extends BaseWARCWriterProcessor implements
                 position = writer.getPosition();
             }
 
-            writeRecords(curi, writer);
+            if (members != null) {
+                pipeline.append((PipelineWARCWriter) writer, members);
+            } else {
+                writeRecords(curi, writer);
+            }
         } catch (IOException e) {
             // Invalidate this file (It gets a '.invalid' suffix).
+            File invalidFile = writer.getFile();
             getPool().invalidateFile(writer);
+            if (invalidFile != null) {
+                warcFileInvalidated(invalidFile);
+            }
             // Set the writer to null otherwise the pool accounting
             // of how many active writers gets skewed if we subsequently
             // do a returnWriter call on this object in the finally block.
@@ -151,6 +251,9 @@ public class WARCWriterChainProcessor extends BaseWARCWriterProcessor implements
                 updateMetadataAfterWrite(curi, writer, position);
                 getPool().returnFile(writer);
             }
+            if (members != null) {
+                pipeline.discard(members);
+            }
         }
         // XXX this looks wrong, check should happen *before* writing the
         // record, the way checkBytesWritten() currently works
@@ -182,6 +285,44 @@ public class WARCWriterChainProcessor extends BaseWARCWriterProcessor implements
             }
         }
     }
+
+    /**
+     * Build the records for the given URI without writing them, each after
+     * the first concurrent to the first.
+     */
+    protected List<WARCRecordInfo> buildRecords(CrawlURI curi)
+            throws IOException {
+        List<WARCRecordInfo> records = new ArrayList<WARCRecordInfo>();
+        URI concurrentTo = null;
+        try {
+            for (WARCRecordBuilder recordBuilder: getChain()) {
+                if (recordBuilder.shouldBuildRecord(curi)) {
+                    WARCRecordInfo record = recordBuilder.buildRecord(curi, concurrentTo);
+                    if (record != null) {
+                        records.add(record);
+                        if (concurrentTo == null) {
+                            concurrentTo = record.getRecordId();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            for (WARCRecordInfo record: records) {
+                IOUtils.closeQuietly(record.getContentStream());
+            }
+            throw e;
+        }
+        return records;
+    }
+
+    @Override
+    public String report() {
+        if (pipeline == null) {
+            return super.report();
+        }
+        return super.report() + pipeline.report();
+    }
+
     @Override
     protected JSONObject toCheckpointJson() throws JSONException {
         JSONObject json = super.toCheckpointJson();
@@ -0,0 +1,408 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.archive.io.WriterPoolMember;
+import org.archive.io.warc.WARCRecordInfo;
+import org.archive.io.warc.WARCWriter;
+import org.archive.io.warc.WARCWriterPool;
+import org.archive.io.warc.WARCWriterPoolSettings;
+import org.archive.util.ArchiveUtils;
+
+/**
+ * Renders WARC records into finished (gzip or zstd) members on a dedicated pool of
+ * compression threads, so that a {@link WARCWriter} borrowed from the
+ * writer pool need only be held while those members are appended.
+ *
+ * <p>All records of one URI are compressed in parallel, then appended to a
+ * single file contiguously and in chain order, so WARC-Concurrent-To
+ * linkage (assigned when the records are built) and per-file ordering are
+ * as with direct writing. The compression queue is bounded; when it is
+ * full the submitting thread compresses its records itself. Members larger
+ * than the spill threshold are buffered in a temporary file beside the
+ * WARCs rather than in memory.
+ */
+public class WARCWriterPipeline {
+    private static final Logger logger =
+        Logger.getLogger(WARCWriterPipeline.class.getName());
+
+    /** placeholder name for records rendered off the writer */
+    protected static final File UNWRITTEN = new File("unwritten.warc");
+
+    /**
+     * A record rendered as a complete WARC member, with the stats its
+     * writing would have tallied.
+     */
+    public static class CompressedRecord {
+        protected final WARCRecordInfo record;
+        protected final DeferredFileOutputStream member;
+        protected final Map<String, Map<String, Long>> stats;
+
+        public CompressedRecord(WARCRecordInfo record,
+                DeferredFileOutputStream member,
+                Map<String, Map<String, Long>> stats) {
+            this.record = record;
+            this.member = member;
+            this.stats = stats;
+        }
+
+        public WARCRecordInfo getRecord() {
+            return record;
+        }
+
+        public long getLength() {
+            return member.getByteCount();
+        }
+
+        protected long getStat(String key) {
+            return WARCWriter.getStat(stats, record.getType().toString(), key);
+        }
+
+        /** release any temporary file */
+        public void discard() {
+            if (!member.isInMemory()) {
+                FileUtils.deleteQuietly(member.getFile());
+            }
+        }
+    }
+
+    /**
+     * WARCWriter that can also append members rendered by the pipeline.
+     */
+    public static class PipelineWARCWriter extends ZstdWARCWriter {
+        protected LinkedList<WARCRecordInfo> appendedRecordLog =
+            new LinkedList<WARCRecordInfo>();
+
+        public PipelineWARCWriter(AtomicInteger serialNo,
+                WARCWriterPoolSettings settings, ZstdWARCWriter.Settings zstd) {
+            super(serialNo, settings, zstd);
+        }
+
+        /**
+         * Append an already rendered member at the current position,
+         * tallying it as {@link #writeRecord(WARCRecordInfo)} would.
+         */
+        public void append(CompressedRecord compressed) throws IOException {
+            if (out == null) {
+                createFile();
+            }
+            long offset = getPosition();
+            compressed.member.writeTo(out);
+            WARCRecordInfo record = compressed.getRecord();
+            record.setWARCFilename(getFilenameWithoutOccupiedSuffix());
+            record.setWARCFileOffset(offset);
+            appendedRecordLog.add(record);
+            tally(record.getType(), compressed.getStat(CONTENT_BYTES),
+                    compressed.getStat(TOTAL_BYTES), getPosition() - offset);
+        }
+
+        @Override
+        public void resetTmpRecordLog() {
+            super.resetTmpRecordLog();
+            appendedRecordLog.clear();
+        }
+
+        @Override
+        public Iterable<WARCRecordInfo> getTmpRecordLog() {
+            List<WARCRecordInfo> log = new ArrayList<WARCRecordInfo>();
+            for (WARCRecordInfo record : super.getTmpRecordLog()) {
+                log.add(record);
+            }
+            log.addAll(appendedRecordLog);
+            return log;
+        }
+    }
+
+    /**
+     * WARCWriterPool making {@link PipelineWARCWriter}s.
+     */
+    public static class PipelineWARCWriterPool extends WARCWriterPool {
+        protected final ZstdWARCWriter.Settings zstd;
+
+        public PipelineWARCWriterPool(AtomicInteger serialNo,
+                WARCWriterPoolSettings settings, int poolMaximumActive,
+                int poolMaximumWait, ZstdWARCWriter.Settings zstd) {
+            super(serialNo, settings, poolMaximumActive, poolMaximumWait);
+            this.zstd = zstd;
+        }
+
+        @Override
+        protected WriterPoolMember makeWriter() {
+            return new PipelineWARCWriter(serialNo,
+                    (WARCWriterPoolSettings) settings, zstd);
+        }
+    }
+
+    protected final WARCWriterPoolSettings settings;
+    protected final ZstdWARCWriter.Settings zstd;
+    protected final int spillThreshold;
+    protected final ThreadPoolExecutor executor;
+
+    protected AtomicLong compressCount = new AtomicLong();
+    protected AtomicLong compressNanos = new AtomicLong();
+    protected AtomicLong compressMaxNanos = new AtomicLong();
+    protected AtomicLong appendCount = new AtomicLong();
+    protected AtomicLong appendNanos = new AtomicLong();
+    protected AtomicLong appendMaxNanos = new AtomicLong();
+    protected AtomicLong callerCompressCount = new AtomicLong();
+
+    /**
+     * @param settings writer settings (compression, output dirs)
+     * @param zstd zstd settings, or null to compress as settings direct
+     * @param threads number of compression threads
+     * @param queueSize maximum records awaiting compression
+     * @param spillThreshold member size beyond which it is buffered in a
+     * temporary file
+     */
+    public WARCWriterPipeline(WARCWriterPoolSettings settings,
+            ZstdWARCWriter.Settings zstd, int threads, int queueSize,
+            int spillThreshold) {
+        this.settings = settings;
+        this.zstd = zstd;
+        this.spillThreshold = spillThreshold;
+        final AtomicInteger threadNo = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "WARCWriterPipeline-compress-"
+                                + threadNo.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r,
+                            ThreadPoolExecutor e) {
+                        // queue full (or shut down): compress in caller
+                        callerCompressCount.incrementAndGet();
+                        r.run();
+                    }
+                });
+    }
+
+    /**
+     * Render the given records into members, in parallel, closing their
+     * content streams. Returns once all are done; if any fails (or the
+     * wait is interrupted), all members are discarded before throwing.
+     *
+     * @return members in the same order as the records
+     */
+    public List<CompressedRecord> compress(List<WARCRecordInfo> records)
+            throws IOException {
+        List<Future<CompressedRecord>> futures =
+            new ArrayList<Future<CompressedRecord>>(records.size());
+        for (final WARCRecordInfo record : records) {
+            futures.add(executor.submit(new Callable<CompressedRecord>() {
+                public CompressedRecord call() throws IOException {
+                    return render(record);
+                }
+            }));
+        }
+        List<CompressedRecord> members =
+            new ArrayList<CompressedRecord>(records.size());
+        IOException failure = null;
+        for (Future<CompressedRecord> future : futures) {
+            try {
+                members.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException(
+                        "interrupted awaiting compression");
+                break;
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof IOException)
+                        ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            abandon(futures);
+            for (WARCRecordInfo record : records) {
+                IOUtils.closeQuietly(record.getContentStream());
+            }
+            throw failure;
+        }
+        return members;
+    }
+
+    /**
+     * Cancel renders not yet begun, and discard the members of all the
+     * others -- those already collected, and those still running, which
+     * are awaited -- so that no spilled member is left on disk.
+     */
+    protected void abandon(List<Future<CompressedRecord>> futures) {
+        boolean interrupted = false;
+        for (Future<CompressedRecord> future : futures) {
+            if (future.cancel(false)) {
+                continue;
+            }
+            while (true) {
+                try {
+                    future.get().discard();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // render deleted its own partial member
+                    break;
+                } catch (CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected CompressedRecord render(WARCRecordInfo record)
+            throws IOException {
+        long start = System.nanoTime();
+        DeferredFileOutputStream member = new DeferredFileOutputStream(
+                spillThreshold, "member-", ".tmp",
+                settings.calcOutputDirs().get(0));
+        try {
+            WARCWriter scratch = new ZstdWARCWriter(new AtomicInteger(),
+                    member, UNWRITTEN, settings, zstd);
+            scratch.writeRecord(record);
+            member.close();
+            tallyLatency(compressCount, compressNanos, compressMaxNanos,
+                    System.nanoTime() - start);
+            return new CompressedRecord(record, member, scratch.getTmpStats());
+        } catch (IOException e) {
+            IOUtils.closeQuietly(member);
+            if (!member.isInMemory()) {
+                FileUtils.deleteQuietly(member.getFile());
+            }
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(record.getContentStream());
+        }
+    }
+
+    /**
+     * Append the given members, in order, to the given writer.
+     */
+    public void append(PipelineWARCWriter writer,
+            List<CompressedRecord> members) throws IOException {
+        long start = System.nanoTime();
+        for (CompressedRecord member : members) {
+            writer.append(member);
+        }
+        tallyLatency(appendCount, appendNanos, appendMaxNanos,
+                System.nanoTime() - start);
+    }
+
+    public void discard(List<CompressedRecord> members) {
+        for (CompressedRecord member : members) {
+            member.discard();
+        }
+    }
+
+    protected void tallyLatency(AtomicLong count, AtomicLong total,
+            AtomicLong max, long nanos) {
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long prior = max.get();
+        while (nanos > prior && !max.compareAndSet(prior, nanos)) {
+            prior = max.get();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warning("compression threads still busy at shutdown");
+            }
+        } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "interrupted awaiting compression", e);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getCompressCount() {
+        return compressCount.get();
+    }
+
+    public long getCompressNanos() {
+        return compressNanos.get();
+    }
+
+    public long getAppendCount() {
+        return appendCount.get();
+    }
+
+    public long getAppendNanos() {
+        return appendNanos.get();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    protected static String formatLatency(long count, long nanos, long max) {
+        return (count == 0 ? 0 : nanos / count / 1000) + "us avg, "
+            + max / 1000 + "us max";
+    }
+
+    public String report() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("  Compression threads: " + executor.getPoolSize()
+                + " (" + getQueuedCount() + " queued, "
+                + callerCompressCount + " run by caller)\n");
+        buf.append("  Records compressed: " + compressCount + " ("
+                + formatLatency(compressCount.get(), compressNanos.get(),
+                        compressMaxNanos.get()) + ")\n");
+        buf.append("  Appends: " + appendCount + " ("
+                + formatLatency(appendCount.get(), appendNanos.get(),
+                        appendMaxNanos.get()) + ", total "
+                + ArchiveUtils.formatMillisecondsToConventional(
+                        appendNanos.get() / 1000000) + ")\n");
+        return buf.toString();
+    }
+}
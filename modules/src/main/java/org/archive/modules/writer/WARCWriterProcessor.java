@@ -41,6 +41,7 @@ import static org.archive.modules.CoreAttributeConstants.LENGTH_TRUNC;
 import static org.archive.modules.CoreAttributeConstants.TIMER_TRUNC;
 
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Collection;
@@ -160,8 +161,12 @@ public class WARCWriterProcessor extends BaseWARCWriterProcessor implements WARC
         long position = writer.getPosition();
         try {
             // Roll over to new warc file if we've exceeded maxBytes.
+            File previousFile = writer.getFile();
             writer.checkSize();
             if (writer.getPosition() != position) {
+                if (previousFile != null) {
+                    warcFileClosed(previousFile);
+                }
                 // We rolled over to a new warc and wrote a warcinfo record.
                 // Tally stats and reset temp stats, to avoid including warcinfo
                 // record in stats for current url.
@@ -191,7 +196,11 @@ public class WARCWriterProcessor extends BaseWARCWriterProcessor implements WARC
             }
         } catch (IOException e) {
             // Invalidate this file (It gets a '.invalid' suffix).
+            File invalidFile = writer.getFile();
             getPool().invalidateFile(writer);
+            if (invalidFile != null) {
+                warcFileInvalidated(invalidFile);
+            }
             // Set the writer to null otherwise the pool accounting
             // of how many active writers gets skewed if we subsequently
             // do a returnWriter call on this object in the finally block.
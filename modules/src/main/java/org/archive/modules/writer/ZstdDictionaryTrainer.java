@@ -0,0 +1,208 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.writer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.FileUtils;
+import org.archive.io.ArchiveRecord;
+import org.archive.io.ArchiveRecordHeader;
+import org.archive.io.warc.WARCReader;
+import org.archive.io.warc.WARCReaderFactory;
+
+import com.github.luben.zstd.ZstdDictTrainer;
+
+/**
+ * Trains a Zstandard dictionary, for use as the zstdDictionary of a WARC
+ * writer, from records sampled out of existing WARCs. Each sample is a
+ * record's WARC header followed by up to maxSampleBytes of its content,
+ * roughly what each zstd frame will hold. Samples are drawn uniformly
+ * from all records of the given files.
+ */
+public class ZstdDictionaryTrainer {
+    public static final int DEFAULT_DICTIONARY_SIZE = 112640;
+    public static final int DEFAULT_MAX_SAMPLES = 10000;
+    public static final int DEFAULT_MAX_SAMPLE_BYTES = 131072;
+
+    protected int dictionarySize = DEFAULT_DICTIONARY_SIZE;
+    protected int maxSamples = DEFAULT_MAX_SAMPLES;
+    protected int maxSampleBytes = DEFAULT_MAX_SAMPLE_BYTES;
+    protected Random random = new Random();
+
+    /** reservoir of samples */
+    protected List<byte[]> samples = new ArrayList<byte[]>();
+    protected long recordsSeen = 0;
+
+    public void setDictionarySize(int dictionarySize) {
+        this.dictionarySize = dictionarySize;
+    }
+
+    public void setMaxSamples(int maxSamples) {
+        this.maxSamples = maxSamples;
+    }
+
+    public void setMaxSampleBytes(int maxSampleBytes) {
+        this.maxSampleBytes = maxSampleBytes;
+    }
+
+    public long getRecordsSeen() {
+        return recordsSeen;
+    }
+
+    public int getSampleCount() {
+        return samples.size();
+    }
+
+    /**
+     * Consider every record of the given WARC for sampling.
+     */
+    public void sample(File warc) throws IOException {
+        WARCReader reader = WARCReaderFactory.get(warc);
+        try {
+            reader.setDigest(false);
+            Iterator<ArchiveRecord> records = reader.iterator();
+            while (records.hasNext()) {
+                ArchiveRecord record = records.next();
+                recordsSeen++;
+                int slot = (samples.size() < maxSamples) ? samples.size()
+                    : (int) (random.nextDouble() * recordsSeen);
+                if (slot < maxSamples) {
+                    byte[] sample = toSample(record);
+                    if (slot == samples.size()) {
+                        samples.add(sample);
+                    } else {
+                        samples.set(slot, sample);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    protected byte[] toSample(ArchiveRecord record) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ArchiveRecordHeader header = record.getHeader();
+        StringBuilder headerLines = new StringBuilder("WARC/1.0\r\n");
+        for (String key : header.getHeaderFieldKeys()) {
+            // skip fields the reader adds, like 'absolute-offset'
+            if (key.startsWith("WARC-") || key.startsWith("Content-")) {
+                headerLines.append(key).append(": ")
+                    .append(header.getHeaderValue(key)).append("\r\n");
+            }
+        }
+        headerLines.append("\r\n");
+        buf.write(headerLines.toString().getBytes("UTF-8"));
+        byte[] chunk = new byte[8192];
+        int remaining = maxSampleBytes;
+        int n;
+        while (remaining > 0
+                && (n = record.read(chunk, 0, Math.min(chunk.length, remaining))) > 0) {
+            buf.write(chunk, 0, n);
+            remaining -= n;
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * @return dictionary trained on the samples so far
+     */
+    public byte[] train() {
+        int total = 0;
+        for (byte[] sample : samples) {
+            total += sample.length;
+        }
+        ZstdDictTrainer trainer = new ZstdDictTrainer(total, dictionarySize);
+        for (byte[] sample : samples) {
+            trainer.addSample(sample);
+        }
+        return trainer.trainSamples();
+    }
+
+    private static void usage(HelpFormatter formatter, Options options,
+            int exitCode) {
+        formatter.printHelp("java " + ZstdDictionaryTrainer.class.getName()
+                + " [options] DICTIONARY_OUTPUT WARC_INPUT...", options);
+        System.exit(exitCode);
+    }
+
+    public static void main(String[] args) throws ParseException, IOException {
+        Options options = new Options();
+        options.addOption(new Option("h", "help", false,
+            "Prints this message and exits."));
+        options.addOption(new Option("d", "dictionary-size", true,
+            "Size of dictionary to train, in bytes. Default "
+            + DEFAULT_DICTIONARY_SIZE + "."));
+        options.addOption(new Option("s", "samples", true,
+            "Maximum records to sample. Default " + DEFAULT_MAX_SAMPLES + "."));
+        options.addOption(new Option("b", "sample-bytes", true,
+            "Maximum content bytes per sample. Default "
+            + DEFAULT_MAX_SAMPLE_BYTES + "."));
+        PosixParser parser = new PosixParser();
+        CommandLine cmdline = parser.parse(options, args, false);
+        List<String> cmdlineArgs = cmdline.getArgList();
+        HelpFormatter formatter = new HelpFormatter();
+
+        ZstdDictionaryTrainer trainer = new ZstdDictionaryTrainer();
+        for (Option option : cmdline.getOptions()) {
+            switch (option.getId()) {
+                case 'h':
+                    usage(formatter, options, 0);
+                    break;
+                case 'd':
+                    trainer.setDictionarySize(Integer.parseInt(option.getValue()));
+                    break;
+                case 's':
+                    trainer.setMaxSamples(Integer.parseInt(option.getValue()));
+                    break;
+                case 'b':
+                    trainer.setMaxSampleBytes(Integer.parseInt(option.getValue()));
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected option: "
+                        + option.getId());
+            }
+        }
+        if (cmdlineArgs.size() < 2) {
+            usage(formatter, options, 1);
+        }
+
+        for (String warc : cmdlineArgs.subList(1, cmdlineArgs.size())) {
+            trainer.sample(new File(warc));
+        }
+        byte[] dictionary = trainer.train();
+        File output = new File(cmdlineArgs.get(0));
+        FileUtils.writeByteArrayToFile(output, dictionary);
+        System.out.println("wrote " + dictionary.length + " byte dictionary to "
+                + output + " from " + trainer.getSampleCount() + " of "
+                + trainer.getRecordsSeen() + " records");
+    }
+}
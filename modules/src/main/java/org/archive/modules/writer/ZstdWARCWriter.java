@@ -0,0 +1,215 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.archive.io.WriterPoolMember;
+import org.archive.io.warc.WARCWriter;
+import org.archive.io.warc.WARCWriterPool;
+import org.archive.io.warc.WARCWriterPoolSettings;
+
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdOutputStream;
+
+/**
+ * WARCWriter writing Zstandard-compressed '.warc.zst' files: each record is
+ * its own zstd frame, so records remain individually addressable by
+ * offset as in '.warc.gz' files. If a dictionary is configured, it is
+ * written at the start of each file in a skippable frame (magic
+ * 0x184D2A5D), and every record frame is compressed with it.
+ *
+ * <p>Constructed without {@link Settings}, writes records exactly as
+ * {@link WARCWriter} does.
+ */
+public class ZstdWARCWriter extends WARCWriter {
+    public static final String DOT_ZST = ".zst";
+
+    /** magic of the skippable frame carrying the dictionary */
+    public static final int DICTIONARY_FRAME_MAGIC = 0x184D2A5D;
+
+    /**
+     * Compression level and optional dictionary, shared by all writers of
+     * a pool.
+     */
+    public static class Settings {
+        protected final int level;
+        protected final byte[] dictionary;
+        protected final ZstdDictCompress dictCompress;
+
+        public Settings(int level, byte[] dictionary) {
+            this.level = level;
+            this.dictionary = dictionary;
+            this.dictCompress = (dictionary == null) ? null
+                : new ZstdDictCompress(dictionary, level);
+        }
+
+        /**
+         * @param dictionaryFile dictionary as written by
+         * {@link ZstdDictionaryTrainer}, or null for none
+         */
+        public static Settings load(int level, File dictionaryFile)
+                throws IOException {
+            return new Settings(level, (dictionaryFile == null) ? null
+                    : FileUtils.readFileToByteArray(dictionaryFile));
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public byte[] getDictionary() {
+            return dictionary;
+        }
+    }
+
+    /**
+     * WARCWriterPool making ZstdWARCWriters.
+     */
+    public static class ZstdWARCWriterPool extends WARCWriterPool {
+        protected final Settings zstd;
+
+        public ZstdWARCWriterPool(AtomicInteger serialNo,
+                WARCWriterPoolSettings settings, int poolMaximumActive,
+                int poolMaximumWait, Settings zstd) {
+            super(serialNo, settings, poolMaximumActive, poolMaximumWait);
+            this.zstd = zstd;
+        }
+
+        @Override
+        protected WriterPoolMember makeWriter() {
+            return new ZstdWARCWriter(serialNo,
+                    (WARCWriterPoolSettings) settings, zstd);
+        }
+    }
+
+    protected final Settings zstd;
+    /** whether the dictionary frame is yet to be written to this file */
+    protected boolean dictionaryPending = false;
+    /** stream in use between records */
+    protected OutputStream recordTarget;
+
+    public ZstdWARCWriter(AtomicInteger serialNo,
+            WARCWriterPoolSettings settings, Settings zstd) {
+        super(serialNo, settings);
+        this.zstd = zstd;
+    }
+
+    /**
+     * Writer over an existing stream, as for rendering single records.
+     */
+    public ZstdWARCWriter(AtomicInteger serialNo, OutputStream out, File f,
+            WARCWriterPoolSettings settings, Settings zstd)
+            throws IOException {
+        super(serialNo, out, f, settings);
+        this.zstd = zstd;
+    }
+
+    protected boolean isZstd() {
+        return zstd != null && settings.getCompress();
+    }
+
+    @Override
+    protected String createFile() throws IOException {
+        if (!isZstd()) {
+            return super.createFile();
+        }
+        generateNewBasename();
+        String name = currentBasename + ".warc" + DOT_ZST + OCCUPIED_SUFFIX;
+        File dir = getNextDirectory(settings.calcOutputDirs());
+        return createFile(new File(dir, name));
+    }
+
+    @Override
+    protected String createFile(File file) throws IOException {
+        dictionaryPending = isZstd() && zstd.getDictionary() != null;
+        return super.createFile(file);
+    }
+
+    @Override
+    protected String getBaseFilename() {
+        if (!isZstd()) {
+            return super.getBaseFilename();
+        }
+        String name = getFile().getName();
+        if (name.endsWith(OCCUPIED_SUFFIX)) {
+            name = name.substring(0, name.length() - OCCUPIED_SUFFIX.length());
+        }
+        if (name.endsWith(DOT_ZST)) {
+            name = name.substring(0, name.length() - DOT_ZST.length());
+        }
+        return name;
+    }
+
+    @Override
+    protected void preWriteRecordTasks() throws IOException {
+        if (!isZstd()) {
+            super.preWriteRecordTasks();
+            return;
+        }
+        if (out == null) {
+            createFile();
+        }
+        if (dictionaryPending) {
+            dictionaryPending = false;
+            writeDictionaryFrame();
+        }
+        ZstdOutputStream frame = new ZstdOutputStream(
+                new CloseShieldOutputStream(out), zstd.getLevel());
+        if (zstd.dictCompress != null) {
+            frame.setDict(zstd.dictCompress);
+        }
+        recordTarget = out;
+        out = frame;
+    }
+
+    @Override
+    protected void postWriteRecordTasks() throws IOException {
+        if (!isZstd()) {
+            super.postWriteRecordTasks();
+            return;
+        }
+        OutputStream frame = out;
+        out = recordTarget;
+        recordTarget = null;
+        // ends the frame; underlying stream shielded from close
+        frame.close();
+    }
+
+    protected void writeDictionaryFrame() throws IOException {
+        byte[] dictionary = zstd.getDictionary();
+        byte[] header = new byte[8];
+        putIntLE(header, 0, DICTIONARY_FRAME_MAGIC);
+        putIntLE(header, 4, dictionary.length);
+        write(header);
+        write(dictionary);
+    }
+
+    protected static void putIntLE(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >>> 8);
+        buf[offset + 2] = (byte) (value >>> 16);
+        buf[offset + 3] = (byte) (value >>> 24);
+    }
+}
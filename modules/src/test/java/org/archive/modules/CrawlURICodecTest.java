@@ -0,0 +1,160 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.archive.bdb.KryoBinding;
+import org.archive.modules.extractor.HTMLLinkContext;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.net.UURIFactory;
+
+import com.sleepycat.je.DatabaseEntry;
+
+/**
+ * Tests for CrawlURICodec.
+ */
+public class CrawlURICodecTest extends TestCase {
+    protected CrawlURICodec codec = new CrawlURICodec();
+
+    protected CrawlURI roundTrip(CrawlURI curi) {
+        byte[] bytes = codec.encode(curi);
+        assertTrue(CrawlURICodec.isCompact(bytes));
+        return codec.decode(bytes);
+    }
+
+    public void testMinimal() throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/"));
+        CrawlURI back = roundTrip(curi);
+        assertEquals(curi.getURI(), back.getURI());
+        assertEquals("", back.getPathFromSeed());
+        assertNull(back.getVia());
+        assertEquals("unknown", back.getContentType());
+        assertEquals(CrawlURI.UNCALCULATED, back.getHolderCost());
+    }
+
+    public void testQueuedState() throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/a/b/page.html"),
+                "LLE",
+                UURIFactory.getInstance("http://www.example.com/a/b/index.html"),
+                HTMLLinkContext.IMG_SRC);
+        curi.setSeed(true);
+        curi.setSchedulingDirective(SchedulingConstants.HIGH);
+        curi.setClassKey("com,example,www,");
+        curi.setPrecedence(3);
+        curi.setOrdinal(1234567890123L);
+        curi.setHolderCost(7);
+        curi.setCanonicalString("http://example.com/a/b/page.html");
+        curi.setPolitenessDelay(4500);
+        curi.setRescheduleTime(-1);
+        curi.setFetchStatus(-61);
+        curi.incrementDeferrals();
+        curi.setForceFetch(true);
+        curi.setFetchType(CrawlURI.FetchType.HTTP_POST);
+        curi.setContentDigest("sha1", new byte[] { 1, 2, 3 });
+        curi.setSourceTag("http://seed.example.com/");
+
+        CrawlURI back = roundTrip(curi);
+        assertEquals(curi.getURI(), back.getURI());
+        assertEquals(curi.getVia(), back.getVia());
+        assertEquals(HTMLLinkContext.IMG_SRC, back.getViaContext());
+        assertEquals("LLE", back.getPathFromSeed());
+        assertTrue(back.isSeed());
+        assertEquals(SchedulingConstants.HIGH, back.getSchedulingDirective());
+        assertEquals("com,example,www,", back.getClassKey());
+        assertEquals(3, back.getPrecedence());
+        assertEquals(1234567890123L, back.getOrdinal());
+        assertEquals(7, back.getHolderCost());
+        assertEquals("http://example.com/a/b/page.html", back.getCanonicalString());
+        assertEquals(4500, back.getPolitenessDelay());
+        assertEquals(-61, back.getFetchStatus());
+        assertEquals(1, back.getDeferrals());
+        assertTrue(back.forceFetch());
+        assertEquals(CrawlURI.FetchType.HTTP_POST, back.getFetchType());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, back.getContentDigest()));
+        assertEquals("http://seed.example.com/", back.getSourceTag());
+        assertEquals(curi.getData().get(CoreAttributeConstants.A_HERITABLE_KEYS),
+                back.getData().get(CoreAttributeConstants.A_HERITABLE_KEYS));
+    }
+
+    public void testSimpleLinkContext() throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/robots.txt"),
+                "P", UURIFactory.getInstance("http://www.example.com/"),
+                LinkContext.PREREQ_MISC);
+        assertEquals(LinkContext.PREREQ_MISC, roundTrip(curi).getViaContext());
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testDataValues() throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/"));
+        Map<String,Object> data = curi.getData();
+        data.put("custom-key", "custom");
+        data.put(CoreAttributeConstants.A_FETCH_BEGAN_TIME, 1300000000000L);
+        data.put(CoreAttributeConstants.A_HTTP_PROXY_PORT, 8080);
+        data.put(CoreAttributeConstants.A_FORCE_RETIRE, Boolean.TRUE);
+        data.put(CoreAttributeConstants.A_HTML_BASE,
+                UURIFactory.getInstance("http://www.example.com/base/"));
+        data.put("double", 0.25d);
+        HashMap<String,Object> history = new HashMap<String,Object>();
+        history.put("status", 200);
+        history.put("content-digest", "sha1:ABCD");
+        curi.setFetchHistory(new HashMap[] { history, null });
+        // no compact type; falls back to kryo
+        data.put("other", new StringBuilder("sb"));
+
+        Map<String,Object> back = roundTrip(curi).getData();
+        assertEquals("custom", back.get("custom-key"));
+        assertEquals(1300000000000L, back.get(CoreAttributeConstants.A_FETCH_BEGAN_TIME));
+        assertEquals(8080, back.get(CoreAttributeConstants.A_HTTP_PROXY_PORT));
+        assertEquals(Boolean.TRUE, back.get(CoreAttributeConstants.A_FORCE_RETIRE));
+        assertEquals(data.get(CoreAttributeConstants.A_HTML_BASE),
+                back.get(CoreAttributeConstants.A_HTML_BASE));
+        assertEquals(0.25d, back.get("double"));
+        HashMap<String,Object>[] backHistory =
+            (HashMap<String,Object>[]) back.get(CrawlURI.A_FETCH_HISTORY);
+        assertEquals(history, backHistory[0]);
+        assertNull(backHistory[1]);
+        assertEquals("sb", back.get("other").toString());
+    }
+
+    public void testSmallerThanKryo() throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/a/b/page.html"),
+                "LL",
+                UURIFactory.getInstance("http://www.example.com/a/b/index.html"),
+                HTMLLinkContext.A_HREF);
+        curi.setClassKey("com,example,www,");
+        curi.setOrdinal(99);
+        curi.setSourceTag("http://seed.example.com/");
+        DatabaseEntry kryo = new DatabaseEntry();
+        new KryoBinding<CrawlURI>(CrawlURI.class).objectToEntry(curi, kryo);
+        byte[] compact = codec.encode(curi);
+        assertFalse(CrawlURICodec.isCompact(kryo.getData()));
+        assertTrue("compact " + compact.length + " vs kryo " + kryo.getSize(),
+                compact.length < kryo.getSize());
+    }
+}
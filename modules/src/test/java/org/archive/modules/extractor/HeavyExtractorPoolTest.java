@@ -0,0 +1,220 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+
+/**
+ * Unit test for {@link HeavyExtractorPool}.
+ */
+public class HeavyExtractorPoolTest extends TestCase {
+
+    /**
+     * Adds one outlink, then optionally stalls, then adds another.
+     */
+    static class StallingExtractor extends ContentExtractor {
+        volatile long stallMs = 0;
+        volatile Thread ranOn;
+
+        {
+            setHeavy(true);
+            setLoggerModule(new UnitTestUriLoggerModule());
+        }
+
+        @Override
+        protected boolean shouldExtract(CrawlURI uri) {
+            return true;
+        }
+
+        @Override
+        protected boolean innerExtract(CrawlURI curi) {
+            ranOn = Thread.currentThread();
+            try {
+                addRelativeToBase(curi, 100, "first.html",
+                        LinkContext.NAVLINK_MISC, Hop.NAVLINK);
+                if (stallMs > 0) {
+                    Thread.sleep(stallMs);
+                }
+                addRelativeToBase(curi, 100, "second.html",
+                        LinkContext.NAVLINK_MISC, Hop.NAVLINK);
+                curi.getAnnotations().add("stalledFor:" + stallMs);
+            } catch (URIException e) {
+                throw new RuntimeException(e);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds one outlink, then keeps on, ignoring interrupts, for a while.
+     */
+    static class StubbornExtractor extends StallingExtractor {
+        @Override
+        protected boolean innerExtract(CrawlURI curi) {
+            ranOn = Thread.currentThread();
+            try {
+                addRelativeToBase(curi, 100, "first.html",
+                        LinkContext.NAVLINK_MISC, Hop.NAVLINK);
+            } catch (URIException e) {
+                throw new RuntimeException(e);
+            }
+            long until = System.currentTimeMillis() + stallMs;
+            while (System.currentTimeMillis() < until) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    // carry on regardless, as some parsers do
+                }
+            }
+            return true;
+        }
+    }
+
+    protected HeavyExtractorPool pool;
+
+    @Override
+    protected void setUp() throws Exception {
+        pool = new HeavyExtractorPool();
+        pool.setMaxWorkers(2);
+        pool.setQueueSize(2);
+        pool.setWallClockBudgetMs(500);
+        pool.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        pool.stop();
+    }
+
+    protected CrawlURI makeCrawlURI() throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/doc.pdf"),
+                null, null, LinkContext.NAVLINK_MISC);
+        curi.setFetchStatus(200);
+        return curi;
+    }
+
+    public void testMergedBeforeCandidates() throws Exception {
+        StallingExtractor extractor = new StallingExtractor();
+        extractor.setHeavyExtractorPool(pool);
+        CrawlURI curi = makeCrawlURI();
+        extractor.extract(curi);
+        assertNotNull(curi.getPendingExtractions());
+
+        HeavyExtractorPool.mergePendingExtractions(curi);
+        assertNotSame(Thread.currentThread(), extractor.ranOn);
+        assertNull(curi.getPendingExtractions());
+        assertEquals(2, curi.getOutLinks().size());
+        assertTrue(curi.hasBeenLinkExtracted());
+        assertTrue(curi.getAnnotations().contains("stalledFor:0"));
+        for (CrawlURI link : curi.getOutLinks()) {
+            assertEquals(curi.getUURI(), link.getVia());
+            assertEquals("L", link.getPathFromSeed());
+        }
+    }
+
+    public void testPartialResultsOnTimeout() throws Exception {
+        StallingExtractor extractor = new StallingExtractor();
+        extractor.setHeavyExtractorPool(pool);
+        extractor.stallMs = 60 * 1000;
+        CrawlURI curi = makeCrawlURI();
+        long start = System.currentTimeMillis();
+        extractor.extract(curi);
+        HeavyExtractorPool.mergePendingExtractions(curi);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        assertEquals(1, curi.getOutLinks().size());
+        assertEquals("http://www.example.com/first.html",
+                curi.getOutLinks().iterator().next().getURI());
+        assertFalse(curi.hasBeenLinkExtracted());
+        assertTrue(curi.getAnnotations().contains("heavyExtractionTimeout"));
+        assertEquals(1, pool.getTimedOutCount());
+    }
+
+    public void testRecorderHeldUntilWorkerExits() throws Exception {
+        StubbornExtractor extractor = new StubbornExtractor();
+        extractor.setHeavyExtractorPool(pool);
+        extractor.stallMs = 1500;
+        CrawlURI curi = makeCrawlURI();
+        extractor.extract(curi);
+        HeavyExtractorPool.mergePendingExtractions(curi);
+        assertTrue(curi.getAnnotations().contains("heavyExtractionTimeout"));
+
+        final CountDownLatch freed = new CountDownLatch(1);
+        assertTrue(curi.isRecorderHeld());
+        curi.whenRecorderFree(new Runnable() {
+            public void run() {
+                freed.countDown();
+            }
+        });
+        assertEquals(1, freed.getCount());
+        assertTrue(freed.await(10, TimeUnit.SECONDS));
+        assertFalse(curi.isRecorderHeld());
+    }
+
+    public void testRecorderHeldWhenMergeSkipped() throws Exception {
+        StubbornExtractor extractor = new StubbornExtractor();
+        extractor.setHeavyExtractorPool(pool);
+        extractor.stallMs = 1500;
+        CrawlURI curi = makeCrawlURI();
+        extractor.extract(curi);
+        while (extractor.ranOn == null) {
+            Thread.sleep(10);
+        }
+        // as when the URI never reaches the CandidatesProcessor
+        HeavyExtractorPool.abandonPendingExtractions(curi);
+        assertNull(curi.getPendingExtractions());
+        assertTrue(curi.getOutLinks().isEmpty());
+
+        final CountDownLatch freed = new CountDownLatch(1);
+        assertTrue(curi.isRecorderHeld());
+        curi.whenRecorderFree(new Runnable() {
+            public void run() {
+                freed.countDown();
+            }
+        });
+        assertEquals(1, freed.getCount());
+        assertTrue(freed.await(10, TimeUnit.SECONDS));
+        assertFalse(curi.isRecorderHeld());
+
+        // nothing left for cleanup to cancel, nor any hold to take
+        curi.processingCleanup();
+        assertFalse(curi.isRecorderHeld());
+    }
+
+    public void testInlineWithoutPool() throws Exception {
+        StallingExtractor extractor = new StallingExtractor();
+        CrawlURI curi = makeCrawlURI();
+        extractor.extract(curi);
+        assertSame(Thread.currentThread(), extractor.ranOn);
+        assertNull(curi.getPendingExtractions());
+        assertEquals(2, curi.getOutLinks().size());
+        assertTrue(curi.hasBeenLinkExtracted());
+    }
+}
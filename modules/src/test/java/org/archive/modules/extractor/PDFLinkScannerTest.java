@@ -0,0 +1,113 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link PDFLinkScanner}.
+ */
+public class PDFLinkScannerTest extends TestCase {
+
+    protected List<String> scan(PDFLinkScanner scanner, byte[] pdf)
+            throws Exception {
+        return scanner.extractURIs(
+                new PDFLinkScanner.ByteBufferSource(ByteBuffer.wrap(pdf)));
+    }
+
+    protected byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public void testDirectAndIndirectURIs() throws Exception {
+        String pdf = "%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n"
+            + "1 0 obj << /Type /Annot /Subtype /Link /A << /S /URI "
+            + "/URI (http://example.com/a\\(1\\)) >> >> endobj\n"
+            + "2 0 obj << /Type /Action /S /URI /URI 3 0 R >> endobj\n"
+            + "3 0 obj (http://example.com/b) endobj\n"
+            + "4 0 obj << /A << /S /URI /URI <687474703a2f2f6578616d706c652e636f6d2f63> >> >>\n"
+            + "endobj\n"
+            + "trailer << /Root 5 0 R >>\n%%EOF\n";
+        PDFLinkScanner scanner = new PDFLinkScanner();
+        assertEquals(Arrays.asList("http://example.com/a(1)",
+                "http://example.com/c", "http://example.com/b"),
+                scan(scanner, bytes(pdf)));
+        assertFalse(scanner.isEncrypted());
+    }
+
+    public void testStreamDataSkipped() throws Exception {
+        String data = "BT /URI (http://example.com/fake) Tj ET endobj ( ";
+        String pdf = "%PDF-1.4\n"
+            + "1 0 obj << /Length " + data.length() + " >>\nstream\r\n"
+            + data + "\nendstream\nendobj\n"
+            // wrong length: found by searching for endstream
+            + "2 0 obj << /Length 3 >>\nstream\n" + data + "\nendstream\nendobj\n"
+            + "3 0 obj << /Length 9 0 R >>\nstream\n" + data + "\nendstream\nendobj\n"
+            + "4 0 obj << /URI (http://example.com/real) >> endobj\n";
+        assertEquals(Arrays.asList("http://example.com/real"),
+                scan(new PDFLinkScanner(), bytes(pdf)));
+    }
+
+    public void testObjectStream() throws Exception {
+        String obj10 = "<< /S /URI /URI 11 0 R >>";
+        String obj11 = "(http://example.com/indirect)";
+        String obj12 = "<< /Subtype /Link /A << /URI (http://example.com/packed) >> >>";
+        String offsets = "10 0 11 " + (obj10.length() + 1) + " 12 "
+            + (obj10.length() + obj11.length() + 2) + " ";
+        byte[] plain = bytes(offsets + obj10 + " " + obj11 + " " + obj12);
+        Deflater deflater = new Deflater();
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] buf = new byte[4096];
+        int n = deflater.deflate(buf);
+        deflater.end();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(bytes("%PDF-1.5\n5 0 obj << /Type /ObjStm /N 3 /First "
+                + offsets.length() + " /Filter /FlateDecode /Length " + n
+                + " >>\nstream\n"));
+        out.write(buf, 0, n);
+        out.write(bytes("\nendstream\nendobj\n"));
+        assertEquals(Arrays.asList("http://example.com/packed",
+                "http://example.com/indirect"),
+                scan(new PDFLinkScanner(), out.toByteArray()));
+    }
+
+    public void testUnicodeString() throws Exception {
+        String pdf = "1 0 obj << /URI <FEFF0068007400740070003a002f002f0078002f00e9> >> endobj";
+        assertEquals(Arrays.asList("http://x/\u00e9"),
+                scan(new PDFLinkScanner(), bytes(pdf)));
+    }
+
+    public void testEncrypted() throws Exception {
+        String pdf = "%PDF-1.4\n1 0 obj << /URI (\u0093\u00a7) >> endobj\n"
+            + "trailer << /Root 2 0 R /Encrypt 3 0 R >>\n";
+        PDFLinkScanner scanner = new PDFLinkScanner();
+        scan(scanner, bytes(pdf));
+        assertTrue(scanner.isEncrypted());
+    }
+}
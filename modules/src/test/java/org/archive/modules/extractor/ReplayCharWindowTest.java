@@ -0,0 +1,139 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+/**
+ * Unit test for {@link ReplayCharWindow}, and for the windowed scanning in
+ * {@link ExtractorCSS}, {@link ExtractorJS} and {@link ExtractorXML}.
+ */
+public class ReplayCharWindowTest extends TestCase {
+
+    public void testWindowsCoverContent() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("line ").append(i).append(" \u00e9\u4e2d\ud83d\ude00\n");
+        }
+        String content = sb.toString();
+        ReplayCharWindow window = new ReplayCharWindow(
+                new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8, 100, 30);
+        StringBuilder seen = new StringBuilder();
+        while (window.advance()) {
+            assertTrue(window.length() <= 130);
+            assertEquals(seen.length(),
+                    window.getOffset() + window.getFreshIndex());
+            // kept look-back matches what was already seen
+            assertEquals(seen.substring(seen.length() - window.getFreshIndex()),
+                    window.subSequence(0, window.getFreshIndex()).toString());
+            seen.append(window.subSequence(window.getFreshIndex(), window.length()));
+        }
+        assertTrue(window.isAtEnd());
+        assertEquals(content, seen.toString());
+        assertEquals(0, window.getDecodeErrorCount());
+    }
+
+    public void testMalformedInputCounted() throws Exception {
+        byte[] bytes = new byte[] { 'a', (byte) 0xff, 'b', (byte) 0xc3 };
+        ReplayCharWindow window = new ReplayCharWindow(
+                new ByteArrayInputStream(bytes), StandardCharsets.UTF_8, 10, 2);
+        assertTrue(window.advance());
+        assertEquals("a\ufffdb\ufffd", window.toString());
+        assertEquals(2, window.getDecodeErrorCount());
+        assertFalse(window.advance());
+    }
+
+    public void testStreamingCSS() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append(".c").append(i).append(" { background: url(\"/img/")
+                .append(i).append(".png\") }\n");
+            if (i % 100 == 0) {
+                sb.append("@import url(    '/css/").append(i).append(".css'  );\n");
+            }
+        }
+        assertSameOutlinks(new ExtractorCSS(), new ExtractorCSS(),
+                sb.toString(), "text/css");
+    }
+
+    public void testStreamingJS() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("var s").append(i).append(" = \"/js/")
+                .append(i).append(".html\"; f('x', \\'/esc/").append(i)
+                .append(".html\\');\n");
+        }
+        assertSameOutlinks(new ExtractorJS(), new ExtractorJS(),
+                sb.toString(), "application/javascript");
+    }
+
+    public void testStreamingXML() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>\n<urlset>\n");
+        for (int i = 0; i < 2000; i++) {
+            sb.append("<url><loc>http://example.com/page/").append(i)
+                .append("</loc><image href=\"http://example.com/i/")
+                .append(i).append(".jpg\"/></url>\n");
+        }
+        sb.append("</urlset>\n");
+        assertSameOutlinks(new ExtractorXML(), new ExtractorXML(),
+                sb.toString(), "text/xml");
+    }
+
+    protected void assertSameOutlinks(ContentExtractor whole,
+            ContentExtractor streaming, String content, String contentType)
+            throws Exception {
+        streaming.setStreamingThreshold(0);
+        Set<String> expected = extract(whole, content, contentType);
+        assertTrue(expected.size() > 100);
+        assertEquals(expected, extract(streaming, content, contentType));
+    }
+
+    protected Set<String> extract(ContentExtractor extractor, String content,
+            String contentType) throws Exception {
+        extractor.setLoggerModule(new UnitTestUriLoggerModule());
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://www.archive.org/start/"),
+                null, null, LinkContext.NAVLINK_MISC);
+        Recorder recorder = ContentExtractorTestBase.createRecorder(content, "UTF-8");
+        recorder.setCharset(StandardCharsets.UTF_8);
+        curi.setContentType(contentType);
+        curi.setRecorder(recorder);
+        curi.setContentSize(content.length());
+        curi.setFetchStatus(200);
+        extractor.process(curi);
+        Set<String> outlinks = new HashSet<String>();
+        for (CrawlURI link : curi.getOutLinks()) {
+            outlinks.add(link.getURI() + " " + link.getViaContext()
+                    + " " + link.getLastHop());
+        }
+        recorder.cleanup();
+        return outlinks;
+    }
+}
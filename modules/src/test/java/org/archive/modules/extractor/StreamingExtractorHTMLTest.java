@@ -0,0 +1,129 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+
+/**
+ * Runs the ExtractorHTML tests against {@link StreamingExtractorHTML}, and
+ * compares the two extractors' outlinks on awkward markup.
+ */
+public class StreamingExtractorHTMLTest extends ExtractorHTMLTest {
+
+    final public static String[] AWKWARD_MARKUP = new String[] {
+        "<a href=\"/a\" data-remote=\"true\">x</a><A HREF='/b' data-remote='true'>",
+        "<a data-remote=\"true\" href=\"/c\">",
+        "<a href=/d\ndata-remote='true'>",
+        "<img\tsrc = \"i.png\" srcset=\"s1.png 1x, s2.png 2x,s3.png,, s4.png (a, b), s5.png\">",
+        "<img data-srcset=\"d1.png 100w,d2.png 200w\" data-original=\"o.png\">",
+        "<a title=\"<b>\" href=\"/e\">",
+        "<a href=\"/f><a href=/g>",
+        "<a href=\"/h",
+        "<a href=\"/i\n>",
+        "<a href=\"/j\r\n>",
+        "<a xhref=\"/no\" hreflang=\"en\" href=\"/k\">",
+        "<a onclick=\"window.location='/l.html'\" on-click=\"/m.html\">",
+        "<script src=\"s.js\">var u = '/n.html';</SCRIPT><script>var v = '/o.html';",
+        "<script src=\"unclosed.js\">var w = '/p.html';",
+        "<style type=\"text/css\">@import url(q.css);</style><style>b { background: url(r.png) }",
+        "<!-- <a href=\"/hidden\"> --><a href=\"/s\">",
+        "<!--[if IE]><link rel=\"stylesheet\" href=\"ie.css\"><![endif]-->",
+        "<!--> <a href=\"/t\"> <!-- unclosed <a href=\"/u\">",
+        "<meta http-equiv=\"refresh\" content=\"0; url='/v'\"><meta name=x content=\"http://example.com/w\">",
+        "<form action=\"/x\" method=post><form ACTION=\"/y\"><form method=\"GET\" action=/z>",
+        "<object codebase=\"/cb/\" classid=\"c.class\" data=\"d.bin\" archive=\"a1.jar a2.jar\">",
+        "<applet code=\"Main\" archive=\"app.jar\"><param name=\"flashvars\" value=\"u=/fv.html&amp;x=1\">",
+        "<embed flashvars=\"url=http%3A%2F%2Fexample.com%2Fe.html\"><input value=\"/val.html\" disabled>",
+        "<link rel=\"icon stylesheet\" href=\"/icon.png\"><link rel=\"next\" href=\"/next\"><link rel=pingback href=/pb>",
+        "<base href=\"/base/\"><a href=\"rel\">",
+        "<iframe src=\"/frame\"><frame src=/frame2><div style=\"background: url('/bg.png')\">",
+        "<a href=\"javascript:go('/js.html')\"><a href=\"javascript:go('/js2.html')\nx\">",
+        "<a href = \n '/ws' >",
+        "<a href=\"" + repeat('x', 3000) + "\" src=/after>",
+        "<a " + repeat('n', 70) + "=\"/longname\" " + repeat('o', 3) + "n" + repeat('c', 70) + "=\"x\">",
+        "<" + repeat('e', 70) + " href=\"/longelement\"><img src=\"/ok\">",
+        "<a href=\"/&amp;amp\" hr\u00e9f=\"/unicode\">",
+        "<a href=>",
+        "<a href=   ",
+    };
+
+    @Override
+    protected Extractor makeExtractor() {
+        return configure(new StreamingExtractorHTML());
+    }
+
+    protected ExtractorHTML configure(ExtractorHTML result) {
+        UriErrorLoggerModule ulm = new UnitTestUriLoggerModule();
+        result.setLoggerModule(ulm);
+        CrawlMetadata metadata = new CrawlMetadata();
+        metadata.afterPropertiesSet();
+        result.setMetadata(metadata);
+        result.setExtractorJS(new ExtractorJS());
+        result.afterPropertiesSet();
+        return result;
+    }
+
+    protected static String repeat(char c, int count) {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    protected List<String> outlinks(ExtractorHTML extractor, String content)
+            throws URIException {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://www.example.com/dir/page.html"));
+        extractor.extract(curi, content);
+        List<String> links = new ArrayList<String>();
+        for (CrawlURI link : curi.getOutLinks()) {
+            links.add(link.getURI() + " " + link.getLastHop() + " " + link.getViaContext());
+        }
+        links.add("base " + curi.getBaseURI());
+        links.add("forms " + curi.getDataList(ExtractorHTML.A_FORM_OFFSETS));
+        return links;
+    }
+
+    public void testSameOutlinksAsExtractorHTML() throws URIException {
+        ExtractorHTML regex = configure(new ExtractorHTML());
+        StringBuilder all = new StringBuilder();
+        for (String content : AWKWARD_MARKUP) {
+            assertEquals(content, outlinks(regex, content),
+                    outlinks(getExtractor(), content));
+            all.append(content).append('\n');
+        }
+        assertEquals(outlinks(regex, all.toString()),
+                outlinks(getExtractor(), all.toString()));
+    }
+
+    public void testMetaRobotsNofollowStops() throws URIException {
+        String content = "<a href=\"/before\"><meta name=\"robots\" content=\"nofollow\"><a href=\"/after\">";
+        List<String> links = outlinks(getExtractor(), content);
+        assertEquals(outlinks(configure(new ExtractorHTML()), content), links);
+        assertTrue(links.get(0).startsWith("http://www.example.com/before "));
+        assertFalse(links.get(1).startsWith("http://www.example.com/after "));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.IOUtils;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+/**
+ * Unit test for {@link StreamingExtractorPDF}.
+ */
+public class StreamingExtractorPDFTest extends TestCase {
+
+    protected byte[] pdf(int padding) {
+        StringBuilder sb = new StringBuilder("%PDF-1.4\n");
+        sb.append("1 0 obj << /A << /S /URI /URI (http://example.com/a) >> >> endobj\n");
+        sb.append("2 0 obj (");
+        for (int i = 0; i < padding; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        sb.append(") endobj\n");
+        sb.append("3 0 obj << /A << /S /URI /URI (http://example.com/b) >> >> endobj\n");
+        sb.append("trailer << /Root 1 0 R >>\n%%EOF\n");
+        return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The as-is path reads the Recorder's own replay stream; the body must
+     * still replay afterwards for the processors (and WARC writer) that
+     * follow, including when it has spilled past the in-memory buffer.
+     */
+    public void testRecorderReplaysAfterExtraction() throws Exception {
+        byte[] content = pdf(64 * 1024);
+        StreamingExtractorPDF extractor = new StreamingExtractorPDF();
+        extractor.setLoggerModule(new UnitTestUriLoggerModule());
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://example.com/doc.pdf"));
+        File temp = File.createTempFile("test", ".tmp");
+        Recorder recorder = new Recorder(temp, 1024, 1024);
+        try {
+            InputStream is = recorder.inputWrap(new ByteArrayInputStream(content));
+            recorder.markContentBegin();
+            for (int x = is.read(); x >= 0; x = is.read());
+            is.close();
+            curi.setContentType("application/pdf");
+            curi.setRecorder(recorder);
+            curi.setContentSize(content.length);
+            curi.setFetchStatus(200);
+            assertTrue(extractor.isBodyRecordedAsIs(curi));
+
+            extractor.process(curi);
+
+            List<String> links = new ArrayList<String>();
+            for (CrawlURI link : curi.getOutLinks()) {
+                links.add(link.getURI());
+            }
+            assertEquals(Arrays.asList("http://example.com/a",
+                    "http://example.com/b"), links);
+
+            for (int pass = 0; pass < 2; pass++) {
+                InputStream replay = recorder.getContentReplayInputStream();
+                try {
+                    assertTrue(Arrays.equals(content,
+                            IOUtils.toByteArray(replay)));
+                } finally {
+                    replay.close();
+                }
+            }
+        } finally {
+            recorder.cleanup();
+            temp.delete();
+        }
+    }
+}
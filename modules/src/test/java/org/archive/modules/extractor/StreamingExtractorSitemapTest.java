@@ -0,0 +1,206 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual 
+ *  contributors. 
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.extractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.archive.modules.CoreAttributeConstants;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.archive.util.Recorder;
+
+/**
+ * Unit test for {@link StreamingExtractorSitemap}.
+ */
+public class StreamingExtractorSitemapTest extends TestCase {
+
+    protected CrawlURI extract(StreamingExtractorSitemap extractor,
+            byte[] content) throws Exception {
+        extractor.setLoggerModule(new UnitTestUriLoggerModule());
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("http://example.com/maps/sitemap.xml"));
+        curi.getAnnotations().add(ExtractorRobotsTxt.ANNOTATION_IS_SITEMAP);
+        File temp = File.createTempFile("test", ".tmp");
+        Recorder recorder = new Recorder(temp, 1024, 1024);
+        InputStream is = recorder.inputWrap(new ByteArrayInputStream(content));
+        recorder.markContentBegin();
+        for (int x = is.read(); x >= 0; x = is.read());
+        is.close();
+        curi.setContentType("text/xml");
+        curi.setRecorder(recorder);
+        curi.setContentSize(content.length);
+        curi.setFetchStatus(200);
+        extractor.process(curi);
+        recorder.cleanup();
+        return curi;
+    }
+
+    protected List<String> outlinks(CrawlURI curi) {
+        List<String> links = new ArrayList<String>();
+        for (CrawlURI link : curi.getOutLinks()) {
+            links.add(link.getURI());
+        }
+        return links;
+    }
+
+    protected CrawlURI outlink(CrawlURI curi, String uri) {
+        for (CrawlURI link : curi.getOutLinks()) {
+            if (link.getURI().equals(uri)) {
+                return link;
+            }
+        }
+        fail("no outlink " + uri);
+        return null;
+    }
+
+    public void testUrlset() throws Exception {
+        String xml = "\ufeff<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\""
+            + " xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\">\n"
+            + "<url><loc> http://example.com/maps/a?x=1&amp;y=2 </loc>"
+            + "<lastmod>2020-01-02T03:04:05+01:00</lastmod>"
+            + "<image:image><image:loc>http://example.com/maps/i.png</image:loc></image:image>"
+            + "</url>\n"
+            + "<url><loc><![CDATA[http://example.com/maps/b]]></loc>"
+            + "<lastmod>not a date</lastmod></url>\n"
+            + "<url><loc>http://example.com/elsewhere</loc></url>\n"
+            + "</urlset>";
+        CrawlURI curi = extract(new StreamingExtractorSitemap(),
+                xml.getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, curi.getOutLinks().size());
+        CrawlURI a = outlink(curi, "http://example.com/maps/a?x=1&y=2");
+        assertEquals(1577930645000L,
+                a.getData().get(CoreAttributeConstants.A_SITEMAP_LASTMOD));
+        assertFalse(a.getAnnotations().contains(
+                ExtractorRobotsTxt.ANNOTATION_IS_SITEMAP));
+        CrawlURI b = outlink(curi, "http://example.com/maps/b");
+        assertNull(b.getData().get(CoreAttributeConstants.A_SITEMAP_LASTMOD));
+    }
+
+    public void testLenient() throws Exception {
+        String xml = "<?xml version=\"1.0\"?><urlset>"
+            + "<url><loc>http://example.com/elsewhere</loc></url></urlset>";
+        StreamingExtractorSitemap extractor = new StreamingExtractorSitemap();
+        extractor.setEnableLenientExtraction(true);
+        CrawlURI curi = extract(extractor, xml.getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, curi.getOutLinks().size());
+    }
+
+    public void testGzippedIndex() throws Exception {
+        String xml = "<?xml version=\"1.0\"?><sitemapindex>"
+            + "<sitemap><loc>http://example.com/s1.xml.gz</loc>"
+            + "<lastmod>2004-10-01</lastmod></sitemap>"
+            + "<sitemap><loc>http://example.com/s2.xml</loc></sitemap>"
+            + "</sitemapindex>";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        gzip.write(xml.getBytes(StandardCharsets.UTF_8));
+        gzip.close();
+        CrawlURI curi = extract(new StreamingExtractorSitemap(),
+                bytes.toByteArray());
+        assertEquals(2, curi.getOutLinks().size());
+        CrawlURI s1 = outlink(curi, "http://example.com/s1.xml.gz");
+        assertTrue(s1.getAnnotations().contains(
+                ExtractorRobotsTxt.ANNOTATION_IS_SITEMAP));
+        assertEquals(1096588800000L,
+                s1.getData().get(CoreAttributeConstants.A_SITEMAP_LASTMOD));
+    }
+
+    public void testText() throws Exception {
+        String text = "http://example.com/maps/t1\r\n\r\n"
+            + "  http://example.com/maps/t2  \n"
+            + "ftp://example.com/maps/t3\n"
+            + "http://example.com/t4";
+        CrawlURI curi = extract(new StreamingExtractorSitemap(),
+                text.getBytes(StandardCharsets.UTF_8));
+        List<String> expected = new ArrayList<String>();
+        expected.add("http://example.com/maps/t1");
+        expected.add("http://example.com/maps/t2");
+        assertEquals(expected, outlinks(curi));
+    }
+
+    public void testTruncatedKeepsEarlierLinks() throws Exception {
+        String xml = "<urlset><url><loc>http://example.com/maps/ok</loc></url>"
+            + "<url><loc>http://example.com/maps/cut";
+        CrawlURI curi = extract(new StreamingExtractorSitemap(),
+                xml.getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, curi.getOutLinks().size());
+    }
+
+    protected StreamingExtractorSitemap withMaxOutlinks(final int max) {
+        StreamingExtractorSitemap extractor = new StreamingExtractorSitemap();
+        extractor.setExtractorParameters(new ExtractorParameters() {
+            public int getMaxOutlinks() {
+                return max;
+            }
+            public boolean getExtractIndependently() {
+                return false;
+            }
+            public boolean getExtract404s() {
+                return false;
+            }
+        });
+        return extractor;
+    }
+
+    public void testOutlinkLimit() throws Exception {
+        StringBuilder xml = new StringBuilder("<urlset>");
+        for (int i = 0; i < ExtractorSitemap.MAX_SITEMAP_OUTLINKS + 10; i++) {
+            xml.append("<url><loc>http://example.com/maps/")
+                .append(i).append("</loc></url>\n");
+        }
+        xml.append("</urlset>");
+        byte[] content = xml.toString().getBytes(StandardCharsets.UTF_8);
+
+        // the configured limit
+        CrawlURI curi = extract(new StreamingExtractorSitemap(), content);
+        assertEquals(Extractor.DEFAULT_PARAMETERS.getMaxOutlinks(),
+                curi.getOutLinks().size());
+        curi = extract(withMaxOutlinks(10), content);
+        assertEquals(10, curi.getOutLinks().size());
+
+        // capped at the sitemap protocol's
+        curi = extract(withMaxOutlinks(100000), content);
+        assertEquals(ExtractorSitemap.MAX_SITEMAP_OUTLINKS,
+                curi.getOutLinks().size());
+    }
+
+    public void testParseLastmod() {
+        assertEquals(1072915200000L,
+                StreamingExtractorSitemap.parseLastmod("2004").getTime());
+        assertEquals(1075593600000L,
+                StreamingExtractorSitemap.parseLastmod("2004-02").getTime());
+        assertEquals(1075640400000L, StreamingExtractorSitemap
+                .parseLastmod("2004-02-01T13:00Z").getTime());
+        assertEquals(1075640400000L, StreamingExtractorSitemap
+                .parseLastmod("2004-02-01T13:00:00").getTime());
+        assertNull(StreamingExtractorSitemap.parseLastmod("yesterday"));
+        assertNull(StreamingExtractorSitemap.parseLastmod(null));
+    }
+}
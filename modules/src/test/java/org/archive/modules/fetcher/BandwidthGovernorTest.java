@@ -0,0 +1,85 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.BandwidthGovernor.TokenBucket;
+import org.archive.net.UURIFactory;
+
+/**
+ * Tests for BandwidthGovernor.
+ */
+public class BandwidthGovernorTest extends TestCase {
+
+    public void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(1000);
+        long now = System.currentTimeMillis();
+        // one second's burst available
+        assertEquals(0, bucket.take(1000, now));
+        // then in debt
+        assertEquals(500, bucket.take(500, now));
+        assertEquals(0, bucket.take(0, now + 500));
+        // refill capped at one second's worth
+        assertEquals(0, bucket.take(1000, now + 10000));
+        assertEquals(1, bucket.take(1, now + 10000));
+    }
+
+    public void testNoLimits() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://example.com/"));
+        assertFalse(governor.isLimiting(curi));
+        assertNull(governor.throttleFor(curi));
+    }
+
+    public void testHostBucketsShared() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setMaxPerHostKBSec(100);
+        CrawlURI a = new CrawlURI(UURIFactory.getInstance("http://example.com/a"));
+        CrawlURI b = new CrawlURI(UURIFactory.getInstance("http://example.com/b"));
+        CrawlURI c = new CrawlURI(UURIFactory.getInstance("http://example.org/c"));
+        assertTrue(governor.isLimiting(a));
+        assertSame(governor.throttleFor(a).buckets[0], 
+                governor.throttleFor(b).buckets[0]);
+        assertNotSame(governor.throttleFor(a).buckets[0], 
+                governor.throttleFor(c).buckets[0]);
+        assertEquals(1, governor.throttleFor(a).buckets.length);
+    }
+
+    public void testThrottledRead() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setMaxGlobalKBSec(100);
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://example.com/"));
+        // the global bucket starts empty
+        InputStream in = governor.throttleFor(curi).wrap(
+                new ByteArrayInputStream(new byte[50 * 1024]));
+        long start = System.currentTimeMillis();
+        byte[] buf = new byte[4096];
+        while (in.read(buf) > 0) {
+            // just reading
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("too fast: " + elapsed, elapsed >= 400);
+        assertTrue(governor.getGlobalThrottledMs() >= 400);
+    }
+}
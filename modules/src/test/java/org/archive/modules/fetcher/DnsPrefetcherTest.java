@@ -0,0 +1,166 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package org.archive.modules.fetcher;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+
+import junit.framework.TestCase;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.net.CrawlHost;
+import org.archive.net.UURIFactory;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * Tests for DnsPrefetcher, against an in-process stub DNS server.
+ */
+public class DnsPrefetcherTest extends TestCase {
+
+    /**
+     * Answers A queries for names starting "known" with 10.0.0.1, TTL 300;
+     * NXDOMAIN for everything else.
+     */
+    protected static class StubDnsServer extends Thread {
+        DatagramSocket socket;
+        volatile int queries = 0;
+
+        StubDnsServer() throws SocketException {
+            super("StubDnsServer");
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        public void run() {
+            byte[] buf = new byte[512];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                    socket.receive(packet);
+                    queries++;
+                    Message query = new Message(packet.getData());
+                    Record question = query.getQuestion();
+                    Message response = new Message(query.getHeader().getID());
+                    response.getHeader().setFlag(Flags.QR);
+                    response.addRecord(question, Section.QUESTION);
+                    if (question.getName().toString().startsWith("known")) {
+                        response.addRecord(new ARecord(question.getName(),
+                                DClass.IN, 300, InetAddress.getByAddress(
+                                        new byte[] {10, 0, 0, 1})),
+                                Section.ANSWER);
+                    } else {
+                        response.getHeader().setRcode(Rcode.NXDOMAIN);
+                    }
+                    byte[] wire = response.toWire();
+                    socket.send(new DatagramPacket(wire, wire.length,
+                            packet.getSocketAddress()));
+                } catch (Exception e) {
+                    // closed, or unparseable query
+                }
+            }
+        }
+    }
+
+    protected StubDnsServer server;
+    protected DefaultServerCache serverCache;
+    protected DnsPrefetcher prefetcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new StubDnsServer();
+        server.start();
+        serverCache = new DefaultServerCache();
+        prefetcher = new DnsPrefetcher();
+        prefetcher.setServerCache(serverCache);
+        prefetcher.setDnsServer("127.0.0.1:" + server.getPort());
+        prefetcher.setTimeoutSeconds(2);
+        prefetcher.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        prefetcher.stop();
+        server.socket.close();
+        super.tearDown();
+    }
+
+    protected void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (prefetcher.getPendingCount() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, prefetcher.getPendingCount());
+    }
+
+    public void testResolvesBatch() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            prefetcher.prefetch(new CrawlURI(UURIFactory.getInstance(
+                    "http://known" + i + ".example.com/")));
+        }
+        awaitIdle();
+        assertEquals(20, prefetcher.getResolvedCount());
+        for (int i = 0; i < 20; i++) {
+            CrawlHost host = serverCache.getHostFor("known" + i + ".example.com");
+            assertTrue(host.hasBeenLookedUp());
+            assertEquals("10.0.0.1", host.getIP().getHostAddress());
+            assertEquals(300, host.getIpTTL());
+        }
+    }
+
+    public void testFailureLeftForFetchDNS() throws Exception {
+        prefetcher.prefetch("unknown.example.com");
+        awaitIdle();
+        assertEquals(1, prefetcher.getFailedCount());
+        assertFalse(serverCache.getHostFor("unknown.example.com").hasBeenLookedUp());
+
+        StringWriter report = new StringWriter();
+        prefetcher.reportTo(new PrintWriter(report));
+        assertEquals(" DNS prefetch:  0 resolved, 1 left to FetchDNS, "
+                + "0 not queued, 0 pending\n", report.toString());
+    }
+
+    public void testSkipsLookedUpAndNonNetworkHosts() throws Exception {
+        CrawlHost host = serverCache.getHostFor("known.example.com");
+        host.setIP(InetAddress.getByAddress(new byte[] {10, 0, 0, 2}), 60);
+        prefetcher.prefetch("known.example.com");
+        prefetcher.prefetch("192.168.1.1");
+        prefetcher.prefetch(new CrawlURI(UURIFactory.getInstance(
+                "dns:known2.example.com")));
+        awaitIdle();
+        Thread.sleep(100);
+        assertEquals(0, server.queries);
+        assertEquals("10.0.0.2", host.getIP().getHostAddress());
+    }
+}
@@ -62,9 +62,12 @@ import org.archive.modules.CoreAttributeConstants;
 import org.archive.modules.CrawlMetadata;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.CrawlURI.FetchType;
+import org.archive.modules.ProcessResult;
+import org.archive.modules.ProcessorChain;
 import org.archive.modules.credential.HttpAuthenticationCredential;
 import org.archive.modules.deciderules.RejectDecideRule;
 import org.archive.modules.forms.HTMLForm.NameValue;
+import org.archive.modules.net.CrawlHost;
 import org.archive.modules.recrawl.FetchHistoryProcessor;
 import org.archive.modules.revisit.ServerNotModifiedRevisit;
 import org.archive.net.UURI;
@@ -770,6 +773,70 @@ public class FetchHTTPTest {
         assertEquals(DEFAULT_PAYLOAD_STRING, contentString(curi));
     }
 
+    @Test
+    public void testPooledConnections() throws Exception {
+        fetcher().setUsePooledConnections(true);
+        CrawlURI curi = makeCrawlURI("http://localhost:7777/");
+        fetcher().process(curi);
+        String requestString = httpRequestString(curi);
+        assertTrue(requestString.startsWith("GET / HTTP/1.1\r\n"));
+        assertFalse(requestString.matches("(?s).*Connection: [Cc]lose\r\n.*"));
+        assertEquals(200, curi.getFetchStatus());
+        assertEquals(DEFAULT_PAYLOAD_STRING, contentString(curi));
+        assertEquals(1, fetcher().getConnectionPool().getIdleCount());
+
+        // reused connection records next exchange from its first byte,
+        // and chunked response ends without waiting on timeouts
+        curi = makeCrawlURI("http://localhost:7777/chunked.txt");
+        fetcher().process(curi);
+        assertEquals(1, fetcher().getConnectionPool().getConnectionsReused());
+        assertTrue(httpRequestString(curi).startsWith("GET /chunked.txt HTTP/1.1\r\n"));
+        assertTrue(rawResponseString(curi).startsWith("HTTP/1.1 200 "));
+        assertEquals("chunked", curi.getHttpResponseHeader("transfer-encoding"));
+        assertEquals("25\r\n" + DEFAULT_PAYLOAD_STRING + "\r\n0\r\n\r\n", messageBodyString(curi));
+        assertEquals(DEFAULT_PAYLOAD_STRING, contentString(curi));
+
+        curi = makeCrawlURI("http://localhost:7777/");
+        fetcher().process(curi);
+        assertEquals(2, fetcher().getConnectionPool().getConnectionsReused());
+        assertEquals(1, fetcher().getConnectionPool().getConnectionsOpened());
+        assertEquals(DEFAULT_PAYLOAD_STRING, contentString(curi));
+
+        fetcher().getConnectionPool().shutdown();
+        assertEquals(0, fetcher().getConnectionPool().getIdleCount());
+    }
+
+    @Test
+    public void testAsyncFetch() throws Exception {
+        fetcher().setUseAsyncFetch(true);
+        fetcher().asyncEngine = new FetchHTTPAsyncEngine(fetcher(),
+                TmpDirTestCase.tmpDir(), 10, 2048, 8192);
+        final BlockingQueue<CrawlURI> resumed = new LinkedBlockingQueue<CrawlURI>();
+        ProcessorChain.ResumptionReceiver receiver = new ProcessorChain.ResumptionReceiver() {
+            @Override
+            public void resume(CrawlURI curi) {
+                resumed.add(curi);
+            }
+        };
+        for (String uri : new String[] { "http://localhost:7777/",
+                "http://localhost:7777/chunked.txt" }) {
+            CrawlURI curi = makeCrawlURI(uri);
+            curi.setResumptionReceiver(receiver);
+            fetcher().getServerCache().getHostFor(curi.getUURI()).setIP(
+                    InetAddress.getByName("127.0.0.1"), CrawlHost.IP_NEVER_EXPIRES);
+            assertEquals(ProcessResult.PARK, fetcher().process(curi));
+            assertSame(curi, resumed.poll(10, TimeUnit.SECONDS));
+            assertEquals(ProcessResult.PROCEED, fetcher().resumeProcess(curi));
+            assertTrue(httpRequestString(curi).startsWith("GET " + curi.getUURI().getPath() + " HTTP/1."));
+            assertTrue(httpRequestString(curi).matches("(?s).*Connection: [Cc]lose\r\n.*"));
+            assertEquals(200, curi.getFetchStatus());
+            assertEquals(DEFAULT_PAYLOAD_STRING, contentString(curi));
+            fetcher().parkedProcessingComplete(curi);
+        }
+        assertEquals(2, fetcher().getAsyncEngine().getFetchesCompleted());
+        assertEquals(0, fetcher().getAsyncEngine().getInFlightCount());
+    }
+
     protected static class NoResponseServer extends Thread {
         protected String listenAddress;
         protected int listenPort;
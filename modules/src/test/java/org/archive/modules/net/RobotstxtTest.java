@@ -251,4 +251,55 @@ public class RobotstxtTest extends TestCase {
         }
         new Robotstxt(new StringReader(builder.toString()));
     }
+
+    public void testWildcardsAndAnchors() throws IOException {
+        Robotstxt rt = new Robotstxt(new StringReader(
+                "User-agent: *\n"
+                + "Disallow: /*.php$\n"
+                + "Disallow: /private*/secret\n"
+                + "Disallow: /exact$\n"
+                + "Allow: /private/public*\n"));
+        RobotsDirectives d = rt.getDirectivesFor("anybot");
+        assertFalse(d.allows("/index.php"));
+        assertFalse(d.allows("/dir/page.php"));
+        assertTrue("anchored to end", d.allows("/index.php?x=1"));
+        assertFalse(d.allows("/private/secret"));
+        assertFalse(d.allows("/private-stuff/a/secret/b"));
+        assertTrue(d.allows("/private/other"));
+        assertFalse(d.allows("/exact"));
+        assertTrue(d.allows("/exactly"));
+    }
+
+    public void testLongestMatchWins() throws IOException {
+        Robotstxt rt = new Robotstxt(new StringReader(
+                "User-agent: *\n"
+                + "Disallow: /a\n"
+                + "Allow: /a/b\n"
+                + "Disallow: /a/b/c\n"
+                + "Disallow: /aa\n"
+                + "Allow: /*/x\n"
+                + "Disallow: /same\n"
+                + "Allow: /same\n"));
+        RobotsDirectives d = rt.getDirectivesFor("anybot");
+        assertFalse(d.allows("/a"));
+        assertTrue(d.allows("/a/b"));
+        assertFalse(d.allows("/a/b/c/d"));
+        // shorter prefix '/aa' is not a prefix of '/ab'
+        assertFalse(d.allows("/ab"));
+        // wildcard rule longer than literal match
+        assertTrue(d.allows("/a/x"));
+        assertTrue(d.allows("/aa/x"));
+        assertTrue("allow wins ties", d.allows("/same/thing"));
+    }
+
+    public void testInternedByContent() throws IOException {
+        String content = "User-agent: *\nDisallow: /private\n";
+        Robotstxt a = new Robotstxt(new StringReader(content));
+        Robotstxt b = new Robotstxt(new StringReader(content));
+        Robotstxt c = new Robotstxt(new StringReader(content + "Disallow: /x\n"));
+        assertEquals(a.getKey(), b.getKey());
+        assertFalse(a.getKey().equals(c.getKey()));
+        assertEquals(Robotstxt.NO_ROBOTS.getKey(),
+                new Robotstxt(new StringReader("")).getKey());
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ *  This file is part of the Heritrix web crawler (crawler.archive.org).
+ *
+ *  Licensed to the Internet Archive (IA) by one or more individual
+ *  contributors.
+ *
+ *  The IA licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.archive.modules.writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.archive.util.TmpDirTestCase;
+
+/**
+ * Tests for the sorting of CDX sidecars.
+ */
+public class CdxSidecarWriterTest extends TmpDirTestCase {
+
+    protected File dir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = new File(getTmpDir(), "CdxSidecarWriterTest");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    protected List<String> sort(CdxSidecarWriter writer, List<String> lines,
+            String header) throws IOException {
+        File in = new File(dir, "in.cdxj.open");
+        File out = new File(dir, "in.cdxj.tmp");
+        Files.write(in.toPath(), lines, StandardCharsets.UTF_8);
+        writer.sort(in, out, header);
+        return Files.readAllLines(out.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lines sort as UTF-8 bytes (as 'LC_ALL=C sort' does), not as UTF-16
+     * chars: U+FF21 (EF BC A1) sorts before U+1F600 (F0 9F 98 80), though
+     * the latter's surrogate pair sorts first as chars.
+     */
+    public void testByteOrder() throws Exception {
+        String wide = "com,example)/\uFF21 20250101000000 {}";
+        String astral = "com,example)/\uD83D\uDE00 20250101000000 {}";
+        String ascii = "com,example)/z 20250101000000 {}";
+        assertTrue(astral.compareTo(wide) < 0);
+
+        CdxSidecarWriter writer =
+            new CdxSidecarWriter(CdxSidecarWriter.Format.CDXJ, 10);
+        assertEquals(Arrays.asList(ascii, wide, astral),
+                sort(writer, Arrays.asList(astral, wide, ascii), null));
+    }
+
+    public void testMergesSpilledRuns() throws Exception {
+        List<String> lines = new ArrayList<String>();
+        Random random = new Random(0);
+        for (int i = 0; i < 2000; i++) {
+            lines.add("com,example)/" + Integer.toString(random.nextInt(), 36)
+                    + (i % 7 == 0 ? "\u00e9" : "") + " 20250101000000 {}");
+        }
+        CdxSidecarWriter writer =
+            new CdxSidecarWriter(CdxSidecarWriter.Format.CDX11, 10);
+        writer.setSortChunkBytes(4096);
+        List<String> sorted = sort(writer, lines, " CDX N b a m s k r M S V g");
+
+        List<byte[]> expected = new ArrayList<byte[]>();
+        for (String line : lines) {
+            expected.add(line.getBytes(StandardCharsets.UTF_8));
+        }
+        Collections.sort(expected, CdxSidecarWriter.BYTE_ORDER);
+        assertEquals(" CDX N b a m s k r M S V g", sorted.get(0));
+        assertEquals(lines.size() + 1, sorted.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(new String(expected.get(i), StandardCharsets.UTF_8),
+                    sorted.get(i + 1));
+        }
+        // only the output is left; runs are deleted
+        assertEquals(Arrays.asList("in.cdxj.open", "in.cdxj.tmp"),
+                sortedNames(dir.list()));
+    }
+
+    protected List<String> sortedNames(String[] names) {
+        List<String> list = new ArrayList<String>(Arrays.asList(names));
+        Collections.sort(list);
+        return list;
+    }
+}
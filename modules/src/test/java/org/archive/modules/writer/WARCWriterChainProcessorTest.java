@@ -1,14 +1,40 @@
 package org.archive.modules.writer;
 
+import static org.archive.format.warc.WARCConstants.HEADER_KEY_CONCURRENT_TO;
+import static org.archive.format.warc.WARCConstants.HEADER_KEY_ID;
+import static org.archive.format.warc.WARCConstants.HEADER_KEY_TYPE;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.IOUtils;
 
+import org.archive.format.warc.WARCConstants.WARCRecordType;
+import org.archive.io.ArchiveRecord;
+import org.archive.io.warc.WARCRecordInfo;
+import org.archive.io.warc.WARCReader;
+import org.archive.io.warc.WARCReaderFactory;
 import org.archive.modules.CrawlMetadata;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.CrawlURI.FetchType;
 import org.archive.modules.fetcher.DefaultServerCache;
+import org.archive.net.UURIFactory;
 import org.archive.spring.ConfigPath;
 import org.archive.util.FileUtils;
 import org.archive.util.TmpDirTestCase;
 
+import com.github.luben.zstd.ZstdInputStream;
+
 public class WARCWriterChainProcessorTest extends WARCWriterProcessorTest {
 
     @Override
@@ -32,4 +58,249 @@ public class WARCWriterChainProcessorTest extends WARCWriterProcessorTest {
         result.setMetadataProvider(metadata);
         return result;
     }
+
+    public void testCompressionPipeline() throws Exception {
+        WARCWriterChainProcessor wwp = new WARCWriterChainProcessor();
+        wwp.setMetadataProvider(new CrawlMetadata());
+        DefaultServerCache serverCache = new DefaultServerCache();
+        serverCache.getHostFor("test.com").setIP(InetAddress.getLoopbackAddress(), -1);
+        wwp.setServerCache(serverCache);
+        File workDir = new File(TmpDirTestCase.tmpDir(), "WARCWriterChainProcessorTest-testCompressionPipeline");
+        org.apache.commons.io.FileUtils.deleteDirectory(workDir);
+        wwp.setDirectory(new ConfigPath(null, workDir.getPath()));
+        wwp.setCompressionThreads(2);
+        // small enough that the response is spilled to disk
+        wwp.setCompressionSpillBytes(64);
+        wwp.start();
+        assertNotNull(wwp.getPipeline());
+
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://test.com/"));
+        String responseBody = "<html><head><title>test.com</title></head>\r\n"
+                + "<body><h1>test.com</h1></body></html>\r\n";
+        String responseHeader = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/html\r\n"
+                + "Content-Length: " + responseBody.length() + "\r\n"
+                + "\r\n";
+        byte[] responseBytes = (responseHeader + responseBody).getBytes("ASCII");
+
+        curi.setRecorder(getRecorder());
+        curi.getRecorder().inputWrap(new ByteArrayInputStream(responseBytes));
+        curi.getRecorder().getRecordedInput().readFully();
+        curi.getRecorder().close();
+        curi.setFetchStatus(200);
+        curi.setFetchType(FetchType.HTTP_GET);
+        curi.setContentSize(responseBytes.length);
+
+        wwp.process(curi);
+
+        assertEquals(3, wwp.getPipeline().getCompressCount());
+        assertEquals(1, wwp.getPipeline().getAppendCount());
+        assertEquals(1, wwp.getStats().get("response").get("numRecords").get());
+        assertEquals(4, wwp.getStats().get("totals").get("numRecords").get());
+        assertEquals(responseBytes.length, wwp.getStats().get("response").get("contentBytes").get());
+
+        File warcsDir = new File(workDir, "warcs");
+        File warc = null;
+        for (File f : warcsDir.listFiles()) {
+            assertFalse("leftover " + f, f.getName().endsWith(".tmp"));
+            if (f.getName().endsWith(".warc.gz.open")) {
+                warc = f;
+            }
+        }
+        assertEquals(warc.length(), wwp.getStats().get("totals").get("sizeOnDisk").get());
+        assertEquals(curi.getExtraInfo().get("warcFileOffset"),
+                wwp.getStats().get("warcinfo").get("sizeOnDisk").get());
+
+        WARCReader reader = WARCReaderFactory.get(warc);
+        try {
+            Iterator<ArchiveRecord> records = reader.iterator();
+            assertEquals(WARCRecordType.warcinfo.toString(),
+                    records.next().getHeader().getHeaderValue(HEADER_KEY_TYPE));
+            ArchiveRecord response = records.next();
+            assertEquals(WARCRecordType.response.toString(),
+                    response.getHeader().getHeaderValue(HEADER_KEY_TYPE));
+            Object responseId = response.getHeader().getHeaderValue(HEADER_KEY_ID);
+            for (WARCRecordType type : new WARCRecordType[] {
+                    WARCRecordType.request, WARCRecordType.metadata }) {
+                ArchiveRecord record = records.next();
+                assertEquals(type.toString(),
+                        record.getHeader().getHeaderValue(HEADER_KEY_TYPE));
+                assertEquals(responseId,
+                        record.getHeader().getHeaderValue(HEADER_KEY_CONCURRENT_TO));
+            }
+            assertFalse(records.hasNext());
+        } finally {
+            reader.close();
+        }
+        wwp.stop();
+    }
+
+    protected WARCRecordInfo slowRecord(int length) throws Exception {
+        WARCRecordInfo record = new WARCRecordInfo();
+        record.setRecordId(new URI("urn:uuid:" + UUID.randomUUID()));
+        record.setType(WARCRecordType.resource);
+        record.setUrl("http://test.com/");
+        record.setCreate14DigitDate("20250101000000");
+        record.setMimetype("text/plain");
+        record.setContentLength(length);
+        record.setEnforceLength(true);
+        record.setContentStream(new FilterInputStream(
+                new ByteArrayInputStream(new byte[length])) {
+            boolean slept = false;
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!slept) {
+                    slept = true;
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.read(b, off, len);
+            }
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+        });
+        return record;
+    }
+
+    /**
+     * Members still rendering when compress gives up are awaited and
+     * discarded, leaving no spill file behind.
+     */
+    public void testCompressionPipelineInterruptedLeavesNoSpill() 
+            throws Exception {
+        WARCWriterChainProcessor wwp = new WARCWriterChainProcessor();
+        wwp.setMetadataProvider(new CrawlMetadata());
+        wwp.setServerCache(new DefaultServerCache());
+        File workDir = new File(TmpDirTestCase.tmpDir(),
+                "WARCWriterChainProcessorTest-testCompressionPipelineInterrupted");
+        org.apache.commons.io.FileUtils.deleteDirectory(workDir);
+        wwp.setDirectory(new ConfigPath(null, workDir.getPath()));
+        wwp.setCompressionThreads(2);
+        wwp.setCompressionSpillBytes(64);
+        wwp.start();
+
+        List<WARCRecordInfo> records = new ArrayList<WARCRecordInfo>();
+        for (int i = 0; i < 2; i++) {
+            records.add(slowRecord(64 * 1024));
+        }
+        Thread.currentThread().interrupt();
+        try {
+            wwp.getPipeline().compress(records);
+            fail("expected interruption");
+        } catch (InterruptedIOException e) {
+            // expected
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+
+        File warcsDir = new File(workDir, "warcs");
+        for (File f : warcsDir.listFiles()) {
+            assertFalse("leftover " + f, f.getName().endsWith(".tmp"));
+        }
+        wwp.stop();
+    }
+
+    public void testZstdCompression() throws Exception {
+        WARCWriterChainProcessor wwp = new WARCWriterChainProcessor();
+        wwp.setMetadataProvider(new CrawlMetadata());
+        DefaultServerCache serverCache = new DefaultServerCache();
+        serverCache.getHostFor("test.com").setIP(InetAddress.getLoopbackAddress(), -1);
+        wwp.setServerCache(serverCache);
+        File workDir = new File(TmpDirTestCase.tmpDir(), "WARCWriterChainProcessorTest-testZstdCompression");
+        org.apache.commons.io.FileUtils.deleteDirectory(workDir);
+        wwp.setDirectory(new ConfigPath(null, workDir.getPath()));
+        wwp.setZstdCompression(true);
+        wwp.start();
+
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://test.com/"));
+        byte[] responseBytes = ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "hello hello hello hello\r\n").getBytes("ASCII");
+        curi.setRecorder(getRecorder());
+        curi.getRecorder().inputWrap(new ByteArrayInputStream(responseBytes));
+        curi.getRecorder().getRecordedInput().readFully();
+        curi.getRecorder().close();
+        curi.setFetchStatus(200);
+        curi.setFetchType(FetchType.HTTP_GET);
+        curi.setContentSize(responseBytes.length);
+
+        wwp.process(curi);
+
+        File warc = new File(new File(workDir, "warcs"),
+                curi.getExtraInfo().getString("warcFilename") + ".open");
+        assertTrue(warc.getName().endsWith(".warc.zst.open"));
+        assertEquals(warc.length(), wwp.getStats().get("totals").get("sizeOnDisk").get());
+
+        // record readable on its own from its offset
+        FileInputStream in = new FileInputStream(warc);
+        try {
+            IOUtils.skipFully(in, curi.getExtraInfo().getLong("warcFileOffset"));
+            String record = new String(IOUtils.toByteArray(new ZstdInputStream(in)), "UTF-8");
+            assertTrue(record.startsWith("WARC/1.0\r\nWARC-Type: response\r\n"));
+            assertTrue(record.contains("hello hello hello hello"));
+        } finally {
+            in.close();
+        }
+        wwp.stop();
+    }
+
+    public void testCdxSidecar() throws Exception {
+        WARCWriterChainProcessor wwp = new WARCWriterChainProcessor();
+        wwp.setMetadataProvider(new CrawlMetadata());
+        DefaultServerCache serverCache = new DefaultServerCache();
+        serverCache.getHostFor("test.com").setIP(InetAddress.getLoopbackAddress(), -1);
+        wwp.setServerCache(serverCache);
+        File workDir = new File(TmpDirTestCase.tmpDir(), "WARCWriterChainProcessorTest-testCdxSidecar");
+        org.apache.commons.io.FileUtils.deleteDirectory(workDir);
+        wwp.setDirectory(new ConfigPath(null, workDir.getPath()));
+        wwp.setWriteCdx(true);
+        wwp.start();
+
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance("http://test.com/"));
+        byte[] responseBytes = ("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "hello hello hello hello\r\n").getBytes("ASCII");
+        curi.setRecorder(getRecorder());
+        curi.getRecorder().inputWrap(new ByteArrayInputStream(responseBytes));
+        curi.getRecorder().getRecordedInput().readFully();
+        curi.getRecorder().close();
+        curi.setFetchStatus(200);
+        curi.setFetchType(FetchType.HTTP_GET);
+        curi.setContentType("text/plain");
+        curi.setContentSize(responseBytes.length);
+
+        wwp.process(curi);
+        String warcFilename = curi.getExtraInfo().getString("warcFilename");
+        long offset = curi.getExtraInfo().getLong("warcFileOffset");
+        wwp.stop();
+
+        File warcsDir = new File(workDir, "warcs");
+        File cdx = new File(warcsDir, warcFilename.replaceAll("\\.warc\\.gz$", ".cdxj"));
+        assertTrue(cdx.exists());
+        assertFalse(new File(warcsDir, cdx.getName() + ".open").exists());
+        String line = org.apache.commons.io.FileUtils.readFileToString(cdx, "UTF-8").trim();
+        assertTrue(line, line.startsWith("com,test)/ "));
+        assertTrue(line, line.contains("\"status\": \"200\""));
+        assertTrue(line, line.contains("\"mime\": \"text/plain\""));
+        assertTrue(line, line.contains("\"offset\": \"" + offset + "\""));
+        assertTrue(line, line.contains("\"filename\": \"" + warcFilename + "\""));
+
+        // length spans the response record alone
+        long length = Long.parseLong(line.replaceAll(".*\"length\": \"(\\d+)\".*", "$1"));
+        WARCReader reader = WARCReaderFactory.get(new File(warcsDir, warcFilename));
+        try {
+            ArchiveRecord record = reader.get(offset);
+            assertEquals(WARCRecordType.response.toString(), record.getHeader().getHeaderValue(HEADER_KEY_TYPE));
+            record.close();
+            assertEquals(WARCRecordType.request.toString(), reader.get(offset + length).getHeader().getHeaderValue(HEADER_KEY_TYPE));
+        } finally {
+            reader.close();
+        }
+    }
 }